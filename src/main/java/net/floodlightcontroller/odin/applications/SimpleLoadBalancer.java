@@ -4,9 +4,10 @@ import java.net.InetAddress;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import net.floodlightcontroller.odin.master.HearingLink;
 import net.floodlightcontroller.odin.master.OdinApplication;
 import net.floodlightcontroller.odin.master.OdinClient;
 import net.floodlightcontroller.util.MACAddress;
@@ -15,6 +16,7 @@ public class SimpleLoadBalancer extends OdinApplication {
 
 	private final int INTERVAL = 60000;
 	private final int SIGNAL_THRESHOLD = 160;
+	private final long STATS_MAX_AGE = 10000;
 
 	HashSet<OdinClient> clients;
 	Map<MACAddress, Set<InetAddress>> hearingMap = new HashMap<MACAddress, Set<InetAddress>> ();
@@ -24,51 +26,50 @@ public class SimpleLoadBalancer extends OdinApplication {
 	@Override
 	public void run() {
 		
+		// Balance every INTERVAL on the application runtime,
+		// rather than holding a thread in a sleep loop
+		schedulePeriodic(new Runnable() {
+			@Override
+			public void run() {
+				rebalance();
+			}
+		}, INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	private void rebalance() {
+		clients = new HashSet<OdinClient>(getClients());
 		
-		while (true) {
-			try {
-				Thread.sleep(INTERVAL);
-								
-				clients = new HashSet<OdinClient>(getClients());
-				
-				hearingMap.clear();
-				newMapping.clear();
-				
-				/*
-				 * Probe each AP to get the list of MAC addresses that it can "hear".
-				 * We define "able to hear" as "signal strength > SIGNAL_THRESHOLD".
-				 * 
-				 *  We then build the hearing table.
-				 */
-				for (InetAddress agentAddr: getAgents()) {
-					Map<MACAddress, Map<String, String>> vals = getRxStatsFromAgent(agentAddr);
-					
-					for (Entry<MACAddress, Map<String, String>> vals_entry: vals.entrySet()) {
-						
-						MACAddress staHwAddr = vals_entry.getKey();
-						
-						for (OdinClient oc: clients) {
-							if (oc.getMacAddress().equals(staHwAddr)
-									&& oc.getIpAddress() != null
-									&& !oc.getIpAddress().getHostAddress().equals("0.0.0.0")
-									&& Integer.parseInt(vals_entry.getValue().get("signal")) >= SIGNAL_THRESHOLD) {
-							
-								if (!hearingMap.containsKey(staHwAddr))
-									hearingMap.put(staHwAddr, new HashSet<InetAddress> ());
-									
-								hearingMap.get(staHwAddr).add(agentAddr);
-							}
-						}
-							
-					}
-				}
+		hearingMap.clear();
+		newMapping.clear();
+		
+		/*
+		 * Get the list of MAC addresses that each AP can "hear".
+		 * We define "able to hear" as "signal strength > SIGNAL_THRESHOLD".
+		 * 
+		 * Reading each AP's stats keeps the master's hearing graph
+		 * up to date, and we build the hearing table from it.
+		 */
+		for (InetAddress agentAddr: getAgents()) {
+			getRxStats(agentAddr, STATS_MAX_AGE);
+		}
+		
+		for (OdinClient oc: clients) {
+			if (oc.getIpAddress() == null
+					|| oc.getIpAddress().getHostAddress().equals("0.0.0.0"))
+				continue;
+			
+			for (HearingLink link: getBestAgentsForClient(oc.getMacAddress(), Integer.MAX_VALUE)) {
+				if (link.getSignal() < SIGNAL_THRESHOLD)
+					break;
 				
-				balance();
+				if (!hearingMap.containsKey(oc.getMacAddress()))
+					hearingMap.put(oc.getMacAddress(), new HashSet<InetAddress> ());
 				
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+				hearingMap.get(oc.getMacAddress()).add(link.getAgentAddress());
 			}
 		}
+		
+		balance();
 	}
 	
 	private void balance() {
@@ -79,8 +80,11 @@ public class SimpleLoadBalancer extends OdinApplication {
 		/*
 		 *  Now that the hearing map is populated, we re-assign
 		 *  clients to each AP in a round robin fashion, constrained
-		 *  by the hearing map.
+		 *  by the hearing map. The moves are handed to the
+		 *  master as one batch.
 		 */
+		Map<MACAddress, InetAddress> handoffs = new HashMap<MACAddress, InetAddress> ();
+		
 		for (OdinClient client: clients) {
 
 			InetAddress minNode = null;
@@ -113,8 +117,10 @@ public class SimpleLoadBalancer extends OdinApplication {
 			if (minNode == null)
 				continue;
 			
-			handoffClientToAp(client.getMacAddress(), minNode);
+			handoffs.put(client.getMacAddress(), minNode);
 			newMapping.put (minNode, newMapping.get(minNode) + 1);
 		}
+		
+		handoffClientsToAps(handoffs);
 	}
 }
\ No newline at end of file
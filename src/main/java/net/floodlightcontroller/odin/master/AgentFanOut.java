@@ -0,0 +1,271 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the commands of operations that touch many agents, e.g.,
+ * updating the LVAPs of every client of a pool, grouped by agent,
+ * with the agents served in parallel by a small pool of threads.
+ *
+ * The commands for an agent are issued in one command batch, so that
+ * they go out in a single pipelined write; a single command needs no
+ * batch, and is written as it is issued. Each agent has a queue of
+ * its own, served by one thread at a time, so an agent is sent the
+ * operations in the order they were submitted: callers can submit
+ * while still holding the lock under which they computed the new
+ * state, and release it before any command is issued.
+ */
+class AgentFanOut {
+	protected static Logger log = LoggerFactory.getLogger(AgentFanOut.class);
+
+	static final int DEFAULT_THREADS = 4;
+	static final int RECENT_OPERATIONS = 16;
+
+	/**
+	 * A command to issue to an agent for each item
+	 */
+	interface AgentOperation<T> {
+		OdinAgentFuture<Void> apply (IOdinAgent agent, T item);
+	}
+
+	private final ThreadPoolExecutor executor;
+	private final ConcurrentHashMap<InetAddress, AgentQueue> queues = new ConcurrentHashMap<InetAddress, AgentQueue>();
+
+	// Guarded by itself
+	private final ArrayDeque<FanOutReport> recent = new ArrayDeque<FanOutReport>();
+
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong commands = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+
+
+	/**
+	 * @param threads most agents served at once
+	 */
+	AgentFanOut (int threads) {
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new FanOutThreadFactory());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+
+	/**
+	 * @param threads most agents served at once
+	 */
+	void setThreads (int threads) {
+		if (threads > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		}
+		else {
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+	}
+
+
+	/**
+	 * Queue an operation: op is applied to each agent's items, in
+	 * a command batch per agent
+	 *
+	 * @param operation what the operation is, for its report
+	 * @param work items of each agent
+	 * @param op command to issue for each item
+	 * @return report of the operation, which is updated as it progresses
+	 */
+	<T> FanOutReport submit (String operation, Map<IOdinAgent, List<T>> work, AgentOperation<T> op) {
+		int total = 0;
+
+		for (List<T> items: work.values()) {
+			total += items.size();
+		}
+
+		FanOutReport report = new FanOutReport(operation, work.size(), total);
+		operations.incrementAndGet();
+
+		synchronized (recent) {
+			if (recent.size() >= RECENT_OPERATIONS)
+				recent.pollFirst();
+
+			recent.addLast(report);
+		}
+
+		for (Entry<IOdinAgent, List<T>> entry: work.entrySet()) {
+			if (entry.getValue().isEmpty())
+				continue;
+
+			queueFor(entry.getKey().getIpAddress()).add(new AgentTask<T>(entry.getKey(), entry.getValue(), op, report));
+		}
+
+		return report;
+	}
+
+
+	/**
+	 * @return counters, and the reports of the recent operations
+	 */
+	Map<String, Object> getStats () {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		List<Map<String, Object>> reports = new ArrayList<Map<String, Object>>();
+
+		synchronized (recent) {
+			for (FanOutReport report: recent) {
+				reports.add(report.toMap());
+			}
+		}
+
+		stats.put("threads", executor.getMaximumPoolSize());
+		stats.put("operations", operations.get());
+		stats.put("commands", commands.get());
+		stats.put("batches", batches.get());
+		stats.put("recent", reports);
+
+		return stats;
+	}
+
+
+	private AgentQueue queueFor (InetAddress agentAddr) {
+		AgentQueue queue = queues.get(agentAddr);
+
+		if (queue == null) {
+			AgentQueue created = new AgentQueue();
+			queue = queues.putIfAbsent(agentAddr, created);
+
+			if (queue == null)
+				queue = created;
+		}
+
+		return queue;
+	}
+
+
+	/**
+	 * An operation's items for one agent
+	 */
+	private class AgentTask<T> implements Runnable {
+		final IOdinAgent agent;
+		final List<T> items;
+		final AgentOperation<T> op;
+		final FanOutReport report;
+
+		AgentTask (IOdinAgent agent, List<T> items, AgentOperation<T> op, FanOutReport report) {
+			this.agent = agent;
+			this.items = items;
+			this.op = op;
+			this.report = report;
+		}
+
+		@Override
+		public void run () {
+			final InetAddress agentAddr = agent.getIpAddress();
+			OdinAgentFutureListener<Void> listener = new OdinAgentFutureListener<Void>() {
+				@Override
+				public void operationComplete(OdinAgentFuture<Void> future) {
+					report.commandDone(agentAddr, future.isSuccess() ? null : future.getCause());
+				}
+			};
+
+			if (items.size() == 1) {
+				issue(items.get(0), listener);
+				return;
+			}
+
+			agent.beginCommandBatch();
+
+			try {
+				for (T item: items) {
+					issue(item, listener);
+				}
+			} finally {
+				agent.endCommandBatch();
+				batches.incrementAndGet();
+			}
+		}
+
+		private void issue (T item, OdinAgentFutureListener<Void> listener) {
+			OdinAgentFuture<Void> future;
+
+			try {
+				future = op.apply(agent, item);
+			} catch (RuntimeException e) {
+				future = OdinAgentFuture.failed(e);
+			}
+
+			commands.incrementAndGet();
+			future.addListener(listener);
+		}
+	}
+
+
+	/**
+	 * Operations waiting for an agent, served by one thread at a time
+	 */
+	private class AgentQueue implements Runnable {
+		// Guarded by this
+		private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+		private boolean running = false;
+
+		void add (Runnable task) {
+			synchronized (this) {
+				tasks.addLast(task);
+
+				if (running)
+					return;
+
+				running = true;
+			}
+
+			executor.execute(this);
+		}
+
+		@Override
+		public void run () {
+			while (true) {
+				Runnable task;
+
+				synchronized (this) {
+					task = tasks.pollFirst();
+
+					if (task == null) {
+						running = false;
+						return;
+					}
+				}
+
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					log.error("Fan-out to an agent failed", e);
+				}
+			}
+		}
+	}
+
+
+	private static class FanOutThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread (Runnable r) {
+			Thread t = new Thread(r, "OdinFanOut-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -2,12 +2,19 @@ package net.floodlightcontroller.odin.master;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,18 +25,41 @@ import net.floodlightcontroller.odin.master.IOdinAgent;
 import net.floodlightcontroller.odin.master.OdinAgentFactory;
 import net.floodlightcontroller.odin.master.OdinClient;
 import net.floodlightcontroller.odin.master.OdinMaster;
+import net.floodlightcontroller.util.MACAddress;
 
 
 class AgentManager {
+	private static final int AGENT_LOCK_STRIPES = 64;
+
 	private final ConcurrentHashMap<InetAddress, IOdinAgent> agentMap = new ConcurrentHashMap<InetAddress,IOdinAgent>();
+	private final LockStripes agentLocks = new LockStripes(AGENT_LOCK_STRIPES);
     protected static Logger log = LoggerFactory.getLogger(OdinMaster.class);
 
     private IFloodlightProviderService floodlightProvider;
     private final ClientManager clientManager;
     private final PoolManager poolManager;
 
-	private final Timer failureDetectionTimer = new Timer();
-	private int agentTimeout = 6000;
+	// One failure detection timeout per agent, pushed back whenever
+	// we hear from it. Shared with the master's other timeouts.
+	private final OdinTimeoutWheel timeouts = new OdinTimeoutWheel();
+	private final AgentFailureHandler agentFailureHandler = new AgentFailureHandler();
+
+	// OpenFlow switches by address, so that agents find theirs without
+	// going through every switch, and agents that pinged before their
+	// switch connected, which are registered as soon as it does
+	private final ConcurrentHashMap<InetAddress, IOFSwitch> switchMap = new ConcurrentHashMap<InetAddress, IOFSwitch>();
+	private final ConcurrentHashMap<InetAddress, PendingAgent> pendingAgents = new ConcurrentHashMap<InetAddress, PendingAgent>();
+	private final ConcurrentHashMap<InetAddress, IOFSwitch> registering = new ConcurrentHashMap<InetAddress, IOFSwitch>();
+	private final PendingAgentExpirer pendingAgentExpirer = new PendingAgentExpirer();
+
+	// LVAPs recovered from the journal, by the agent that was hosting them
+	private final ConcurrentHashMap<InetAddress, Set<MACAddress>> expectedLvaps = new ConcurrentHashMap<InetAddress, Set<MACAddress>>();
+	private volatile int agentTimeout = 6000;
+
+	// Runs what waits on locks, so that the threads that find the
+	// work, such as the channel selector's, don't. Null runs it inline.
+	private volatile Executor executor = null;
+	private volatile AgentListener listener = null;
 
 	protected AgentManager (ClientManager clientManager, PoolManager poolManager) {
 		this.clientManager = clientManager;
@@ -47,6 +77,44 @@ class AgentManager {
     }
 
 
+	/**
+	 * @param executor runs the work that takes the topology, agent
+	 *        and client locks, or null to run it inline
+	 */
+	protected void setExecutor (final Executor executor) {
+		this.executor = executor;
+	}
+
+
+	/**
+	 * @param listener told about agents as they are registered
+	 */
+	protected void setAgentListener (final AgentListener listener) {
+		this.listener = listener;
+	}
+
+
+    /**
+     * @return the timing wheel driving agent failure detection,
+     * which the master also uses for its per-client timeouts
+     */
+    protected OdinTimeoutWheel getTimeoutWheel() {
+    	return timeouts;
+    }
+
+
+    /**
+     * Record that we have heard from an agent, pushing
+     * back its failure detection timeout.
+     *
+     * @param agent
+     */
+    protected void agentHeard(final IOdinAgent agent) {
+    	agent.setLastHeard(System.currentTimeMillis());
+    	timeouts.touch(agent.getIpAddress(), agentTimeout, TimeUnit.MILLISECONDS);
+    }
+
+
     /**
 	 * Confirm if the agent corresponding to an InetAddress
 	 * is being tracked.
@@ -79,178 +147,660 @@ class AgentManager {
 	}
 
 
+	/**
+	 * Get the lock that guards an agent's registration and
+	 * the agent-level state kept for it. Locks are striped,
+	 * so agents don't contend with each other in general.
+	 *
+	 * @param agentInetAddr
+	 * @return the agent's lock
+	 */
+	protected Lock getAgentLock(final InetAddress agentInetAddr) {
+		return agentLocks.get(agentInetAddr.hashCode());
+	}
+
+
+	/**
+	 * Stop the timing wheel: agent failure detection, and
+	 * the master's timeouts that share the wheel, stop firing
+	 */
+	protected void shutdown() {
+		timeouts.stop();
+	}
+
+
 	/**
 	 * Removes an agent from the agent manager
 	 *
 	 * @param agentInetAddr
 	 */
 	protected void removeAgent(InetAddress agentInetAddr) {
-		synchronized (this) {
+		Lock lock = getAgentLock(agentInetAddr);
+		lock.lock();
+		try {
 			agentMap.remove(agentInetAddr);
+			timeouts.cancel(agentInetAddr);
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	// Handle protocol messages here
 
 	/**
-     * Handle a ping from an agent. If an agent was added to the
-     * agent map, return true.
-     *
-     * @param odinAgentAddr
-     * @return true if an agent was added
-     */
-	protected boolean receivePing(final InetAddress odinAgentAddr) {
+	 * Record that an OpenFlow switch has connected
+	 *
+	 * @param sw the switch
+	 * @return true if an agent at the switch's address is waiting for it
+	 */
+	protected boolean switchAdded(final IOFSwitch sw) {
+		InetAddress switchIpAddr = getSwitchAddress(sw);
+
+		if (switchIpAddr == null)
+			return false;
+
+		switchMap.put(switchIpAddr, sw);
+
+		return pendingAgents.containsKey(switchIpAddr);
+	}
 
-		//if we receive a ping from a new agent
-		if (!isTracked (odinAgentAddr)) {
 
-			log.info("Ping message from: " + odinAgentAddr);
+	/**
+	 * Record that an OpenFlow switch has disconnected
+	 *
+	 * @param sw the switch
+	 */
+	protected void switchRemoved(final IOFSwitch sw) {
+		InetAddress switchIpAddr = getSwitchAddress(sw);
 
-		};
+		if (switchIpAddr != null)
+			switchMap.remove(switchIpAddr, sw);
+	}
 
-    	/*
-    	 * If this is not the first time we're hearing from this
-    	 * agent, then skip.
-    	 */
-    	if (odinAgentAddr == null || isTracked (odinAgentAddr)) {
-    		return false;
-    	}
 
-    	IOFSwitch ofSwitch = null;
+	/**
+	 * Get the switch at an agent's address, if it has connected.
+	 *
+	 * We're binding by IP addresses, because we want to pool
+	 * an OFSwitch with its corresponding OdinAgent, if any.
+	 *
+	 * @param odinAgentAddr
+	 * @return the switch, or null
+	 */
+	protected IOFSwitch getSwitch(final InetAddress odinAgentAddr) {
+		IOFSwitch sw = switchMap.get(odinAgentAddr);
+
+		/*
+		 * Switches that connected before we were listening never
+		 * made it to the index. Catch up with the provider when
+		 * it knows about more switches than we do.
+		 */
+		if (sw == null && floodlightProvider != null
+				&& floodlightProvider.getSwitches().size() > switchMap.size()) {
+			for (IOFSwitch known: floodlightProvider.getSwitches().values()) {
+				switchAdded(known);
+			}
+
+			sw = switchMap.get(odinAgentAddr);
+		}
+
+		return sw;
+	}
+
+
+	private static InetAddress getSwitchAddress(final IOFSwitch sw) {
+		if (sw.getChannel() == null || !(sw.getChannel().getRemoteAddress() instanceof InetSocketAddress))
+			return null;
+
+		return ((InetSocketAddress) sw.getChannel().getRemoteAddress()).getAddress();
+	}
+
+
+	/**
+	 * @return agents that have pinged us, but whose switch
+	 *         hasn't connected yet
+	 */
+	protected List<Map<String, Object>> getPendingAgents() {
+		List<Map<String, Object>> pending = new ArrayList<Map<String, Object>>();
+
+		for (PendingAgent agent: pendingAgents.values()) {
+			pending.add(agent.toMap());
+		}
+
+		return pending;
+	}
+
+
+	/**
+	 * Handle a ping from an agent. An agent whose switch has
+	 * connected is registered: connecting to its control socket
+	 * can take a while, so that is handed to the executor.
+	 *
+	 * @param odinAgentAddr
+	 * @return true if the agent is being registered
+	 */
+	protected boolean receivePing(final InetAddress odinAgentAddr) {
+
+		/*
+		 * If this is not the first time we're hearing from this
+		 * agent, then skip.
+		 */
+		if (odinAgentAddr == null || isTracked (odinAgentAddr)) {
+			return false;
+		}
 
 		/*
 		 * If the OFSwitch corresponding to the agent has already
 		 * registered here, then set it in the OdinAgent object.
 		 * We avoid registering the agent until its corresponding
-		 * OFSwitch has done so.
+		 * OFSwitch has done so, and register it as soon as it does.
 		 */
-		for (IOFSwitch sw: floodlightProvider.getSwitches().values()) {
+		IOFSwitch ofSwitch = getSwitch(odinAgentAddr);
 
-			/*
-			 * We're binding by IP addresses now, because we want to pool
-			 * an OFSwitch with its corresponding OdinAgent, if any.
-			 */
-			String switchIpAddr = ((InetSocketAddress) sw.getChannel().getRemoteAddress()).getAddress().getHostAddress();
+		if (ofSwitch == null) {
+			agentPending(odinAgentAddr);
 
-			if (switchIpAddr.equals(odinAgentAddr.getHostAddress())) {
-				ofSwitch = sw;
-				break;
-			}
+			// The switch may have connected in the meantime
+			ofSwitch = switchMap.get(odinAgentAddr);
+
+			if (ofSwitch == null)
+				return false;
 		}
 
-		if (ofSwitch == null)
+		// Pings that arrive while the agent is being registered
+		// have nothing to add
+		if (registering.putIfAbsent(odinAgentAddr, ofSwitch) != null)
 			return false;
 
-		synchronized (this) {
+		final IOFSwitch sw = ofSwitch;
+		boolean queued = execute(new Runnable() {
+			@Override
+			public void run() {
+				register(odinAgentAddr, sw);
+			}
+		});
 
-			/* Possible if a thread has waited
-			 * outside this critical region for
-			 * too long
-			 */
-			if (isTracked(odinAgentAddr))
-				return false;
+		if (!queued) {
+			registering.remove(odinAgentAddr);
+			log.error("Could not register agent " + odinAgentAddr);
+			return false;
+		}
+
+		return true;
+	}
 
+
+	/**
+	 * Connect to an agent's control socket, then publish the agent.
+	 * Connecting can take up to the connect timeout, so no lock is
+	 * held until it is done, and the agent's LVAP table is read once
+	 * the agent has been published.
+	 */
+	private void register(final InetAddress agentAddr, final IOFSwitch sw) {
+		try {
 			IOdinAgent oa = OdinAgentFactory.getOdinAgent();
-			oa.setSwitch(ofSwitch);
-			oa.init(odinAgentAddr);
+			oa.setSwitch(sw);
+
+			// The next ping tries again
+			if (oa.init(agentAddr) != 0)
+				return;
+
 			oa.setLastHeard(System.currentTimeMillis());
-			List<String> poolListForAgent = poolManager.getPoolsForAgent(odinAgentAddr);
-
-    		/*
-    		 * It is possible that the controller is recovering from a failure,
-    		 * so query the agent to see what LVAPs it hosts, and add them
-    		 * to our client tracker accordingly.
-    		 */
-    		for (OdinClient client: oa.getLvapsRemote()) {
-
-    			OdinClient trackedClient = clientManager.getClients().get(client.getMacAddress());
-
-    			if (trackedClient == null){
-    				clientManager.addClient(client);
-    				trackedClient = clientManager.getClients().get(client.getMacAddress());
-
-    				/*
-    				 * We need to find the pool the client was previously assigned to.
-    				 * The only information we have at this point is the
-    				 * SSID list of the client's LVAP. This can be simplified in
-    				 * future by adding a "pool" field to the LVAP struct.
-    				 */
-
-    				for (String pool: poolListForAgent) {
-    					/*
-    					 * Every SSID in every pool is unique, so we need to use only one
-    					 * of the lvap's SSIDs to find the right pool.
-    					 */
-    					String ssid = client.getLvap().getSsids().get(0);
-    					if (poolManager.getSsidListForPool(pool).contains(ssid)) {
-    						poolManager.mapClientToPool(trackedClient, pool);
-    						break;
-    					}
-
-    				}
-    			}
-
-    			if (trackedClient.getLvap().getAgent() == null) {
-    				trackedClient.getLvap().setAgent(oa);
-    			}
-    			else if (!trackedClient.getLvap().getAgent().getIpAddress().equals(odinAgentAddr)) {
-        			/*
-        			 * Race condition:
-        			 * - client associated at AP1 before the master failure,
-        			 * - master crashes.
-        			 * - master re-starts, AP2 connects to the master first.
-        			 * - client scans, master assigns it to AP2.
-        			 * - AP1 now joins the master again, but it has the client's LVAP as well.
-        			 * - Master should now clear the LVAP from AP1.
-        			 */
-    				oa.removeClientLvap(client);
-    			}
-    		}
-
-   			agentMap.put(odinAgentAddr, oa);
-
-    		log.info("Adding OdinAgent to map: " + odinAgentAddr.getHostAddress());
-
-    		/* This TimerTask checks the lastHeard value
-    		 * of the agent in order to handle failure detection
-    		 */
-    		failureDetectionTimer.scheduleAtFixedRate(new OdinAgentFailureDetectorTask(oa), 1, agentTimeout/2);
+
+			Set<MACAddress> expected = publishLocked(oa);
+
+			if (expected != null)
+				oa.getLvapsRemoteAsync().addListener(new LvapReconciler(oa, expected));
+		} finally {
+			registering.remove(agentAddr);
 		}
+	}
 
-		return true;
+
+	private Set<MACAddress> publishLocked(final IOdinAgent oa) {
+		Lock topologyLock = poolManager.getTopologyLock().readLock();
+		Lock agentLock = getAgentLock(oa.getIpAddress());
+		topologyLock.lock();
+		agentLock.lock();
+
+		try {
+			return publish(oa);
+		} finally {
+			agentLock.unlock();
+			topologyLock.unlock();
+		}
 	}
 
 
-	private class OdinAgentFailureDetectorTask extends TimerTask {
+	/**
+	 * Add a connected agent to the agent map, and bind to it the
+	 * LVAPs the journal says it was hosting
+	 *
+	 * @return the LVAPs it is expected to host, or null if it
+	 *         wasn't added
+	 */
+	private Set<MACAddress> publish(final IOdinAgent oa) {
+		InetAddress agentAddr = oa.getIpAddress();
+
+		if (isTracked(agentAddr))
+			return null;
+
+		// The switch went away while we were connecting
+		if (switchMap.get(agentAddr) != oa.getSwitch()) {
+			log.info("Switch of agent " + agentAddr.getHostAddress() + " disconnected while the agent was registering");
+			return null;
+		}
+
+		Set<MACAddress> expected = expectedLvaps.remove(agentAddr);
+
+		/*
+		 * It is possible that the controller is recovering from a failure,
+		 * so the agent's LVAP table is read to see what LVAPs it hosts, and
+		 * reconciled with our client tracker once it arrives.
+		 */
+		if (expected == null) {
+			expected = Collections.emptySet();
+		}
+		else {
+			/*
+			 * The journal tells us which LVAPs the agent was hosting
+			 * before the master restarted, so bind them to it right
+			 * away, without waiting for its LVAP table.
+			 */
+			for (MACAddress clientHwAddress: expected) {
+				Lock clientLock = clientManager.getClientLock(clientHwAddress);
+				clientLock.lock();
+
+				try {
+					OdinClient trackedClient = clientManager.getClient(clientHwAddress);
+
+					if (trackedClient != null && trackedClient.getLvap() != null
+							&& trackedClient.getLvap().getAgent() == null) {
+						clientManager.setClientAgent(trackedClient, oa);
+					}
+				} finally {
+					clientLock.unlock();
+				}
+			}
+		}
+
+		agentMap.put(agentAddr, oa);
+
+		PendingAgent pending = pendingAgents.remove(agentAddr);
+
+		if (pending != null)
+			timeouts.cancel(pending);
+
+		log.info("Adding OdinAgent to map: " + agentAddr.getHostAddress());
+
+		// Armed once here, and pushed back by agentHeard()
+		timeouts.schedule(agentAddr, agentTimeout, TimeUnit.MILLISECONDS, agentFailureHandler);
+
+		AgentListener l = listener;
+
+		if (l != null)
+			l.agentAdded(oa);
+
+		return expected;
+	}
+
+
+	/**
+	 * Note a ping from an agent whose switch hasn't connected. Agents
+	 * that stop pinging are forgotten after the agent timeout.
+	 */
+	private void agentPending(final InetAddress odinAgentAddr) {
+		PendingAgent pending = pendingAgents.get(odinAgentAddr);
+
+		if (pending == null) {
+			PendingAgent created = new PendingAgent(odinAgentAddr);
+			pending = pendingAgents.putIfAbsent(odinAgentAddr, created);
+
+			if (pending == null) {
+				pending = created;
+				log.info("Ping message from: " + odinAgentAddr + ", waiting for its switch to connect");
+			}
+		}
+
+		pending.pinged();
+
+		if (!timeouts.touch(pending, agentTimeout, TimeUnit.MILLISECONDS))
+			timeouts.schedule(pending, agentTimeout, TimeUnit.MILLISECONDS, pendingAgentExpirer);
+	}
+
+
+	/**
+	 * Expect an agent to be hosting a client's LVAP when it registers,
+	 * such as when the master restarts and recovers its journal.
+	 *
+	 * @param odinAgentAddr the agent
+	 * @param client the client
+	 */
+	protected void expectLvap(final InetAddress odinAgentAddr, final OdinClient client) {
+		Set<MACAddress> expected = expectedLvaps.get(odinAgentAddr);
+
+		if (expected == null) {
+			expected = Collections.newSetFromMap(new ConcurrentHashMap<MACAddress, Boolean>());
+			Set<MACAddress> existing = expectedLvaps.putIfAbsent(odinAgentAddr, expected);
+
+			if (existing != null)
+				expected = existing;
+		}
+
+		expected.add(client.getMacAddress());
+	}
+
+
+	/**
+	 * Reconcile an LVAP that an agent reports hosting with our
+	 * client tracker. Unknown clients are adopted, and LVAPs of
+	 * clients that have since moved elsewhere are removed from
+	 * the agent.
+	 */
+	private void recoverLvap(final IOdinAgent oa, final OdinClient client, final List<String> poolListForAgent) {
+		Lock clientLock = clientManager.getClientLock(client.getMacAddress());
+		clientLock.lock();
+
+		try {
+			OdinClient trackedClient = clientManager.getClient(client.getMacAddress());
+
+			if (trackedClient == null){
+				clientManager.addClient(client);
+				trackedClient = client;
+
+				/*
+				 * We need to find the pool the client was previously assigned to.
+				 * The only information we have at this point is the
+				 * SSID list of the client's LVAP. This can be simplified in
+				 * future by adding a "pool" field to the LVAP struct.
+				 *
+				 * Every SSID in every pool is unique, so we need to use only one
+				 * of the lvap's SSIDs to find the right pool.
+				 */
+				String pool = poolManager.getPoolForSsid(client.getLvap().getSsids().get(0));
+
+				if (pool != null && poolListForAgent.contains(pool)) {
+					poolManager.mapClientToPool(trackedClient, pool);
+				}
+
+				clientManager.setClientAgent(trackedClient, oa);
+			}
+			else if (trackedClient.getLvap().getAgent() == null) {
+				clientManager.setClientAgent(trackedClient, oa);
+			}
+			else if (!trackedClient.getLvap().getAgent().getIpAddress().equals(oa.getIpAddress())) {
+				/*
+				 * Race condition:
+				 * - client associated at AP1 before the master failure,
+				 * - master crashes.
+				 * - master re-starts, AP2 connects to the master first.
+				 * - client scans, master assigns it to AP2.
+				 * - AP1 now joins the master again, but it has the client's LVAP as well.
+				 * - Master should now clear the LVAP from AP1.
+				 */
+				oa.removeClientLvapAsync(client);
+			}
+
+		} finally {
+			clientLock.unlock();
+		}
+	}
+
+
+	/**
+	 * What the master does with agents as they are registered,
+	 * and with the LVAPs they turn out to host
+	 */
+	interface AgentListener {
+		/**
+		 * An agent has been added to the agent map. Called with
+		 * the topology read lock and the agent's lock held.
+		 *
+		 * @param agent the agent
+		 */
+		void agentAdded (IOdinAgent agent);
+
+		/**
+		 * An agent's LVAPs have been reconciled with its LVAP table.
+		 * Called with the topology read lock and the agent's lock held.
+		 *
+		 * @param agent the agent
+		 */
+		void lvapsRecovered (IOdinAgent agent);
+	}
+
+
+	/**
+	 * Run a task on the executor, or inline if there is none
+	 *
+	 * @return false if the executor refused the task
+	 */
+	private boolean execute (final Runnable task) {
+		Executor ex = executor;
+
+		if (ex == null) {
+			task.run();
+			return true;
+		}
+
+		try {
+			ex.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			log.error("Executor refused a task: " + e);
+			return false;
+		}
+	}
+
+
+	/**
+	 * Reconciles the LVAPs journaled for an agent, if any, with its
+	 * LVAP table, once the table has been read. The table arrives on
+	 * the channel selector's thread, which every agent's I/O goes
+	 * through, so reconciling is handed to the executor.
+	 */
+	private class LvapReconciler implements OdinAgentFutureListener<Set<OdinClient>> {
 		private final IOdinAgent agent;
+		private final Set<MACAddress> expected;
 
-		OdinAgentFailureDetectorTask (final IOdinAgent oa){
-			this.agent = oa;
+		LvapReconciler (IOdinAgent agent, Set<MACAddress> expected) {
+			this.agent = agent;
+			this.expected = expected;
 		}
 
 		@Override
-		public void run() {
-			//log.info("Executing failure check against: " + agent.getIpAddress());
-			if ((System.currentTimeMillis() - agent.getLastHeard()) >= agentTimeout) {
-				log.error("Agent: " + agent.getIpAddress() + " has timed out");
-
-				/* This is default behaviour, maybe we should
-				 * re-assign the client based on some specific
-				 * behaviour
-				 */
+		public void operationComplete(final OdinAgentFuture<Set<OdinClient>> future) {
+			boolean queued = execute(new Runnable() {
+				@Override
+				public void run() {
+					reconcileLocked(future);
+				}
+			});
+
+			if (!queued)
+				log.error("Could not reconcile the LVAPs of agent " + agent.getIpAddress());
+		}
+
+		private void reconcileLocked(OdinAgentFuture<Set<OdinClient>> future) {
+			Lock topologyLock = poolManager.getTopologyLock().readLock();
+			Lock agentLock = getAgentLock(agent.getIpAddress());
+			topologyLock.lock();
+			agentLock.lock();
+
+			try {
+				reconcile(future);
+			} finally {
+				agentLock.unlock();
+				topologyLock.unlock();
+			}
+		}
+
+		private void reconcile(OdinAgentFuture<Set<OdinClient>> future) {
+			InetAddress agentAddr = agent.getIpAddress();
+
+			if (!future.isSuccess()) {
+				log.error("Failed to read LVAPs from agent " + agentAddr
+						+ (expected.isEmpty() ? ": " : ", keeping the journaled ones: ") + future.getCause());
+				return;
+			}
+
+			// The agent has failed since, and its LVAPs were let go
+			if (agentMap.get(agentAddr) != agent)
+				return;
+
+			List<String> poolListForAgent = poolManager.getPoolsForAgent(agentAddr);
+			Set<MACAddress> hosted = new HashSet<MACAddress>();
+
+			for (OdinClient client: future.getNow()) {
+				hosted.add(client.getMacAddress());
+				recoverLvap(agent, client, poolListForAgent);
+			}
 
-				// TODO: There should be a way to lock the master
-				// during such operations
-				for (OdinClient oc: agent.getLvapsLocal()) {
-					clientManager.getClients().get(oc.getMacAddress()).getLvap().setAgent(null);
+			// Journaled LVAPs the agent no longer has, e.g., if it restarted as well
+			for (MACAddress clientHwAddress: expected) {
+				if (hosted.contains(clientHwAddress))
+					continue;
+
+				Lock clientLock = clientManager.getClientLock(clientHwAddress);
+				clientLock.lock();
+
+				try {
+					OdinClient trackedClient = clientManager.getClient(clientHwAddress);
+
+					if (trackedClient != null && trackedClient.getLvap() != null
+							&& trackedClient.getLvap().getAgent() == agent) {
+						log.info("Restoring LVAP " + clientHwAddress + " on agent " + agentAddr);
+						agent.addClientLvapAsync(trackedClient);
+					}
+				} finally {
+					clientLock.unlock();
+				}
+			}
+
+			AgentListener l = listener;
+
+			if (l != null)
+				l.lvapsRecovered(agent);
+		}
+	}
+
+
+	/**
+	 * Lets go of agents that have gone quiet. The timeout fires on
+	 * the wheel's thread, which the master's other timeouts share,
+	 * so the agent is handed to the executor, which takes the
+	 * topology, agent and client locks in that order.
+	 */
+	private class AgentFailureHandler implements OdinTimeoutWheel.TimeoutHandler<InetAddress> {
+
+		@Override
+		public void timeout(final InetAddress agentAddr) {
+			boolean queued = execute(new Runnable() {
+				@Override
+				public void run() {
+					agentTimedOutLocked(agentAddr);
 				}
+			});
+
+			if (!queued)
+				log.error("Could not let go of agent " + agentAddr);
+		}
+
+		private void agentTimedOutLocked(InetAddress agentAddr) {
+			Lock topologyLock = poolManager.getTopologyLock().readLock();
+			Lock agentLock = getAgentLock(agentAddr);
+			topologyLock.lock();
+			agentLock.lock();
+
+			try {
+				agentTimedOut(agentAddr);
+			} finally {
+				agentLock.unlock();
+				topologyLock.unlock();
+			}
+		}
+
+		private void agentTimedOut(InetAddress agentAddr) {
+			IOdinAgent agent = agentMap.get(agentAddr);
+
+			if (agent == null)
+				return;
+
+			// Someone may have updated lastHeard without going
+			// through agentHeard(): wait for the remainder
+			long idle = System.currentTimeMillis() - agent.getLastHeard();
+
+			if (idle < agentTimeout) {
+				timeouts.schedule(agentAddr, agentTimeout - idle, TimeUnit.MILLISECONDS, this);
+				return;
+			}
+
+			log.error("Agent: " + agent.getIpAddress() + " has timed out");
+
+			/* This is default behaviour, maybe we should
+			 * re-assign the client based on some specific
+			 * behaviour
+			 */
 
-				// Agent should now be cleared out
-				removeAgent(agent.getIpAddress());
-				this.cancel();
+			for (OdinClient oc: agent.getLvapsLocal()) {
+				Lock clientLock = clientManager.getClientLock(oc.getMacAddress());
+				clientLock.lock();
+
+				try {
+					OdinClient trackedClient = clientManager.getClient(oc.getMacAddress());
+
+					if (trackedClient != null)
+						clientManager.setClientAgent(trackedClient, null);
+				} finally {
+					clientLock.unlock();
+				}
 			}
+
+			// Agent should now be cleared out
+			removeAgent(agent.getIpAddress());
 		}
 
 	}
 
+
+	/**
+	 * An agent that has pinged us before its switch connected.
+	 * Entries are compared by identity, so they can key their
+	 * own timeouts.
+	 */
+	private static final class PendingAgent {
+		final InetAddress agentAddr;
+		final long firstPing = System.currentTimeMillis();
+		volatile long lastPing;
+		final AtomicLong pings = new AtomicLong();
+
+		PendingAgent(InetAddress agentAddr) {
+			this.agentAddr = agentAddr;
+		}
+
+		void pinged() {
+			lastPing = System.currentTimeMillis();
+			pings.incrementAndGet();
+		}
+
+		Map<String, Object> toMap() {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+
+			map.put("agent", agentAddr.getHostAddress());
+			map.put("firstPing", firstPing);
+			map.put("lastPing", lastPing);
+			map.put("pings", pings.get());
+
+			return map;
+		}
+	}
+
+	private class PendingAgentExpirer implements OdinTimeoutWheel.TimeoutHandler<PendingAgent> {
+
+		@Override
+		public void timeout(PendingAgent pending) {
+			if (pendingAgents.remove(pending.agentAddr, pending))
+				log.info("Agent " + pending.agentAddr + " stopped pinging before its switch connected");
+		}
+	}
 }
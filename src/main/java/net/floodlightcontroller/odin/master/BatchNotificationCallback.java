@@ -0,0 +1,16 @@
+package net.floodlightcontroller.odin.master;
+
+public interface BatchNotificationCallback extends NotificationCallback {
+
+	/**
+	 * Applications that would rather see all the values an agent
+	 * published in one batch at once implement this instead of
+	 * a plain NotificationCallback. The master calls it once per
+	 * batch with every value matching the subscription, and still
+	 * calls exec() for publishes that didn't come in a batch.
+	 * 
+	 * @param oes
+	 * @param cntx
+	 */
+	public void execBatch(OdinEventSubscription oes, BatchNotificationCallbackContext cntx);
+}
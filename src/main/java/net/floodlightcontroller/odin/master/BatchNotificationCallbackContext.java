@@ -0,0 +1,21 @@
+package net.floodlightcontroller.odin.master;
+
+import net.floodlightcontroller.util.MACAddress;
+
+public class BatchNotificationCallbackContext {
+	public final IOdinAgent agent;
+	
+	// The i-th value was published about the i-th client
+	public final MACAddress[] clientHwAddresses;
+	public final long[] values;
+	
+	public BatchNotificationCallbackContext(final IOdinAgent agent, final MACAddress[] clientHwAddresses, final long[] values) {
+		this.agent = agent;
+		this.clientHwAddresses = clientHwAddresses;
+		this.values = values;
+	}
+	
+	public int size() {
+		return values.length;
+	}
+}
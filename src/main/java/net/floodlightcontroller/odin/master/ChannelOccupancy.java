@@ -0,0 +1,69 @@
+package net.floodlightcontroller.odin.master;
+
+/**
+ * How busy a channel was, as seen by an agent's spectral scan over
+ * a window of time. Aggregates are computed from the agent's sample
+ * frames when asked for, and don't change once handed out.
+ */
+public class ChannelOccupancy {
+	private final int frequency;
+	private final long frames;
+	private final double occupancy;
+	private final double dutyCycle;
+	private final int peakPower;
+	private final double averagePower;
+
+	ChannelOccupancy (int frequency, long frames, double occupancy, double dutyCycle, int peakPower, double averagePower) {
+		this.frequency = frequency;
+		this.frames = frames;
+		this.occupancy = occupancy;
+		this.dutyCycle = dutyCycle;
+		this.peakPower = peakPower;
+		this.averagePower = averagePower;
+	}
+
+	/**
+	 * @return center frequency of the channel, in MHz
+	 */
+	public int getFrequency() {
+		return frequency;
+	}
+
+	/**
+	 * @return number of sample frames in the window
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * @return fraction of the FFT bins, over all frames,
+	 *         whose power was above the busy threshold
+	 */
+	public double getOccupancy() {
+		return occupancy;
+	}
+
+	/**
+	 * @return fraction of the frames in which any bin
+	 *         was above the busy threshold
+	 */
+	public double getDutyCycle() {
+		return dutyCycle;
+	}
+
+	/**
+	 * @return strongest power of any bin, in dBm
+	 */
+	public int getPeakPower() {
+		return peakPower;
+	}
+
+	/**
+	 * @return strongest power per frame, averaged over
+	 *         the frames, in dBm
+	 */
+	public double getAveragePower() {
+		return averagePower;
+	}
+}
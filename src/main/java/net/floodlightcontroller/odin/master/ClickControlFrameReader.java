@@ -0,0 +1,240 @@
+package net.floodlightcontroller.odin.master;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Frames replies read from a Click control socket.
+ *
+ * A reply looks like this:
+ *
+ *   CCC-optional continuation lines
+ *   CCC message
+ *   DATA <n>           (successful read handlers only)
+ *   <n bytes of data>  (successful read handlers only)
+ *
+ * All bytes are accumulated in one buffer that is reused across
+ * replies. Once a DATA header has been seen the buffer is grown (at
+ * most once) to hold the whole body, and the body is handed to the
+ * FrameHandler in place, so that parsers work straight off the bytes
+ * that came off the wire.
+ *
+ * Not thread-safe: a reader belongs to a single connection and is
+ * driven by a single thread.
+ */
+class ClickControlFrameReader {
+	private static final int INITIAL_BUFFER_SIZE = 16384;
+
+	// Reply parser states
+	private static final int STATE_BANNER = 0;
+	private static final int STATE_STATUS = 1;
+	private static final int STATE_DATA_HEADER = 2;
+	private static final int STATE_DATA_BODY = 3;
+
+	private ByteBuffer buf;
+	private int state = STATE_BANNER;
+	private int bodyLength;
+
+
+	/**
+	 * Callbacks for the replies framed by the reader. They are
+	 * invoked on the thread that drives the reader.
+	 */
+	interface FrameHandler {
+
+		/**
+		 * @return true if the command the next reply answers is a
+		 *         read handler, whose successful reply carries data
+		 */
+		boolean expectsData();
+
+
+		/**
+		 * A reply without data has been received: either a failure,
+		 * or the acknowledgement of a write handler.
+		 *
+		 * @param success true if the status code was 2xx
+		 * @param statusLine the final status line, for error reporting
+		 */
+		void onStatus(boolean success, String statusLine);
+
+
+		/**
+		 * The body of a successful read handler reply has been received.
+		 * The bytes are only valid for the duration of the call.
+		 *
+		 * @param data buffer holding the body
+		 * @param offset offset of the body in data
+		 * @param length length of the body
+		 */
+		void onData(byte[] data, int offset, int length);
+	}
+
+
+	ClickControlFrameReader () {
+		this(INITIAL_BUFFER_SIZE);
+	}
+
+
+	ClickControlFrameReader (int initialBufferSize) {
+		buf = ByteBuffer.allocate(initialBufferSize);
+	}
+
+
+	/**
+	 * Read whatever is available from the channel and dispatch
+	 * every reply that is now complete.
+	 *
+	 * @param channel channel to read from
+	 * @param handler receives the framed replies
+	 * @return number of bytes read
+	 * @throws IOException if the channel failed, reached end of stream,
+	 *         or the reply stream is malformed
+	 */
+	int read (ReadableByteChannel channel, FrameHandler handler) throws IOException {
+		// A status line longer than the buffer: make room for it
+		if (!buf.hasRemaining()) {
+			grow(buf.capacity() * 2);
+		}
+
+		int n = channel.read(buf);
+
+		if (n < 0) {
+			throw new EOFException("Control socket closed");
+		}
+
+		buf.flip();
+
+		try {
+			while (parseNext(handler)) {
+				// keep going while complete replies are available
+			}
+		} finally {
+			buf.compact();
+		}
+
+		// Make sure the rest of a large body fits in one go
+		if (state == STATE_DATA_BODY && bodyLength > buf.capacity()) {
+			grow(bodyLength);
+		}
+
+		return n;
+	}
+
+
+	/**
+	 * @return current capacity of the reusable buffer
+	 */
+	int getBufferCapacity () {
+		return buf.capacity();
+	}
+
+
+	/**
+	 * Consume one element of the reply stream.
+	 *
+	 * @return true if progress was made
+	 * @throws IOException
+	 */
+	private boolean parseNext (FrameHandler handler) throws IOException {
+		int start = buf.position();
+
+		if (state == STATE_DATA_BODY) {
+			if (buf.remaining() < bodyLength)
+				return false;
+
+			buf.position(start + bodyLength);
+			state = STATE_STATUS;
+			handler.onData(buf.array(), buf.arrayOffset() + start, bodyLength);
+
+			return true;
+		}
+
+		int eol = indexOf(buf, (byte) '\n');
+
+		if (eol < 0)
+			return false;
+
+		int end = (eol > start && buf.get(eol - 1) == '\r') ? eol - 1 : eol;
+		buf.position(eol + 1);
+
+		switch (state) {
+		case STATE_BANNER:
+			// Click::ControlSocket/1.x
+			state = STATE_STATUS;
+			break;
+
+		case STATE_STATUS:
+			// Multi-line replies use '-' after the status code
+			if (end - start > 3 && buf.get(start + 3) == '-')
+				break;
+
+			boolean success = (end - start >= 3) && buf.get(start) == '2';
+
+			if (success && handler.expectsData()) {
+				state = STATE_DATA_HEADER;
+				break;
+			}
+
+			// Only build a string for the status line on failure
+			handler.onStatus(success, success ? null : new String(buf.array(), buf.arrayOffset() + start, end - start, "US-ASCII"));
+			break;
+
+		case STATE_DATA_HEADER:
+			if (end - start < 5 || buf.get(start) != 'D' || buf.get(start + 1) != 'A'
+					|| buf.get(start + 2) != 'T' || buf.get(start + 3) != 'A') {
+				// skip anything else the control socket tells us
+				break;
+			}
+
+			bodyLength = parseLength(start + 4, end);
+			state = STATE_DATA_BODY;
+			break;
+		}
+
+		return true;
+	}
+
+
+	private int parseLength (int from, int to) throws IOException {
+		int len = 0;
+		boolean digits = false;
+
+		for (int i = from; i < to; i++) {
+			byte b = buf.get(i);
+
+			if (b >= '0' && b <= '9') {
+				len = len * 10 + (b - '0');
+				digits = true;
+			}
+			else if (b != ' ' || digits) {
+				break;
+			}
+		}
+
+		if (!digits)
+			throw new IOException("Malformed DATA line from control socket");
+
+		return len;
+	}
+
+
+	private static int indexOf (ByteBuffer b, byte value) {
+		for (int i = b.position(); i < b.limit(); i++) {
+			if (b.get(i) == value)
+				return i;
+		}
+
+		return -1;
+	}
+
+
+	private void grow (int capacity) {
+		ByteBuffer bigger = ByteBuffer.allocate(capacity);
+		buf.flip();
+		bigger.put(buf);
+		buf = bigger;
+	}
+}
@@ -0,0 +1,129 @@
+package net.floodlightcontroller.odin.master;
+
+/**
+ * Turns the data of a read handler reply into a result, working
+ * directly on the bytes read off the control socket.
+ */
+abstract class ClickReplyParser<V> {
+
+	/**
+	 * Parse a read handler reply. The bytes are only valid
+	 * for the duration of the call.
+	 *
+	 * @param data buffer holding the reply
+	 * @param offset offset of the reply in data
+	 * @param length length of the reply
+	 * @return the parsed result
+	 * @throws IllegalArgumentException if the reply is malformed
+	 */
+	abstract V parse (byte[] data, int offset, int length);
+
+
+	/**
+	 * Find the next occurrence of a byte
+	 *
+	 * @return index of the byte, or end if it wasn't found
+	 */
+	static int indexOf (byte[] data, int from, int end, byte value) {
+		for (int i = from; i < end; i++) {
+			if (data[i] == value)
+				return i;
+		}
+
+		return end;
+	}
+
+
+	/**
+	 * Parse a colon separated MAC address (xx:xx:xx:xx:xx:xx)
+	 * into the lower 48 bits of a long.
+	 *
+	 * @return the MAC address
+	 * @throws IllegalArgumentException if the bytes don't hold a MAC address
+	 */
+	static long parseMacAddress (byte[] data, int from, int end) {
+		if (end - from != 17)
+			throw new IllegalArgumentException("Malformed MAC address");
+
+		long mac = 0;
+
+		for (int i = 0; i < 6; i++) {
+			int pos = from + i * 3;
+
+			if (i < 5 && data[pos + 2] != ':')
+				throw new IllegalArgumentException("Malformed MAC address");
+
+			mac = (mac << 8) | (hexValue(data[pos]) << 4) | hexValue(data[pos + 1]);
+		}
+
+		return mac;
+	}
+
+
+	/**
+	 * Parse a signed decimal integer
+	 *
+	 * @throws NumberFormatException if the bytes don't hold a number
+	 */
+	static long parseLong (byte[] data, int from, int end) {
+		if (from >= end)
+			throw new NumberFormatException("Empty number");
+
+		boolean negative = data[from] == '-';
+		long value = 0;
+
+		for (int i = negative ? from + 1 : from; i < end; i++) {
+			int d = data[i] - '0';
+
+			if (d < 0 || d > 9)
+				throw new NumberFormatException("Malformed number");
+
+			value = value * 10 + d;
+		}
+
+		return negative ? -value : value;
+	}
+
+
+	/**
+	 * Parse a decimal number with an optional fractional
+	 * part, such as a Click timestamp (secs.usecs)
+	 *
+	 * @throws NumberFormatException if the bytes don't hold a number
+	 */
+	static double parseDecimal (byte[] data, int from, int end) {
+		int dot = indexOf(data, from, end, (byte) '.');
+		boolean negative = dot > from && data[from] == '-';
+		double value = parseLong(data, from, dot);
+
+		if (dot == end)
+			return value;
+
+		double scale = 1;
+		long fraction = 0;
+
+		for (int i = dot + 1; i < end; i++) {
+			int d = data[i] - '0';
+
+			if (d < 0 || d > 9)
+				throw new NumberFormatException("Malformed number");
+
+			fraction = fraction * 10 + d;
+			scale *= 10;
+		}
+
+		return negative ? value - fraction / scale : value + fraction / scale;
+	}
+
+
+	private static int hexValue (byte b) {
+		if (b >= '0' && b <= '9')
+			return b - '0';
+		if (b >= 'a' && b <= 'f')
+			return b - 'a' + 10;
+		if (b >= 'A' && b <= 'F')
+			return b - 'A' + 10;
+
+		throw new IllegalArgumentException("Malformed MAC address");
+	}
+}
@@ -1,15 +1,33 @@
 package net.floodlightcontroller.odin.master;
 
 import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 
 import net.floodlightcontroller.odin.master.OdinClient;
 import net.floodlightcontroller.util.MACAddress;
 
 class ClientManager {
-	private final Map<MACAddress, OdinClient> odinClientMap = new ConcurrentHashMap<MACAddress, OdinClient> ();
+	private static final int CLIENT_LOCK_STRIPES = 256;
 
+	// Keyed by MACAddress.toLong(), so that lookups don't
+	// hash and compare the address' byte array
+	private final ConcurrentLongMap<OdinClient> odinClientMap = new ConcurrentLongMap<OdinClient> ();
+	private final LockStripes clientLocks = new LockStripes(CLIENT_LOCK_STRIPES);
+	private volatile OdinJournal journal = null;
+
+	
+	/**
+	 * Journal changes to the clients from now on
+	 * 
+	 * @param journal the journal, or null to stop journaling
+	 */
+	protected void setJournal (final OdinJournal journal) {
+		this.journal = journal;
+	}
+	
 	
 	/**
 	 * Add a client to the client tracker
@@ -20,7 +38,7 @@ class ClientManager {
 	 * @param vapEssid Client specific VAP essid
 	 */
 	protected void addClient (final MACAddress clientHwAddress, final InetAddress ipv4Address, final Lvap lvap) {
-		odinClientMap.put(clientHwAddress, new OdinClient (clientHwAddress, ipv4Address, lvap));
+		addClient(new OdinClient (clientHwAddress, ipv4Address, lvap));
 	}
 	
 	
@@ -33,7 +51,10 @@ class ClientManager {
 	 * @param vapEssid Client specific VAP essid
 	 */
 	protected void addClient (final OdinClient oc) {
-		odinClientMap.put(oc.getMacAddress(), oc);
+		odinClientMap.put(oc.getMacAddress().toLong(), oc);
+		
+		if (journal != null)
+			journal.clientAdded(oc);
 	}
 	
 	
@@ -43,7 +64,38 @@ class ClientManager {
 	 * @param hwAddress Client's hw address
 	 */
 	protected void removeClient (final MACAddress clientHwAddress) {
-		odinClientMap.remove(clientHwAddress);
+		if (odinClientMap.remove(clientHwAddress.toLong()) != null && journal != null)
+			journal.clientRemoved(clientHwAddress);
+	}
+	
+	
+	/**
+	 * Set the agent hosting a client's LVAP. Should
+	 * be called with the client's lock held.
+	 * 
+	 * @param oc the client
+	 * @param agent the agent, or null if no agent hosts the LVAP
+	 */
+	protected void setClientAgent (final OdinClient oc, final IOdinAgent agent) {
+		oc.getLvap().setAgent(agent);
+		
+		if (journal != null)
+			journal.clientAgentChanged(oc.getMacAddress(), (agent == null) ? null : agent.getIpAddress());
+	}
+	
+	
+	/**
+	 * Set a client's IP address. Should be called
+	 * with the client's lock held.
+	 * 
+	 * @param oc the client
+	 * @param ipAddress Client's new IP address
+	 */
+	protected void setClientIpAddress (final OdinClient oc, final InetAddress ipAddress) {
+		oc.setIpAddress(ipAddress);
+		
+		if (journal != null)
+			journal.clientIpChanged(oc.getMacAddress(), ipAddress);
 	}
 	
 	
@@ -51,15 +103,48 @@ class ClientManager {
 	 * Get a client by hw address
 	 */
 	protected OdinClient getClient (final MACAddress clientHwAddress) {
+		return odinClientMap.get(clientHwAddress.toLong());
+	}
+	
+	
+	/**
+	 * Get a client by hw address, as decoded from an
+	 * agent's message with no MACAddress involved
+	 * 
+	 * @param clientHwAddress hw address as returned by MACAddress.toLong()
+	 */
+	protected OdinClient getClient (final long clientHwAddress) {
 		return odinClientMap.get(clientHwAddress);
 	}
 	
 	
 	/**
-	 * Get the client Map from the manager
+	 * Get a snapshot of the clients in the manager. Use
+	 * getClient() to look up individual clients.
+	 * 
 	 * @return client map
 	 */
 	protected Map<MACAddress, OdinClient> getClients () {
-		return odinClientMap;
+		Map<MACAddress, OdinClient> clients = new HashMap<MACAddress, OdinClient> ();
+		
+		for (OdinClient oc: odinClientMap.values()) {
+			clients.put(oc.getMacAddress(), oc);
+		}
+		
+		return Collections.unmodifiableMap(clients);
+	}
+	
+	
+	/**
+	 * Get the lock that guards per-client state, such as
+	 * the client's LVAP. Clients are striped over a fixed
+	 * number of locks, so work on different clients rarely
+	 * contends.
+	 * 
+	 * @param clientHwAddress Client's hw address
+	 * @return the client's lock
+	 */
+	protected Lock getClientLock (final MACAddress clientHwAddress) {
+		return clientLocks.get(clientHwAddress.toLong());
 	}
 }
@@ -0,0 +1,14 @@
+package net.floodlightcontroller.odin.master;
+
+/**
+ * What the master keeps a history of, for every client
+ * and every agent that hears it.
+ */
+public enum ClientMetric {
+	/** Signal the agent hears the client at, from publishes and rxstats */
+	SIGNAL,
+	/** Rate of the last frame from the client, from rxstats */
+	RATE,
+	/** Noise the agent heard with the client's last frame, from rxstats */
+	NOISE
+}
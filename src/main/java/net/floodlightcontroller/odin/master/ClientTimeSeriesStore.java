@@ -0,0 +1,224 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * The recent history of the signal, rate and noise of every client,
+ * as heard by each agent, shared by every application rather than
+ * each keeping its own. Samples come from signal publishes and from
+ * the rxstats the master polls.
+ *
+ * Each (client, agent, metric) has a DeltaEncodedRing of bounded
+ * capacity, created on its first sample, and each client keeps the
+ * history of a bounded number of agents, dropping the one heard from
+ * least recently. Only clients the master tracks are recorded, and
+ * their history goes with them, so memory is bounded per client.
+ * A windowed query walks at most one ring, whatever the window.
+ */
+class ClientTimeSeriesStore {
+	static final int DEFAULT_CAPACITY = 64; // samples per ring, a power of two
+	static final int DEFAULT_AGENTS_PER_CLIENT = 4;
+	static final long DEFAULT_EWMA_TAU = 5000; // milliseconds
+
+	private static final ClientMetric[] METRICS = ClientMetric.values();
+
+	private final ClientManager clientManager;
+	private final ConcurrentLongMap<ClientSeries> clients = new ConcurrentLongMap<ClientSeries>();
+	private volatile int capacity = DEFAULT_CAPACITY;
+	private volatile int agentsPerClient = DEFAULT_AGENTS_PER_CLIENT;
+	private volatile double ewmaTau = DEFAULT_EWMA_TAU;
+
+	private final AtomicLong recorded = new AtomicLong();
+	private final AtomicLong outOfOrder = new AtomicLong();
+
+
+	ClientTimeSeriesStore (ClientManager clientManager) {
+		this.clientManager = clientManager;
+	}
+
+
+	/**
+	 * @param capacity samples per ring, a power of two,
+	 *        for rings created from now on
+	 */
+	void setCapacity (int capacity) {
+		assert (Integer.bitCount(capacity) == 1);
+		this.capacity = capacity;
+	}
+
+
+	/**
+	 * @param agentsPerClient most agents whose history a client keeps
+	 */
+	void setAgentsPerClient (int agentsPerClient) {
+		assert (agentsPerClient > 0);
+		this.agentsPerClient = agentsPerClient;
+	}
+
+
+	/**
+	 * @param ewmaTau milliseconds it takes moving averages to move
+	 *        about two thirds of the way to a new level
+	 */
+	void setEwmaTau (double ewmaTau) {
+		this.ewmaTau = ewmaTau;
+	}
+
+
+	/**
+	 * Record a sample of a client's metric, as heard by an agent
+	 *
+	 * @param clientHwAddress the client
+	 * @param agentAddr the agent
+	 * @param metric what was sampled
+	 * @param value the sample
+	 * @param time when it was taken, in milliseconds
+	 */
+	void record (MACAddress clientHwAddress, InetAddress agentAddr, ClientMetric metric, long value, long time) {
+		ClientSeries series = clients.get(clientHwAddress.toLong());
+
+		if (series == null) {
+			if (clientManager.getClient(clientHwAddress) == null)
+				return;
+
+			ClientSeries created = new ClientSeries();
+			series = clients.putIfAbsent(clientHwAddress.toLong(), created);
+
+			if (series == null)
+				series = created;
+		}
+
+		if (series.record(agentAddr, metric, value, time))
+			recorded.incrementAndGet();
+		else
+			outOfOrder.incrementAndGet();
+	}
+
+
+	/**
+	 * Record the signal, rate and noise of every station in
+	 * an agent's rxstats
+	 */
+	void record (RxStatsSnapshot snapshot) {
+		InetAddress agentAddr = snapshot.getAgentAddress();
+
+		for (Map.Entry<MACAddress, RxStatsSnapshot.Station> entry: snapshot.getStations().entrySet()) {
+			RxStatsSnapshot.Station station = entry.getValue();
+
+			// last_received is how many seconds before the read
+			// the agent last heard the station
+			long heardAt = snapshot.getCollectedAt() - (long) (station.getLastReceived() * 1000);
+
+			record(entry.getKey(), agentAddr, ClientMetric.SIGNAL, station.getSignal(), heardAt);
+			record(entry.getKey(), agentAddr, ClientMetric.RATE, station.getRate(), heardAt);
+			record(entry.getKey(), agentAddr, ClientMetric.NOISE, station.getNoise(), heardAt);
+		}
+	}
+
+
+	/**
+	 * Summarize the recent history of a client's metric, as heard by an agent
+	 *
+	 * @param clientHwAddress the client
+	 * @param agentAddr the agent
+	 * @param metric the metric
+	 * @param window milliseconds back from now to aggregate over
+	 * @return the summary, or null if there is no history
+	 */
+	TimeSeriesSummary query (MACAddress clientHwAddress, InetAddress agentAddr, ClientMetric metric, long window) {
+		ClientSeries series = clients.get(clientHwAddress.toLong());
+
+		if (series == null)
+			return null;
+
+		return series.summarize(agentAddr, metric, System.currentTimeMillis() - window);
+	}
+
+
+	/**
+	 * Drop the history of a client that is gone
+	 */
+	void removeClient (MACAddress clientHwAddress) {
+		clients.remove(clientHwAddress.toLong());
+	}
+
+
+	Map<String, Object> getStats () {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		int rings = 0;
+		long resets = 0;
+
+		for (ClientSeries series: clients.values()) {
+			synchronized (series) {
+				for (DeltaEncodedRing[] agentRings: series.agents.values()) {
+					for (DeltaEncodedRing ring: agentRings) {
+						if (ring != null) {
+							rings++;
+							resets += ring.getResets();
+						}
+					}
+				}
+			}
+		}
+
+		stats.put("clients", clients.size());
+		stats.put("rings", rings);
+		stats.put("ringCapacity", capacity);
+		stats.put("recorded", recorded.get());
+		stats.put("outOfOrder", outOfOrder.get());
+		stats.put("resets", resets);
+
+		return stats;
+	}
+
+
+	/**
+	 * The rings of one client, per agent, least recently heard first
+	 */
+	private final class ClientSeries {
+		// Guarded by this
+		final LinkedHashMap<InetAddress, DeltaEncodedRing[]> agents = new LinkedHashMap<InetAddress, DeltaEncodedRing[]>(8, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry (Map.Entry<InetAddress, DeltaEncodedRing[]> eldest) {
+				return size() > agentsPerClient;
+			}
+		};
+
+		synchronized boolean record (InetAddress agentAddr, ClientMetric metric, long value, long time) {
+			DeltaEncodedRing[] rings = agents.get(agentAddr);
+
+			if (rings == null) {
+				rings = new DeltaEncodedRing[METRICS.length];
+				agents.put(agentAddr, rings);
+			}
+
+			DeltaEncodedRing ring = rings[metric.ordinal()];
+
+			if (ring == null) {
+				ring = new DeltaEncodedRing(capacity);
+				rings[metric.ordinal()] = ring;
+			}
+
+			return ring.add(time, value, ewmaTau);
+		}
+
+		synchronized TimeSeriesSummary summarize (InetAddress agentAddr, ClientMetric metric, long since) {
+			// Reading doesn't count as hearing from the agent
+			for (Map.Entry<InetAddress, DeltaEncodedRing[]> entry: agents.entrySet()) {
+				if (entry.getKey().equals(agentAddr)) {
+					DeltaEncodedRing ring = entry.getValue()[metric.ordinal()];
+					return (ring == null) ? null : ring.summarize(since);
+				}
+			}
+
+			return null;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package net.floodlightcontroller.odin.master;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent map from primitive long keys, such as MAC addresses
+ * collapsed with MACAddress.toLong(), to objects.
+ *
+ * Keys live in a plain long[] and values in a parallel array, with
+ * linear probing, so a lookup neither boxes the key nor chases
+ * pointers until it has found its slot. Lookups take no lock: they
+ * read the value of a slot, which is volatile, before its key, and a
+ * slot is given a key at most once in the life of a table. Removed
+ * entries leave a tombstone behind until the next rehash. Writers
+ * are serialized on the map, which suits maps that are read far
+ * more often than they change.
+ */
+class ConcurrentLongMap<V> {
+	private static final int MIN_CAPACITY = 16;
+	private static final Object TOMBSTONE = new Object();
+
+	private volatile Table table;
+
+	// Guarded by this
+	private int size = 0;
+	private int used = 0; // live entries and tombstones
+
+
+	ConcurrentLongMap () {
+		this(MIN_CAPACITY);
+	}
+
+
+	/**
+	 * @param expectedSize number of entries to size the table for
+	 */
+	ConcurrentLongMap (int expectedSize) {
+		table = new Table(capacityFor(expectedSize));
+	}
+
+
+	/**
+	 * @return the value for key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	V get (long key) {
+		Table t = table;
+		int mask = t.keys.length - 1;
+
+		for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+			Object value = t.values.get(i);
+
+			if (value == null)
+				return null;
+
+			// Reading the value made the slot's key visible
+			if (value != TOMBSTONE && t.keys[i] == key)
+				return (V) value;
+		}
+	}
+
+
+	boolean containsKey (long key) {
+		return get(key) != null;
+	}
+
+
+	/**
+	 * @return the previous value for key, or null
+	 */
+	synchronized V put (long key, V value) {
+		if (value == null)
+			throw new NullPointerException();
+
+		int slot = find(table, key);
+
+		if (slot >= 0) {
+			@SuppressWarnings("unchecked")
+			V previous = (V) table.values.get(slot);
+			table.values.set(slot, value);
+			return previous;
+		}
+
+		if ((used + 1) * 2 > table.keys.length) {
+			rehash(size + 1);
+		}
+
+		insert(table, key, value);
+		size++;
+		used++;
+
+		return null;
+	}
+
+
+	/**
+	 * @return the value that was added, or the one already there
+	 */
+	synchronized V putIfAbsent (long key, V value) {
+		V existing = get(key);
+
+		if (existing != null)
+			return existing;
+
+		put(key, value);
+		return null;
+	}
+
+
+	/**
+	 * @return the value that was removed, or null
+	 */
+	synchronized V remove (long key) {
+		int slot = find(table, key);
+
+		if (slot < 0)
+			return null;
+
+		@SuppressWarnings("unchecked")
+		V previous = (V) table.values.get(slot);
+		table.values.set(slot, TOMBSTONE);
+		size--;
+
+		return previous;
+	}
+
+
+	synchronized void clear () {
+		table = new Table(MIN_CAPACITY);
+		size = 0;
+		used = 0;
+	}
+
+
+	synchronized int size () {
+		return size;
+	}
+
+
+	/**
+	 * @return a snapshot of the values
+	 */
+	@SuppressWarnings("unchecked")
+	List<V> values () {
+		Table t = table;
+		List<V> values = new ArrayList<V>();
+
+		for (int i = 0; i < t.keys.length; i++) {
+			Object value = t.values.get(i);
+
+			if (value != null && value != TOMBSTONE)
+				values.add((V) value);
+		}
+
+		return values;
+	}
+
+
+	/**
+	 * @return current number of slots, for tests
+	 */
+	int capacity () {
+		return table.keys.length;
+	}
+
+
+	private static int find (Table t, long key) {
+		int mask = t.keys.length - 1;
+
+		for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+			Object value = t.values.get(i);
+
+			if (value == null)
+				return -1;
+
+			if (value != TOMBSTONE && t.keys[i] == key)
+				return i;
+		}
+	}
+
+
+	/**
+	 * Place a key that isn't in the table in the first empty
+	 * slot. Tombstones are never reused, so that a reader that
+	 * has just read a slot's value cannot see its key change.
+	 */
+	private static void insert (Table t, long key, Object value) {
+		int mask = t.keys.length - 1;
+		int i = hash(key) & mask;
+
+		while (t.values.get(i) != null) {
+			i = (i + 1) & mask;
+		}
+
+		t.keys[i] = key;
+		t.values.set(i, value); // publishes the key
+	}
+
+
+	private void rehash (int expectedSize) {
+		Table old = table;
+		Table fresh = new Table(capacityFor(expectedSize));
+
+		for (int i = 0; i < old.keys.length; i++) {
+			Object value = old.values.get(i);
+
+			if (value != null && value != TOMBSTONE)
+				insert(fresh, old.keys[i], value);
+		}
+
+		table = fresh;
+		used = size;
+	}
+
+
+	private static int capacityFor (int expectedSize) {
+		int capacity = MIN_CAPACITY;
+
+		// Keep the table at most half full
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+
+		return capacity;
+	}
+
+
+	private static int hash (long key) {
+		// Fibonacci hashing: MAC addresses of the same vendor
+		// differ only in their low order bytes
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+
+	private static final class Table {
+		final long[] keys;
+		final AtomicReferenceArray<Object> values;
+
+		Table (int capacity) {
+			keys = new long[capacity];
+			values = new AtomicReferenceArray<Object>(capacity);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package net.floodlightcontroller.odin.master;
+
+/**
+ * A bounded history of one metric, as 16-bit deltas from the previous
+ * sample, of both time and value, in a ring allocated once. Only the
+ * newest sample is kept in full, and older ones are rebuilt walking
+ * backwards from it, which is how windowed queries read them anyway.
+ *
+ * A gap of more than a minute between samples, or a jump that doesn't
+ * fit in 16 bits, starts the history over. Samples older than the
+ * newest are dropped. An exponentially weighted moving average, decayed
+ * by the time between samples, is kept as samples come in.
+ *
+ * Rings aren't thread-safe: callers synchronize on whatever holds them.
+ */
+final class DeltaEncodedRing {
+	static final long MAX_GAP = 0xffff; // milliseconds
+
+	private final short[] timeDeltas;
+	private final short[] valueDeltas;
+	private final int mask;
+
+	private int newest = 0;
+	private int size = 0;
+	private long lastTime;
+	private long lastValue;
+	private double ewma;
+	private long resets = 0;
+
+
+	/**
+	 * @param capacity number of samples kept, a power of two
+	 */
+	DeltaEncodedRing (int capacity) {
+		assert (Integer.bitCount(capacity) == 1);
+
+		this.timeDeltas = new short[capacity];
+		this.valueDeltas = new short[capacity];
+		this.mask = capacity - 1;
+	}
+
+
+	/**
+	 * Add a sample
+	 *
+	 * @param time milliseconds
+	 * @param value the sample
+	 * @param tau milliseconds it takes the moving average to
+	 *        move about two thirds of the way to a new level
+	 * @return false if the sample was older than the newest one
+	 */
+	boolean add (long time, long value, double tau) {
+		if (size > 0) {
+			long dt = time - lastTime;
+			long dv = value - lastValue;
+
+			if (dt < 0)
+				return false;
+
+			if (dt > MAX_GAP || dv > Short.MAX_VALUE || dv < Short.MIN_VALUE) {
+				size = 0;
+				resets++;
+			}
+			else {
+				newest = (newest + 1) & mask;
+				timeDeltas[newest] = (short) dt;
+				valueDeltas[newest] = (short) dv;
+				size = Math.min(size + 1, mask + 1);
+
+				double alpha = (tau <= 0) ? 1 : 1 - Math.exp(-dt / tau);
+				ewma += alpha * (value - ewma);
+			}
+		}
+
+		if (size == 0) {
+			size = 1;
+			ewma = value;
+		}
+
+		lastTime = time;
+		lastValue = value;
+
+		return true;
+	}
+
+
+	int size () {
+		return size;
+	}
+
+
+	/**
+	 * @return number of times the history started over
+	 */
+	long getResets () {
+		return resets;
+	}
+
+
+	/**
+	 * Aggregate the samples taken since a point in time
+	 *
+	 * @param since milliseconds
+	 * @return the summary, or null if there are no samples at all
+	 */
+	TimeSeriesSummary summarize (long since) {
+		if (size == 0)
+			return null;
+
+		long time = lastTime;
+		long value = lastValue;
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		int count = 0;
+
+		// Sums for the least squares fit, with time in seconds
+		// before the newest sample to keep them small
+		double sumT = 0, sumV = 0, sumTT = 0, sumTV = 0;
+		int slot = newest;
+
+		while (count < size && time >= since) {
+			double t = (time - lastTime) / 1000.0;
+
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			sumT += t;
+			sumV += value;
+			sumTT += t * t;
+			sumTV += t * value;
+			count++;
+
+			time -= timeDeltas[slot] & 0xffff;
+			value -= valueDeltas[slot];
+			slot = (slot - 1) & mask;
+		}
+
+		if (count == 0)
+			return new TimeSeriesSummary(0, lastValue, lastTime, 0, 0, 0, ewma, 0);
+
+		double denominator = count * sumTT - sumT * sumT;
+		double slope = (count < 2 || denominator == 0) ? 0 : (count * sumTV - sumT * sumV) / denominator;
+
+		return new TimeSeriesSummary(count, lastValue, lastTime, min, max, sumV / count, ewma, slope);
+	}
+}
@@ -0,0 +1,154 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress of an operation fanned out to many agents, e.g., adding
+ * a network to a pool. It is updated as the agents acknowledge their
+ * commands, and its future completes, with the report, once every
+ * command has been acknowledged or has failed. Failures are reported,
+ * not thrown.
+ */
+public class FanOutReport {
+	private final String operation;
+	private final int agents;
+	private final int total;
+	private final long started = System.currentTimeMillis();
+	private volatile long finished = 0;
+	private final AtomicInteger completed = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	// First failure of each agent
+	private final Map<InetAddress, String> failures = new ConcurrentHashMap<InetAddress, String>();
+	private final OdinAgentFuture<FanOutReport> future = new OdinAgentFuture<FanOutReport>();
+
+
+	FanOutReport (String operation, int agents, int total) {
+		this.operation = operation;
+		this.agents = agents;
+		this.total = total;
+
+		if (total == 0) {
+			finished = started;
+			future.setResult(this);
+		}
+	}
+
+
+	/**
+	 * Record the outcome of a command
+	 *
+	 * @param agentAddr the agent the command was sent to
+	 * @param cause why the command failed, or null if it succeeded
+	 */
+	void commandDone (InetAddress agentAddr, Throwable cause) {
+		if (cause != null) {
+			failed.incrementAndGet();
+
+			if (!failures.containsKey(agentAddr))
+				failures.put(agentAddr, String.valueOf(cause.getMessage()));
+		}
+
+		if (completed.incrementAndGet() == total) {
+			finished = System.currentTimeMillis();
+			future.setResult(this);
+		}
+	}
+
+
+	/**
+	 * @return what the operation was
+	 */
+	public String getOperation () {
+		return operation;
+	}
+
+
+	/**
+	 * @return number of agents the operation was sent to
+	 */
+	public int getAgents () {
+		return agents;
+	}
+
+
+	/**
+	 * @return number of commands the operation was made of
+	 */
+	public int getTotal () {
+		return total;
+	}
+
+
+	/**
+	 * @return number of commands that were acknowledged or failed
+	 */
+	public int getCompleted () {
+		return completed.get();
+	}
+
+
+	/**
+	 * @return number of commands that failed
+	 */
+	public int getFailed () {
+		return failed.get();
+	}
+
+
+	/**
+	 * @return first failure of each agent that had any
+	 */
+	public Map<InetAddress, String> getFailures () {
+		return Collections.unmodifiableMap(failures);
+	}
+
+
+	/**
+	 * @return whether every command has completed
+	 */
+	public boolean isDone () {
+		return future.isDone();
+	}
+
+
+	/**
+	 * @return future that completes with this report once
+	 *         every command has completed
+	 */
+	public OdinAgentFuture<FanOutReport> future () {
+		return future;
+	}
+
+
+	/**
+	 * @return the report, for the REST API
+	 */
+	Map<String, Object> toMap () {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		long end = isDone() ? finished : System.currentTimeMillis();
+
+		map.put("operation", operation);
+		map.put("agents", agents);
+		map.put("total", total);
+		map.put("completed", completed.get());
+		map.put("failed", failed.get());
+		map.put("done", isDone());
+		map.put("elapsedMillis", end - started);
+
+		Map<String, String> byAgent = new LinkedHashMap<String, String>();
+
+		for (Map.Entry<InetAddress, String> entry: failures.entrySet()) {
+			byAgent.put(entry.getKey().getHostAddress(), entry.getValue());
+		}
+
+		map.put("failures", byAgent);
+
+		return map;
+	}
+}
@@ -0,0 +1,391 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Traces handoffs end to end. Each handoff records when its flow
+ * messages were written, when the new agent acknowledged add_vap,
+ * when the old agent acknowledged remove_vap, and when the client
+ * was first heard of through the new agent. The phases complete on
+ * different threads, so the timestamps are set with atomic operations
+ * and never under a lock.
+ *
+ * The most recent traces are kept in a fixed-size ring, claimed with
+ * a single atomic increment. Once every phase has been seen, the
+ * handoff's latency goes into a histogram for its pool and one for
+ * its pair of agents. Handoffs for which the client is never heard
+ * from are dropped by the timing wheel and only counted. Handoffs to
+ * an agent the client's LVAP had been staged on are also recorded
+ * apart from cold ones, to tell how much staging saves.
+ */
+class HandoffTracer {
+	static final int DEFAULT_CAPACITY = 1024; // must be a power of two
+	static final long DEFAULT_SLOW_THRESHOLD = 500; // milliseconds
+	static final long PUBLISH_TIMEOUT = 30000; // milliseconds
+	static final int MAX_SLOW_HANDOFFS = 20;
+	private static final String NO_AGENT = "none";
+
+	enum Phase {
+		FLOW_MODS,
+		ADD_VAP,
+		REMOVE_VAP,
+		FIRST_PUBLISH
+	}
+
+	private final OdinTimeoutWheel timeouts;
+	private final AtomicReferenceArray<Trace> ring;
+	private final int mask;
+	private final AtomicLong sequence = new AtomicLong();
+	private final ConcurrentHashMap<MACAddress, Trace> awaitingPublish = new ConcurrentHashMap<MACAddress, Trace>();
+	private final ConcurrentHashMap<String, LatencyHistogram> poolHistograms = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final ConcurrentHashMap<String, LatencyHistogram> pairHistograms = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final LatencyHistogram[] phaseHistograms = new LatencyHistogram[Phase.values().length];
+	private final LatencyHistogram prestagedHistogram = new LatencyHistogram();
+	private final LatencyHistogram coldHistogram = new LatencyHistogram();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong unheard = new AtomicLong();
+	private volatile long slowThreshold = DEFAULT_SLOW_THRESHOLD;
+
+	private final OdinTimeoutWheel.TimeoutHandler<Trace> expirer = new OdinTimeoutWheel.TimeoutHandler<Trace>() {
+		@Override
+		public void timeout(Trace trace) {
+			finish(trace);
+		}
+	};
+
+
+	HandoffTracer (OdinTimeoutWheel timeouts) {
+		this(timeouts, DEFAULT_CAPACITY);
+	}
+
+
+	/**
+	 * @param timeouts wheel that drops handoffs the client is never heard after
+	 * @param capacity number of recent handoffs to keep, a power of two
+	 */
+	HandoffTracer (OdinTimeoutWheel timeouts, int capacity) {
+		assert (Integer.bitCount(capacity) == 1);
+
+		this.timeouts = timeouts;
+		this.ring = new AtomicReferenceArray<Trace>(capacity);
+		this.mask = capacity - 1;
+
+		for (int i = 0; i < phaseHistograms.length; i++) {
+			phaseHistograms[i] = new LatencyHistogram();
+		}
+	}
+
+
+	/**
+	 * @param slowThreshold milliseconds above which a handoff is reported as slow
+	 */
+	void setSlowThreshold (long slowThreshold) {
+		assert (slowThreshold >= 0);
+		this.slowThreshold = slowThreshold;
+	}
+
+
+	/**
+	 * Start tracing a handoff. A handoff of the same client that
+	 * is still in progress is abandoned.
+	 *
+	 * @param clientHwAddress client being handed off
+	 * @param pool pool the handoff was requested in
+	 * @param fromAgent agent the client is leaving, null if it had none
+	 * @param toAgent agent the client is moving to
+	 * @return the new trace
+	 */
+	Trace begin (MACAddress clientHwAddress, String pool, InetAddress fromAgent, InetAddress toAgent) {
+		Trace trace = new Trace(sequence.getAndIncrement(), clientHwAddress, pool, fromAgent, toAgent);
+		ring.set((int) (trace.id & mask), trace);
+
+		Trace previous = awaitingPublish.put(clientHwAddress, trace);
+
+		if (previous != null) {
+			finish(previous);
+		}
+
+		timeouts.schedule(trace, PUBLISH_TIMEOUT, TimeUnit.MILLISECONDS, expirer);
+
+		return trace;
+	}
+
+
+	/**
+	 * Record that a phase of a handoff has completed. Only the
+	 * first time each phase is marked counts.
+	 */
+	void mark (Trace trace, Phase phase) {
+		long elapsed = trace.mark(phase);
+
+		if (elapsed < 0)
+			return;
+
+		phaseHistograms[phase.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(elapsed));
+
+		if (trace.isComplete()) {
+			finish(trace);
+		}
+	}
+
+
+	/**
+	 * Record that the client's LVAP was staged on the new agent
+	 * before the handoff
+	 */
+	void markPrestaged (Trace trace) {
+		trace.prestaged = true;
+	}
+
+
+	/**
+	 * Record that a phase of a handoff has failed
+	 */
+	void fail (Trace trace, Phase phase) {
+		trace.failedPhase = phase;
+		finish(trace);
+	}
+
+
+	/**
+	 * Called for every publish. Completes the handoff of the
+	 * client if this is the first we hear of it via its new agent.
+	 *
+	 * @param clientHwAddress client the publish was about
+	 * @param agentAddr agent that sent it
+	 */
+	void publishHeard (MACAddress clientHwAddress, InetAddress agentAddr) {
+		if (awaitingPublish.isEmpty())
+			return;
+
+		Trace trace = awaitingPublish.get(clientHwAddress);
+
+		if (trace != null && trace.toAgent.equals(agentAddr)) {
+			mark(trace, Phase.FIRST_PUBLISH);
+		}
+	}
+
+
+	/**
+	 * @return the handoff at the given position of the ring,
+	 *         0 being the most recent, or null
+	 */
+	Trace getRecent (int age) {
+		long id = sequence.get() - 1 - age;
+
+		if (id < 0 || age > mask)
+			return null;
+
+		Trace trace = ring.get((int) (id & mask));
+
+		return (trace != null && trace.id == id) ? trace : null;
+	}
+
+
+	/**
+	 * @return latency histograms per pool, per pair of agents
+	 *         and per phase, with the most recent slow handoffs
+	 */
+	Map<String, Object> getStats () {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		stats.put("slowThresholdMillis", slowThreshold);
+		stats.put("completed", completed.get());
+		stats.put("failed", failed.get());
+		stats.put("unheard", unheard.get());
+		stats.put("inProgress", awaitingPublish.size());
+		stats.put("pools", summarize(poolHistograms));
+		stats.put("agentPairs", summarize(pairHistograms));
+
+		Map<String, Object> phases = new LinkedHashMap<String, Object>();
+
+		for (Phase phase: Phase.values()) {
+			phases.put(phase.name(), phaseHistograms[phase.ordinal()].getSummary());
+		}
+
+		stats.put("phases", phases);
+		stats.put("prestaged", prestagedHistogram.getSummary());
+		stats.put("cold", coldHistogram.getSummary());
+		stats.put("slowHandoffs", getSlowHandoffs());
+
+		return stats;
+	}
+
+
+	private List<Map<String, Object>> getSlowHandoffs () {
+		List<Map<String, Object>> slow = new ArrayList<Map<String, Object>>();
+		long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThreshold);
+
+		for (int age = 0; age <= mask && slow.size() < MAX_SLOW_HANDOFFS; age++) {
+			Trace trace = getRecent(age);
+
+			if (trace != null && trace.isFinished() && trace.getLatency() >= thresholdNanos) {
+				slow.add(trace.toMap());
+			}
+		}
+
+		return slow;
+	}
+
+
+	private static Map<String, Object> summarize (Map<String, LatencyHistogram> histograms) {
+		Map<String, Object> summaries = new TreeMap<String, Object>();
+
+		for (Map.Entry<String, LatencyHistogram> entry: histograms.entrySet()) {
+			summaries.put(entry.getKey(), entry.getValue().getSummary());
+		}
+
+		return summaries;
+	}
+
+
+	private void finish (Trace trace) {
+		if (!trace.finished.compareAndSet(false, true))
+			return;
+
+		awaitingPublish.remove(trace.clientHwAddress, trace);
+		timeouts.cancel(trace);
+
+		if (trace.failedPhase != null) {
+			failed.incrementAndGet();
+		}
+		else if (trace.isComplete()) {
+			long micros = TimeUnit.NANOSECONDS.toMicros(trace.getLatency());
+			histogramFor(poolHistograms, String.valueOf(trace.pool)).record(micros);
+			histogramFor(pairHistograms, trace.getAgentPair()).record(micros);
+			(trace.prestaged ? prestagedHistogram : coldHistogram).record(micros);
+			completed.incrementAndGet();
+		}
+		else {
+			unheard.incrementAndGet();
+		}
+	}
+
+
+	private static LatencyHistogram histogramFor (ConcurrentHashMap<String, LatencyHistogram> histograms, String key) {
+		LatencyHistogram histogram = histograms.get(key);
+
+		if (histogram == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(key, created);
+
+			if (histogram == null)
+				histogram = created;
+		}
+
+		return histogram;
+	}
+
+
+	/**
+	 * A single handoff. Phase timestamps are kept as nanoseconds
+	 * since the handoff began, 0 meaning not yet seen.
+	 */
+	static final class Trace {
+		final long id;
+		final MACAddress clientHwAddress;
+		final String pool;
+		final InetAddress fromAgent;
+		final InetAddress toAgent;
+		final long startedAt = System.currentTimeMillis();
+		private final long startNanos = System.nanoTime();
+		private final AtomicLongArray phases = new AtomicLongArray(Phase.values().length);
+		private final AtomicBoolean finished = new AtomicBoolean(false);
+		private volatile Phase failedPhase = null;
+		private volatile boolean prestaged = false;
+
+		Trace (long id, MACAddress clientHwAddress, String pool, InetAddress fromAgent, InetAddress toAgent) {
+			this.id = id;
+			this.clientHwAddress = clientHwAddress;
+			this.pool = pool;
+			this.fromAgent = fromAgent;
+			this.toAgent = toAgent;
+		}
+
+		/**
+		 * @return nanoseconds since the handoff began, or -1
+		 *         if the phase had already been marked
+		 */
+		private long mark (Phase phase) {
+			long elapsed = Math.max(1, System.nanoTime() - startNanos);
+			return phases.compareAndSet(phase.ordinal(), 0, elapsed) ? elapsed : -1;
+		}
+
+		boolean isComplete () {
+			return phases.get(Phase.FLOW_MODS.ordinal()) != 0
+					&& phases.get(Phase.ADD_VAP.ordinal()) != 0
+					&& (fromAgent == null || phases.get(Phase.REMOVE_VAP.ordinal()) != 0)
+					&& phases.get(Phase.FIRST_PUBLISH.ordinal()) != 0;
+		}
+
+		boolean isPrestaged () {
+			return prestaged;
+		}
+
+		boolean isFinished () {
+			return finished.get();
+		}
+
+		/**
+		 * @return nanoseconds from the start of the handoff
+		 *         to the last phase seen so far
+		 */
+		long getLatency () {
+			long latest = 0;
+
+			for (int i = 0; i < phases.length(); i++) {
+				latest = Math.max(latest, phases.get(i));
+			}
+
+			return latest;
+		}
+
+		/**
+		 * @return nanoseconds from the start of the handoff to
+		 *         the phase, or 0 if it has not been seen
+		 */
+		long getPhase (Phase phase) {
+			return phases.get(phase.ordinal());
+		}
+
+		String getAgentPair () {
+			return (fromAgent == null ? NO_AGENT : fromAgent.getHostAddress()) + " -> " + toAgent.getHostAddress();
+		}
+
+		Map<String, Object> toMap () {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+
+			map.put("client", clientHwAddress.toString());
+			map.put("pool", pool);
+			map.put("agents", getAgentPair());
+			map.put("startedAt", startedAt);
+			map.put("latencyMillis", getLatency() / 1e6);
+			map.put("prestaged", prestaged);
+
+			for (Phase phase: Phase.values()) {
+				long elapsed = phases.get(phase.ordinal());
+				map.put(phase.name(), elapsed == 0 ? null : elapsed / 1e6);
+			}
+
+			if (failedPhase != null) {
+				map.put("failedPhase", failedPhase.name());
+			}
+
+			return map;
+		}
+	}
+}
@@ -0,0 +1,350 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Bipartite graph of which agents hear which clients, kept up to
+ * date as signal reports come in rather than rebuilt on demand.
+ *
+ * An edge holds a moving average of the signal an agent hears a
+ * client at, how fast that average is changing, and when the agent
+ * last heard the client. Edges are indexed both by client
+ * and by agent, so that finding the best agents for a client costs
+ * in the number of agents that hear it, and listing the clients an
+ * agent hears costs in the number of such clients. An edge that
+ * hasn't been refreshed for maxAge is dropped by the timing wheel.
+ *
+ * Reports for stations that aren't tracked clients are ignored.
+ */
+class HearingGraph {
+	static final long DEFAULT_MAX_AGE = 30000; // milliseconds
+	static final double DEFAULT_SMOOTHING = 0.3; // weight of a new sample
+
+	private static final Comparator<HearingLink> BY_SIGNAL = new Comparator<HearingLink>() {
+		@Override
+		public int compare(HearingLink a, HearingLink b) {
+			return Double.compare(b.getSignal(), a.getSignal());
+		}
+	};
+
+	private final ClientManager clientManager;
+	private final OdinTimeoutWheel timeouts;
+	private final ConcurrentLongMap<ClientNode> clients = new ConcurrentLongMap<ClientNode>();
+	private final ConcurrentHashMap<InetAddress, ConcurrentLongMap<Edge>> agents = new ConcurrentHashMap<InetAddress, ConcurrentLongMap<Edge>>();
+	private final double smoothing;
+	private volatile long maxAge;
+
+	private final OdinTimeoutWheel.TimeoutHandler<Edge> expirer = new OdinTimeoutWheel.TimeoutHandler<Edge>() {
+		@Override
+		public void timeout(Edge edge) {
+			removeEdge(edge);
+		}
+	};
+
+
+	HearingGraph (ClientManager clientManager, OdinTimeoutWheel timeouts) {
+		this(clientManager, timeouts, DEFAULT_MAX_AGE, DEFAULT_SMOOTHING);
+	}
+
+
+	/**
+	 * @param clientManager clients whose reports are kept
+	 * @param timeouts wheel that drops stale edges
+	 * @param maxAge milliseconds an edge is kept without being refreshed
+	 * @param smoothing weight of a new sample in the moving average, in (0, 1]
+	 */
+	HearingGraph (ClientManager clientManager, OdinTimeoutWheel timeouts, long maxAge, double smoothing) {
+		assert (smoothing > 0 && smoothing <= 1);
+
+		this.clientManager = clientManager;
+		this.timeouts = timeouts;
+		this.maxAge = maxAge;
+		this.smoothing = smoothing;
+	}
+
+
+	void setMaxAge (long maxAge) {
+		assert (maxAge > 0);
+		this.maxAge = maxAge;
+	}
+
+
+	/**
+	 * Record that an agent heard a client
+	 *
+	 * @param clientHwAddress the client
+	 * @param agentAddr the agent
+	 * @param signal signal the client was heard at
+	 * @param heardAt when, in milliseconds since the epoch
+	 */
+	void hear (MACAddress clientHwAddress, InetAddress agentAddr, long signal, long heardAt) {
+		long key = clientHwAddress.toLong();
+
+		if (clientManager.getClient(key) == null)
+			return;
+
+		ClientNode node = clients.get(key);
+		Edge edge = (node == null) ? null : node.edges.get(agentAddr);
+
+		if (edge == null || edge.removed) {
+			edge = addEdge(clientHwAddress, key, agentAddr);
+		}
+
+		if (edge.update(signal, heardAt, smoothing)) {
+			long remaining = maxAge - (System.currentTimeMillis() - heardAt);
+
+			if (remaining > 0)
+				timeouts.schedule(edge, remaining, TimeUnit.MILLISECONDS, expirer);
+			else
+				removeEdge(edge);
+		}
+	}
+
+
+	/**
+	 * Record every station in an agent's rxstats
+	 *
+	 * @param snapshot stats read from the agent
+	 */
+	void hear (RxStatsSnapshot snapshot) {
+		InetAddress agentAddr = snapshot.getAgentAddress();
+
+		for (Map.Entry<MACAddress, RxStatsSnapshot.Station> entry: snapshot.getStations().entrySet()) {
+			RxStatsSnapshot.Station station = entry.getValue();
+
+			// last_received is how many seconds before the read
+			// the agent last heard the station
+			long heardAt = snapshot.getCollectedAt() - (long) (station.getLastReceived() * 1000);
+
+			hear(entry.getKey(), agentAddr, station.getSignal(), heardAt);
+		}
+	}
+
+
+	/**
+	 * Get how an agent hears a client
+	 *
+	 * @param clientHwAddress the client
+	 * @param agentAddr the agent
+	 * @return the link between them, or null if the agent doesn't hear the client
+	 */
+	HearingLink getLink (MACAddress clientHwAddress, InetAddress agentAddr) {
+		ClientNode node = clients.get(clientHwAddress.toLong());
+		Edge edge = (node == null) ? null : node.edges.get(agentAddr);
+
+		return (edge == null || edge.removed) ? null : edge.toLink();
+	}
+
+
+	/**
+	 * Get the agents that hear a client best
+	 *
+	 * @param clientHwAddress the client
+	 * @param k maximum number of agents to return
+	 * @return up to k links, strongest signal first
+	 */
+	List<HearingLink> getBestAgents (MACAddress clientHwAddress, int k) {
+		ClientNode node = clients.get(clientHwAddress.toLong());
+
+		if (node == null || k <= 0)
+			return Collections.emptyList();
+
+		List<HearingLink> links = snapshot(node.edges.values());
+		Collections.sort(links, BY_SIGNAL);
+
+		return links.size() > k ? new ArrayList<HearingLink>(links.subList(0, k)) : links;
+	}
+
+
+	/**
+	 * Get the clients an agent hears
+	 *
+	 * @param agentAddr the agent
+	 * @return a link for each client the agent hears
+	 */
+	List<HearingLink> getAudibleClients (InetAddress agentAddr) {
+		ConcurrentLongMap<Edge> edges = agents.get(agentAddr);
+
+		if (edges == null)
+			return Collections.emptyList();
+
+		return snapshot(edges.values());
+	}
+
+
+	/**
+	 * Forget a client, such as when it leaves the network
+	 */
+	void removeClient (MACAddress clientHwAddress) {
+		ClientNode node = clients.get(clientHwAddress.toLong());
+
+		if (node == null)
+			return;
+
+		for (Edge edge: node.edges.values()) {
+			removeEdge(edge);
+		}
+	}
+
+
+	/**
+	 * Forget an agent, such as when it has failed
+	 */
+	void removeAgent (InetAddress agentAddr) {
+		ConcurrentLongMap<Edge> edges = agents.get(agentAddr);
+
+		if (edges == null)
+			return;
+
+		for (Edge edge: edges.values()) {
+			removeEdge(edge);
+		}
+	}
+
+
+	/**
+	 * @return number of edges, for tests
+	 */
+	int getEdgeCount () {
+		int count = 0;
+
+		for (ConcurrentLongMap<Edge> edges: agents.values()) {
+			count += edges.size();
+		}
+
+		return count;
+	}
+
+
+	private List<HearingLink> snapshot (Iterable<Edge> edges) {
+		List<HearingLink> links = new ArrayList<HearingLink>();
+		long oldest = System.currentTimeMillis() - maxAge;
+
+		for (Edge edge: edges) {
+			HearingLink link = edge.toLink();
+
+			if (link != null && link.getLastHeard() >= oldest)
+				links.add(link);
+		}
+
+		return links;
+	}
+
+
+	private synchronized Edge addEdge (MACAddress clientHwAddress, long key, InetAddress agentAddr) {
+		ClientNode node = clients.get(key);
+
+		if (node == null) {
+			node = new ClientNode();
+			clients.put(key, node);
+		}
+
+		Edge edge = node.edges.get(agentAddr);
+
+		if (edge != null)
+			return edge;
+
+		edge = new Edge(clientHwAddress, key, agentAddr);
+		node.edges.put(agentAddr, edge);
+
+		ConcurrentLongMap<Edge> agentEdges = agents.get(agentAddr);
+
+		if (agentEdges == null) {
+			agentEdges = new ConcurrentLongMap<Edge>();
+			agents.put(agentAddr, agentEdges);
+		}
+
+		agentEdges.put(key, edge);
+
+		return edge;
+	}
+
+
+	private synchronized void removeEdge (Edge edge) {
+		if (edge.removed)
+			return;
+
+		edge.removed = true;
+		timeouts.cancel(edge);
+
+		ClientNode node = clients.get(edge.key);
+
+		if (node != null && node.edges.remove(edge.agentAddr, edge) && node.edges.isEmpty()) {
+			clients.remove(edge.key);
+		}
+
+		ConcurrentLongMap<Edge> agentEdges = agents.get(edge.agentAddr);
+
+		if (agentEdges != null && agentEdges.get(edge.key) == edge) {
+			agentEdges.remove(edge.key);
+
+			if (agentEdges.size() == 0)
+				agents.remove(edge.agentAddr);
+		}
+	}
+
+
+	private static class ClientNode {
+		final ConcurrentHashMap<InetAddress, Edge> edges = new ConcurrentHashMap<InetAddress, Edge>(4);
+	}
+
+
+	private static class Edge {
+		final MACAddress clientHwAddress;
+		final long key;
+		final InetAddress agentAddr;
+		volatile boolean removed = false;
+
+		// Guarded by this
+		private double signal;
+		private double trend;
+		private long lastSignal;
+		private long lastHeard;
+		private long samples = 0;
+
+		Edge (MACAddress clientHwAddress, long key, InetAddress agentAddr) {
+			this.clientHwAddress = clientHwAddress;
+			this.key = key;
+			this.agentAddr = agentAddr;
+		}
+
+		/**
+		 * @return false if the sample was older than what we have
+		 */
+		synchronized boolean update (long sample, long heardAt, double smoothing) {
+			if (samples > 0 && heardAt < lastHeard)
+				return false;
+
+			double previous = signal;
+			signal = (samples == 0) ? sample : smoothing * sample + (1 - smoothing) * signal;
+
+			// Smoothed rate of change of the average, per second
+			if (samples > 0 && heardAt > lastHeard) {
+				double slope = (signal - previous) * 1000 / (heardAt - lastHeard);
+				trend = (samples == 1) ? slope : smoothing * slope + (1 - smoothing) * trend;
+			}
+
+			lastSignal = sample;
+			lastHeard = heardAt;
+			samples++;
+
+			return true;
+		}
+
+		synchronized HearingLink toLink () {
+			if (samples == 0)
+				return null;
+
+			return new HearingLink(clientHwAddress, agentAddr, signal, trend, lastSignal, lastHeard, samples);
+		}
+	}
+}
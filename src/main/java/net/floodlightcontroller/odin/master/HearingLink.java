@@ -0,0 +1,80 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * An agent hearing a client: the signal it hears the client at,
+ * smoothed over the samples it has reported, and when it last did.
+ * Links are snapshots taken from the master's hearing graph, and
+ * don't change once handed out.
+ */
+public class HearingLink {
+	private final MACAddress clientHwAddress;
+	private final InetAddress agentAddr;
+	private final double signal;
+	private final double trend;
+	private final long lastSignal;
+	private final long lastHeard;
+	private final long samples;
+
+	HearingLink (MACAddress clientHwAddress, InetAddress agentAddr, double signal, double trend, long lastSignal, long lastHeard, long samples) {
+		this.clientHwAddress = clientHwAddress;
+		this.agentAddr = agentAddr;
+		this.signal = signal;
+		this.trend = trend;
+		this.lastSignal = lastSignal;
+		this.lastHeard = lastHeard;
+		this.samples = samples;
+	}
+
+	public MACAddress getClientHwAddress() {
+		return clientHwAddress;
+	}
+
+	public InetAddress getAgentAddress() {
+		return agentAddr;
+	}
+
+	/**
+	 * @return exponentially weighted moving average of the signal
+	 */
+	public double getSignal() {
+		return signal;
+	}
+
+	/**
+	 * @return how fast the average signal is changing, per second,
+	 *         itself averaged; positive when the client is getting closer
+	 */
+	public double getTrend() {
+		return trend;
+	}
+
+	/**
+	 * @return the most recent signal sample
+	 */
+	public long getLastSignal() {
+		return lastSignal;
+	}
+
+	/**
+	 * @return when the agent last heard the client, in milliseconds since the epoch
+	 */
+	public long getLastHeard() {
+		return lastHeard;
+	}
+
+	/**
+	 * @return number of samples the signal was smoothed over
+	 */
+	public long getSamples() {
+		return samples;
+	}
+
+	@Override
+	public String toString() {
+		return clientHwAddress + " @ " + agentAddr.getHostAddress() + ": " + signal;
+	}
+}
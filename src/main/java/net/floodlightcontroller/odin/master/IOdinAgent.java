@@ -28,6 +28,13 @@ public interface IOdinAgent {
 	public Set<OdinClient> getLvapsRemote ();
 	
 	
+	/**
+	 * Asynchronous variant of getLvapsRemote()
+	 * @return future that completes with the OdinClient entities on the agent
+	 */
+	public OdinAgentFuture<Set<OdinClient>> getLvapsRemoteAsync ();
+	
+	
 	/**
 	 * Return a list of LVAPs that the master knows this
 	 * agent is hosting. Between the time an agent has
@@ -48,6 +55,25 @@ public interface IOdinAgent {
 	public Map<MACAddress, Map<String, String>> getRxStats ();
 	
 	
+	/**
+	 * Asynchronous variant of getRxStats()
+	 * 
+	 *  @return future that completes with a map of stations'
+	 *  MAC addresses to a map of properties and values.
+	 */
+	public OdinAgentFuture<Map<MACAddress, Map<String, String>>> getRxStatsAsync ();
+	
+	
+	/**
+	 * Retrieve Rx-stats from the OdinAgent, with every
+	 * value parsed into a numeric field.
+	 * 
+	 *  @return future that completes with a snapshot of
+	 *  the stats of the stations the agent can hear
+	 */
+	public OdinAgentFuture<RxStatsSnapshot> getRxStatsSnapshotAsync ();
+	
+	
 	/**
 	 * To be called only once, intialises a connection to the OdinAgent's
 	 * control socket. We let the connection persist so as to save on
@@ -83,6 +109,15 @@ public interface IOdinAgent {
 	 */
 	public void removeClientLvap (OdinClient oc);
 	
+	
+	/**
+	 * Asynchronous variant of removeClientLvap()
+	 * 
+	 * @param oc OdinClient entity
+	 * @return future that completes once the agent has removed the LVAP
+	 */
+	public OdinAgentFuture<Void> removeClientLvapAsync (OdinClient oc);
+	
 		
 	/**
 	 * Add an LVAP to the AP corresponding to this agent
@@ -95,6 +130,15 @@ public interface IOdinAgent {
 	public void addClientLvap (OdinClient oc);
 	
 	
+	/**
+	 * Asynchronous variant of addClientLvap()
+	 * 
+	 * @param oc OdinClient entity
+	 * @return future that completes once the agent has spawned the LVAP
+	 */
+	public OdinAgentFuture<Void> addClientLvapAsync (OdinClient oc);
+	
+	
 	/**
 	 * Update a virtual access point with possibly new IP, BSSID, or SSID
 	 * 
@@ -106,8 +150,59 @@ public interface IOdinAgent {
 	public void updateClientLvap(OdinClient oc);
 	
 	
+	/**
+	 * Asynchronous variant of updateClientLvap()
+	 * 
+	 * @param oc OdinClient entity
+	 * @return future that completes once the agent has updated the LVAP
+	 */
+	public OdinAgentFuture<Void> updateClientLvapAsync(OdinClient oc);
+	
+	
+	/**
+	 * Stage a dormant LVAP on the AP corresponding to this agent,
+	 * ahead of a likely handoff. A dormant LVAP neither beacons nor
+	 * answers the client until a later addClientLvap() activates it.
+	 * 
+	 * @param oc OdinClient entity
+	 * @return future that completes once the agent has staged the LVAP
+	 */
+	public OdinAgentFuture<Void> prestageClientLvapAsync(OdinClient oc);
+	
+	
+	/**
+	 * Drop an LVAP staged by prestageClientLvapAsync() that
+	 * wasn't activated
+	 * 
+	 * @param oc OdinClient entity
+	 * @return future that completes once the agent has dropped the LVAP
+	 */
+	public OdinAgentFuture<Void> unstageClientLvapAsync(OdinClient oc);
+	
+	
+	/**
+	 * Start or stop the agent's spectral scan. While it runs, the
+	 * agent streams FFT sample frames to the master's spectral scan
+	 * port, separately from its other messages.
+	 * 
+	 * @param enabled whether the scan should run
+	 * @param port the master's spectral scan port
+	 * @param period milliseconds between the agent's scan rounds
+	 * @return future that completes once the agent has acknowledged the request
+	 */
+	public OdinAgentFuture<Void> setSpectralScanAsync(boolean enabled, int port, int period);
+	
+	
 	public void sendProbeResponse(MACAddress clientHwAddr, MACAddress bssid, Set<String> ssidLists);
 	
+	
+	/**
+	 * Asynchronous variant of sendProbeResponse()
+	 * 
+	 * @return future that completes once the agent has acknowledged the request
+	 */
+	public OdinAgentFuture<Void> sendProbeResponseAsync(MACAddress clientHwAddr, MACAddress bssid, Set<String> ssidLists);
+	
 	/**
 	 * Returns timestamp of last heartbeat from agent
 	 * @return Timestamp
@@ -122,10 +217,47 @@ public interface IOdinAgent {
 	public void setLastHeard (long t);
 	
 	
+	/**
+	 * Get the version of the binary protocol the agent
+	 * speaks, as negotiated through its pings
+	 * @return protocol version, or 0 if it only speaks text
+	 */
+	public int getProtocolVersion ();
+	
+	
+	/**
+	 * Set the version of the binary protocol the agent speaks
+	 * @param version protocol version, or 0 for text
+	 */
+	public void setProtocolVersion (int version);
+	
+	
 	/**
 	 * Set subscriptions
 	 * @param subscriptions 
 	 * @param t timestamp to update lastHeard value
 	 */
 	public void setSubscriptions (String subscriptionList);
+	
+	
+	/**
+	 * Asynchronous variant of setSubscriptions()
+	 * @param subscriptionList
+	 * @return future that completes once the agent has installed the subscriptions
+	 */
+	public OdinAgentFuture<Void> setSubscriptionsAsync (String subscriptionList);
+	
+	
+	/**
+	 * Hold back the commands issued to the agent until the
+	 * matching endCommandBatch(), and then send them together
+	 * in a single pipelined write.
+	 */
+	public void beginCommandBatch ();
+	
+	
+	/**
+	 * Close a batch opened by beginCommandBatch()
+	 */
+	public void endCommandBatch ();
 }
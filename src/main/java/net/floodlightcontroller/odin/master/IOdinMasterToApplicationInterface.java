@@ -1,6 +1,7 @@
 package net.floodlightcontroller.odin.master;
 
 import java.net.InetAddress;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -18,6 +19,17 @@ interface IOdinMasterToApplicationInterface {
 	void handoffClientToAp (String pool, MACAddress staHwAddr, InetAddress newApIpAddr);
 
 	
+	/**
+	 * VAP-Handoff several clients at once, grouping the resulting
+	 * agent commands and flow messages per agent.
+	 * 
+	 * @param pool that the invoking application corresponds to
+	 * @param handoffs new AP for each client, keyed by client HW address
+	 * @return future for each client, that fails if its handoff was refused
+	 */
+	Map<MACAddress, OdinAgentFuture<Void>> handoffClientsToAps (String pool, Map<MACAddress, InetAddress> handoffs);
+
+	
 	/**
 	 * Get the list of clients currently registered with Odin
 	 * 
@@ -33,9 +45,88 @@ interface IOdinMasterToApplicationInterface {
 	 * @return a OdinClient instance corresponding to clientHwAddress
 	 */
 	OdinClient getClientFromHwAddress (String pool, MACAddress clientHwAddress);
+
+	
+	/**
+	 * Get the agents in the pool that hear a client best
+	 * 
+	 * @param pool that the invoking application corresponds to
+	 * @param clientHwAddress MACAddress of the client
+	 * @param k maximum number of agents to return
+	 * @return up to k links, strongest smoothed signal first
+	 */
+	List<HearingLink> getBestAgentsForClient (String pool, MACAddress clientHwAddress, int k);
+	
+	
+	/**
+	 * Get the clients of the pool that an agent hears
+	 * 
+	 * @param pool that the invoking application corresponds to
+	 * @param agentAddr InetAddress of the agent
+	 * @return a link for each client the agent heard recently
+	 */
+	List<HearingLink> getClientsHeardByAgent (String pool, InetAddress agentAddr);
 	
 	Map<MACAddress, Map<String, String>> getRxStatsFromAgent (String pool, InetAddress agentAddr);
 	
+	
+	/**
+	 * Get the RxStats of an agent from the master's cache, which
+	 * is kept up to date in the background. The agent is only read
+	 * from if the cached stats are older than maxStaleness, or if
+	 * forceRefresh is set.
+	 * 
+	 * @param agentAddr InetAddress of the agent
+	 * @param maxStaleness maximum age of the stats, in milliseconds
+	 * @param forceRefresh read the stats from the agent regardless
+	 * @return snapshot of the agent's stats, or null if the agent isn't tracked
+	 */
+	RxStatsSnapshot getRxStats (String pool, InetAddress agentAddr, long maxStaleness, boolean forceRefresh);
+	
+	/**
+	 * Summarize the recent history of a metric of a client,
+	 * as heard by an agent in the pool
+	 * 
+	 * @param clientHwAddress MACAddress of the client
+	 * @param agentAddr InetAddress of the agent
+	 * @param metric the metric
+	 * @param window milliseconds to aggregate over, back from now
+	 * @return the summary, or null if there is no history
+	 */
+	TimeSeriesSummary getClientHistory (String pool, MACAddress clientHwAddress, InetAddress agentAddr, ClientMetric metric, long window);
+	
+	
+	/**
+	 * Start the spectral scan of an agent in the pool, or change
+	 * the period of the one it is running
+	 * 
+	 * @param agentAddr InetAddress of the agent
+	 * @param period milliseconds between the agent's scan rounds
+	 * @return true if the scan was requested
+	 */
+	boolean startSpectralScan (String pool, InetAddress agentAddr, int period);
+	
+	
+	/**
+	 * Stop the spectral scan of an agent in the pool
+	 * 
+	 * @param agentAddr InetAddress of the agent
+	 * @return true if the agent was scanning
+	 */
+	boolean stopSpectralScan (String pool, InetAddress agentAddr);
+	
+	
+	/**
+	 * Get how busy each channel was, from the spectral scan
+	 * of an agent in the pool
+	 * 
+	 * @param agentAddr InetAddress of the agent
+	 * @param window milliseconds to aggregate over, back from now
+	 * @return one entry per channel, by frequency, or null if the agent isn't scanning
+	 */
+	List<ChannelOccupancy> getChannelOccupancy (String pool, InetAddress agentAddr, long window);
+	
+	
 	/**
 	 * Get a list of Odin agents from the agent tracker
 	 * @return a map of OdinAgent objects keyed by Ipv4 addresses
@@ -81,4 +172,24 @@ interface IOdinMasterToApplicationInterface {
 	 * @return true if the network could be removed, false otherwise
 	 */
 	boolean removeNetwork (String pool, String ssid);
+	
+	
+	/**
+	 * Add an SSID to the Odin network, and follow the update
+	 * of the LVAPs of the pool's clients on their agents.
+	 * 
+	 * @param networkName
+	 * @return report of the LVAP updates, or null if the network couldn't be added
+	 */
+	FanOutReport addNetworkAsync (String pool, String ssid);
+	
+	
+	/**
+	 * Remove an SSID from the Odin network, and follow the update
+	 * of the LVAPs of the pool's clients on their agents.
+	 * 
+	 * @param networkName
+	 * @return report of the LVAP updates, or null if the network couldn't be removed
+	 */
+	FanOutReport removeNetworkAsync (String pool, String ssid);
 }
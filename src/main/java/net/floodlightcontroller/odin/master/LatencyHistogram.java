@@ -0,0 +1,121 @@
+package net.floodlightcontroller.odin.master;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of latencies, in microseconds.
+ *
+ * Values below 2^(SUB_BUCKET_BITS + 1) get a bucket each. Above
+ * that, every power of two is split into 2^SUB_BUCKET_BITS linear
+ * buckets, so a value is never reported more than 12.5% above what
+ * was recorded, whatever its magnitude. Recording is a single atomic
+ * increment, so any number of threads may record concurrently.
+ */
+class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40; // about 12 days
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+
+	/**
+	 * @param micros latency to record, clamped to [0, 2^41)
+	 */
+	void record (long micros) {
+		long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			// retry
+		}
+	}
+
+
+	long getCount () {
+		return count.get();
+	}
+
+
+	long getMax () {
+		return max.get();
+	}
+
+
+	/**
+	 * @param quantile between 0 and 1
+	 * @return upper bound of the bucket holding the quantile,
+	 *         in microseconds, or 0 if nothing was recorded
+	 */
+	long getValueAtQuantile (double quantile) {
+		long total = count.get();
+
+		if (total == 0)
+			return 0;
+
+		long target = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+
+			if (seen >= target)
+				return Math.min(upperBoundOf(i), max.get());
+		}
+
+		return max.get();
+	}
+
+
+	/**
+	 * @return count, mean, p50, p99, p999 and max, in milliseconds
+	 */
+	Map<String, Object> getSummary () {
+		Map<String, Object> summary = new LinkedHashMap<String, Object>();
+		long n = count.get();
+
+		summary.put("count", n);
+		summary.put("meanMillis", n == 0 ? 0.0 : sum.get() / 1000.0 / n);
+		summary.put("p50Millis", getValueAtQuantile(0.5) / 1000.0);
+		summary.put("p99Millis", getValueAtQuantile(0.99) / 1000.0);
+		summary.put("p999Millis", getValueAtQuantile(0.999) / 1000.0);
+		summary.put("maxMillis", max.get() / 1000.0);
+
+		return summary;
+	}
+
+
+	static int indexOf (long value) {
+		if (value < 2 * SUB_BUCKETS)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+
+	static long upperBoundOf (int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+
+		int shift = index / SUB_BUCKETS - 1;
+		int sub = index % SUB_BUCKETS;
+
+		return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+}
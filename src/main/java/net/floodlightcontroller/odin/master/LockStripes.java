@@ -0,0 +1,58 @@
+package net.floodlightcontroller.odin.master;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of reentrant locks that keys are hashed onto. Keys
+ * that share a stripe share a lock, so the number of stripes bounds
+ * the memory used no matter how many keys there are.
+ */
+class LockStripes {
+	private final ReentrantLock[] locks;
+	private final int mask;
+
+
+	/**
+	 * @param stripes number of locks, rounded up to a power of two
+	 */
+	LockStripes (int stripes) {
+		int size = 1;
+
+		while (size < stripes) {
+			size <<= 1;
+		}
+
+		locks = new ReentrantLock[size];
+		mask = size - 1;
+
+		for (int i = 0; i < size; i++) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+
+	/**
+	 * Get the lock for a key
+	 *
+	 * @param hash hash of the key
+	 * @return the lock of the stripe the key falls in
+	 */
+	ReentrantLock get (int hash) {
+		// Spread the bits, since MAC and IPv4 addresses tend
+		// to differ only in their low order bytes
+		hash ^= (hash >>> 20) ^ (hash >>> 12);
+		hash ^= (hash >>> 7) ^ (hash >>> 4);
+		return locks[hash & mask];
+	}
+
+
+	/**
+	 * Get the lock for a key
+	 *
+	 * @param key 64 bit key, such as a MAC address
+	 * @return the lock of the stripe the key falls in
+	 */
+	ReentrantLock get (long key) {
+		return get((int) (key ^ (key >>> 32)));
+	}
+}
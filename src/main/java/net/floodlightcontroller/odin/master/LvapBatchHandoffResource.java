@@ -0,0 +1,82 @@
+package net.floodlightcontroller.odin.master;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.restlet.resource.Post;
+import org.restlet.resource.ServerResource;
+
+/**
+ * Hands off several clients in one request:
+ *
+ *   {"poolName": "pool-1", "handoffs": {"00:11:22:33:44:55": "192.168.1.5", ...}}
+ *
+ * Replies with the outcome for each client: OK, FAILED with the
+ * reason, or PENDING if the agents have not answered in time.
+ */
+public class LvapBatchHandoffResource extends ServerResource {
+	private static final long REPLY_TIMEOUT = 2000; // milliseconds
+
+	@SuppressWarnings("unchecked")
+	@Post
+	public Map<String, String> store(String request) {
+		OdinMaster oc = (OdinMaster) getContext().getAttributes().
+				get(OdinMaster.class.getCanonicalName());
+
+		ObjectMapper mapper = new ObjectMapper();
+		Map<String, String> status = new TreeMap<String, String>();
+
+		try {
+			HashMap<String, Object> data = mapper.readValue(request, HashMap.class);
+			String poolName = (String) data.get("poolName");
+			Map<String, String> entries = (Map<String, String>) data.get("handoffs");
+
+			if (entries == null)
+				return status;
+
+			Map<MACAddress, InetAddress> handoffs = new HashMap<MACAddress, InetAddress>();
+
+			for (Entry<String, String> entry: entries.entrySet()) {
+				try {
+					handoffs.put(MACAddress.valueOf(entry.getKey()), InetAddress.getByName(entry.getValue()));
+				} catch (IOException e) {
+					status.put(entry.getKey(), "FAILED: " + e.getMessage());
+				} catch (IllegalArgumentException e) {
+					status.put(entry.getKey(), "FAILED: " + e.getMessage());
+				}
+			}
+
+			Map<MACAddress, OdinAgentFuture<Void>> results = oc.handoffClientsToAps(poolName, handoffs);
+			long deadline = System.currentTimeMillis() + REPLY_TIMEOUT;
+
+			for (Entry<MACAddress, OdinAgentFuture<Void>> entry: results.entrySet()) {
+				OdinAgentFuture<Void> future = entry.getValue();
+				long remaining = Math.max(0, deadline - System.currentTimeMillis());
+
+				if (!future.await(remaining, TimeUnit.MILLISECONDS)) {
+					status.put(entry.getKey().toString(), "PENDING");
+				}
+				else if (future.isSuccess()) {
+					status.put(entry.getKey().toString(), "OK");
+				}
+				else {
+					status.put(entry.getKey().toString(), "FAILED: " + future.getCause().getMessage());
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		return status;
+	}
+}
@@ -0,0 +1,479 @@
+package net.floodlightcontroller.odin.master;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Stages the LVAP of a client on the agents it is likely to be
+ * handed off to next, before the handoff is requested. An agent is
+ * a candidate when it is among the few that hear the client best,
+ * other than its current agent, and the signal it hears the client
+ * at is rising. The client's flow messages are written to the
+ * candidate's switch, and the agent is told to keep the LVAP dormant
+ * until add_vap activates it, so that a handoff to it only has to
+ * flip the LVAP on.
+ *
+ * Each agent holds a bounded number of staged LVAPs. The least
+ * recently staged are evicted when a new one comes in, and staged
+ * LVAPs that go unused expire on the timing wheel. Either way, the
+ * agent is told to drop them. Agents that reject the staging
+ * handler are not asked again, and clients handed off to them are
+ * handed off cold. Other failures only drop the one staged LVAP, so
+ * the client can be staged on the agent again.
+ *
+ * consider() and claim() are called with the client's lock held.
+ */
+class LvapPrestager {
+	protected static Logger log = LoggerFactory.getLogger(LvapPrestager.class);
+
+	static final int DEFAULT_CANDIDATES = 2;
+	static final int DEFAULT_PER_AGENT = 32;
+	static final long DEFAULT_TIMEOUT = 30000; // milliseconds
+	static final double DEFAULT_MIN_TREND = 1.0; // signal units per second
+
+	private final HearingGraph hearingGraph;
+	private final PoolManager poolManager;
+	private final OdinTimeoutWheel timeouts;
+	private final ConcurrentHashMap<InetAddress, AgentStage> stages = new ConcurrentHashMap<InetAddress, AgentStage>();
+
+	private volatile boolean enabled = false;
+	private volatile int candidates = DEFAULT_CANDIDATES;
+	private volatile int perAgent = DEFAULT_PER_AGENT;
+	private volatile long timeout = DEFAULT_TIMEOUT;
+	private volatile double minTrend = DEFAULT_MIN_TREND;
+
+	private final AtomicLong staged = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong unsupported = new AtomicLong();
+
+	private final OdinTimeoutWheel.TimeoutHandler<Staged> expirer = new OdinTimeoutWheel.TimeoutHandler<Staged>() {
+		@Override
+		public void timeout(Staged s) {
+			if (s.stage.remove(s)) {
+				expired.incrementAndGet();
+				unstage(s);
+			}
+		}
+	};
+
+
+	LvapPrestager (HearingGraph hearingGraph, PoolManager poolManager, OdinTimeoutWheel timeouts) {
+		this.hearingGraph = hearingGraph;
+		this.poolManager = poolManager;
+		this.timeouts = timeouts;
+	}
+
+
+	void setEnabled (boolean enabled) {
+		this.enabled = enabled;
+	}
+
+
+	boolean isEnabled () {
+		return enabled;
+	}
+
+
+	/**
+	 * @param candidates how many of the agents that hear a client
+	 *        best, other than its own, it may be staged on
+	 */
+	void setCandidates (int candidates) {
+		assert (candidates > 0);
+		this.candidates = candidates;
+	}
+
+
+	/**
+	 * @param perAgent most LVAPs staged on an agent at once
+	 */
+	void setPerAgent (int perAgent) {
+		assert (perAgent > 0);
+		this.perAgent = perAgent;
+	}
+
+
+	/**
+	 * @param timeout milliseconds after which an unused staged LVAP is dropped
+	 */
+	void setTimeout (long timeout) {
+		assert (timeout > 0);
+		this.timeout = timeout;
+	}
+
+
+	/**
+	 * @param minTrend how fast, per second, the signal an agent hears
+	 *        a client at must be rising for the agent to be a candidate
+	 */
+	void setMinTrend (double minTrend) {
+		this.minTrend = minTrend;
+	}
+
+
+	/**
+	 * Called when an agent has heard a client. Stages the client's
+	 * LVAP on the agent if it is a likely next agent for the client.
+	 *
+	 * @param client the client
+	 * @param agent the agent that heard it
+	 */
+	void consider (OdinClient client, IOdinAgent agent) {
+		if (!enabled)
+			return;
+
+		IOdinAgent current = client.getLvap().getAgent();
+		InetAddress agentAddr = agent.getIpAddress();
+
+		if (current == null || current.getIpAddress().equals(agentAddr))
+			return;
+
+		AgentStage stage = stageFor(agent);
+
+		if (stage.unsupported || stage.contains(client.getMacAddress()))
+			return;
+
+		HearingLink link = hearingGraph.getLink(client.getMacAddress(), agentAddr);
+
+		if (link == null || link.getTrend() < minTrend || !isCandidate(client.getMacAddress(), current.getIpAddress(), agentAddr))
+			return;
+
+		String pool = poolManager.getPoolForClient(client);
+
+		if (pool == null || !poolManager.getPoolsForAgent(agentAddr).contains(pool))
+			return;
+
+		stage(stage, client);
+	}
+
+
+	/**
+	 * Called when a client is handed off to an agent. Takes the
+	 * client's staged LVAP off the agent's stage, as add_vap is
+	 * about to activate it.
+	 *
+	 * @return true if the LVAP was staged with the client's current
+	 *         flow messages, which then need not be written again
+	 */
+	boolean claim (OdinClient client, IOdinAgent agent) {
+		if (!enabled)
+			return false;
+
+		AgentStage stage = stages.get(agent.getIpAddress());
+		Staged s = (stage == null || stage.agent != agent) ? null : stage.remove(client.getMacAddress());
+
+		if (s == null) {
+			misses.incrementAndGet();
+			return false;
+		}
+
+		timeouts.cancel(s);
+
+		// The flow messages depend on the client's IP address
+		if (s.flowsWritten && s.clientIpAddr.equals(client.getIpAddress())) {
+			hits.incrementAndGet();
+			return true;
+		}
+
+		misses.incrementAndGet();
+		return false;
+	}
+
+
+	/**
+	 * Drop the LVAPs staged for a client that is gone
+	 */
+	void clientRemoved (MACAddress clientHwAddress) {
+		for (AgentStage stage: stages.values()) {
+			Staged s = stage.remove(clientHwAddress);
+
+			if (s != null) {
+				timeouts.cancel(s);
+				unstage(s);
+			}
+		}
+	}
+
+
+	/**
+	 * Forget about the LVAPs staged on an agent that is gone
+	 */
+	void agentRemoved (InetAddress agentAddr) {
+		AgentStage stage = stages.remove(agentAddr);
+
+		if (stage != null) {
+			for (Staged s: stage.clear()) {
+				timeouts.cancel(s);
+			}
+		}
+	}
+
+
+	/**
+	 * @return number of LVAPs staged on an agent
+	 */
+	int getStagedCount (InetAddress agentAddr) {
+		AgentStage stage = stages.get(agentAddr);
+		return (stage == null) ? 0 : stage.size();
+	}
+
+
+	/**
+	 * @return whether an agent has refused to stage LVAPs
+	 */
+	boolean isUnsupported (InetAddress agentAddr) {
+		AgentStage stage = stages.get(agentAddr);
+		return stage != null && stage.unsupported;
+	}
+
+
+	Map<String, Object> getStats () {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		long claimed = hits.get() + misses.get();
+
+		stats.put("enabled", enabled);
+		stats.put("staged", staged.get());
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("hitRatio", claimed == 0 ? 0.0 : (double) hits.get() / claimed);
+		stats.put("evicted", evicted.get());
+		stats.put("expired", expired.get());
+		stats.put("unsupported", unsupported.get());
+
+		Map<String, Object> agents = new LinkedHashMap<String, Object>();
+
+		for (AgentStage stage: stages.values()) {
+			agents.put(stage.agent.getIpAddress().getHostAddress(), stage.unsupported ? "unsupported" : stage.size());
+		}
+
+		stats.put("agents", agents);
+
+		return stats;
+	}
+
+
+	/**
+	 * @return true if the agent is among the best candidates
+	 *         to hear the client, its current agent aside
+	 */
+	private boolean isCandidate (MACAddress clientHwAddress, InetAddress currentAddr, InetAddress agentAddr) {
+		int rank = 0;
+
+		for (HearingLink link: hearingGraph.getBestAgents(clientHwAddress, candidates + 1)) {
+			if (link.getAgentAddress().equals(currentAddr))
+				continue;
+
+			if (link.getAgentAddress().equals(agentAddr))
+				return true;
+
+			if (++rank >= candidates)
+				break;
+		}
+
+		return false;
+	}
+
+
+	private AgentStage stageFor (IOdinAgent agent) {
+		InetAddress agentAddr = agent.getIpAddress();
+		AgentStage stage = stages.get(agentAddr);
+
+		if (stage != null && stage.agent == agent)
+			return stage;
+
+		// First time we see the agent, or it has reconnected
+		AgentStage created = new AgentStage(agent);
+
+		if (stage == null) {
+			stage = stages.putIfAbsent(agentAddr, created);
+
+			if (stage == null)
+				return created;
+
+			if (stage.agent == agent)
+				return stage;
+		}
+
+		if (stages.replace(agentAddr, stage, created)) {
+			for (Staged s: stage.clear()) {
+				timeouts.cancel(s);
+			}
+
+			return created;
+		}
+
+		return stageFor(agent);
+	}
+
+
+	private void stage (AgentStage stage, final OdinClient client) {
+		final Staged s = new Staged(stage, client);
+		List<OFMessage> messages = client.getLvap().getOFMessageList();
+
+		if (messages == null || messages.isEmpty()) {
+			s.flowsWritten = true;
+		}
+		else if (stage.agent.getSwitch() != null) {
+			try {
+				stage.agent.getSwitch().write(messages, null);
+				s.flowsWritten = true;
+			} catch (IOException e) {
+				log.error("Failed to stage flows on switch " + stage.agent.getSwitch());
+			}
+		}
+
+		Staged eldest = stage.add(s, perAgent);
+
+		if (eldest != null) {
+			timeouts.cancel(eldest);
+			evicted.incrementAndGet();
+			unstage(eldest);
+		}
+
+		timeouts.schedule(s, timeout, TimeUnit.MILLISECONDS, expirer);
+		staged.incrementAndGet();
+
+		stage.agent.prestageClientLvapAsync(client).addListener(new OdinAgentFutureListener<Void>() {
+			@Override
+			public void operationComplete(OdinAgentFuture<Void> future) {
+				if (future.isSuccess() || future.isCancelled())
+					return;
+
+				AgentStage stage = s.stage;
+
+				if (!isRejection(future.getCause())) {
+					log.warn("Failed to stage the LVAP of " + s.client.getMacAddress() + " on agent "
+							+ stage.agent.getIpAddress() + ": " + future.getCause());
+
+					if (stage.remove(s)) {
+						timeouts.cancel(s);
+					}
+
+					return;
+				}
+
+				if (!stage.unsupported) {
+					stage.unsupported = true;
+					unsupported.incrementAndGet();
+					log.info("Agent " + stage.agent.getIpAddress() + " can't stage LVAPs, its handoffs will be cold");
+				}
+
+				for (Staged dropped: stage.clear()) {
+					timeouts.cancel(dropped);
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * @return true if the agent doesn't have the staging handler
+	 */
+	private static boolean isRejection (Throwable cause) {
+		return cause instanceof OdinAgentHandlerException
+				&& ((OdinAgentHandlerException) cause).isRejected();
+	}
+
+
+	private void unstage (Staged s) {
+		if (!s.stage.unsupported) {
+			s.stage.agent.unstageClientLvapAsync(s.client);
+		}
+	}
+
+
+	/**
+	 * The LVAPs staged on one agent, least recently staged first
+	 */
+	private static final class AgentStage {
+		final IOdinAgent agent;
+		volatile boolean unsupported = false;
+
+		// Guarded by this
+		private final LinkedHashMap<MACAddress, Staged> staged = new LinkedHashMap<MACAddress, Staged>();
+
+		AgentStage (IOdinAgent agent) {
+			this.agent = agent;
+		}
+
+		synchronized boolean contains (MACAddress clientHwAddress) {
+			return staged.containsKey(clientHwAddress);
+		}
+
+		/**
+		 * @return the entry evicted to make room, or null
+		 */
+		synchronized Staged add (Staged s, int capacity) {
+			staged.put(s.client.getMacAddress(), s);
+
+			if (staged.size() <= capacity)
+				return null;
+
+			Iterator<Staged> it = staged.values().iterator();
+			Staged eldest = it.next();
+			it.remove();
+
+			return eldest;
+		}
+
+		synchronized Staged remove (MACAddress clientHwAddress) {
+			return staged.remove(clientHwAddress);
+		}
+
+		/**
+		 * @return true if the entry was still staged
+		 */
+		synchronized boolean remove (Staged s) {
+			if (staged.get(s.client.getMacAddress()) != s)
+				return false;
+
+			staged.remove(s.client.getMacAddress());
+			return true;
+		}
+
+		synchronized List<Staged> clear () {
+			List<Staged> cleared = new ArrayList<Staged>(staged.values());
+			staged.clear();
+			return cleared;
+		}
+
+		synchronized int size () {
+			return staged.size();
+		}
+	}
+
+
+	/**
+	 * An LVAP staged on an agent. Entries are compared by
+	 * identity, so they can key their own timeouts.
+	 */
+	private static final class Staged {
+		final AgentStage stage;
+		final OdinClient client;
+		final InetAddress clientIpAddr;
+		volatile boolean flowsWritten = false;
+
+		Staged (AgentStage stage, OdinClient client) {
+			this.stage = stage;
+			this.client = client;
+			this.clientIpAddr = client.getIpAddress();
+		}
+	}
+}
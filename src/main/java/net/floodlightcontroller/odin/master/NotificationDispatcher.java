@@ -0,0 +1,418 @@
+package net.floodlightcontroller.odin.master;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Delivers notifications to a single OdinApplication on a thread of
+ * its own, so that a slow application can't hold up agent traffic or
+ * other applications.
+ *
+ * Notifications wait in a bounded queue. What happens when the queue
+ * is full depends on the OverflowPolicy:
+ *
+ * DROP_OLDEST: the oldest queued notification is discarded.
+ * COALESCE: a notification for a (client, subscription) pair that is
+ *   already queued replaces the queued value instead of taking a new
+ *   place; if the queue is still full, the oldest one is discarded.
+ * BLOCK: the publishing thread waits for room, for at most the block
+ *   timeout, after which the oldest queued notification is discarded.
+ *   Publishers hold the master's locks while they wait, so the wait
+ *   is bounded: a callback that needs those locks could otherwise
+ *   keep the queue from ever draining. This slows the control plane
+ *   down to the pace of the application, so use with care.
+ */
+class NotificationDispatcher implements Runnable {
+	protected static Logger log = LoggerFactory.getLogger(NotificationDispatcher.class);
+
+	static final int DEFAULT_CAPACITY = 1024;
+	static final OverflowPolicy DEFAULT_POLICY = OverflowPolicy.DROP_OLDEST;
+	static final long DEFAULT_BLOCK_TIMEOUT = 1000; // milliseconds
+
+	public enum OverflowPolicy {
+		DROP_OLDEST,
+		COALESCE,
+		BLOCK,
+	}
+
+	private final String name;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final long blockTimeoutNanos;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	// Guarded by lock
+	private final ArrayDeque<Notification> queue;
+	private final Map<CoalescingKey, Notification> queued; // COALESCE only
+	private boolean running = true;
+
+	private volatile Thread thread;
+
+	// Metrics
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong dispatched = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong blockTimeouts = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private volatile long maxLatencyNanos = 0;
+
+
+	NotificationDispatcher (String name, int capacity, OverflowPolicy policy) {
+		this(name, capacity, policy, DEFAULT_BLOCK_TIMEOUT);
+	}
+
+
+	/**
+	 * @param blockTimeout milliseconds a publisher waits for room,
+	 *        with the BLOCK policy, before the oldest notification
+	 *        is discarded
+	 */
+	NotificationDispatcher (String name, int capacity, OverflowPolicy policy, long blockTimeout) {
+		this.name = name;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+		this.queue = new ArrayDeque<Notification>(capacity);
+		this.queued = (policy == OverflowPolicy.COALESCE) ? new HashMap<CoalescingKey, Notification>() : null;
+	}
+
+
+	/**
+	 * Start the dispatcher thread
+	 */
+	void start () {
+		Thread t = new Thread(this, "OdinApp-" + name);
+		t.setDaemon(true);
+		thread = t;
+		t.start();
+	}
+
+
+	/**
+	 * Stop the dispatcher thread once the queue has drained
+	 */
+	void shutdown () {
+		lock.lock();
+		try {
+			running = false;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Wrap an application's callback so that the master
+	 * queues notifications rather than running the callback.
+	 *
+	 * @param cb the application's callback
+	 * @return a callback that queues notifications for cb
+	 */
+	NotificationCallback wrap (final NotificationCallback cb) {
+		if (cb instanceof BatchNotificationCallback) {
+			return new BatchNotificationCallback() {
+				@Override
+				public void exec(OdinEventSubscription oes, NotificationCallbackContext cntx) {
+					enqueue(cb, oes, cntx);
+				}
+
+				@Override
+				public void execBatch(OdinEventSubscription oes, BatchNotificationCallbackContext cntx) {
+					enqueueBatch((BatchNotificationCallback) cb, oes, cntx);
+				}
+			};
+		}
+
+		return new NotificationCallback() {
+			@Override
+			public void exec(OdinEventSubscription oes, NotificationCallbackContext cntx) {
+				enqueue(cb, oes, cntx);
+			}
+		};
+	}
+
+
+	/**
+	 * Queue a notification, applying the overflow policy if
+	 * the queue is full.
+	 */
+	void enqueue (NotificationCallback cb, OdinEventSubscription oes, NotificationCallbackContext cntx) {
+		offer(new Notification(cb, oes, cntx, null, System.nanoTime()));
+	}
+
+
+	/**
+	 * Queue the notification of a batch. Batches take one place
+	 * in the queue, and are never coalesced.
+	 */
+	void enqueueBatch (BatchNotificationCallback cb, OdinEventSubscription oes, BatchNotificationCallbackContext cntx) {
+		offer(new Notification(cb, oes, null, cntx, System.nanoTime()));
+	}
+
+
+	private void offer (Notification n) {
+		enqueued.incrementAndGet();
+
+		lock.lock();
+		try {
+			if (!running) {
+				dropped.incrementAndGet();
+				return;
+			}
+
+			if (queued != null && n.batch == null) {
+				Notification pending = queued.get(n.key());
+
+				if (pending != null) {
+					// Keep the place in the queue, and the time the
+					// first notification was queued, but take the latest value
+					pending.cntx = n.cntx;
+					coalesced.incrementAndGet();
+					return;
+				}
+			}
+
+			if (queue.size() >= capacity) {
+				// Waiting on our own queue would never end
+				if (policy == OverflowPolicy.BLOCK && Thread.currentThread() != thread) {
+					long remaining = blockTimeoutNanos;
+
+					while (running && queue.size() >= capacity && remaining > 0) {
+						try {
+							remaining = notFull.awaitNanos(remaining);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+					}
+
+					if (!running) {
+						dropped.incrementAndGet();
+						return;
+					}
+				}
+
+				if (queue.size() >= capacity) {
+					if (policy == OverflowPolicy.BLOCK)
+						blockTimeouts.incrementAndGet();
+
+					removeHead();
+					dropped.incrementAndGet();
+				}
+			}
+
+			queue.addLast(n);
+
+			if (queued != null && n.batch == null)
+				queued.put(n.key(), n);
+
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	public void run () {
+		while (true) {
+			Notification n;
+
+			lock.lock();
+			try {
+				while (running && queue.isEmpty()) {
+					notEmpty.awaitUninterruptibly();
+				}
+
+				if (queue.isEmpty())
+					return;
+
+				n = removeHead();
+				notFull.signal();
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				if (n.batch != null)
+					((BatchNotificationCallback) n.cb).execBatch(n.oes, n.batch);
+				else
+					n.cb.exec(n.oes, n.cntx);
+			} catch (RuntimeException e) {
+				failed.incrementAndGet();
+				log.error("Notification callback of application " + name + " threw an exception", e);
+			}
+
+			long latency = System.nanoTime() - n.enqueuedNanos;
+			totalLatencyNanos.addAndGet(latency);
+			dispatched.incrementAndGet();
+
+			if (latency > maxLatencyNanos)
+				maxLatencyNanos = latency;
+		}
+	}
+
+
+	String getName () {
+		return name;
+	}
+
+
+	/**
+	 * @return the dispatcher thread, or null if it hasn't started
+	 */
+	Thread getThread () {
+		return thread;
+	}
+
+
+	OverflowPolicy getPolicy () {
+		return policy;
+	}
+
+
+	int getCapacity () {
+		return capacity;
+	}
+
+
+	int getQueueDepth () {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	long getDroppedCount () {
+		return dropped.get();
+	}
+
+
+	long getCoalescedCount () {
+		return coalesced.get();
+	}
+
+
+	long getDispatchedCount () {
+		return dispatched.get();
+	}
+
+
+	/**
+	 * @return number of times a publisher gave up waiting for room
+	 */
+	long getBlockTimeoutCount () {
+		return blockTimeouts.get();
+	}
+
+
+	/**
+	 * Get the dispatcher's metrics. Latencies are measured from the
+	 * time a notification is queued until its callback returns.
+	 *
+	 * @return metric name to value
+	 */
+	Map<String, Object> getStats () {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		long n = dispatched.get();
+
+		stats.put("policy", policy.toString());
+		stats.put("capacity", capacity);
+		stats.put("queueDepth", getQueueDepth());
+		stats.put("enqueued", enqueued.get());
+		stats.put("dispatched", n);
+		stats.put("dropped", dropped.get());
+		stats.put("coalesced", coalesced.get());
+		stats.put("failed", failed.get());
+		stats.put("blockTimeouts", blockTimeouts.get());
+		stats.put("avgLatencyMicros", n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatencyNanos.get() / n));
+		stats.put("maxLatencyMicros", TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos));
+
+		return stats;
+	}
+
+
+	// Called with the lock held
+	private Notification removeHead () {
+		Notification n = queue.pollFirst();
+
+		if (queued != null && n != null && n.batch == null)
+			queued.remove(n.key());
+
+		return n;
+	}
+
+
+	private static class Notification {
+		final NotificationCallback cb;
+		final OdinEventSubscription oes;
+		final BatchNotificationCallbackContext batch; // or null
+		final long enqueuedNanos;
+		NotificationCallbackContext cntx;
+
+		Notification (NotificationCallback cb, OdinEventSubscription oes, NotificationCallbackContext cntx,
+				BatchNotificationCallbackContext batch, long enqueuedNanos) {
+			this.cb = cb;
+			this.oes = oes;
+			this.cntx = cntx;
+			this.batch = batch;
+			this.enqueuedNanos = enqueuedNanos;
+		}
+
+		CoalescingKey key () {
+			return new CoalescingKey(cntx.clientHwAddress, oes, cb);
+		}
+	}
+
+
+	/**
+	 * Notifications are coalesced per client and subscription,
+	 * a subscription being an event and the callback registered for it
+	 */
+	private static class CoalescingKey {
+		final MACAddress client;
+		final OdinEventSubscription oes;
+		final NotificationCallback cb;
+
+		CoalescingKey (MACAddress client, OdinEventSubscription oes, NotificationCallback cb) {
+			this.client = client;
+			this.oes = oes;
+			this.cb = cb;
+		}
+
+		@Override
+		public int hashCode () {
+			return (client.hashCode() * 31 + System.identityHashCode(oes)) * 31 + System.identityHashCode(cb);
+		}
+
+		@Override
+		public boolean equals (Object obj) {
+			if (!(obj instanceof CoalescingKey))
+				return false;
+
+			CoalescingKey that = (CoalescingKey) obj;
+			return client.equals(that.client) && oes == that.oes && cb == that.cb;
+		}
+	}
+}
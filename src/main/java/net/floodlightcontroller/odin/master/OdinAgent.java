@@ -1,18 +1,15 @@
 package net.floodlightcontroller.odin.master;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
 import org.codehaus.jackson.map.annotate.JsonSerialize;
 import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
@@ -35,14 +32,13 @@ class OdinAgent implements IOdinAgent {
 	protected static Logger log = LoggerFactory.getLogger(OdinAgent.class);
 
 	// Connect to control socket on OdinAgent
-	private Socket odinAgentSocket = null;
-	private PrintWriter outBuf;
-	private BufferedReader inBuf;
+	private OdinAgentChannel agentChannel = null;
 	private IOFSwitch ofSwitch;
 	private InetAddress ipAddress;
 	private long lastHeard;
+	private volatile int protocolVersion = 0;
 
-	private ConcurrentSkipListSet<OdinClient> clientList = new ConcurrentSkipListSet<OdinClient>();
+	private volatile ConcurrentSkipListSet<OdinClient> clientList = new ConcurrentSkipListSet<OdinClient>();
 
 	// OdinAgent Handler strings
 	private static final String READ_HANDLER_TABLE = "table";
@@ -51,13 +47,20 @@ class OdinAgent implements IOdinAgent {
 	private static final String WRITE_HANDLER_ADD_VAP = "add_vap";
 	private static final String WRITE_HANDLER_SET_VAP = "set_vap";
 	private static final String WRITE_HANDLER_REMOVE_VAP = "remove_vap";
+	private static final String WRITE_HANDLER_PRESTAGE_VAP = "prestage_vap";
+	private static final String WRITE_HANDLER_UNSTAGE_VAP = "unstage_vap";
 	private static final String WRITE_HANDLER_SUBSCRIPTIONS = "subscriptions";
 	private static final String WRITE_HANDLER_SEND_PROBE_RESPONSE = "send_probe_response";
 	private static final String WRITE_HANDLER_SPECTRAL_SCAN = "spectral_scan";
 	private static final String ODIN_AGENT_ELEMENT = "odinagent";
 
-	private final int RX_STAT_NUM_PROPERTIES = 5;
+	private static final int RX_STAT_NUM_PROPERTIES = 5;
 	private final int ODIN_AGENT_PORT = 6777;
+	private final long READ_HANDLER_TIMEOUT = 10000; // milliseconds
+
+	private static final RxStatsReplyParser rxStatsParser = new RxStatsReplyParser(RX_STAT_NUM_PROPERTIES);
+	private static final RxStatsSnapshotParser rxStatsSnapshotParser = new RxStatsSnapshotParser();
+	private final LvapTableReplyParser lvapTableParser = new LvapTableReplyParser();
 
 
 	/**
@@ -90,6 +93,28 @@ class OdinAgent implements IOdinAgent {
 	}
 
 
+	/**
+	 * Get the version of the binary protocol the agent speaks
+	 *
+	 * @return protocol version, or 0 if it only speaks text
+	 */
+	public int getProtocolVersion() {
+		return protocolVersion;
+	}
+
+
+	/**
+	 * Set the version of the binary protocol the agent speaks,
+	 * as found out from its pings. From then on, the LVAP and
+	 * probe response handlers are sent binary arguments.
+	 *
+	 * @param version protocol version, or 0 for text
+	 */
+	public void setProtocolVersion(int version) {
+		this.protocolVersion = version;
+	}
+
+
 	/**
 	 * Probe the agent for a list of VAPs its hosting. This should only be used
 	 * by the master when an agent registration to shield against master
@@ -99,49 +124,38 @@ class OdinAgent implements IOdinAgent {
 	 * @return a list of OdinClient entities on the agent
 	 */
 	public Set<OdinClient> getLvapsRemote() {
-		ConcurrentSkipListSet<OdinClient> clients = new ConcurrentSkipListSet<OdinClient>();
-		String handle = invokeReadHandler(READ_HANDLER_TABLE);
+		Set<OdinClient> clients = awaitRead(getLvapsRemoteAsync(), READ_HANDLER_TABLE);
 
-		if (handle == null) {
-			return clients; // empty list
+		if (clients == null) {
+			return new ConcurrentSkipListSet<OdinClient>(); // empty list
 		}
 
-		String tableList[] = handle.split("\n");
-
-		for (String entry : tableList) {
-
-			if (entry.equals(""))
-				break;
-
-			/*
-			 * Every entry looks like this:
-			 * properties:  [0]       [1]         [2]         [3, 4, 5...]
-			 *           <sta_mac> <ipv4addr> <lvap bssid> <lvap ssid list>
-			 *
-			 */
-			String properties[] = entry.split(" ");
-			OdinClient oc;
-			Lvap lvap;
-			try {
-				// First, get the list of all the SSIDs
-				ArrayList<String> ssidList = new ArrayList<String>();
-				for (int i = 3; i < properties.length; i++) {
-					ssidList.add (properties[i]);
+		return clients;
+	}
+
+
+	/**
+	 * Asynchronous variant of getLvapsRemote()
+	 *
+	 * @return future that completes with the OdinClient entities on the agent
+	 */
+	public OdinAgentFuture<Set<OdinClient>> getLvapsRemoteAsync() {
+		final OdinAgentFuture<Set<OdinClient>> ret = new OdinAgentFuture<Set<OdinClient>>();
+
+		invokeReadHandler(READ_HANDLER_TABLE, lvapTableParser).addListener(new OdinAgentFutureListener<ConcurrentSkipListSet<OdinClient>>() {
+			@Override
+			public void operationComplete(OdinAgentFuture<ConcurrentSkipListSet<OdinClient>> future) {
+				if (!future.isSuccess()) {
+					ret.setFailure(future.getCause());
+					return;
 				}
-				lvap =  new Lvap (MACAddress.valueOf(properties[2]), ssidList);
-				oc = new OdinClient(MACAddress.valueOf(properties[0]),
-						InetAddress.getByName(properties[1]), lvap);
-				lvap.setAgent(this);
-				clients.add(oc);
-
-			} catch (UnknownHostException e) {
-				e.printStackTrace();
-			}
-		}
 
-		clientList = clients;
+				clientList = future.getNow();
+				ret.setResult(future.getNow());
+			}
+		});
 
-		return clients;
+		return ret;
 	}
 
 
@@ -164,34 +178,105 @@ class OdinAgent implements IOdinAgent {
 	 *         values.
 	 */
 	public Map<MACAddress, Map<String, String>> getRxStats() {
-		String stats = invokeReadHandler(READ_HANDLER_RXSTATS);
+		Map<MACAddress, Map<String, String>> ret = awaitRead(getRxStatsAsync(), READ_HANDLER_RXSTATS);
+
+		if (ret == null) {
+			return Collections.emptyMap();
+		}
+
+		return ret;
+	}
 
-		Map<MACAddress, Map<String, String>> ret = new HashMap<MACAddress, Map<String, String>>();
 
-		/*
-		 * We basically get rows like this MAC_ADDR1 prop1:<value> prop2:<value>
-		 * MAC_ADDR2 prop1:<value> prop2:<value>
-		 */
-		String arr[] = stats.split("\n");
-		for (String elem : arr) {
-			String row[] = elem.split(" ");
+	/**
+	 * Asynchronous variant of getRxStats()
+	 *
+	 * @return future that completes with a map of stations' MAC addresses
+	 *         to a map of properties and values.
+	 */
+	public OdinAgentFuture<Map<MACAddress, Map<String, String>>> getRxStatsAsync() {
+		return invokeReadHandler(READ_HANDLER_RXSTATS, rxStatsParser);
+	}
+
 
-			if (row.length != RX_STAT_NUM_PROPERTIES + 1) {
-				continue;
+	/**
+	 * Retrieve Rx-stats from the OdinAgent, with every
+	 * value parsed into a numeric field.
+	 *
+	 * @return future that completes with a snapshot of the
+	 *         stats of the stations the agent can hear
+	 */
+	public OdinAgentFuture<RxStatsSnapshot> getRxStatsSnapshotAsync() {
+		final OdinAgentFuture<RxStatsSnapshot> ret = new OdinAgentFuture<RxStatsSnapshot>();
+
+		invokeReadHandler(READ_HANDLER_RXSTATS, rxStatsSnapshotParser).addListener(new OdinAgentFutureListener<Map<MACAddress, RxStatsSnapshot.Station>>() {
+			@Override
+			public void operationComplete(OdinAgentFuture<Map<MACAddress, RxStatsSnapshot.Station>> future) {
+				if (!future.isSuccess()) {
+					ret.setFailure(future.getCause());
+					return;
+				}
+
+				ret.setResult(new RxStatsSnapshot(ipAddress, System.currentTimeMillis(), future.getNow()));
 			}
+		});
 
-			MACAddress eth = MACAddress.valueOf(row[0].toLowerCase());
+		return ret;
+	}
 
-			Map<String, String> innerMap = new HashMap<String, String>();
 
-			for (int i = 1; i < RX_STAT_NUM_PROPERTIES + 1; i += 1) {
-				innerMap.put(row[i].split(":")[0], row[i].split(":")[1]);
+	/**
+	 * Parses the output of the table read handler. Every entry looks like this:
+	 *
+	 * properties:  [0]       [1]         [2]         [3, 4, 5...]
+	 *           <sta_mac> <ipv4addr> <lvap bssid> <lvap ssid list>
+	 */
+	private class LvapTableReplyParser extends ClickReplyParser<ConcurrentSkipListSet<OdinClient>> {
+
+		@Override
+		ConcurrentSkipListSet<OdinClient> parse(byte[] data, int offset, int length) {
+			ConcurrentSkipListSet<OdinClient> clients = new ConcurrentSkipListSet<OdinClient>();
+			int end = offset + length;
+			int rowStart = offset;
+
+			while (rowStart < end) {
+				int rowEnd = indexOf(data, rowStart, end, (byte) '\n');
+
+				if (rowEnd == rowStart)
+					break;
+
+				int staEnd = indexOf(data, rowStart, rowEnd, (byte) ' ');
+				int ipEnd = indexOf(data, staEnd + 1, rowEnd, (byte) ' ');
+				int bssidEnd = indexOf(data, ipEnd + 1, rowEnd, (byte) ' ');
+
+				try {
+					// First, get the list of all the SSIDs
+					ArrayList<String> ssidList = new ArrayList<String>();
+					int ssidStart = bssidEnd + 1;
+
+					while (ssidStart < rowEnd) {
+						int ssidEnd = indexOf(data, ssidStart, rowEnd, (byte) ' ');
+						ssidList.add(new String(data, ssidStart, ssidEnd - ssidStart, "US-ASCII"));
+						ssidStart = ssidEnd + 1;
+					}
+
+					Lvap lvap = new Lvap (MACAddress.valueOf(parseMacAddress(data, ipEnd + 1, bssidEnd)), ssidList);
+					OdinClient oc = new OdinClient(MACAddress.valueOf(parseMacAddress(data, rowStart, staEnd)),
+							InetAddress.getByName(new String(data, staEnd + 1, ipEnd - staEnd - 1, "US-ASCII")), lvap);
+					lvap.setAgent(OdinAgent.this);
+					clients.add(oc);
+
+				} catch (UnsupportedEncodingException e) {
+					e.printStackTrace();
+				} catch (UnknownHostException e) {
+					e.printStackTrace();
+				}
+
+				rowStart = rowEnd + 1;
 			}
 
-			ret.put(eth, Collections.unmodifiableMap(innerMap));
+			return clients;
 		}
-
-		return Collections.unmodifiableMap(ret);
 	}
 
 
@@ -285,16 +370,10 @@ class OdinAgent implements IOdinAgent {
 		}*/
 
 		try {
-			odinAgentSocket = new Socket(host.getHostAddress(), ODIN_AGENT_PORT);
-			outBuf = new PrintWriter(odinAgentSocket.getOutputStream(), true);
-			inBuf = new BufferedReader(new InputStreamReader(odinAgentSocket
-					.getInputStream()));
+			agentChannel = OdinAgentChannel.connect(host, ODIN_AGENT_PORT, OdinAgentChannelSelector.getInstance());
 			ipAddress = host;
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
-			return -1;
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error("Unable to connect to the control socket of agent " + host, e);
 			return -1;
 		}
 
@@ -328,9 +407,22 @@ class OdinAgent implements IOdinAgent {
 	 * @param staHwAddr The STA's ethernet address
 	 */
 	public void removeClientLvap(OdinClient oc) {
-		invokeWriteHandler(WRITE_HANDLER_REMOVE_VAP, oc.getMacAddress()
-				.toString());
+		logOnFailure(removeClientLvapAsync(oc), WRITE_HANDLER_REMOVE_VAP);
+	}
+
+
+	/**
+	 * Asynchronous variant of removeClientLvap()
+	 *
+	 * @param oc OdinClient entity
+	 * @return future that completes once the agent has removed the LVAP
+	 */
+	public OdinAgentFuture<Void> removeClientLvapAsync(OdinClient oc) {
+		OdinAgentFuture<Void> future = (protocolVersion > 0)
+				? invokeWriteHandler(WRITE_HANDLER_REMOVE_VAP, OdinBinaryProtocol.encodeRemoveLvap(oc.getMacAddress()))
+				: invokeWriteHandler(WRITE_HANDLER_REMOVE_VAP, oc.getMacAddress().toString());
 		clientList.remove(oc);
+		return future;
 	}
 
 
@@ -340,18 +432,24 @@ class OdinAgent implements IOdinAgent {
 	 * @param oc OdinClient entity
 	 */
 	public void addClientLvap(OdinClient oc) {
-		assert (oc.getLvap() != null);
+		logOnFailure(addClientLvapAsync(oc), WRITE_HANDLER_ADD_VAP);
+	}
 
-		String ssidList = "";
 
-		for (String ssid: oc.getLvap().getSsids()) {
-			ssidList += " " + ssid;
-		}
+	/**
+	 * Asynchronous variant of addClientLvap()
+	 *
+	 * @param oc OdinClient entity
+	 * @return future that completes once the agent has spawned the LVAP
+	 */
+	public OdinAgentFuture<Void> addClientLvapAsync(OdinClient oc) {
+		assert (oc.getLvap() != null);
 
-		invokeWriteHandler(WRITE_HANDLER_ADD_VAP, oc.getMacAddress().toString()
-				+ " " + oc.getIpAddress().getHostAddress() + " "
-				+ oc.getLvap().getBssid().toString() + ssidList);
+		OdinAgentFuture<Void> future = (protocolVersion > 0)
+				? invokeWriteHandler(WRITE_HANDLER_ADD_VAP, OdinBinaryProtocol.encodeLvap(oc))
+				: invokeWriteHandler(WRITE_HANDLER_ADD_VAP, getLvapHandlerText(oc));
 		clientList.add(oc);
+		return future;
 	}
 
 
@@ -361,17 +459,69 @@ class OdinAgent implements IOdinAgent {
 	 * @param oc OdinClient entity
 	 */
 	public void updateClientLvap(OdinClient oc) {
+		logOnFailure(updateClientLvapAsync(oc), WRITE_HANDLER_SET_VAP);
+	}
+
+
+	/**
+	 * Asynchronous variant of updateClientLvap()
+	 *
+	 * @param oc OdinClient entity
+	 * @return future that completes once the agent has updated the LVAP
+	 */
+	public OdinAgentFuture<Void> updateClientLvapAsync(OdinClient oc) {
 		assert (oc.getLvap() != null);
 
-		String ssidList = "";
+		if (protocolVersion > 0)
+			return invokeWriteHandler(WRITE_HANDLER_SET_VAP, OdinBinaryProtocol.encodeLvap(oc));
+
+		return invokeWriteHandler(WRITE_HANDLER_SET_VAP, getLvapHandlerText(oc));
+	}
 
-		for (String ssid: oc.getLvap().getSsids()) {
-			ssidList += " " + ssid;
-		}
 
-		invokeWriteHandler(WRITE_HANDLER_SET_VAP, oc.getMacAddress().toString()
-				+ " " + oc.getIpAddress().getHostAddress() + " "
-				+ oc.getLvap().getBssid().toString() + ssidList);
+	/**
+	 * Stage a dormant LVAP, which a later add_vap activates. Takes
+	 * the same arguments as add_vap.
+	 *
+	 * @param oc OdinClient entity
+	 * @return future that completes once the agent has staged the LVAP
+	 */
+	public OdinAgentFuture<Void> prestageClientLvapAsync(OdinClient oc) {
+		assert (oc.getLvap() != null);
+
+		if (protocolVersion > 0)
+			return invokeWriteHandler(WRITE_HANDLER_PRESTAGE_VAP, OdinBinaryProtocol.encodeLvap(oc));
+
+		return invokeWriteHandler(WRITE_HANDLER_PRESTAGE_VAP, getLvapHandlerText(oc));
+	}
+
+
+	/**
+	 * Drop a dormant LVAP. Takes the same arguments as remove_vap.
+	 *
+	 * @param oc OdinClient entity
+	 * @return future that completes once the agent has dropped the LVAP
+	 */
+	public OdinAgentFuture<Void> unstageClientLvapAsync(OdinClient oc) {
+		if (protocolVersion > 0)
+			return invokeWriteHandler(WRITE_HANDLER_UNSTAGE_VAP, OdinBinaryProtocol.encodeRemoveLvap(oc.getMacAddress()));
+
+		return invokeWriteHandler(WRITE_HANDLER_UNSTAGE_VAP, oc.getMacAddress().toString());
+	}
+
+
+	/**
+	 * Start or stop the agent's spectral scan. Takes whether the
+	 * scan should run, the master's port and the scan period,
+	 * separated by spaces.
+	 *
+	 * @param enabled whether the scan should run
+	 * @param port the master's spectral scan port
+	 * @param period milliseconds between the agent's scan rounds
+	 * @return future that completes once the agent has acknowledged the request
+	 */
+	public OdinAgentFuture<Void> setSpectralScanAsync(boolean enabled, int port, int period) {
+		return invokeWriteHandler(WRITE_HANDLER_SPECTRAL_SCAN, (enabled ? 1 : 0) + " " + port + " " + period);
 	}
 
 
@@ -382,44 +532,80 @@ class OdinAgent implements IOdinAgent {
 	 * @param t timestamp to update lastHeard value
 	 */
 	public void setSubscriptions(String subscriptionList) {
-		invokeWriteHandler(WRITE_HANDLER_SUBSCRIPTIONS, subscriptionList);
+		logOnFailure(setSubscriptionsAsync(subscriptionList), WRITE_HANDLER_SUBSCRIPTIONS);
 	}
 
 
 	/**
-	 * Internal method to invoke a read handler on the OdinAgent
+	 * Asynchronous variant of setSubscriptions()
 	 *
-	 * @param handlerName OdinAgent handler
-	 * @return read-handler string
+	 * @param subscriptionList
+	 * @return future that completes once the agent has installed the subscriptions
 	 */
-	private synchronized String invokeReadHandler(String handlerName) {
-		outBuf.println("READ " + ODIN_AGENT_ELEMENT + "." + handlerName);
+	public OdinAgentFuture<Void> setSubscriptionsAsync(String subscriptionList) {
+		return invokeWriteHandler(WRITE_HANDLER_SUBSCRIPTIONS, subscriptionList);
+	}
 
-		String line = "";
 
-		try {
-			String data = null;
+	/**
+	 * Argument string shared by the add_vap and set_vap handlers:
+	 * <sta_mac> <ipv4addr> <lvap bssid> <lvap ssid list>
+	 *
+	 * @param oc OdinClient entity
+	 * @return handler text
+	 */
+	private String getLvapHandlerText(OdinClient oc) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(oc.getMacAddress());
+		sb.append(" ");
+		sb.append(oc.getIpAddress().getHostAddress());
+		sb.append(" ");
+		sb.append(oc.getLvap().getBssid());
 
-			while ((data = inBuf.readLine()).contains("DATA") == false) {
-				// skip all the crap that the Click control
-				// socket tells us
-			}
+		for (String ssid: oc.getLvap().getSsids()) {
+			sb.append(" ");
+			sb.append(ssid);
+		}
 
-			int numBytes = Integer.parseInt(data.split(" ")[1]);
+		return sb.toString();
+	}
 
-			while (numBytes != 0) {
-				numBytes--;
-				char[] buf = new char[1];
-				inBuf.read(buf);
-				line = line + new String(buf);
-			}
 
-			return line;
-		} catch (IOException e) {
-			e.printStackTrace();
+	/**
+	 * Internal method to invoke a read handler on the OdinAgent
+	 *
+	 * @param handlerName OdinAgent handler
+	 * @param parser parses the read-handler output
+	 * @return future that completes with the parsed read-handler output
+	 */
+	private <V> OdinAgentFuture<V> invokeReadHandler(String handlerName, ClickReplyParser<V> parser) {
+		if (agentChannel == null) {
+			return OdinAgentFuture.failed(new IOException("Agent " + ipAddress + " is not connected"));
 		}
 
-		return null;
+		return agentChannel.invokeReadHandler(ODIN_AGENT_ELEMENT + "." + handlerName, parser);
+	}
+
+
+	/**
+	 * Hold back the commands issued to the agent until the
+	 * matching endCommandBatch(), and then send them together
+	 * in a single pipelined write.
+	 */
+	public void beginCommandBatch() {
+		if (agentChannel != null) {
+			agentChannel.beginBatch();
+		}
+	}
+
+
+	/**
+	 * Close a batch opened by beginCommandBatch()
+	 */
+	public void endCommandBatch() {
+		if (agentChannel != null) {
+			agentChannel.endBatch();
+		}
 	}
 
 
@@ -428,18 +614,90 @@ class OdinAgent implements IOdinAgent {
 	 *
 	 * @param handlerName OdinAgent write handler name
 	 * @param handlerText Write string
+	 * @return future that completes once the agent has acknowledged the write
 	 */
-	private synchronized void invokeWriteHandler(String handlerName,
+	private OdinAgentFuture<Void> invokeWriteHandler(String handlerName,
 			String handlerText) {
-		outBuf.println("WRITE " + ODIN_AGENT_ELEMENT + "." + handlerName + " "
-				+ handlerText);
-		//log.info("WRITE " + ODIN_AGENT_ELEMENT + "." + handlerName + " "
-		//		+ handlerText);
+		if (agentChannel == null) {
+			return OdinAgentFuture.failed(new IOException("Agent " + ipAddress + " is not connected"));
+		}
+
+		return agentChannel.invokeWriteHandler(ODIN_AGENT_ELEMENT + "." + handlerName, handlerText);
+	}
+
+
+	/**
+	 * Internal method to invoke a write handler of the OdinAgent
+	 * with binary data
+	 *
+	 * @param handlerName OdinAgent write handler name
+	 * @param data handler data
+	 * @return future that completes once the agent has acknowledged the write
+	 */
+	private OdinAgentFuture<Void> invokeWriteHandler(String handlerName, byte[] data) {
+		if (agentChannel == null) {
+			return OdinAgentFuture.failed(new IOException("Agent " + ipAddress + " is not connected"));
+		}
+
+		return agentChannel.invokeWriteHandler(ODIN_AGENT_ELEMENT + "." + handlerName, data);
+	}
+
+
+	/**
+	 * Wait for the result of a read handler on behalf of
+	 * the synchronous methods of this class.
+	 *
+	 * @param future future returned by an asynchronous read
+	 * @param handlerName handler, for logging purposes
+	 * @return the result, or null if the read failed or timed out
+	 */
+	private <V> V awaitRead(OdinAgentFuture<V> future, String handlerName) {
+		try {
+			return future.get(READ_HANDLER_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			log.error("Read handler " + handlerName + " failed on agent " + ipAddress, e);
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * The synchronous write methods of this class don't wait
+	 * for the agent to acknowledge them, so report failures here.
+	 *
+	 * @param future future returned by an asynchronous write
+	 * @param handlerName handler, for logging purposes
+	 */
+	private void logOnFailure(OdinAgentFuture<Void> future, final String handlerName) {
+		future.addListener(new OdinAgentFutureListener<Void>() {
+			@Override
+			public void operationComplete(OdinAgentFuture<Void> future) {
+				if (!future.isSuccess()) {
+					log.error("Write handler " + handlerName + " failed on agent " + ipAddress, future.getCause());
+				}
+			}
+		});
 	}
 
 
 	@Override
 	public void sendProbeResponse(MACAddress clientHwAddr, MACAddress bssid, Set<String> ssidList) {
+		logOnFailure(sendProbeResponseAsync(clientHwAddr, bssid, ssidList), WRITE_HANDLER_SEND_PROBE_RESPONSE);
+	}
+
+
+	/**
+	 * Asynchronous variant of sendProbeResponse()
+	 *
+	 * @return future that completes once the agent has acknowledged the request
+	 */
+	public OdinAgentFuture<Void> sendProbeResponseAsync(MACAddress clientHwAddr, MACAddress bssid, Set<String> ssidList) {
+		if (protocolVersion > 0) {
+			return invokeWriteHandler(WRITE_HANDLER_SEND_PROBE_RESPONSE,
+					OdinBinaryProtocol.encodeProbeResponse(clientHwAddr, bssid, ssidList));
+		}
+
 		StringBuilder sb = new StringBuilder();
 		sb.append(clientHwAddr);
 		sb.append(" ");
@@ -450,6 +708,6 @@ class OdinAgent implements IOdinAgent {
 			sb.append(ssid);
 		}
 
-		invokeWriteHandler(WRITE_HANDLER_SEND_PROBE_RESPONSE, sb.toString());
+		return invokeWriteHandler(WRITE_HANDLER_SEND_PROBE_RESPONSE, sb.toString());
 	}
 }
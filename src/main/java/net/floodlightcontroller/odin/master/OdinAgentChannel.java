@@ -0,0 +1,355 @@
+package net.floodlightcontroller.odin.master;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking connection to the Click control socket of an OdinAgent.
+ *
+ * Commands are pipelined: they are appended to an outbound queue and
+ * flushed by the shared OdinAgentChannelSelector, possibly several in
+ * a single write. The control socket answers commands strictly in the
+ * order they were issued, so replies are matched against a FIFO of
+ * pending commands. Replies are framed by a ClickControlFrameReader and
+ * read handler data is parsed straight out of its buffer.
+ */
+class OdinAgentChannel implements ClickControlFrameReader.FrameHandler {
+	protected static Logger log = LoggerFactory.getLogger(OdinAgentChannel.class);
+
+	private static final int CONNECT_TIMEOUT = 5000; // milliseconds
+	private static final String CHARSET = "US-ASCII";
+
+	private final InetAddress agentAddr;
+	private final SocketChannel socketChannel;
+	private final OdinAgentChannelSelector selector;
+
+	// Guarded by this
+	private final Queue<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+	private final Queue<PendingCommand<?>> pending = new ArrayDeque<PendingCommand<?>>();
+	private boolean writeRequested = false;
+	private boolean closed = false;
+	private int batchDepth = 0;
+
+	// Only touched by the selector thread
+	private final ClickControlFrameReader frameReader = new ClickControlFrameReader();
+
+
+	private OdinAgentChannel (InetAddress agentAddr, SocketChannel socketChannel, OdinAgentChannelSelector selector) {
+		this.agentAddr = agentAddr;
+		this.socketChannel = socketChannel;
+		this.selector = selector;
+	}
+
+
+	/**
+	 * Connect to an agent's control socket and hand the connection
+	 * over to the selector.
+	 *
+	 * @param host agent address
+	 * @param port control socket port
+	 * @param selector selector that will serve the connection
+	 * @return the connected channel
+	 * @throws IOException if the agent could not be reached
+	 */
+	static OdinAgentChannel connect (InetAddress host, int port, OdinAgentChannelSelector selector) throws IOException {
+		SocketChannel sc = SocketChannel.open();
+
+		try {
+			sc.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			sc.socket().setTcpNoDelay(true);
+			sc.configureBlocking(false);
+		} catch (IOException e) {
+			sc.close();
+			throw e;
+		}
+
+		OdinAgentChannel channel = new OdinAgentChannel(host, sc, selector);
+		selector.register(channel);
+
+		return channel;
+	}
+
+
+	InetAddress getAgentAddress() {
+		return agentAddr;
+	}
+
+
+	SocketChannel getSocketChannel() {
+		return socketChannel;
+	}
+
+
+	/**
+	 * Invoke a read handler on the agent
+	 *
+	 * @param handler fully qualified handler name, such as odinagent.rxstats
+	 * @param parser turns the handler's data into the result
+	 * @return future that completes with the parsed data
+	 */
+	<V> OdinAgentFuture<V> invokeReadHandler (String handler, ClickReplyParser<V> parser) {
+		OdinAgentFuture<V> future = new OdinAgentFuture<V>();
+		enqueue("READ " + handler + "\n", new PendingCommand<V>(handler, future, parser));
+		return future;
+	}
+
+
+	/**
+	 * Invoke a write handler on the agent
+	 *
+	 * @param handler fully qualified handler name, such as odinagent.add_vap
+	 * @param text argument string for the handler
+	 * @return future that completes once the agent has acknowledged the write
+	 */
+	OdinAgentFuture<Void> invokeWriteHandler (String handler, String text) {
+		OdinAgentFuture<Void> future = new OdinAgentFuture<Void>();
+		enqueue("WRITE " + handler + " " + text + "\n", new PendingCommand<Void>(handler, future, null));
+		return future;
+	}
+
+
+	/**
+	 * Invoke a write handler on the agent with binary data
+	 *
+	 * @param handler fully qualified handler name, such as odinagent.add_vap
+	 * @param data argument data for the handler
+	 * @return future that completes once the agent has acknowledged the write
+	 */
+	OdinAgentFuture<Void> invokeWriteHandler (String handler, byte[] data) {
+		OdinAgentFuture<Void> future = new OdinAgentFuture<Void>();
+		PendingCommand<Void> cmd = new PendingCommand<Void>(handler, future, null);
+		byte[] command;
+
+		try {
+			command = ("WRITEDATA " + handler + " " + data.length + "\n").getBytes(CHARSET);
+		} catch (IOException e) {
+			cmd.fail(e);
+			return future;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(command.length + data.length);
+		buf.put(command);
+		buf.put(data);
+		buf.flip();
+		enqueue(buf, cmd);
+		return future;
+	}
+
+
+	/**
+	 * Hold back commands issued from now on until the matching
+	 * endBatch(), so that they go out in as few writes as possible.
+	 * Batches may nest, and may be opened by several threads.
+	 */
+	synchronized void beginBatch () {
+		batchDepth++;
+	}
+
+
+	/**
+	 * Close a batch opened by beginBatch(). Once every batch is
+	 * closed, the commands issued meanwhile are flushed together.
+	 */
+	void endBatch () {
+		boolean wakeup;
+
+		synchronized (this) {
+			assert (batchDepth > 0);
+			batchDepth--;
+			wakeup = batchDepth == 0 && !closed && !writeRequested && !outbound.isEmpty();
+
+			if (wakeup)
+				writeRequested = true;
+		}
+
+		if (wakeup) {
+			selector.requestWrite(this);
+		}
+	}
+
+
+	/**
+	 * Tear down the connection, failing every command that
+	 * is still awaiting a reply.
+	 *
+	 * @param cause reason for closing the channel
+	 */
+	void close (IOException cause) {
+		PendingCommand<?>[] failed;
+
+		synchronized (this) {
+			if (closed)
+				return;
+
+			closed = true;
+			failed = pending.toArray(new PendingCommand<?>[pending.size()]);
+			pending.clear();
+			outbound.clear();
+		}
+
+		try {
+			socketChannel.close();
+		} catch (IOException e) {
+			// ignore
+		}
+
+		for (PendingCommand<?> cmd: failed) {
+			cmd.fail(cause);
+		}
+	}
+
+
+	/**
+	 * Called by the selector when the socket is writable. Flushes
+	 * as much of the outbound queue as the socket will take in a
+	 * single gathering write. Nothing is written while a batch is
+	 * open; endBatch() asks for another write once it is closed.
+	 *
+	 * @return true if there is nothing more to write for now
+	 * @throws IOException
+	 */
+	boolean handleWrite () throws IOException {
+		synchronized (this) {
+			if (outbound.isEmpty() || batchDepth > 0) {
+				writeRequested = false;
+				return true;
+			}
+
+			ByteBuffer[] bufs = outbound.toArray(new ByteBuffer[outbound.size()]);
+			socketChannel.write(bufs);
+
+			while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+				outbound.poll();
+			}
+
+			if (outbound.isEmpty()) {
+				writeRequested = false;
+				return true;
+			}
+
+			return false;
+		}
+	}
+
+
+	/**
+	 * Called by the selector when the socket is readable. Reads
+	 * whatever is available and completes every pending command
+	 * whose reply has fully arrived.
+	 *
+	 * @throws IOException
+	 */
+	void handleRead () throws IOException {
+		frameReader.read(socketChannel, this);
+	}
+
+
+	@Override
+	public boolean expectsData () {
+		PendingCommand<?> cmd = peekPending();
+		return cmd != null && cmd.parser != null;
+	}
+
+
+	@Override
+	public void onStatus (boolean success, String statusLine) {
+		PendingCommand<?> cmd = pollPending();
+
+		if (cmd == null) {
+			log.warn("Unsolicited reply from agent " + agentAddr + ": " + statusLine);
+			return;
+		}
+
+		if (success) {
+			cmd.future.setResult(null);
+		}
+		else {
+			cmd.fail(new OdinAgentHandlerException(cmd.handler, agentAddr, statusLine));
+		}
+	}
+
+
+	@Override
+	public void onData (byte[] data, int offset, int length) {
+		PendingCommand<?> cmd = pollPending();
+
+		if (cmd != null) {
+			cmd.complete(data, offset, length);
+		}
+	}
+
+
+	private void enqueue (String command, PendingCommand<?> cmd) {
+		try {
+			enqueue(ByteBuffer.wrap(command.getBytes(CHARSET)), cmd);
+		} catch (IOException e) {
+			cmd.fail(e);
+		}
+	}
+
+
+	private void enqueue (ByteBuffer buf, PendingCommand<?> cmd) {
+		boolean wakeup;
+
+		synchronized (this) {
+			if (closed) {
+				cmd.fail(new IOException("Control socket to agent " + agentAddr + " is closed"));
+				return;
+			}
+
+			pending.add(cmd);
+			outbound.add(buf);
+			wakeup = !writeRequested && batchDepth == 0;
+
+			if (wakeup)
+				writeRequested = true;
+		}
+
+		if (wakeup) {
+			selector.requestWrite(this);
+		}
+	}
+
+
+	private synchronized PendingCommand<?> peekPending () {
+		return pending.peek();
+	}
+
+
+	private synchronized PendingCommand<?> pollPending () {
+		return pending.poll();
+	}
+
+
+	private static class PendingCommand<V> {
+		final String handler;
+		final OdinAgentFuture<V> future;
+		final ClickReplyParser<V> parser; // null for write handlers
+
+		PendingCommand (String handler, OdinAgentFuture<V> future, ClickReplyParser<V> parser) {
+			this.handler = handler;
+			this.future = future;
+			this.parser = parser;
+		}
+
+		void complete (byte[] data, int offset, int length) {
+			try {
+				future.setResult(parser.parse(data, offset, length));
+			} catch (RuntimeException e) {
+				future.setFailure(e);
+			}
+		}
+
+		void fail (Throwable cause) {
+			future.setFailure(cause);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package net.floodlightcontroller.odin.master;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single selector thread that drives the control socket connections
+ * of every OdinAgent. Agents never block a thread while waiting for
+ * a reply: commands are queued on the agent's channel, written out
+ * by this thread, and the replies complete the matching futures.
+ */
+class OdinAgentChannelSelector implements Runnable {
+	protected static Logger log = LoggerFactory.getLogger(OdinAgentChannelSelector.class);
+
+	private static OdinAgentChannelSelector instance = null;
+
+	private final Selector selector;
+	private final Queue<OdinAgentChannel> registrations = new ConcurrentLinkedQueue<OdinAgentChannel>();
+	private final Queue<OdinAgentChannel> writeRequests = new ConcurrentLinkedQueue<OdinAgentChannel>();
+
+
+	OdinAgentChannelSelector () throws IOException {
+		selector = Selector.open();
+	}
+
+
+	/**
+	 * Get the selector shared by all agents, starting it
+	 * if this is the first time it is being used.
+	 *
+	 * @return the shared selector
+	 * @throws IOException if the selector could not be opened
+	 */
+	static synchronized OdinAgentChannelSelector getInstance() throws IOException {
+		if (instance == null) {
+			instance = new OdinAgentChannelSelector();
+			Thread t = new Thread(instance, "OdinAgentChannelSelector");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		return instance;
+	}
+
+
+	/**
+	 * Start serving a connected agent channel
+	 *
+	 * @param channel
+	 */
+	void register(OdinAgentChannel channel) {
+		registrations.add(channel);
+		selector.wakeup();
+	}
+
+
+	/**
+	 * Ask the selector to flush the outbound queue of a channel
+	 *
+	 * @param channel
+	 */
+	void requestWrite(OdinAgentChannel channel) {
+		writeRequests.add(channel);
+		selector.wakeup();
+	}
+
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+
+				OdinAgentChannel channel;
+
+				while ((channel = registrations.poll()) != null) {
+					try {
+						channel.getSocketChannel().register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, channel);
+					} catch (ClosedChannelException e) {
+						channel.close(e);
+					}
+				}
+
+				while ((channel = writeRequests.poll()) != null) {
+					SelectionKey key = channel.getSocketChannel().keyFor(selector);
+
+					if (key != null && key.isValid()) {
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					}
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					handleKey(key);
+				}
+			} catch (IOException e) {
+				log.error("OdinAgentChannelSelector: select() failed", e);
+			}
+		}
+	}
+
+
+	private void handleKey(SelectionKey key) {
+		OdinAgentChannel channel = (OdinAgentChannel) key.attachment();
+
+		try {
+			if (key.isReadable()) {
+				channel.handleRead();
+			}
+
+			if (key.isValid() && key.isWritable()) {
+				if (channel.handleWrite()) {
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			}
+		} catch (CancelledKeyException e) {
+			channel.close(new IOException("Channel to agent " + channel.getAgentAddress() + " was closed"));
+		} catch (IOException e) {
+			log.error("Lost control socket connection to agent " + channel.getAgentAddress(), e);
+			channel.close(e);
+		}
+	}
+}
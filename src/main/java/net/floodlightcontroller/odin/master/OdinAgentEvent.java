@@ -0,0 +1,92 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+
+/**
+ * A message received from an agent, decoded into primitive fields.
+ *
+ * Events are slots of an OdinAgentEventRing: they are allocated once
+ * and overwritten in place for every message, so they must not be
+ * held on to once they have been dispatched.
+ */
+final class OdinAgentEvent {
+	// Odin message types
+	static final int TYPE_NONE = 0;
+	static final int TYPE_PING = 1;
+	static final int TYPE_PROBE = 2;
+	static final int TYPE_PUBLISH = 3;
+	static final int TYPE_DEAUTH = 4;
+	static final int TYPE_ASSOC = 5;
+	static final int TYPE_PUBLISH_BATCH = 6;
+
+	static final int MAX_SSID_LENGTH = 32; // as per 802.11
+	static final int MAX_PUBLISH_ENTRIES = 64;
+
+	int type = TYPE_NONE;
+	InetAddress agentAddr;
+	long clientHwAddress;
+
+	// Version of the binary protocol the message came in, or 0 for text
+	int version;
+
+	// Probes only
+	final byte[] ssid = new byte[MAX_SSID_LENGTH];
+	int ssidLength;
+
+	// Publishes and batches of publishes only
+	final long[] subscriptionIds = new long[MAX_PUBLISH_ENTRIES];
+	final long[] subscriptionValues = new long[MAX_PUBLISH_ENTRIES];
+	int publishCount;
+
+	// Batches only, the client each entry is about
+	final long[] publishHwAddresses = new long[MAX_PUBLISH_ENTRIES];
+
+
+	/**
+	 * Overwrite this event with the contents of another one
+	 *
+	 * @param other event to copy
+	 */
+	void copyFrom (OdinAgentEvent other) {
+		type = other.type;
+		agentAddr = other.agentAddr;
+		version = other.version;
+		clientHwAddress = other.clientHwAddress;
+		ssidLength = other.ssidLength;
+		publishCount = other.publishCount;
+
+		if (ssidLength > 0)
+			System.arraycopy(other.ssid, 0, ssid, 0, ssidLength);
+
+		if (publishCount > 0) {
+			System.arraycopy(other.subscriptionIds, 0, subscriptionIds, 0, publishCount);
+			System.arraycopy(other.subscriptionValues, 0, subscriptionValues, 0, publishCount);
+
+			if (type == TYPE_PUBLISH_BATCH)
+				System.arraycopy(other.publishHwAddresses, 0, publishHwAddresses, 0, publishCount);
+		}
+	}
+
+
+	/**
+	 * Pick one of n partitions for this event. Events about the same
+	 * client (or pings and batches from the same agent) always land
+	 * in the same partition, which keeps them in order.
+	 *
+	 * @param n number of partitions
+	 * @return partition index between 0 and n - 1
+	 */
+	int partition (int n) {
+		int h;
+
+		if (type == TYPE_PING || type == TYPE_PUBLISH_BATCH) {
+			h = agentAddr.hashCode();
+		}
+		else {
+			h = (int) (clientHwAddress ^ (clientHwAddress >>> 32));
+		}
+
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % n;
+	}
+}
@@ -0,0 +1,172 @@
+package net.floodlightcontroller.odin.master;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The events waiting for one worker, in a ring per priority lane.
+ * The worker always takes from the highest priority lane that has
+ * something in it, so associations and deauthentications go ahead
+ * of pings, pings ahead of publishes, and publishes ahead of probes.
+ * Under overload it is the lowest lanes that back up, and then drop.
+ *
+ * Like the rings, lanes have a single producer and a single consumer.
+ */
+class OdinAgentEventLanes {
+	static final int LANE_CONTROL = 0; // associations and deauthentications
+	static final int LANE_PING = 1;
+	static final int LANE_PUBLISH = 2; // publishes and batches of them
+	static final int LANE_PROBE = 3;
+	static final int NUM_LANES = 4;
+
+	private final OdinAgentEventRing[] lanes = new OdinAgentEventRing[NUM_LANES];
+	private volatile Thread waiter;
+	private volatile boolean closed = false;
+
+	// Consumer only
+	private int taken = -1;
+
+
+	/**
+	 * @param capacity number of slots of the publish lane. The probe
+	 * lane gets half as many, and the control and ping lanes, which
+	 * see far less traffic, a quarter.
+	 */
+	OdinAgentEventLanes (int capacity) {
+		lanes[LANE_CONTROL] = new OdinAgentEventRing(Math.max(1, capacity / 4));
+		lanes[LANE_PING] = new OdinAgentEventRing(Math.max(1, capacity / 4));
+		lanes[LANE_PUBLISH] = new OdinAgentEventRing(capacity);
+		lanes[LANE_PROBE] = new OdinAgentEventRing(Math.max(1, capacity / 2));
+	}
+
+
+	/**
+	 * @return the lane events of a type are queued in
+	 */
+	static int laneFor (int type) {
+		switch (type) {
+		case OdinAgentEvent.TYPE_ASSOC:
+		case OdinAgentEvent.TYPE_DEAUTH:
+			return LANE_CONTROL;
+		case OdinAgentEvent.TYPE_PING:
+			return LANE_PING;
+		case OdinAgentEvent.TYPE_PROBE:
+			return LANE_PROBE;
+		default:
+			return LANE_PUBLISH;
+		}
+	}
+
+
+	/**
+	 * Producer side: get the next free slot of a lane
+	 *
+	 * @return the slot, or null if the lane is full
+	 */
+	OdinAgentEvent claim (int lane) {
+		return lanes[lane].claim();
+	}
+
+
+	/**
+	 * Producer side: hand the slot claimed from a lane over
+	 */
+	void publish (int lane) {
+		lanes[lane].publish();
+
+		Thread w = waiter;
+		if (w != null)
+			LockSupport.unpark(w);
+	}
+
+
+	/**
+	 * Wake the consumer, and keep it from waiting from now on,
+	 * so that it can drain the lanes and stop
+	 */
+	void close () {
+		closed = true;
+
+		Thread w = waiter;
+		if (w != null)
+			LockSupport.unpark(w);
+	}
+
+
+	/**
+	 * Consumer side: wait for the next event, from the highest
+	 * priority lane that has one. Producers wake the consumer
+	 * up as they publish, so it waits without a timeout.
+	 *
+	 * @return the event, or null if the lanes are empty and
+	 *         have been closed, or the wait was interrupted
+	 */
+	OdinAgentEvent take () {
+		OdinAgentEvent event = poll();
+
+		if (event == null) {
+			waiter = Thread.currentThread();
+
+			// Re-check now that the producer can see us
+			event = poll();
+
+			if (event == null && !closed)
+				LockSupport.park(this);
+
+			waiter = null;
+
+			if (event == null)
+				event = poll();
+		}
+
+		return event;
+	}
+
+
+	private OdinAgentEvent poll () {
+		for (int lane = 0; lane < NUM_LANES; lane++) {
+			OdinAgentEvent event = lanes[lane].poll();
+
+			if (event != null) {
+				taken = lane;
+				return event;
+			}
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Consumer side: give the slot returned by take() back
+	 */
+	void release () {
+		lanes[taken].release();
+	}
+
+
+	/**
+	 * @return number of events waiting in a lane
+	 */
+	int size (int lane) {
+		return lanes[lane].size();
+	}
+
+
+	/**
+	 * @return number of events waiting in all lanes
+	 */
+	int size () {
+		int size = 0;
+
+		for (OdinAgentEventRing ring: lanes) {
+			size += ring.size();
+		}
+
+		return size;
+	}
+
+
+	int capacity (int lane) {
+		return lanes[lane].capacity();
+	}
+}
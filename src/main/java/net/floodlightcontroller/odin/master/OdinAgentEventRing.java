@@ -0,0 +1,135 @@
+package net.floodlightcontroller.odin.master;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer, single-consumer ring of preallocated
+ * OdinAgentEvents.
+ *
+ * The producer claims the next free slot, fills it in place and
+ * publishes it; the consumer takes slots in order and releases them
+ * once it is done. Nothing is allocated after construction.
+ */
+class OdinAgentEventRing {
+	private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final OdinAgentEvent[] slots;
+	private final int mask;
+
+	private final AtomicLong head = new AtomicLong(); // next slot to consume
+	private final AtomicLong tail = new AtomicLong(); // next slot to publish
+	private volatile Thread waiter;
+
+
+	/**
+	 * @param capacity number of slots, rounded up to a power of two
+	 */
+	OdinAgentEventRing (int capacity) {
+		int size = 1;
+
+		while (size < capacity) {
+			size <<= 1;
+		}
+
+		slots = new OdinAgentEvent[size];
+		mask = size - 1;
+
+		for (int i = 0; i < size; i++) {
+			slots[i] = new OdinAgentEvent();
+		}
+	}
+
+
+	/**
+	 * Producer side: get the next free slot. The slot must be
+	 * filled and then handed over with publish().
+	 *
+	 * @return the slot, or null if the ring is full
+	 */
+	OdinAgentEvent claim () {
+		long t = tail.get();
+
+		if (t - head.get() >= slots.length)
+			return null;
+
+		return slots[(int) t & mask];
+	}
+
+
+	/**
+	 * Producer side: make the slot returned by claim() visible
+	 * to the consumer.
+	 */
+	void publish () {
+		tail.set(tail.get() + 1);
+
+		Thread w = waiter;
+		if (w != null)
+			LockSupport.unpark(w);
+	}
+
+
+	/**
+	 * Consumer side: wait for the next event. The event stays
+	 * owned by the consumer until release() is called.
+	 *
+	 * @return the event, or null if none arrived in a short while
+	 */
+	OdinAgentEvent take () {
+		long h = head.get();
+
+		if (h == tail.get()) {
+			waiter = Thread.currentThread();
+
+			// Re-check now that the producer can see us
+			if (h == tail.get())
+				LockSupport.parkNanos(this, PARK_NANOS);
+
+			waiter = null;
+
+			if (h == tail.get())
+				return null;
+		}
+
+		return slots[(int) h & mask];
+	}
+
+
+	/**
+	 * Consumer side: like take(), but doesn't wait
+	 *
+	 * @return the next event, or null if there is none
+	 */
+	OdinAgentEvent poll () {
+		long h = head.get();
+
+		if (h == tail.get())
+			return null;
+
+		return slots[(int) h & mask];
+	}
+
+
+	/**
+	 * Consumer side: give the slot returned by take() back
+	 * to the producer.
+	 */
+	void release () {
+		head.set(head.get() + 1);
+	}
+
+
+	/**
+	 * @return number of events waiting to be consumed
+	 */
+	int size () {
+		return (int) (tail.get() - head.get());
+	}
+
+
+	int capacity () {
+		return slots.length;
+	}
+}
@@ -0,0 +1,286 @@
+package net.floodlightcontroller.odin.master;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Future used to retrieve the result of a command issued to an
+ * OdinAgent's control socket. The future is completed by the agent
+ * channel once the matching reply has been read, and listeners are
+ * notified on the thread that completes it (usually the selector thread),
+ * so they should not block.
+ */
+public class OdinAgentFuture<V> implements Future<V> {
+	protected static Logger log = LoggerFactory.getLogger(OdinAgentFuture.class);
+
+	private final CountDownLatch latch = new CountDownLatch(1);
+	private List<OdinAgentFutureListener<V>> listeners = new ArrayList<OdinAgentFutureListener<V>>();
+	private volatile V result;
+	private volatile Throwable cause;
+	private volatile boolean canceled;
+
+
+	/**
+	 * Get a future that has already completed successfully
+	 *
+	 * @param value result of the future
+	 * @return completed future
+	 */
+	public static <V> OdinAgentFuture<V> completed(V value) {
+		OdinAgentFuture<V> future = new OdinAgentFuture<V>();
+		future.setResult(value);
+		return future;
+	}
+
+
+	/**
+	 * Get a future that has already failed
+	 *
+	 * @param cause reason for the failure
+	 * @return failed future
+	 */
+	public static <V> OdinAgentFuture<V> failed(Throwable cause) {
+		OdinAgentFuture<V> future = new OdinAgentFuture<V>();
+		future.setFailure(cause);
+		return future;
+	}
+
+
+	/**
+	 * Get a future that completes once all of the given futures
+	 * have. It fails with the cause of the first of them to fail.
+	 *
+	 * @param futures futures to wait for
+	 * @return combined future
+	 */
+	public static OdinAgentFuture<Void> all(List<? extends OdinAgentFuture<?>> futures) {
+		final OdinAgentFuture<Void> ret = new OdinAgentFuture<Void>();
+		final AtomicInteger remaining = new AtomicInteger(futures.size());
+
+		if (futures.isEmpty()) {
+			ret.setResult(null);
+			return ret;
+		}
+
+		for (OdinAgentFuture<?> future: futures) {
+			addAllListener(future, ret, remaining);
+		}
+
+		return ret;
+	}
+
+
+	/**
+	 * Complete the future successfully. Has no effect if the
+	 * future has already completed.
+	 *
+	 * @param value result of the operation
+	 * @return true if this call completed the future
+	 */
+	public boolean setResult(V value) {
+		List<OdinAgentFutureListener<V>> toNotify;
+
+		synchronized (this) {
+			if (isDone())
+				return false;
+
+			result = value;
+			latch.countDown();
+			toNotify = listeners;
+			listeners = null;
+		}
+
+		notifyListeners(toNotify);
+		return true;
+	}
+
+
+	/**
+	 * Fail the future. Has no effect if the future has already
+	 * completed.
+	 *
+	 * @param t reason for the failure
+	 * @return true if this call completed the future
+	 */
+	public boolean setFailure(Throwable t) {
+		List<OdinAgentFutureListener<V>> toNotify;
+
+		synchronized (this) {
+			if (isDone())
+				return false;
+
+			cause = t;
+			latch.countDown();
+			toNotify = listeners;
+			listeners = null;
+		}
+
+		notifyListeners(toNotify);
+		return true;
+	}
+
+
+	/**
+	 * Register a listener to be invoked once the future completes.
+	 * If the future has already completed, the listener is invoked
+	 * immediately on the calling thread.
+	 *
+	 * @param listener
+	 */
+	public void addListener(OdinAgentFutureListener<V> listener) {
+		synchronized (this) {
+			if (!isDone()) {
+				listeners.add(listener);
+				return;
+			}
+		}
+
+		invokeListener(listener);
+	}
+
+
+	/**
+	 * @return true if the future completed without failure or cancellation
+	 */
+	public boolean isSuccess() {
+		return isDone() && cause == null && !canceled;
+	}
+
+
+	/**
+	 * @return the reason for failure, or null if the future hasn't failed
+	 */
+	public Throwable getCause() {
+		return cause;
+	}
+
+
+	/**
+	 * @return the result if the future has completed successfully, null otherwise
+	 */
+	public V getNow() {
+		return result;
+	}
+
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		List<OdinAgentFutureListener<V>> toNotify;
+
+		synchronized (this) {
+			if (isDone())
+				return false;
+
+			canceled = true;
+			latch.countDown();
+			toNotify = listeners;
+			listeners = null;
+		}
+
+		notifyListeners(toNotify);
+		return true;
+	}
+
+
+	@Override
+	public boolean isCancelled() {
+		return canceled;
+	}
+
+
+	@Override
+	public boolean isDone() {
+		return latch.getCount() == 0;
+	}
+
+
+	@Override
+	public V get() throws InterruptedException, ExecutionException {
+		latch.await();
+		return report();
+	}
+
+
+	@Override
+	public V get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!latch.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return report();
+	}
+
+
+	/**
+	 * Wait for the future to complete, without reporting the outcome
+	 *
+	 * @return true if the future completed within the timeout
+	 * @throws InterruptedException
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return latch.await(timeout, unit);
+	}
+
+
+	private V report() throws ExecutionException {
+		if (canceled)
+			throw new ExecutionException(new InterruptedException("Cancelled"));
+
+		if (cause != null)
+			throw new ExecutionException(cause);
+
+		return result;
+	}
+
+
+	private void notifyListeners(List<OdinAgentFutureListener<V>> toNotify) {
+		for (OdinAgentFutureListener<V> listener: toNotify) {
+			invokeListener(listener);
+		}
+	}
+
+
+	private void invokeListener(OdinAgentFutureListener<V> listener) {
+		try {
+			listener.operationComplete(this);
+		} catch (RuntimeException e) {
+			log.error("OdinAgentFuture listener threw an exception", e);
+		}
+	}
+
+
+	private static <T> void addAllListener(OdinAgentFuture<T> future, OdinAgentFuture<Void> combined, AtomicInteger remaining) {
+		future.addListener(new AllListener<T>(combined, remaining));
+	}
+
+
+	private static class AllListener<T> implements OdinAgentFutureListener<T> {
+		private final OdinAgentFuture<Void> combined;
+		private final AtomicInteger remaining;
+
+		AllListener (OdinAgentFuture<Void> combined, AtomicInteger remaining) {
+			this.combined = combined;
+			this.remaining = remaining;
+		}
+
+		@Override
+		public void operationComplete(OdinAgentFuture<T> future) {
+			if (!future.isSuccess()) {
+				combined.setFailure(future.getCause() != null ? future.getCause() : new CancellationException());
+			}
+			else if (remaining.decrementAndGet() == 0) {
+				combined.setResult(null);
+			}
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package net.floodlightcontroller.odin.master;
+
+public interface OdinAgentFutureListener<V> {
+
+	/**
+	 * Invoked once the future has completed, either successfully,
+	 * with a failure, or by being cancelled. Implementations
+	 * should not block, since this is usually called from the
+	 * agent channel's selector thread.
+	 *
+	 * @param future the completed future
+	 */
+	public void operationComplete(OdinAgentFuture<V> future);
+}
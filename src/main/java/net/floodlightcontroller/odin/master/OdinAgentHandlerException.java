@@ -0,0 +1,71 @@
+package net.floodlightcontroller.odin.master;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * An agent answered a handler call with an error status. Click's
+ * control socket puts a three digit code at the start of the status
+ * line, which tells an agent that doesn't have the handler apart
+ * from a handler that failed this time.
+ */
+class OdinAgentHandlerException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	// Click ControlSocket error codes
+	static final int NO_SUCH_ELEMENT = 510;
+	static final int NO_SUCH_HANDLER = 511;
+	static final int PERMISSION_DENIED = 530;
+
+	private final String handler;
+	private final int statusCode;
+
+
+	OdinAgentHandlerException (String handler, InetAddress agentAddr, String statusLine) {
+		super("Handler " + handler + " failed on agent " + agentAddr + ": " + statusLine);
+		this.handler = handler;
+		this.statusCode = parseStatusCode(statusLine);
+	}
+
+
+	String getHandler () {
+		return handler;
+	}
+
+
+	/**
+	 * @return the status code, or -1 if the status line had none
+	 */
+	int getStatusCode () {
+		return statusCode;
+	}
+
+
+	/**
+	 * @return true if the agent has no such handler, or won't let
+	 *         it be called, so calling it again won't help
+	 */
+	boolean isRejected () {
+		return statusCode == NO_SUCH_ELEMENT || statusCode == NO_SUCH_HANDLER
+				|| statusCode == PERMISSION_DENIED;
+	}
+
+
+	private static int parseStatusCode (String statusLine) {
+		if (statusLine == null || statusLine.length() < 3)
+			return -1;
+
+		int code = 0;
+
+		for (int i = 0; i < 3; i++) {
+			char c = statusLine.charAt(i);
+
+			if (c < '0' || c > '9')
+				return -1;
+
+			code = code * 10 + (c - '0');
+		}
+
+		return code;
+	}
+}
@@ -0,0 +1,318 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the datagrams agents send to the master, working on the
+ * received bytes in place. The messages are:
+ *
+ *   ping
+ *   probe <sta-mac> [ssid]
+ *   publish <sta-mac> <count> <id>:<value> ...
+ *   publish_batch <count> <sta-mac> <id>:<value> ...
+ *   deauthentication <sta-mac>
+ *   association <sta-mac>
+ *
+ * Message types are matched case-insensitively. The SSID of a probe
+ * is lower-cased, like the master has always done. A batch carries
+ * publishes about any number of clients, and doubles as a ping.
+ */
+final class OdinAgentMessageDecoder {
+	private static final byte[] MSG_PING = ascii("ping");
+	private static final byte[] MSG_PROBE = ascii("probe");
+	private static final byte[] MSG_PUBLISH = ascii("publish");
+	private static final byte[] MSG_PUBLISH_BATCH = ascii("publish_batch");
+	private static final byte[] MSG_DEAUTH = ascii("deauthentication");
+	private static final byte[] MSG_ASSOC = ascii("association");
+
+	private static final int MAC_ADDRESS_LENGTH = 17; // xx:xx:xx:xx:xx:xx
+
+	private OdinAgentMessageDecoder () {
+	}
+
+
+	/**
+	 * Decode a datagram into an event. The buffer's position
+	 * and limit are left untouched.
+	 *
+	 * @param buf holds the datagram between its position and limit
+	 * @param agentAddr sender of the datagram
+	 * @param event overwritten with the decoded message
+	 * @return false if the datagram isn't a well-formed message
+	 */
+	static boolean decode (ByteBuffer buf, InetAddress agentAddr, OdinAgentEvent event) {
+		int start = buf.position();
+		int end = buf.limit();
+
+		// Skip surrounding whitespace and padding
+		while (start < end && isBlank(buf.get(start)))
+			start++;
+		while (end > start && isBlank(buf.get(end - 1)))
+			end--;
+
+		int typeEnd = indexOf(buf, start, end, (byte) ' ');
+
+		event.type = OdinAgentEvent.TYPE_NONE;
+		event.agentAddr = agentAddr;
+		event.clientHwAddress = 0;
+		event.ssidLength = 0;
+		event.publishCount = 0;
+		event.version = 0;
+
+		if (matches(buf, start, typeEnd, MSG_PING)) {
+			event.type = OdinAgentEvent.TYPE_PING;
+			return true;
+		}
+
+		if (matches(buf, start, typeEnd, MSG_PUBLISH_BATCH)) {
+			if (!decodeBatch(buf, skipSpaces(buf, typeEnd, end), end, event))
+				return false;
+
+			event.type = OdinAgentEvent.TYPE_PUBLISH_BATCH;
+			return true;
+		}
+
+		int type;
+
+		if (matches(buf, start, typeEnd, MSG_PROBE))
+			type = OdinAgentEvent.TYPE_PROBE;
+		else if (matches(buf, start, typeEnd, MSG_PUBLISH))
+			type = OdinAgentEvent.TYPE_PUBLISH;
+		else if (matches(buf, start, typeEnd, MSG_DEAUTH))
+			type = OdinAgentEvent.TYPE_DEAUTH;
+		else if (matches(buf, start, typeEnd, MSG_ASSOC))
+			type = OdinAgentEvent.TYPE_ASSOC;
+		else
+			return false;
+
+		// Every other message carries the STA's MAC address
+		int macStart = skipSpaces(buf, typeEnd, end);
+		int macEnd = indexOf(buf, macStart, end, (byte) ' ');
+
+		if (macEnd - macStart != MAC_ADDRESS_LENGTH)
+			return false;
+
+		long mac = parseMacAddress(buf, macStart);
+
+		if (mac < 0)
+			return false;
+
+		event.clientHwAddress = mac;
+		int pos = skipSpaces(buf, macEnd, end);
+
+		if (type == OdinAgentEvent.TYPE_PROBE) {
+			// The rest of the message, if any, is the SSID being scanned for
+			int len = end - pos;
+
+			if (len > OdinAgentEvent.MAX_SSID_LENGTH)
+				return false;
+
+			for (int i = 0; i < len; i++) {
+				event.ssid[i] = toLowerCase(buf.get(pos + i));
+			}
+
+			event.ssidLength = len;
+		}
+		else if (type == OdinAgentEvent.TYPE_PUBLISH) {
+			int countEnd = indexOf(buf, pos, end, (byte) ' ');
+			long count = parseLong(buf, pos, countEnd);
+
+			if (count < 0 || count > OdinAgentEvent.MAX_PUBLISH_ENTRIES)
+				return false;
+
+			pos = countEnd;
+
+			for (int i = 0; i < count; i++) {
+				pos = parseEntry(buf, skipSpaces(buf, pos, end), end, event, i);
+
+				if (pos < 0)
+					return false;
+			}
+
+			event.publishCount = (int) count;
+		}
+
+		event.type = type;
+		return true;
+	}
+
+
+	/**
+	 * Decode the entries of a batch, each a client's MAC
+	 * address followed by an id:value pair
+	 */
+	private static boolean decodeBatch (ByteBuffer buf, int pos, int end, OdinAgentEvent event) {
+		int countEnd = indexOf(buf, pos, end, (byte) ' ');
+		long count = parseLong(buf, pos, countEnd);
+
+		if (count < 0 || count > OdinAgentEvent.MAX_PUBLISH_ENTRIES)
+			return false;
+
+		pos = countEnd;
+
+		for (int i = 0; i < count; i++) {
+			int macStart = skipSpaces(buf, pos, end);
+			int macEnd = indexOf(buf, macStart, end, (byte) ' ');
+
+			if (macEnd - macStart != MAC_ADDRESS_LENGTH)
+				return false;
+
+			long mac = parseMacAddress(buf, macStart);
+
+			if (mac < 0)
+				return false;
+
+			event.publishHwAddresses[i] = mac;
+			pos = parseEntry(buf, skipSpaces(buf, macEnd, end), end, event, i);
+
+			if (pos < 0)
+				return false;
+		}
+
+		event.publishCount = (int) count;
+		return true;
+	}
+
+
+	/**
+	 * Parse an id:value pair into the i-th entry of the event
+	 *
+	 * @return offset just past the pair, or -1 if malformed
+	 */
+	private static int parseEntry (ByteBuffer buf, int pos, int end, OdinAgentEvent event, int i) {
+		int entryEnd = indexOf(buf, pos, end, (byte) ' ');
+		int colon = indexOf(buf, pos, entryEnd, (byte) ':');
+
+		if (colon == entryEnd)
+			return -1;
+
+		long id = parseLong(buf, pos, colon);
+		long value = parseLong(buf, colon + 1, entryEnd);
+
+		if (id == Long.MIN_VALUE || value == Long.MIN_VALUE)
+			return -1;
+
+		event.subscriptionIds[i] = id;
+		event.subscriptionValues[i] = value;
+		return entryEnd;
+	}
+
+
+	private static boolean isBlank (byte b) {
+		// Same set of characters as String.trim()
+		return (b & 0xff) <= ' ';
+	}
+
+
+	private static byte toLowerCase (byte b) {
+		return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+	}
+
+
+	private static boolean matches (ByteBuffer buf, int from, int end, byte[] word) {
+		if (end - from != word.length)
+			return false;
+
+		for (int i = 0; i < word.length; i++) {
+			if (toLowerCase(buf.get(from + i)) != word[i])
+				return false;
+		}
+
+		return true;
+	}
+
+
+	private static int indexOf (ByteBuffer buf, int from, int end, byte value) {
+		for (int i = from; i < end; i++) {
+			if (buf.get(i) == value)
+				return i;
+		}
+
+		return end;
+	}
+
+
+	private static int skipSpaces (ByteBuffer buf, int from, int end) {
+		while (from < end && buf.get(from) == ' ')
+			from++;
+
+		return from;
+	}
+
+
+	/**
+	 * @return the MAC address in the lower 48 bits, or -1 if malformed
+	 */
+	private static long parseMacAddress (ByteBuffer buf, int from) {
+		long mac = 0;
+
+		for (int i = 0; i < 6; i++) {
+			int pos = from + i * 3;
+
+			if (i < 5 && buf.get(pos + 2) != ':')
+				return -1;
+
+			int hi = hexValue(buf.get(pos));
+			int lo = hexValue(buf.get(pos + 1));
+
+			if (hi < 0 || lo < 0)
+				return -1;
+
+			mac = (mac << 8) | (hi << 4) | lo;
+		}
+
+		return mac;
+	}
+
+
+	private static int hexValue (byte b) {
+		if (b >= '0' && b <= '9')
+			return b - '0';
+		if (b >= 'a' && b <= 'f')
+			return b - 'a' + 10;
+		if (b >= 'A' && b <= 'F')
+			return b - 'A' + 10;
+
+		return -1;
+	}
+
+
+	/**
+	 * @return the signed decimal number, or Long.MIN_VALUE if malformed
+	 */
+	private static long parseLong (ByteBuffer buf, int from, int end) {
+		if (from >= end)
+			return Long.MIN_VALUE;
+
+		boolean negative = buf.get(from) == '-';
+		int i = negative ? from + 1 : from;
+
+		if (i == end)
+			return Long.MIN_VALUE;
+
+		long value = 0;
+
+		for (; i < end; i++) {
+			int d = buf.get(i) - '0';
+
+			if (d < 0 || d > 9)
+				return Long.MIN_VALUE;
+
+			value = value * 10 + d;
+		}
+
+		return negative ? -value : value;
+	}
+
+
+	private static byte[] ascii (String s) {
+		byte[] b = new byte[s.length()];
+
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) s.charAt(i);
+		}
+
+		return b;
+	}
+}
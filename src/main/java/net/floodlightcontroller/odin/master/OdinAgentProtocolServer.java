@@ -1,143 +1,577 @@
 package net.floodlightcontroller.odin.master;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.util.MACAddress;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import net.floodlightcontroller.util.MACAddress;
 
+/**
+ * Receives the datagrams agents send to the master.
+ *
+ * A non-blocking DatagramChannel is drained of up to a batch of
+ * datagrams per wakeup, into a pool of direct buffers carved out of
+ * a single slab allocated up front. Each datagram is decoded in place
+ * into a primitive OdinAgentEvent which is copied into the lanes of one
+ * of the worker threads, chosen by client (or, for pings, by agent) so
+ * that the events of a kind about a given client are handled in order.
+ * Workers hand the events to OdinMaster.
+ *
+ * Agents may speak the text protocol or the binary one, datagram by
+ * datagram. A binary datagram may pack several events, and the binary
+ * pings of an agent tell the master it may use binary with it too.
+ * Either way, a batch of publishes about many clients is dispatched
+ * as a single event, on the worker of the agent that sent it.
+ *
+ * Each worker has a lane per priority: associations and
+ * deauthentications, then pings, then publishes, then probes, and
+ * always takes from the highest one with events in it. Probes and
+ * publishes must also get past token buckets, one per agent and,
+ * for probes, one per client, before they are queued. Handoffs and
+ * failure detection thus never wait behind a storm of probes or
+ * publishes, and probe responsiveness is what degrades first.
+ *
+ * When a lane is full the event is dropped and counted, and probes
+ * are shed as soon as the publishes of their worker back up: agents
+ * repeat pings, probes and publishes, so shedding load is preferable
+ * to falling further behind.
+ */
 class OdinAgentProtocolServer implements Runnable {
-    protected static Logger log = LoggerFactory.getLogger(OdinAgentProtocolServer.class);
+	protected static Logger log = LoggerFactory.getLogger(OdinAgentProtocolServer.class);
 
-	// Odin Message types
-	private final String ODIN_MSG_PING = "ping";
-	private final String ODIN_MSG_PROBE = "probe";
-	private final String ODIN_MSG_PUBLISH = "publish";
-    private final String ODIN_MSG_DEAUTH = "deauthentication";
-    private final String ODIN_MSG_ASSOC = "association";
+	static final int DEFAULT_NUM_WORKERS = 2;
+	static final int DEFAULT_QUEUE_CAPACITY = 4096; // publishes per worker
+	static final double DEFAULT_AGENT_RATE = 5000; // probes and publishes per second
+	static final double DEFAULT_AGENT_BURST = 10000;
+	static final double DEFAULT_CLIENT_PROBE_RATE = 10; // per second
+	static final double DEFAULT_CLIENT_PROBE_BURST = 50;
 
+	private static final long BUCKET_SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
 
-	private final int ODIN_SERVER_PORT;
+	private static final int MAX_DATAGRAM_SIZE = 2048;
+	private static final int MAX_DATAGRAMS_PER_WAKEUP = 64;
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final String[] LANE_NAMES = {"control", "ping", "publish", "probe"};
 
-	private DatagramSocket controllerSocket;
-	private final ExecutorService executor;
+	private final int ODIN_SERVER_PORT;
 	private final OdinMaster odinMaster;
+	private final OdinAgentEventLanes[] workers;
+
+	// Receive side, only touched by the thread running the server
+	private final ByteBuffer[] bufferPool = new ByteBuffer[MAX_DATAGRAMS_PER_WAKEUP];
+	private final InetAddress[] senders = new InetAddress[MAX_DATAGRAMS_PER_WAKEUP];
+	private final OdinAgentEvent scratch = new OdinAgentEvent();
+
+	// Admission control, only touched by the thread running the server
+	private final ConcurrentLongMap<TokenBucket> agentBuckets = new ConcurrentLongMap<TokenBucket>();
+	private final ConcurrentLongMap<TokenBucket> clientBuckets = new ConcurrentLongMap<TokenBucket>();
+	private long lastSweep = System.nanoTime();
+	private volatile double agentRate = DEFAULT_AGENT_RATE;
+	private volatile double agentBurst = DEFAULT_AGENT_BURST;
+	private volatile double clientProbeRate = DEFAULT_CLIENT_PROBE_RATE;
+	private volatile double clientProbeBurst = DEFAULT_CLIENT_PROBE_BURST;
+
+	private volatile DatagramChannel channel;
+	private volatile Selector selector;
+	private volatile boolean running = true;
+
+	// Counters
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong[] dropped = new AtomicLong[OdinAgentEventLanes.NUM_LANES];
+	private final AtomicLong shed = new AtomicLong();
+	private final AtomicLong agentLimited = new AtomicLong();
+	private final AtomicLong clientLimited = new AtomicLong();
+	private final AtomicLong parseErrors = new AtomicLong();
+	private final AtomicLong dispatchErrors = new AtomicLong();
+
+
+	public OdinAgentProtocolServer (OdinMaster om, int port) {
+		this(om, port, DEFAULT_NUM_WORKERS, DEFAULT_QUEUE_CAPACITY);
+	}
+
 
-	public OdinAgentProtocolServer (OdinMaster om, int port, ExecutorService executor) {
+	public OdinAgentProtocolServer (OdinMaster om, int port, int numWorkers, int queueCapacity) {
 		this.odinMaster = om;
 		this.ODIN_SERVER_PORT = port;
-		this.executor = executor;
+		this.workers = new OdinAgentEventLanes[numWorkers];
+
+		for (int i = 0; i < numWorkers; i++) {
+			workers[i] = new OdinAgentEventLanes(queueCapacity);
+		}
+
+		for (int i = 0; i < dropped.length; i++) {
+			dropped[i] = new AtomicLong();
+		}
+
+		ByteBuffer slab = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE * MAX_DATAGRAMS_PER_WAKEUP);
+
+		for (int i = 0; i < MAX_DATAGRAMS_PER_WAKEUP; i++) {
+			slab.limit((i + 1) * MAX_DATAGRAM_SIZE);
+			slab.position(i * MAX_DATAGRAM_SIZE);
+			bufferPool[i] = slab.slice();
+		}
 	}
 
+
 	@Override
 	public void run() {
 
 		try {
-			controllerSocket = new DatagramSocket(ODIN_SERVER_PORT);
+			selector = Selector.open();
+			channel = DatagramChannel.open();
+			channel.socket().bind(new InetSocketAddress(ODIN_SERVER_PORT));
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error("Unable to listen for agents on port " + ODIN_SERVER_PORT, e);
+			return;
 		}
 
-		while(true)	{
+		for (int i = 0; i < workers.length; i++) {
+			Thread t = new Thread(new EventDispatcher(workers[i]), "OdinAgentProtocolWorker-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
 
+		while (running) {
 			try {
-				final byte[] receiveData = new byte[1024]; // We can probably live with less
-				final DatagramPacket receivedPacket = new DatagramPacket(receiveData, receiveData.length);
-				controllerSocket.receive(receivedPacket);
+				selector.select();
+				selector.selectedKeys().clear();
+
+				int n;
+				do {
+					n = receiveBatch();
+					long now = System.nanoTime();
 
-				executor.execute(new OdinAgentConnectionHandler(receivedPacket));
+					for (int i = 0; i < n; i++) {
+						handleDatagram(senders[i], bufferPool[i], now);
+						senders[i] = null;
+					}
+
+					sweepBuckets(now);
+				} while (n == MAX_DATAGRAMS_PER_WAKEUP);
 			}
 			catch (IOException e) {
-				log.error("controllerSocket.accept() failed: " + ODIN_SERVER_PORT);
-				e.printStackTrace();
-				System.exit(-1);
+				if (running) {
+					log.error("Receiving from agents failed on port " + ODIN_SERVER_PORT, e);
+				}
+				break;
 			}
 		}
+
+		running = false;
+
+		try {
+			channel.close();
+			selector.close();
+		} catch (IOException e) {
+			// ignore
+		}
 	}
 
-	/** Protocol handlers **/
 
-	private void receivePing (final InetAddress odinAgentAddr) {
-		odinMaster.receivePing(odinAgentAddr);
+	/**
+	 * Stop receiving and let the workers wind down
+	 */
+	void shutdown () {
+		running = false;
+
+		Selector s = selector;
+		if (s != null)
+			s.wakeup();
+
+		for (OdinAgentEventLanes lanes: workers) {
+			lanes.close();
+		}
+	}
+
+
+	/**
+	 * @return number of datagrams received
+	 */
+	long getReceivedCount () {
+		return received.get();
+	}
+
+
+	/**
+	 * Set the token buckets probes and publishes must get past.
+	 * A rate of 0 lets everything through.
+	 *
+	 * @param agentRate probes and publishes per second from an agent
+	 * @param agentBurst probes and publishes an agent may send at once
+	 * @param clientProbeRate probes per second about a client
+	 * @param clientProbeBurst probes about a client that may come at once
+	 */
+	void setRateLimits (double agentRate, double agentBurst, double clientProbeRate, double clientProbeBurst) {
+		this.agentRate = agentRate;
+		this.agentBurst = agentBurst;
+		this.clientProbeRate = clientProbeRate;
+		this.clientProbeBurst = clientProbeBurst;
+	}
+
+
+	/**
+	 * @return number of events dropped because a worker was behind
+	 */
+	long getDroppedCount () {
+		long n = shed.get();
+
+		for (AtomicLong d: dropped) {
+			n += d.get();
+		}
+
+		return n;
+	}
+
+
+	/**
+	 * @return number of datagrams that weren't well-formed messages
+	 */
+	long getParseErrorCount () {
+		return parseErrors.get();
+	}
+
+
+	/**
+	 * @return number of events whose handling threw an exception
+	 */
+	long getDispatchErrorCount () {
+		return dispatchErrors.get();
+	}
+
+
+	/**
+	 * @return number of events waiting for a worker
+	 */
+	int getQueueDepth () {
+		int depth = 0;
+
+		for (OdinAgentEventLanes lanes: workers) {
+			depth += lanes.size();
+		}
+
+		return depth;
+	}
+
+
+	/**
+	 * Get the server's counters, with the events dropped and
+	 * waiting per lane
+	 *
+	 * @return counter name to value
+	 */
+	Map<String, Object> getStats () {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		stats.put("received", received.get());
+		stats.put("parseErrors", parseErrors.get());
+		stats.put("dispatchErrors", dispatchErrors.get());
+		stats.put("agentRateLimited", agentLimited.get());
+		stats.put("clientRateLimited", clientLimited.get());
+		stats.put("probesShed", shed.get());
+
+		for (int lane = 0; lane < OdinAgentEventLanes.NUM_LANES; lane++) {
+			int depth = 0;
+
+			for (OdinAgentEventLanes lanes: workers) {
+				depth += lanes.size(lane);
+			}
+
+			Map<String, Object> laneStats = new LinkedHashMap<String, Object>();
+			laneStats.put("queueDepth", depth);
+			laneStats.put("dropped", dropped[lane].get());
+			stats.put(LANE_NAMES[lane], laneStats);
+		}
+
+		return stats;
+	}
+
+
+	/**
+	 * Read as many pending datagrams as the buffer pool holds
+	 *
+	 * @return number of datagrams read
+	 * @throws IOException
+	 */
+	private int receiveBatch () throws IOException {
+		int n = 0;
+
+		while (n < MAX_DATAGRAMS_PER_WAKEUP) {
+			ByteBuffer buf = bufferPool[n];
+			buf.clear();
+
+			// The channel caches the sender address, so this
+			// only allocates when the sender changes
+			SocketAddress sender = channel.receive(buf);
+
+			if (sender == null)
+				break;
+
+			buf.flip();
+			senders[n] = ((InetSocketAddress) sender).getAddress();
+			n++;
+		}
+
+		received.addAndGet(n);
+		return n;
+	}
+
+
+	private void handleDatagram (InetAddress agentAddr, ByteBuffer buf, long now) {
+		if (OdinBinaryProtocol.isBinary(buf)) {
+			handleBinaryDatagram(agentAddr, buf, now);
+			return;
+		}
+
+		if (!OdinAgentMessageDecoder.decode(buf, agentAddr, scratch)) {
+			parseErrors.incrementAndGet();
+
+			if (log.isDebugEnabled()) {
+				log.debug("Malformed message from agent " + agentAddr);
+			}
+			return;
+		}
+
+		offer(scratch, now);
+	}
+
+
+	/**
+	 * A binary datagram may pack several events. Those before
+	 * a malformed one are still handled.
+	 */
+	private void handleBinaryDatagram (InetAddress agentAddr, ByteBuffer buf, long now) {
+		int pos = OdinBinaryProtocol.start(buf);
+
+		while (pos >= 0 && pos < buf.limit()) {
+			pos = OdinBinaryProtocol.decode(buf, pos, agentAddr, scratch);
+
+			if (pos >= 0)
+				offer(scratch, now);
+		}
+
+		if (pos < 0) {
+			parseErrors.incrementAndGet();
+
+			if (log.isDebugEnabled()) {
+				log.debug("Malformed binary message from agent " + agentAddr);
+			}
+		}
+	}
+
+
+	/**
+	 * Queue an event for its worker, if it gets past admission
+	 * control and there is room for it
+	 *
+	 * @param event decoded event, copied into the worker's lane
+	 * @param now System.nanoTime()
+	 * @return true if the event was queued
+	 */
+	boolean offer (OdinAgentEvent event, long now) {
+		int lane = OdinAgentEventLanes.laneFor(event.type);
+
+		if (!admit(event, lane, now))
+			return false;
+
+		OdinAgentEventLanes lanes = workers[event.partition(workers.length)];
+
+		// Probes are the first thing to go when the master falls behind
+		if (lane == OdinAgentEventLanes.LANE_PROBE
+				&& lanes.size(OdinAgentEventLanes.LANE_PUBLISH) > lanes.capacity(OdinAgentEventLanes.LANE_PUBLISH) / 2) {
+			shed.incrementAndGet();
+			return false;
+		}
+
+		OdinAgentEvent slot = lanes.claim(lane);
+
+		if (slot == null) {
+			dropped[lane].incrementAndGet();
+			return false;
+		}
+
+		slot.copyFrom(event);
+		lanes.publish(lane);
+		return true;
+	}
+
+
+	/**
+	 * Associations, deauthentications and pings are always let in.
+	 * Probes and publishes take a token from their agent's bucket,
+	 * and probes one from their client's bucket first.
+	 */
+	private boolean admit (OdinAgentEvent event, int lane, long now) {
+		if (lane < OdinAgentEventLanes.LANE_PUBLISH)
+			return true;
+
+		double rate = clientProbeRate;
+
+		if (lane == OdinAgentEventLanes.LANE_PROBE && rate > 0
+				&& !bucketFor(clientBuckets, event.clientHwAddress, rate, clientProbeBurst, now).tryAcquire(now)) {
+			clientLimited.incrementAndGet();
+			return false;
+		}
+
+		rate = agentRate;
+
+		if (rate > 0 && !bucketFor(agentBuckets, agentKey(event.agentAddr), rate, agentBurst, now).tryAcquire(now)) {
+			agentLimited.incrementAndGet();
+			return false;
+		}
+
+		return true;
+	}
+
+
+	private static TokenBucket bucketFor (ConcurrentLongMap<TokenBucket> buckets, long key, double rate, double burst, long now) {
+		TokenBucket bucket = buckets.get(key);
+
+		if (bucket == null) {
+			bucket = new TokenBucket(key, rate, burst, now);
+			buckets.put(key, bucket);
+		}
+
+		return bucket;
 	}
 
-	private void receiveProbe (final InetAddress odinAgentAddr, final MACAddress clientHwAddress, final String ssid) {
-		odinMaster.receiveProbe(odinAgentAddr, clientHwAddress, ssid);
+
+	/**
+	 * Agents are IPv4 hosts, whose addresses fit in a long
+	 */
+	private static long agentKey (InetAddress agentAddr) {
+		long key = 0;
+
+		for (byte b: agentAddr.getAddress()) {
+			key = (key << 8) ^ (key >>> 56) ^ (b & 0xff);
+		}
+
+		return key;
 	}
 
-	private void receivePublish (final MACAddress clientHwAddress, final InetAddress odinAgentAddr, final Map<Long, Long> subscriptionIds) {
-		odinMaster.receivePublish(clientHwAddress, odinAgentAddr, subscriptionIds);
+
+	/**
+	 * Forget the buckets that have filled up again, now and then.
+	 * A full bucket is no different from a new one.
+	 */
+	private void sweepBuckets (long now) {
+		if (now - lastSweep < BUCKET_SWEEP_INTERVAL)
+			return;
+
+		lastSweep = now;
+		sweepBuckets(agentBuckets, now);
+		sweepBuckets(clientBuckets, now);
 	}
 
-    private void receiveDeauth (final InetAddress odinAgentAddr, final MACAddress clientHwAddress) {
-        odinMaster.receiveDeauth(odinAgentAddr, clientHwAddress);
-    }
 
-    private void receiveAssoc (final InetAddress odinAgentAddr, final MACAddress clientHwAddress) {
-        odinMaster.receiveAssoc(odinAgentAddr, clientHwAddress);
-    }
+	private static void sweepBuckets (ConcurrentLongMap<TokenBucket> buckets, long now) {
+		for (TokenBucket bucket: buckets.values()) {
+			if (bucket.isFull(now))
+				buckets.remove(bucket.key);
+		}
+	}
 
-	private class OdinAgentConnectionHandler implements Runnable {
-		final DatagramPacket receivedPacket;
 
-		public OdinAgentConnectionHandler(final DatagramPacket dp) {
-			receivedPacket = dp;
+	/** Protocol handlers **/
+
+	private void dispatch (OdinAgentEvent event) {
+		switch (event.type) {
+		case OdinAgentEvent.TYPE_PING:
+			odinMaster.receivePing(event.agentAddr);
+			odinMaster.setAgentProtocolVersion(event.agentAddr, event.version);
+			break;
+
+		case OdinAgentEvent.TYPE_PROBE:
+			String ssid = "";
+
+			if (event.ssidLength > 0) {
+				// SSID is specified in the scan
+				ssid = new String(event.ssid, 0, event.ssidLength, ISO_8859_1);
+			}
+
+			odinMaster.receiveProbe(event.agentAddr, odinMaster.getClientHwAddress(event.clientHwAddress), ssid);
+			break;
+
+		case OdinAgentEvent.TYPE_PUBLISH:
+			Map<Long, Long> matchingIds = new HashMap<Long, Long>();
+
+			for (int i = 0; i < event.publishCount; i++) {
+				matchingIds.put(event.subscriptionIds[i], event.subscriptionValues[i]);
+			}
+
+			odinMaster.receivePublish(odinMaster.getClientHwAddress(event.clientHwAddress), event.agentAddr, matchingIds);
+			break;
+
+		case OdinAgentEvent.TYPE_PUBLISH_BATCH:
+			// A batch doubles as a ping, so that busy agents needn't send both
+			odinMaster.receivePing(event.agentAddr);
+			odinMaster.setAgentProtocolVersion(event.agentAddr, event.version);
+
+			MACAddress[] clientHwAddresses = new MACAddress[event.publishCount];
+
+			for (int i = 0; i < event.publishCount; i++) {
+				clientHwAddresses[i] = odinMaster.getClientHwAddress(event.publishHwAddresses[i]);
+			}
+
+			odinMaster.receivePublish(event.agentAddr, clientHwAddresses, event.subscriptionIds,
+					event.subscriptionValues, event.publishCount);
+			break;
+
+		case OdinAgentEvent.TYPE_DEAUTH:
+			odinMaster.receiveDeauth(event.agentAddr, odinMaster.getClientHwAddress(event.clientHwAddress));
+			break;
+
+		case OdinAgentEvent.TYPE_ASSOC:
+			odinMaster.receiveAssoc(event.agentAddr, odinMaster.getClientHwAddress(event.clientHwAddress));
+			break;
 		}
+	}
+
+
+	/**
+	 * Consumes the lanes of one worker and hands their events to the master
+	 */
+	private class EventDispatcher implements Runnable {
+		private final OdinAgentEventLanes lanes;
 
-		// Agent message handler
+		EventDispatcher (OdinAgentEventLanes lanes) {
+			this.lanes = lanes;
+		}
+
+		@Override
 		public void run() {
-			final String msg = new String(receivedPacket.getData()).trim().toLowerCase();
-			final String[] fields = msg.split(" ");
-			final String msg_type = fields[0];
-			final InetAddress odinAgentAddr = receivedPacket.getAddress();
-
-                if (msg_type.equals(ODIN_MSG_PING)) {
-            	       receivePing(odinAgentAddr);
-                }
-                else if (msg_type.equals(ODIN_MSG_PROBE)) {
-            	       // 2nd part of message should contain
-            	       // the STA's MAC address
-            	       final String staAddress = fields[1];
-            	       String ssid = "";
-
-            	       if (fields.length > 2) {
-            		             //SSID is specified in the scan
-            		             ssid = msg.substring(ODIN_MSG_PROBE.length() + staAddress.length() + 2);
-            	       }
-
-            	       receiveProbe(odinAgentAddr, MACAddress.valueOf(staAddress), ssid);
-                }
-                else if (msg_type.equals(ODIN_MSG_PUBLISH)) {
-            	       final String staAddress = fields[1];
-            	       final int count = Integer.parseInt(fields[2]);
-            	       final Map<Long, Long> matchingIds = new HashMap<Long,Long> ();
-
-                       for (int i = 0; i < count; i++) {
-            		             matchingIds.put(Long.parseLong(fields[3 + i].split(":")[0]),
-            				     Long.parseLong(fields[3 + i].split(":")[1]));
-            	       }
-
-            	       receivePublish(MACAddress.valueOf(staAddress), odinAgentAddr, matchingIds);
-
-                }else if(msg_type.equals(ODIN_MSG_DEAUTH)){
-
-                       final String staAddress = fields[1];
-                       receiveDeauth(odinAgentAddr, MACAddress.valueOf(staAddress));
-
-                }else if(msg_type.equals(ODIN_MSG_ASSOC)){
-
-                       final String staAddress = fields[1];
-                       receiveAssoc(odinAgentAddr, MACAddress.valueOf(staAddress));
-
-                }
-	     }
+			while (running || lanes.size() > 0) {
+				OdinAgentEvent event = lanes.take();
+
+				if (event == null)
+					continue;
+
+				try {
+					dispatch(event);
+				} catch (RuntimeException e) {
+					dispatchErrors.incrementAndGet();
+					log.error("Error handling message from agent " + event.agentAddr, e);
+				} finally {
+					event.agentAddr = null;
+					lanes.release();
+				}
+			}
+		}
 	}
 }
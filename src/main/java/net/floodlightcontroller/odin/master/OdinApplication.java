@@ -1,8 +1,11 @@
 package net.floodlightcontroller.odin.master;
 
 import java.net.InetAddress;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import net.floodlightcontroller.odin.master.IOdinMasterToApplicationInterface;
 import net.floodlightcontroller.odin.master.NotificationCallback;
@@ -12,8 +15,12 @@ import net.floodlightcontroller.util.MACAddress;
 
 
 /**
- * Base class for all Odin applications. They are
- * expected to run as a thread provided by the master. * 
+ * Base class for all Odin applications. The master calls run() once,
+ * on a thread of its own. Applications should register their periodic
+ * tasks (schedulePeriodic) and event callbacks (onEvent) from run()
+ * and return, rather than loop in it: those run on the application
+ * runtime, which accounts for the CPU time each application uses and
+ * holds back applications that use more than their share.
  * 
  * @author Lalith Suresh <suresh.lalith@gmail.com>
  *
@@ -22,6 +29,8 @@ public abstract class OdinApplication implements Runnable {
 
 	private IOdinMasterToApplicationInterface odinApplicationInterface;
 	private String pool;
+	private NotificationDispatcher notificationDispatcher;
+	private OdinApplicationRuntime.AppContext runtimeContext;
 	
 	
 	/**
@@ -41,6 +50,52 @@ public abstract class OdinApplication implements Runnable {
 	}
 	
 	
+	/**
+	 * @return the pool the application operates on
+	 */
+	final String getPool () {
+		return pool;
+	}
+	
+	
+	/**
+	 * Sets the dispatcher that delivers the application's
+	 * notifications. Without one, callbacks are invoked
+	 * directly by the master.
+	 * 
+	 * @param dispatcher
+	 */
+	final void setNotificationDispatcher (NotificationDispatcher dispatcher) {
+		this.notificationDispatcher = dispatcher;
+	}
+	
+	
+	/**
+	 * @return the dispatcher delivering the application's notifications, or null
+	 */
+	final NotificationDispatcher getNotificationDispatcher () {
+		return notificationDispatcher;
+	}
+	
+	
+	/**
+	 * Sets the runtime context the application's tasks run in
+	 * 
+	 * @param context
+	 */
+	final void setRuntimeContext (OdinApplicationRuntime.AppContext context) {
+		this.runtimeContext = context;
+	}
+	
+	
+	/**
+	 * @return the application's runtime context, or null
+	 */
+	final OdinApplicationRuntime.AppContext getRuntimeContext () {
+		return runtimeContext;
+	}
+	
+	
 	/**
 	 * Needed to wrap OdinApplications into a thread, and is
 	 * implemented by the specific application
@@ -48,6 +103,23 @@ public abstract class OdinApplication implements Runnable {
 	public abstract void run();
 
 	
+	/**
+	 * Run a task every period on the application runtime. A run that
+	 * comes due while the previous one is still pending is skipped.
+	 * 
+	 * @param task the task
+	 * @param period delay between the end of a run and the next one
+	 * @param unit unit of the period
+	 * @return future through which the task can be cancelled
+	 */
+	protected final ScheduledFuture<?> schedulePeriodic (Runnable task, long period, TimeUnit unit) {
+		if (runtimeContext == null)
+			throw new IllegalStateException("Application wasn't started by the master");
+		
+		return runtimeContext.schedulePeriodic(task, period, period, unit);
+	}
+
+	
 	/**
 	 * VAP-Handoff a client to a new AP. This operation is idempotent.
 	 * 
@@ -59,6 +131,19 @@ public abstract class OdinApplication implements Runnable {
 	}
 
 	
+	/**
+	 * VAP-Handoff several clients at once. Commands are grouped
+	 * per agent, so this is cheaper than one handoffClientToAp()
+	 * call per client.
+	 * 
+	 * @param handoffs new AP for each client, keyed by client HW address
+	 * @return future for each client, that fails if its handoff was refused
+	 */
+	protected final Map<MACAddress, OdinAgentFuture<Void>> handoffClientsToAps (Map<MACAddress, InetAddress> handoffs) {
+		return odinApplicationInterface.handoffClientsToAps(pool, handoffs);
+	}
+
+	
 	/**
 	 * Get the list of clients currently registered with Odin
 	 * 
@@ -77,6 +162,31 @@ public abstract class OdinApplication implements Runnable {
 	protected final OdinClient getClientFromHwAddress (MACAddress clientHwAddress) {
 		return odinApplicationInterface.getClientFromHwAddress(pool, clientHwAddress);
 	}
+
+	
+	/**
+	 * Get the agents that hear a client best, as kept up to date
+	 * by the master from signal publishes and rxstats
+	 * 
+	 * @param clientHwAddress MACAddress of the client
+	 * @param k maximum number of agents to return
+	 * @return up to k links, strongest smoothed signal first
+	 */
+	protected final List<HearingLink> getBestAgentsForClient (MACAddress clientHwAddress, int k) {
+		return odinApplicationInterface.getBestAgentsForClient(pool, clientHwAddress, k);
+	}
+	
+	
+	/**
+	 * Get the clients an agent hears, as kept up to date by
+	 * the master from signal publishes and rxstats
+	 * 
+	 * @param agentAddr InetAddress of the agent
+	 * @return a link for each client the agent heard recently
+	 */
+	protected final List<HearingLink> getClientsHeardByAgent (InetAddress agentAddr) {
+		return odinApplicationInterface.getClientsHeardByAgent(pool, agentAddr);
+	}
 	
 	
 	/**
@@ -90,6 +200,87 @@ public abstract class OdinApplication implements Runnable {
 		return odinApplicationInterface.getRxStatsFromAgent(pool, agentAddr);
 	}
 	
+	
+	/**
+	 * Get RxStats of the agent from the master's cache, reading them
+	 * from the agent only if the cached ones are older than maxStaleness.
+	 * Snapshots are shared between applications and must not be modified.
+	 * 
+	 * @param agentAddr InetAddress of the agent
+	 * @param maxStaleness maximum age of the stats, in milliseconds
+	 * 
+	 * @return stats of each client the agent can hear
+	 */
+	protected final RxStatsSnapshot getRxStats (InetAddress agentAddr, long maxStaleness) {
+		return odinApplicationInterface.getRxStats(pool, agentAddr, maxStaleness, false);
+	}
+	
+	
+	/**
+	 * Read RxStats from the agent now, and update the master's cache
+	 * 
+	 * @param agentAddr InetAddress of the agent
+	 * 
+	 * @return stats of each client the agent can hear
+	 */
+	protected final RxStatsSnapshot refreshRxStats (InetAddress agentAddr) {
+		return odinApplicationInterface.getRxStats(pool, agentAddr, 0, true);
+	}
+	
+	/**
+	 * Summarize the recent history of a metric of a client, as heard
+	 * by an agent: its minimum, maximum, mean and slope over the window,
+	 * and its moving average. The history is kept by the master and
+	 * shared by every application.
+	 * 
+	 * @param clientHwAddress MACAddress of the client
+	 * @param agentAddr InetAddress of the agent
+	 * @param metric the metric
+	 * @param window milliseconds to aggregate over, back from now
+	 * @return the summary, or null if there is no history
+	 */
+	protected final TimeSeriesSummary getClientHistory (MACAddress clientHwAddress, InetAddress agentAddr, ClientMetric metric, long window) {
+		return odinApplicationInterface.getClientHistory(pool, clientHwAddress, agentAddr, metric, window);
+	}
+	
+	
+	/**
+	 * Start the spectral scan of an agent, or change the period
+	 * of the one it is running
+	 * 
+	 * @param agentAddr InetAddress of the agent
+	 * @param period milliseconds between the agent's scan rounds
+	 * @return true if the scan was requested
+	 */
+	protected final boolean startSpectralScan (InetAddress agentAddr, int period) {
+		return odinApplicationInterface.startSpectralScan(pool, agentAddr, period);
+	}
+	
+	
+	/**
+	 * Stop the spectral scan of an agent
+	 * 
+	 * @param agentAddr InetAddress of the agent
+	 * @return true if the agent was scanning
+	 */
+	protected final boolean stopSpectralScan (InetAddress agentAddr) {
+		return odinApplicationInterface.stopSpectralScan(pool, agentAddr);
+	}
+	
+	
+	/**
+	 * Get the occupancy, duty cycle and peak power of each channel
+	 * the agent's spectral scan covered over the last window
+	 * 
+	 * @param agentAddr InetAddress of the agent
+	 * @param window milliseconds to aggregate over, back from now
+	 * @return one entry per channel, by frequency, or null if the agent isn't scanning
+	 */
+	protected final List<ChannelOccupancy> getChannelOccupancy (InetAddress agentAddr, long window) {
+		return odinApplicationInterface.getChannelOccupancy(pool, agentAddr, window);
+	}
+	
+	
 	/**
 	 * Get a list of Odin agents from the agent tracker
 	 * @return a map of OdinAgent objects keyed by Ipv4 addresses
@@ -106,10 +297,37 @@ public abstract class OdinApplication implements Runnable {
 	 * later, the onus is upon it to keep track of the subscription
 	 * id for removal later.
 	 * 
+	 * When the application has been started by the master, cb
+	 * runs on the application's own notification thread.
+	 * 
 	 * @param oes the susbcription
 	 * @param cb the callback
 	 */
 	protected final long registerSubscription (OdinEventSubscription oes, NotificationCallback cb){
+		// Have the callback run on the application's own
+		// dispatcher thread, if it has one
+		if (notificationDispatcher != null) {
+			cb = notificationDispatcher.wrap(cb);
+		}
+		
+		return odinApplicationInterface.registerSubscription(pool, oes, cb);
+	}
+	
+	
+	/**
+	 * Add a subscription, as registerSubscription() does, but have cb
+	 * run as a task of the application on the application runtime,
+	 * rather than on a notification thread of the application's own.
+	 * 
+	 * @param oes the susbcription
+	 * @param cb the callback
+	 * @return id of the subscription
+	 */
+	protected final long onEvent (OdinEventSubscription oes, NotificationCallback cb) {
+		if (runtimeContext != null) {
+			cb = runtimeContext.wrap(cb);
+		}
+		
 		return odinApplicationInterface.registerSubscription(pool, oes, cb);
 	}
 	
@@ -145,4 +363,30 @@ public abstract class OdinApplication implements Runnable {
 	protected final boolean removeNetwork (String ssid) {
 		return odinApplicationInterface.removeNetwork(pool, ssid);
 	}
+	
+	
+	/**
+	 * Add an SSID to the Odin network. The LVAPs of the pool's
+	 * clients are updated on their agents in the background.
+	 * 
+	 * @param networkName
+	 * @return report of the LVAP updates, whose future completes once
+	 *         every agent has answered, or null if the network couldn't be added
+	 */
+	protected final FanOutReport addNetworkAsync (String ssid) {
+		return odinApplicationInterface.addNetworkAsync(pool, ssid);
+	}
+	
+	
+	/**
+	 * Remove an SSID from the Odin network. The LVAPs of the pool's
+	 * clients are updated on their agents in the background.
+	 * 
+	 * @param networkName
+	 * @return report of the LVAP updates, whose future completes once
+	 *         every agent has answered, or null if the network couldn't be removed
+	 */
+	protected final FanOutReport removeNetworkAsync (String ssid) {
+		return odinApplicationInterface.removeNetworkAsync(pool, ssid);
+	}
 }
@@ -0,0 +1,494 @@
+package net.floodlightcontroller.odin.master;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs OdinApplications on threads of their own, rather than on the
+ * pool Floodlight modules share.
+ *
+ * Each application's run() is called once, on a thread of its own.
+ * Applications written against the runtime register their periodic
+ * tasks (schedulePeriodic) and event callbacks (onEvent) from it and
+ * return, and need no thread of their own from then on. Those tasks
+ * run on a small pool shared by the applications, each application's
+ * one at a time, so that an application can hold at most one of the
+ * pool's threads. Applications that loop in run() keep their thread,
+ * which the runtime accounts but can't throttle.
+ *
+ * Every task is accounted to its application, in CPU time (where the
+ * JVM measures it) and in wall time. An application may use a share
+ * of one CPU: once it has gone through its budget, its tasks are held
+ * back until the budget has refilled, and its queued events are
+ * dropped, oldest first, once its queue is full.
+ */
+class OdinApplicationRuntime {
+	protected static Logger log = LoggerFactory.getLogger(OdinApplicationRuntime.class);
+
+	static final int DEFAULT_THREADS = 2;
+	static final double DEFAULT_CPU_SHARE = 0.5; // of one CPU
+	static final long DEFAULT_BURST = 200; // milliseconds of CPU time
+	static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * Where the runtime reads the time from
+	 */
+	interface Clock {
+		/**
+		 * @return wall time, in nanoseconds from an arbitrary origin
+		 */
+		long nanoTime ();
+
+		/**
+		 * @return CPU time of the calling thread, in nanoseconds
+		 */
+		long threadCpuTime ();
+	}
+
+	private final ScheduledThreadPoolExecutor executor;
+	private final Clock clock;
+	private final double cpuShare;
+	private final long burstNanos;
+	private final int queueSize;
+	private final boolean cpuTimeSupported;
+
+
+	/**
+	 * @param threads threads shared by the applications' tasks
+	 * @param cpuShare share of one CPU each application may use
+	 * @param burst milliseconds of CPU time an application may
+	 *        use at once, after being idle
+	 * @param queueSize most tasks an application may have queued
+	 */
+	OdinApplicationRuntime (int threads, double cpuShare, long burst, int queueSize) {
+		this(threads, cpuShare, burst, queueSize, null);
+	}
+
+
+	/**
+	 * @param clock where to read the time from, or null for the JVM's
+	 */
+	OdinApplicationRuntime (int threads, double cpuShare, long burst, int queueSize, Clock clock) {
+		assert (cpuShare > 0);
+
+		this.cpuShare = cpuShare;
+		this.burstNanos = TimeUnit.MILLISECONDS.toNanos(burst);
+		this.queueSize = queueSize;
+		this.executor = new ScheduledThreadPoolExecutor(threads, new RuntimeThreadFactory("OdinAppRuntime-"));
+
+		boolean supported = false;
+
+		try {
+			supported = THREADS.isCurrentThreadCpuTimeSupported();
+
+			if (supported && !THREADS.isThreadCpuTimeEnabled())
+				THREADS.setThreadCpuTimeEnabled(true);
+		} catch (UnsupportedOperationException e) {
+			supported = false;
+		} catch (SecurityException e) {
+			supported = false;
+		}
+
+		this.cpuTimeSupported = supported;
+		this.clock = (clock != null) ? clock : new SystemClock(supported);
+	}
+
+
+	/**
+	 * Start an application: run() is called on a thread of its own
+	 *
+	 * @param app the application
+	 * @param name name of the application, for its threads
+	 * @return the application's context
+	 */
+	AppContext start (final OdinApplication app, String name) {
+		final AppContext context = new AppContext(name);
+		app.setRuntimeContext(context);
+
+		Thread main = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					app.run();
+				} catch (RuntimeException e) {
+					log.error("Application " + context.name + " threw an exception", e);
+				}
+			}
+		}, "OdinAppMain-" + name);
+
+		main.setDaemon(true);
+		main.setPriority(Thread.NORM_PRIORITY - 1);
+		context.mainThread = main;
+		main.start();
+
+		return context;
+	}
+
+
+	/**
+	 * Stop running tasks. Threads looping in run() are left alone.
+	 */
+	void shutdown () {
+		executor.shutdownNow();
+	}
+
+
+	private long threadCpuTime (Thread thread) {
+		if (!cpuTimeSupported || thread == null || !thread.isAlive())
+			return 0;
+
+		return Math.max(0, THREADS.getThreadCpuTime(thread.getId()));
+	}
+
+
+	/**
+	 * What the runtime keeps of an application: its task queue,
+	 * its CPU budget, and what it has used
+	 */
+	class AppContext {
+		private final String name;
+		private volatile Thread mainThread;
+		private volatile NotificationDispatcher dispatcher;
+
+		// Guarded by this
+		private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+		private boolean draining = false;
+		private double budget = burstNanos;
+		private long lastRefill = clock.nanoTime();
+
+		// Accounting, guarded by this
+		private long runs = 0;
+		private long failures = 0;
+		private long dropped = 0;
+		private long throttled = 0;
+		private long throttledNanos = 0;
+		private long cpuNanos = 0;
+		private long wallNanos = 0;
+		private long maxWallNanos = 0;
+
+		private final Runnable drain = new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+
+
+		AppContext (String name) {
+			this.name = name;
+		}
+
+
+		/**
+		 * Have the CPU time of the thread delivering the
+		 * application's notifications accounted to it
+		 */
+		void setNotificationDispatcher (NotificationDispatcher dispatcher) {
+			this.dispatcher = dispatcher;
+		}
+
+
+		/**
+		 * Run a task every period, once the previous run has completed.
+		 * A run that is due while the previous one is still queued
+		 * is skipped.
+		 *
+		 * @param task the task
+		 * @param initialDelay delay before the first run
+		 * @param period delay between runs
+		 * @param unit unit of the delays
+		 * @return future through which the task can be cancelled
+		 */
+		ScheduledFuture<?> schedulePeriodic (Runnable task, long initialDelay, long period, TimeUnit unit) {
+			final PeriodicRun run = new PeriodicRun(task);
+
+			return executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					if (run.pending.compareAndSet(false, true) && !submit(run))
+						run.pending.set(false);
+				}
+			}, initialDelay, period, unit);
+		}
+
+
+		/**
+		 * Wrap an application's callback so that it runs as one
+		 * of the application's tasks
+		 *
+		 * @param cb the application's callback
+		 * @return a callback that queues a task for cb
+		 */
+		NotificationCallback wrap (final NotificationCallback cb) {
+			if (cb instanceof BatchNotificationCallback) {
+				return new BatchNotificationCallback() {
+					@Override
+					public void exec(final OdinEventSubscription oes, final NotificationCallbackContext cntx) {
+						submit(new Runnable() {
+							@Override
+							public void run() {
+								cb.exec(oes, cntx);
+							}
+						});
+					}
+
+					@Override
+					public void execBatch(final OdinEventSubscription oes, final BatchNotificationCallbackContext cntx) {
+						submit(new Runnable() {
+							@Override
+							public void run() {
+								((BatchNotificationCallback) cb).execBatch(oes, cntx);
+							}
+						});
+					}
+				};
+			}
+
+			return new NotificationCallback() {
+				@Override
+				public void exec(final OdinEventSubscription oes, final NotificationCallbackContext cntx) {
+					submit(new Runnable() {
+						@Override
+						public void run() {
+							cb.exec(oes, cntx);
+						}
+					});
+				}
+			};
+		}
+
+
+		/**
+		 * Queue a task, dropping the oldest queued one if the queue is full
+		 *
+		 * @return false if the runtime has been shut down
+		 */
+		boolean submit (Runnable task) {
+			synchronized (this) {
+				if (executor.isShutdown())
+					return false;
+
+				if (queue.size() >= queueSize) {
+					Runnable oldest = queue.pollFirst();
+					dropped++;
+
+					// Let the next period queue it again
+					if (oldest instanceof PeriodicRun)
+						((PeriodicRun) oldest).pending.set(false);
+				}
+
+				queue.addLast(task);
+
+				if (draining)
+					return true;
+
+				draining = true;
+			}
+
+			executor.execute(drain);
+			return true;
+		}
+
+
+		/**
+		 * Run the next queued task, if the budget allows, and
+		 * hand the thread back to the pool before the next one
+		 * so that applications take turns
+		 */
+		private void drain () {
+			Runnable task;
+
+			synchronized (this) {
+				long now = clock.nanoTime();
+				budget = Math.min(burstNanos, budget + (now - lastRefill) * cpuShare);
+				lastRefill = now;
+
+				if (budget < 0) {
+					long delay = (long) (-budget / cpuShare) + 1;
+					throttled++;
+					throttledNanos += delay;
+					executor.schedule(drain, delay, TimeUnit.NANOSECONDS);
+					return;
+				}
+
+				task = queue.pollFirst();
+
+				if (task == null) {
+					draining = false;
+					return;
+				}
+			}
+
+			long cpuStart = clock.threadCpuTime();
+			long wallStart = clock.nanoTime();
+			boolean failed = false;
+
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				failed = true;
+				log.error("Task of application " + name + " threw an exception", e);
+			}
+
+			long wall = clock.nanoTime() - wallStart;
+			long cpu = clock.threadCpuTime() - cpuStart;
+
+			synchronized (this) {
+				runs++;
+				cpuNanos += cpu;
+				wallNanos += wall;
+				budget -= cpu;
+
+				if (failed)
+					failures++;
+
+				if (wall > maxWallNanos)
+					maxWallNanos = wall;
+
+				if (queue.isEmpty()) {
+					draining = false;
+					return;
+				}
+			}
+
+			executor.execute(drain);
+		}
+
+
+		/**
+		 * @return CPU time of the application's tasks, in nanoseconds
+		 */
+		synchronized long getTaskCpuNanos () {
+			return cpuNanos;
+		}
+
+
+		/**
+		 * @return number of times the application's tasks were held back
+		 */
+		synchronized long getThrottledCount () {
+			return throttled;
+		}
+
+
+		/**
+		 * @return number of tasks the application has run
+		 */
+		synchronized long getRunCount () {
+			return runs;
+		}
+
+
+		/**
+		 * Get what the application has used. Thread CPU times are
+		 * those of the threads still running.
+		 *
+		 * @return metric name to value
+		 */
+		Map<String, Object> getStats () {
+			Map<String, Object> stats = new LinkedHashMap<String, Object>();
+			NotificationDispatcher d = dispatcher;
+			Thread main = mainThread;
+
+			synchronized (this) {
+				stats.put("queueDepth", queue.size());
+				stats.put("runs", runs);
+				stats.put("failures", failures);
+				stats.put("dropped", dropped);
+				stats.put("throttled", throttled);
+				stats.put("throttledMillis", TimeUnit.NANOSECONDS.toMillis(throttledNanos));
+				stats.put("taskCpuMillis", TimeUnit.NANOSECONDS.toMillis(cpuNanos));
+				stats.put("taskWallMillis", TimeUnit.NANOSECONDS.toMillis(wallNanos));
+				stats.put("maxTaskWallMicros", TimeUnit.NANOSECONDS.toMicros(maxWallNanos));
+			}
+
+			stats.put("mainThreadAlive", main != null && main.isAlive());
+			stats.put("mainThreadCpuMillis", TimeUnit.NANOSECONDS.toMillis(threadCpuTime(main)));
+			stats.put("notificationCpuMillis", TimeUnit.NANOSECONDS.toMillis(d == null ? 0 : threadCpuTime(d.getThread())));
+			stats.put("cpuTimeSupported", cpuTimeSupported);
+
+			return stats;
+		}
+	}
+
+
+	/**
+	 * A run of a periodic task, which is only queued
+	 * once the previous one has completed
+	 */
+	private static class PeriodicRun implements Runnable {
+		final Runnable task;
+		final AtomicBoolean pending = new AtomicBoolean(false);
+
+		PeriodicRun (Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run () {
+			try {
+				task.run();
+			} finally {
+				pending.set(false);
+			}
+		}
+	}
+
+
+	/**
+	 * The JVM's clock, with wall time standing in for CPU
+	 * time where the JVM doesn't measure the latter
+	 */
+	private static class SystemClock implements Clock {
+		private final boolean cpuTimeSupported;
+
+		SystemClock (boolean cpuTimeSupported) {
+			this.cpuTimeSupported = cpuTimeSupported;
+		}
+
+		@Override
+		public long nanoTime () {
+			return System.nanoTime();
+		}
+
+		@Override
+		public long threadCpuTime () {
+			return cpuTimeSupported ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+		}
+	}
+
+
+	private static class RuntimeThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		RuntimeThreadFactory (String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread (Runnable r) {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+
+			// Below Floodlight's threads, so that a busy
+			// application yields to packet-in processing
+			t.setPriority(Thread.NORM_PRIORITY - 1);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,431 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Compact binary encoding of the agent protocol, which agents may
+ * speak instead of the text one.
+ *
+ * Every binary message starts with MAGIC, a byte that never starts a
+ * text message, followed by the protocol VERSION. A datagram from an
+ * agent then packs any number of events, each a type byte followed by
+ * its fields:
+ *
+ *   ping
+ *   probe             <sta-mac> <ssid-length:1> <ssid>
+ *   publish           <sta-mac> <count:varint> (<id:varint> <value:8>)*
+ *   deauthentication  <sta-mac>
+ *   association       <sta-mac>
+ *   publish_batch     <count:varint> (<sta-mac> <id:varint> <value:8>)*
+ *
+ * MAC addresses take 6 bytes, varints are unsigned LEB128, and values
+ * are IEEE 754 doubles, all in network byte order. The master handles
+ * published values as integers, so they are rounded when decoded. As
+ * in the text protocol, SSIDs of probes are lower-cased, and a batch
+ * of publishes doubles as a ping.
+ *
+ * An agent that sends binary pings is known to speak the binary
+ * protocol, and is sent binary arguments for its LVAP and probe
+ * response write handlers, with the same MAGIC and VERSION header:
+ *
+ *   add_vap, set_vap     <sta-mac> <ip-length:1> <ip> <bssid-mac> <ssids>
+ *   remove_vap           <sta-mac>
+ *   send_probe_response  <sta-mac> <bssid-mac> <ssids>
+ *
+ * where <ssids> is <count:1> followed by <length:1> <ssid> for each.
+ *
+ * Decoding works on the received bytes in place, and allocates nothing.
+ */
+final class OdinBinaryProtocol {
+	static final byte MAGIC = (byte) 0xb0;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 2;
+
+	private static final int MAC_ADDRESS_LENGTH = 6;
+	private static final int MAX_VARINT_LENGTH = 9; // 63 bits
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private OdinBinaryProtocol () {
+	}
+
+
+	/**
+	 * @param buf holds a datagram between its position and limit
+	 * @return true if the datagram is in the binary protocol, of whatever version
+	 */
+	static boolean isBinary (ByteBuffer buf) {
+		return buf.remaining() > 0 && buf.get(buf.position()) == MAGIC;
+	}
+
+
+	/**
+	 * Check the header of a binary datagram
+	 *
+	 * @param buf holds the datagram between its position and limit
+	 * @return offset of the first event, or -1 if the header isn't
+	 * one of a version we speak
+	 */
+	static int start (ByteBuffer buf) {
+		int pos = buf.position();
+
+		if (buf.limit() - pos < HEADER_SIZE || buf.get(pos) != MAGIC || buf.get(pos + 1) != VERSION)
+			return -1;
+
+		return pos + HEADER_SIZE;
+	}
+
+
+	/**
+	 * Decode the event at an offset of a binary datagram. The
+	 * buffer's position and limit are left untouched.
+	 *
+	 * @param buf holds the datagram up to its limit
+	 * @param pos offset of the event, as returned by start() or
+	 * by the previous call
+	 * @param agentAddr sender of the datagram
+	 * @param event overwritten with the decoded event
+	 * @return offset of the next event, or -1 if the event isn't well-formed
+	 */
+	static int decode (ByteBuffer buf, int pos, InetAddress agentAddr, OdinAgentEvent event) {
+		int end = buf.limit();
+
+		event.type = OdinAgentEvent.TYPE_NONE;
+		event.agentAddr = agentAddr;
+		event.clientHwAddress = 0;
+		event.ssidLength = 0;
+		event.publishCount = 0;
+		event.version = VERSION;
+
+		if (pos >= end)
+			return -1;
+
+		int type = buf.get(pos++);
+
+		if (type == OdinAgentEvent.TYPE_PING) {
+			event.type = type;
+			return pos;
+		}
+
+		if (type == OdinAgentEvent.TYPE_PUBLISH_BATCH) {
+			pos = decodeEntries(buf, pos, event, true);
+
+			if (pos >= 0)
+				event.type = type;
+
+			return pos;
+		}
+
+		if (type != OdinAgentEvent.TYPE_PROBE && type != OdinAgentEvent.TYPE_PUBLISH
+				&& type != OdinAgentEvent.TYPE_DEAUTH && type != OdinAgentEvent.TYPE_ASSOC)
+			return -1;
+
+		// Every other event carries the STA's MAC address
+		if (end - pos < MAC_ADDRESS_LENGTH)
+			return -1;
+
+		event.clientHwAddress = getMacAddress(buf, pos);
+		pos += MAC_ADDRESS_LENGTH;
+
+		if (type == OdinAgentEvent.TYPE_PROBE) {
+			if (pos >= end)
+				return -1;
+
+			int len = buf.get(pos++) & 0xff;
+
+			if (len > OdinAgentEvent.MAX_SSID_LENGTH || end - pos < len)
+				return -1;
+
+			for (int i = 0; i < len; i++) {
+				byte b = buf.get(pos + i);
+				event.ssid[i] = (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+			}
+
+			event.ssidLength = len;
+			pos += len;
+		}
+		else if (type == OdinAgentEvent.TYPE_PUBLISH) {
+			pos = decodeEntries(buf, pos, event, false);
+
+			if (pos < 0)
+				return -1;
+		}
+
+		event.type = type;
+		return pos;
+	}
+
+
+	/**
+	 * Decode the entries of a publish, or of a batch where each
+	 * entry starts with the MAC address of its client
+	 *
+	 * @return offset just past the entries, or -1 if malformed
+	 */
+	private static int decodeEntries (ByteBuffer buf, int pos, OdinAgentEvent event, boolean batch) {
+		int end = buf.limit();
+		long count = getVarint(buf, pos);
+
+		if (count < 0 || count > OdinAgentEvent.MAX_PUBLISH_ENTRIES)
+			return -1;
+
+		pos += varintLength(count);
+
+		for (int i = 0; i < count; i++) {
+			if (batch) {
+				if (end - pos < MAC_ADDRESS_LENGTH)
+					return -1;
+
+				event.publishHwAddresses[i] = getMacAddress(buf, pos);
+				pos += MAC_ADDRESS_LENGTH;
+			}
+
+			long id = getVarint(buf, pos);
+
+			if (id < 0)
+				return -1;
+
+			pos += varintLength(id);
+
+			if (end - pos < 8)
+				return -1;
+
+			double value = buf.getDouble(pos);
+			pos += 8;
+
+			if (Double.isNaN(value) || Double.isInfinite(value))
+				return -1;
+
+			event.subscriptionIds[i] = id;
+			event.subscriptionValues[i] = Math.round(value);
+		}
+
+		event.publishCount = (int) count;
+		return pos;
+	}
+
+
+	/** Encoding of agent messages, as agents send them **/
+
+	/**
+	 * Start a datagram
+	 */
+	static void putHeader (ByteBuffer buf) {
+		buf.put(MAGIC);
+		buf.put((byte) VERSION);
+	}
+
+
+	static void putPing (ByteBuffer buf) {
+		buf.put((byte) OdinAgentEvent.TYPE_PING);
+	}
+
+
+	/**
+	 * @param ssid SSID scanned for, or an empty one
+	 */
+	static void putProbe (ByteBuffer buf, long clientHwAddress, byte[] ssid) {
+		assert (ssid.length <= OdinAgentEvent.MAX_SSID_LENGTH);
+
+		buf.put((byte) OdinAgentEvent.TYPE_PROBE);
+		putMacAddress(buf, clientHwAddress);
+		buf.put((byte) ssid.length);
+		buf.put(ssid);
+	}
+
+
+	static void putPublish (ByteBuffer buf, long clientHwAddress, long[] ids, double[] values, int count) {
+		assert (count <= OdinAgentEvent.MAX_PUBLISH_ENTRIES);
+
+		buf.put((byte) OdinAgentEvent.TYPE_PUBLISH);
+		putMacAddress(buf, clientHwAddress);
+		putVarint(buf, count);
+
+		for (int i = 0; i < count; i++) {
+			putVarint(buf, ids[i]);
+			buf.putDouble(values[i]);
+		}
+	}
+
+
+	/**
+	 * @param clientHwAddresses the client the i-th entry is about
+	 */
+	static void putPublishBatch (ByteBuffer buf, long[] clientHwAddresses, long[] ids, double[] values, int count) {
+		assert (count <= OdinAgentEvent.MAX_PUBLISH_ENTRIES);
+
+		buf.put((byte) OdinAgentEvent.TYPE_PUBLISH_BATCH);
+		putVarint(buf, count);
+
+		for (int i = 0; i < count; i++) {
+			putMacAddress(buf, clientHwAddresses[i]);
+			putVarint(buf, ids[i]);
+			buf.putDouble(values[i]);
+		}
+	}
+
+
+	static void putDeauth (ByteBuffer buf, long clientHwAddress) {
+		buf.put((byte) OdinAgentEvent.TYPE_DEAUTH);
+		putMacAddress(buf, clientHwAddress);
+	}
+
+
+	static void putAssoc (ByteBuffer buf, long clientHwAddress) {
+		buf.put((byte) OdinAgentEvent.TYPE_ASSOC);
+		putMacAddress(buf, clientHwAddress);
+	}
+
+
+	/** Encoding of write handler arguments, for agents that speak binary **/
+
+	/**
+	 * Arguments of the add_vap and set_vap handlers
+	 *
+	 * @param oc OdinClient entity, with an LVAP
+	 * @return handler data
+	 */
+	static byte[] encodeLvap (OdinClient oc) {
+		byte[] ip = oc.getIpAddress().getAddress();
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 2 * MAC_ADDRESS_LENGTH + 1 + ip.length
+				+ ssidsLength(oc.getLvap().getSsids()));
+
+		putHeader(buf);
+		putMacAddress(buf, oc.getMacAddress().toLong());
+		buf.put((byte) ip.length);
+		buf.put(ip);
+		putMacAddress(buf, oc.getLvap().getBssid().toLong());
+		putSsids(buf, oc.getLvap().getSsids());
+
+		return buf.array();
+	}
+
+
+	/**
+	 * Arguments of the remove_vap handler
+	 *
+	 * @param clientHwAddress the client whose LVAP to remove
+	 * @return handler data
+	 */
+	static byte[] encodeRemoveLvap (MACAddress clientHwAddress) {
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + MAC_ADDRESS_LENGTH);
+
+		putHeader(buf);
+		putMacAddress(buf, clientHwAddress.toLong());
+
+		return buf.array();
+	}
+
+
+	/**
+	 * Arguments of the send_probe_response handler
+	 *
+	 * @return handler data
+	 */
+	static byte[] encodeProbeResponse (MACAddress clientHwAddress, MACAddress bssid, Collection<String> ssids) {
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 2 * MAC_ADDRESS_LENGTH + ssidsLength(ssids));
+
+		putHeader(buf);
+		putMacAddress(buf, clientHwAddress.toLong());
+		putMacAddress(buf, bssid.toLong());
+		putSsids(buf, ssids);
+
+		return buf.array();
+	}
+
+
+	/** Field encodings **/
+
+	static void putMacAddress (ByteBuffer buf, long mac) {
+		for (int shift = 40; shift >= 0; shift -= 8) {
+			buf.put((byte) (mac >>> shift));
+		}
+	}
+
+
+	static long getMacAddress (ByteBuffer buf, int pos) {
+		long mac = 0;
+
+		for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
+			mac = (mac << 8) | (buf.get(pos + i) & 0xff);
+		}
+
+		return mac;
+	}
+
+
+	/**
+	 * @param value a non-negative value
+	 */
+	static void putVarint (ByteBuffer buf, long value) {
+		assert (value >= 0);
+
+		while ((value & ~0x7fL) != 0) {
+			buf.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+
+		buf.put((byte) value);
+	}
+
+
+	/**
+	 * @return the varint at an offset, or -1 if it is truncated, not
+	 * in its shortest form, or doesn't fit in a non-negative long
+	 */
+	static long getVarint (ByteBuffer buf, int pos) {
+		int end = Math.min(buf.limit(), pos + MAX_VARINT_LENGTH);
+		long value = 0;
+
+		for (int i = pos, shift = 0; i < end; i++, shift += 7) {
+			byte b = buf.get(i);
+			value |= (long) (b & 0x7f) << shift;
+
+			if (b >= 0)
+				return (b == 0 && i > pos) ? -1 : value;
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * @return bytes taken by a non-negative value as a varint
+	 */
+	static int varintLength (long value) {
+		int length = 1;
+
+		while ((value & ~0x7fL) != 0) {
+			value >>>= 7;
+			length++;
+		}
+
+		return length;
+	}
+
+
+	private static int ssidsLength (Collection<String> ssids) {
+		int length = 1;
+
+		for (String ssid: ssids) {
+			length += 1 + ssid.length();
+		}
+
+		return length;
+	}
+
+
+	private static void putSsids (ByteBuffer buf, Collection<String> ssids) {
+		buf.put((byte) ssids.size());
+
+		for (String ssid: ssids) {
+			byte[] b = ssid.getBytes(ISO_8859_1);
+			buf.put((byte) b.length);
+			buf.put(b);
+		}
+	}
+}
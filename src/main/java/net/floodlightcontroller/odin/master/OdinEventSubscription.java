@@ -1,5 +1,9 @@
 package net.floodlightcontroller.odin.master;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import net.floodlightcontroller.util.MACAddress;
 
 
@@ -9,6 +13,11 @@ import net.floodlightcontroller.util.MACAddress;
  * subscription requests. One instance of this class represents
  * a single subscription request against a single statistic.
  * 
+ * A subscription may also be made compound, by adding conditions on
+ * other statistics of the same client, and may be given hysteresis.
+ * Agents can only evaluate plain subscriptions, so those two are
+ * evaluated by the master, from samples the agents stream to it.
+ * 
  * FIXME: The application should ensure it doesn't install the same
  * subscription twice.
  * 
@@ -24,10 +33,39 @@ public class OdinEventSubscription {
 	    LESSER_THAN,
 	};
 	
+	/**
+	 * A further condition of a compound subscription
+	 */
+	public static class Condition {
+		private final String statistic;
+		private final Relation relation;
+		private final double value;
+
+		Condition (String statistic, Relation relation, double value) {
+			this.statistic = statistic;
+			this.relation = relation;
+			this.value = value;
+		}
+
+		public String getStatistic() {
+			return statistic;
+		}
+
+		public Relation getRelation() {
+			return relation;
+		}
+
+		public double getValue() {
+			return value;
+		}
+	}
+	
 	private String client;
 	private String statistic;
 	private Relation relation;
 	private double value;
+	private double hysteresis = 0;
+	private final List<Condition> conditions = new ArrayList<Condition>();
 	
 	/**
 	 * @return the client
@@ -83,5 +121,54 @@ public class OdinEventSubscription {
 		this.relation = rel;
 		this.value = val;
 	}
+	
+	/**
+	 * Make the subscription compound: it only matches while the
+	 * client's statistic 'stat' also satisfies relation 'rel' with
+	 * 'val', as last heard by the same agent.
+	 * 
+	 * @param stat the statistic
+	 * @param rel a numerical relation with the said statistic
+	 * @param val value to compare the statistic with using relation 'rel'
+	 */
+	public void addCondition (String stat, Relation rel, double val) {
+		if (stat == null || rel == null)
+			throw new IllegalArgumentException();
+		
+		conditions.add(new Condition(stat, rel, val));
+	}
+	
+	/**
+	 * Once the subscription has matched, don't match again until its
+	 * statistic has moved back past the value by at least 'hysteresis'.
+	 * 
+	 * @param hysteresis the margin, or 0 to match on every sample
+	 */
+	public void setHysteresis (double hysteresis) {
+		if (hysteresis < 0)
+			throw new IllegalArgumentException();
+		
+		this.hysteresis = hysteresis;
+	}
+	
+	/**
+	 * @return the further conditions of a compound subscription
+	 */
+	public List<Condition> getConditions() {
+		return Collections.unmodifiableList(conditions);
+	}
+	
+	/**
+	 * @return the hysteresis
+	 */
+	public double getHysteresis() {
+		return hysteresis;
+	}
+	
+	/**
+	 * @return whether only the master can evaluate the subscription
+	 */
+	boolean needsMasterEvaluation() {
+		return hysteresis > 0 || !conditions.isEmpty();
+	}
 }
-
@@ -0,0 +1,699 @@
+package net.floodlightcontroller.odin.master;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead journal of the master's client, pool and subscription
+ * state, so that a restarted master can rebuild its managers from
+ * disk instead of reading the LVAP table of every agent.
+ *
+ * Every change is appended to a memory-mapped journal file as a record
+ * framed by its length and a CRC, and applied to an in-memory copy of
+ * the state. Now and then, or when the journal fills up, that copy is
+ * written out as a snapshot and the journal is started over. Snapshots
+ * and journals carry a generation number: a journal older than the
+ * snapshot has already been folded into it, and is ignored.
+ *
+ * The mapped journal survives the master process crashing. It is only
+ * forced to disk when a snapshot is taken, so a machine crash may lose
+ * the changes made since.
+ *
+ * Subscriptions are journaled, but their callbacks can't be, so on
+ * recovery only their ids are kept: new subscriptions get ids past the
+ * recovered ones, and agents never confuse them with stale ones.
+ */
+class OdinJournal {
+	protected static Logger log = LoggerFactory.getLogger(OdinJournal.class);
+
+	static final int DEFAULT_CAPACITY = 16 * 1024 * 1024; // bytes
+	static final String JOURNAL_FILE = "journal";
+	static final String SNAPSHOT_FILE = "snapshot";
+
+	private static final int JOURNAL_MAGIC = 0x4f444a4c; // ODJL
+	private static final int SNAPSHOT_MAGIC = 0x4f44534e; // ODSN
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16; // magic, version, generation
+	private static final int MAX_PAYLOAD = 64 * 1024;
+	private static final int FRAME_OVERHEAD = 4 + 1 + 4; // length, type, crc
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Record types
+	static final byte CLIENT_ADD = 1;
+	static final byte CLIENT_REMOVE = 2;
+	static final byte CLIENT_AGENT = 3;
+	static final byte CLIENT_POOL = 4;
+	static final byte CLIENT_IP = 5;
+	static final byte SUBSCRIPTION_ADD = 6;
+	static final byte SUBSCRIPTION_REMOVE = 7;
+	static final byte SUBSCRIPTION_ID = 8;
+	static final byte NETWORK_ADD = 9;
+	static final byte NETWORK_REMOVE = 10;
+
+	/**
+	 * A client as journaled: its LVAP, where it was and what pool it was in
+	 */
+	static class ClientRecord {
+		final long hwAddress;
+		InetAddress ipAddress;
+		long bssid;
+		List<String> ssids; // null if the client had no LVAP
+		InetAddress agentAddr;
+		String pool;
+
+		ClientRecord (long hwAddress) {
+			this.hwAddress = hwAddress;
+		}
+	}
+
+	/**
+	 * A network added to or removed from a pool at runtime
+	 */
+	static class NetworkChange {
+		final String pool;
+		final String ssid;
+		final boolean added;
+
+		NetworkChange (String pool, String ssid, boolean added) {
+			this.pool = pool;
+			this.ssid = ssid;
+			this.added = added;
+		}
+	}
+
+	/**
+	 * The journaled state, as replayed from disk and kept
+	 * up to date with every record appended since.
+	 */
+	static class State {
+		final ConcurrentLongMap<ClientRecord> clients = new ConcurrentLongMap<ClientRecord>();
+
+		// Latest change for each pool and SSID, in the order they were made
+		final Map<List<String>, NetworkChange> networks = new LinkedHashMap<List<String>, NetworkChange>();
+
+		// Subscription id to pool and encoded subscription
+		final Map<Long, String[]> subscriptions = new TreeMap<Long, String[]>();
+		long lastSubscriptionId = 0;
+	}
+
+	private final File dir;
+	private final RandomAccessFile journalFile;
+	private final MappedByteBuffer journal;
+	private final State state;
+	private final ByteBuffer payload = ByteBuffer.allocate(MAX_PAYLOAD);
+	private final byte[] frame = new byte[MAX_PAYLOAD + FRAME_OVERHEAD];
+	private final ByteBuffer frameBuf = ByteBuffer.wrap(frame);
+	private final CRC32 crc = new CRC32();
+
+	// Guarded by this
+	private long generation;
+	private int position = HEADER_SIZE;
+	private long appended = 0;
+	private long snapshots = 0;
+
+
+	private OdinJournal (File dir, RandomAccessFile journalFile, MappedByteBuffer journal, State state, long generation) {
+		this.dir = dir;
+		this.journalFile = journalFile;
+		this.journal = journal;
+		this.state = state;
+		this.generation = generation;
+	}
+
+
+	/**
+	 * Open the journal in a directory, recovering the state it holds,
+	 * and compact it into a fresh snapshot.
+	 *
+	 * @param dir directory holding the snapshot and journal files
+	 * @param capacity size of the journal file, in bytes
+	 * @return the journal, with its recovered state
+	 * @throws IOException if the files can't be read or written
+	 */
+	static OdinJournal open (File dir, int capacity) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create journal directory " + dir);
+
+		long start = System.currentTimeMillis();
+		State state = new State();
+		long generation = 0;
+		int snapshotRecords = 0;
+		int journalRecords = 0;
+
+		File snapshotFile = new File(dir, SNAPSHOT_FILE);
+
+		if (snapshotFile.exists()) {
+			RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r");
+
+			try {
+				FileChannel channel = raf.getChannel();
+				ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+				if (buf.remaining() < HEADER_SIZE || buf.getInt() != SNAPSHOT_MAGIC || buf.getInt() != VERSION)
+					throw new IOException("Not a snapshot: " + snapshotFile);
+
+				generation = buf.getLong();
+				snapshotRecords = replay(buf, state);
+			} finally {
+				raf.close();
+			}
+		}
+
+		RandomAccessFile journalFile = new RandomAccessFile(new File(dir, JOURNAL_FILE), "rw");
+		MappedByteBuffer journal;
+
+		try {
+			long size = Math.max(journalFile.length(), Math.max(capacity, HEADER_SIZE + 4));
+			boolean existing = journalFile.length() >= HEADER_SIZE;
+
+			journal = journalFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+			if (existing && journal.getInt(0) == JOURNAL_MAGIC && journal.getInt(4) == VERSION
+					&& journal.getLong(8) >= generation) {
+				generation = journal.getLong(8);
+				journal.position(HEADER_SIZE);
+				journalRecords = replay(journal, state);
+			}
+		} catch (IOException e) {
+			journalFile.close();
+			throw e;
+		}
+
+		// Callbacks died with the old master, only the ids are kept
+		int subscriptions = state.subscriptions.size();
+		state.subscriptions.clear();
+
+		OdinJournal ret = new OdinJournal(dir, journalFile, journal, state, generation);
+		ret.snapshot();
+
+		log.info("Recovered " + state.clients.size() + " clients and " + subscriptions + " subscriptions from "
+				+ snapshotRecords + " snapshot and " + journalRecords + " journal records in "
+				+ (System.currentTimeMillis() - start) + "ms");
+
+		return ret;
+	}
+
+
+	/**
+	 * @return the recovered state, kept up to date with the
+	 * records appended since. Only read it before journaling.
+	 */
+	State getState () {
+		return state;
+	}
+
+
+	synchronized void clientAdded (OdinClient oc) {
+		payload.clear();
+		putClient(oc.getMacAddress().toLong(), oc.getIpAddress(), oc.getLvap());
+		append(CLIENT_ADD);
+	}
+
+
+	synchronized void clientRemoved (MACAddress clientHwAddress) {
+		payload.clear();
+		payload.putLong(clientHwAddress.toLong());
+		append(CLIENT_REMOVE);
+	}
+
+
+	/**
+	 * @param agentAddr the agent hosting the client's LVAP, or null if none does
+	 */
+	synchronized void clientAgentChanged (MACAddress clientHwAddress, InetAddress agentAddr) {
+		payload.clear();
+		payload.putLong(clientHwAddress.toLong());
+		putAddress(agentAddr);
+		append(CLIENT_AGENT);
+	}
+
+
+	/**
+	 * @param pool the client's pool, or null if it was removed from its pool
+	 */
+	synchronized void clientPoolChanged (MACAddress clientHwAddress, String pool) {
+		payload.clear();
+		payload.putLong(clientHwAddress.toLong());
+		putString(pool);
+		append(CLIENT_POOL);
+	}
+
+
+	synchronized void clientIpChanged (MACAddress clientHwAddress, InetAddress ipAddress) {
+		payload.clear();
+		payload.putLong(clientHwAddress.toLong());
+		putAddress(ipAddress);
+		append(CLIENT_IP);
+	}
+
+
+	synchronized void subscriptionAdded (long id, String pool, String encoded) {
+		payload.clear();
+		payload.putLong(id);
+		putString(pool);
+		putString(encoded);
+		append(SUBSCRIPTION_ADD);
+	}
+
+
+	synchronized void subscriptionRemoved (long id) {
+		payload.clear();
+		payload.putLong(id);
+		append(SUBSCRIPTION_REMOVE);
+	}
+
+
+	synchronized void networkAdded (String pool, String ssid) {
+		payload.clear();
+		putString(pool);
+		putString(ssid);
+		append(NETWORK_ADD);
+	}
+
+
+	synchronized void networkRemoved (String pool, String ssid) {
+		payload.clear();
+		putString(pool);
+		putString(ssid);
+		append(NETWORK_REMOVE);
+	}
+
+
+	/**
+	 * Take a snapshot if anything was journaled since the last one
+	 */
+	synchronized void snapshotIfChanged () {
+		if (position > HEADER_SIZE)
+			snapshot();
+	}
+
+
+	/**
+	 * Write the state out as a new snapshot, and start the journal
+	 * over. If the snapshot can't be written, the journal carries on
+	 * from where it was.
+	 */
+	synchronized void snapshot () {
+		File tmp = new File(dir, SNAPSHOT_FILE + ".tmp");
+		File snapshotFile = new File(dir, SNAPSHOT_FILE);
+
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+
+			try {
+				OutputStream out = new BufferedOutputStream(fos, 64 * 1024);
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(SNAPSHOT_MAGIC).putInt(VERSION).putLong(generation + 1);
+				out.write(header.array());
+
+				for (ClientRecord record: state.clients.values()) {
+					payload.clear();
+					payload.putLong(record.hwAddress);
+					putAddress(record.ipAddress);
+					putLvap(record.bssid, record.ssids);
+					out.write(frame, 0, frame(CLIENT_ADD));
+
+					if (record.agentAddr != null) {
+						payload.clear();
+						payload.putLong(record.hwAddress);
+						putAddress(record.agentAddr);
+						out.write(frame, 0, frame(CLIENT_AGENT));
+					}
+
+					if (record.pool != null) {
+						payload.clear();
+						payload.putLong(record.hwAddress);
+						putString(record.pool);
+						out.write(frame, 0, frame(CLIENT_POOL));
+					}
+				}
+
+				for (NetworkChange change: state.networks.values()) {
+					payload.clear();
+					putString(change.pool);
+					putString(change.ssid);
+					out.write(frame, 0, frame(change.added ? NETWORK_ADD : NETWORK_REMOVE));
+				}
+
+				for (Map.Entry<Long, String[]> entry: state.subscriptions.entrySet()) {
+					payload.clear();
+					payload.putLong(entry.getKey());
+					putString(entry.getValue()[0]);
+					putString(entry.getValue()[1]);
+					out.write(frame, 0, frame(SUBSCRIPTION_ADD));
+				}
+
+				payload.clear();
+				payload.putLong(state.lastSubscriptionId);
+				out.write(frame, 0, frame(SUBSCRIPTION_ID));
+
+				out.write(new byte[4]); // end of records
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+
+			if (!tmp.renameTo(snapshotFile) && !(snapshotFile.delete() && tmp.renameTo(snapshotFile)))
+				throw new IOException("Cannot rename " + tmp + " to " + snapshotFile);
+		} catch (IOException e) {
+			log.error("Failed to write journal snapshot: " + e);
+			return;
+		}
+
+		// From here on the old journal is folded into the snapshot
+		generation++;
+		journal.putInt(HEADER_SIZE, 0);
+		journal.putInt(0, JOURNAL_MAGIC);
+		journal.putInt(4, VERSION);
+		journal.putLong(8, generation);
+		journal.force();
+		position = HEADER_SIZE;
+		snapshots++;
+	}
+
+
+	/**
+	 * Force the journal to disk and close it
+	 */
+	synchronized void close () {
+		journal.force();
+
+		try {
+			journalFile.close();
+		} catch (IOException e) {
+			log.error("Failed to close journal: " + e);
+		}
+	}
+
+
+	/**
+	 * @return number of records appended since the journal was opened
+	 */
+	synchronized long getAppended () {
+		return appended;
+	}
+
+
+	/**
+	 * @return number of snapshots taken since the journal was opened
+	 */
+	synchronized long getSnapshots () {
+		return snapshots;
+	}
+
+
+	/**
+	 * @return bytes of records in the journal since the last snapshot
+	 */
+	synchronized int getJournalSize () {
+		return position - HEADER_SIZE;
+	}
+
+
+	/**
+	 * Apply the encoded record to the state and append it to the
+	 * journal, or take a snapshot if the journal is full.
+	 */
+	private void append (byte type) {
+		apply(type, ByteBuffer.wrap(payload.array(), 0, payload.position()), state);
+
+		int length = frame(type);
+		appended++;
+
+		if (position + length + 4 > journal.capacity()) {
+			snapshot();
+			return;
+		}
+
+		/*
+		 * The terminator after the record goes in first, and the
+		 * record's length last, so that a crash halfway through
+		 * leaves a journal that ends just before this record.
+		 */
+		journal.position(position + 4);
+		journal.put(frame, 4, length - 4);
+		journal.putInt(position + length, 0);
+		journal.putInt(position, length - 4);
+		position += length;
+	}
+
+
+	/**
+	 * Frame the encoded payload as a record
+	 *
+	 * @return length of the record in the frame buffer
+	 */
+	private int frame (byte type) {
+		int length = payload.position();
+
+		frame[4] = type;
+		System.arraycopy(payload.array(), 0, frame, 5, length);
+		crc.reset();
+		crc.update(frame, 4, length + 1);
+
+		frameBuf.putInt(0, length + 5);
+		frameBuf.putInt(length + 5, (int) crc.getValue());
+
+		return length + FRAME_OVERHEAD;
+	}
+
+
+	/**
+	 * Apply the records in a buffer to a state, stopping at the
+	 * end of the records or at the first torn or corrupt one.
+	 *
+	 * @return number of records applied
+	 */
+	private static int replay (ByteBuffer buf, State state) {
+		CRC32 crc = new CRC32();
+		int count = 0;
+
+		while (buf.remaining() >= 4) {
+			int start = buf.position();
+			int length = buf.getInt(); // type, payload and crc
+
+			if (length == 0)
+				break;
+
+			if (length < 5 || length > buf.remaining()) {
+				log.warn("Discarding torn journal record at offset " + start);
+				break;
+			}
+
+			byte[] record = new byte[length - 4];
+			buf.get(record);
+			crc.reset();
+			crc.update(record, 0, record.length);
+
+			if (buf.getInt() != (int) crc.getValue()) {
+				log.warn("Discarding corrupt journal record at offset " + start);
+				break;
+			}
+
+			ByteBuffer recordPayload = ByteBuffer.wrap(record, 1, record.length - 1);
+
+			if (!apply(record[0], recordPayload, state)) {
+				log.warn("Discarding unknown journal record " + record[0] + " at offset " + start);
+				break;
+			}
+
+			count++;
+		}
+
+		return count;
+	}
+
+
+	/**
+	 * Apply a record to a state
+	 *
+	 * @return false if the record is of an unknown type
+	 */
+	private static boolean apply (byte type, ByteBuffer buf, State state) {
+		ClientRecord record;
+
+		switch (type) {
+		case CLIENT_ADD:
+			long hwAddress = buf.getLong();
+			ClientRecord previous = state.clients.get(hwAddress);
+
+			record = new ClientRecord(hwAddress);
+			record.ipAddress = getAddress(buf);
+
+			if (buf.get() != 0) {
+				record.bssid = buf.getLong();
+				int count = buf.getShort() & 0xffff;
+				record.ssids = new ArrayList<String>(count);
+
+				for (int i = 0; i < count; i++) {
+					record.ssids.add(getString(buf));
+				}
+			}
+
+			// A client is re-added with a new LVAP, but stays in its pool
+			record.pool = (previous == null) ? null : previous.pool;
+			state.clients.put(hwAddress, record);
+			return true;
+
+		case CLIENT_REMOVE:
+			state.clients.remove(buf.getLong());
+			return true;
+
+		case CLIENT_AGENT:
+			record = state.clients.get(buf.getLong());
+
+			if (record != null)
+				record.agentAddr = getAddress(buf);
+
+			return true;
+
+		case CLIENT_POOL:
+			record = state.clients.get(buf.getLong());
+
+			if (record != null)
+				record.pool = getString(buf);
+
+			return true;
+
+		case CLIENT_IP:
+			record = state.clients.get(buf.getLong());
+
+			if (record != null)
+				record.ipAddress = getAddress(buf);
+
+			return true;
+
+		case SUBSCRIPTION_ADD:
+			long id = buf.getLong();
+			state.subscriptions.put(id, new String[] {getString(buf), getString(buf)});
+			state.lastSubscriptionId = Math.max(state.lastSubscriptionId, id);
+			return true;
+
+		case SUBSCRIPTION_REMOVE:
+			state.subscriptions.remove(buf.getLong());
+			return true;
+
+		case SUBSCRIPTION_ID:
+			state.lastSubscriptionId = Math.max(state.lastSubscriptionId, buf.getLong());
+			return true;
+
+		case NETWORK_ADD:
+		case NETWORK_REMOVE:
+			String pool = getString(buf);
+			String ssid = getString(buf);
+			List<String> key = Arrays.asList(pool, ssid);
+
+			// Re-inserted, so that changes stay in the order they were made
+			state.networks.remove(key);
+			state.networks.put(key, new NetworkChange(pool, ssid, type == NETWORK_ADD));
+			return true;
+
+		default:
+			return false;
+		}
+	}
+
+
+	private void putClient (long hwAddress, InetAddress ipAddress, Lvap lvap) {
+		payload.putLong(hwAddress);
+		putAddress(ipAddress);
+
+		if (lvap == null)
+			putLvap(0, null);
+		else
+			putLvap(lvap.getBssid().toLong(), lvap.getSsids());
+	}
+
+
+	private void putLvap (long bssid, List<String> ssids) {
+		if (ssids == null) {
+			payload.put((byte) 0);
+			return;
+		}
+
+		payload.put((byte) 1);
+		payload.putLong(bssid);
+		payload.putShort((short) ssids.size());
+
+		for (String ssid: ssids) {
+			putString(ssid);
+		}
+	}
+
+
+	private void putAddress (InetAddress addr) {
+		if (addr == null) {
+			payload.put((byte) 0);
+			return;
+		}
+
+		byte[] bytes = addr.getAddress();
+		payload.put((byte) bytes.length);
+		payload.put(bytes);
+	}
+
+
+	private void putString (String s) {
+		if (s == null) {
+			payload.putShort((short) -1);
+			return;
+		}
+
+		byte[] bytes = s.getBytes(UTF8);
+		payload.putShort((short) bytes.length);
+		payload.put(bytes);
+	}
+
+
+	private static InetAddress getAddress (ByteBuffer buf) {
+		int length = buf.get();
+
+		if (length == 0)
+			return null;
+
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+
+		try {
+			return InetAddress.getByAddress(bytes);
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e); // only on a bad length, which the CRC rules out
+		}
+	}
+
+
+	private static String getString (ByteBuffer buf) {
+		short length = buf.getShort();
+
+		if (length == -1)
+			return null;
+
+		byte[] bytes = new byte[length & 0xffff];
+		buf.get(bytes);
+
+		return new String(bytes, UTF8);
+	}
+}
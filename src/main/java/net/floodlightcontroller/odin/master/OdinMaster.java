@@ -1,6 +1,7 @@
 package net.floodlightcontroller.odin.master;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
@@ -11,15 +12,19 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
-import java.util.TreeSet;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFType;
@@ -47,6 +52,14 @@ import net.floodlightcontroller.util.MACAddress;
  * OdinMaster implementation. Exposes interfaces to OdinApplications,
  * and keeps track of agents and clients in the system.
  *
+ * Locking: there is no master-wide monitor. Work on a client (probes,
+ * association, deauthentication, publishes and handoffs) holds the
+ * client's lock, and work on an agent holds the agent's lock. Both
+ * are taken under the read side of the pool topology lock, whose
+ * write side is only held while networks are added or removed. The
+ * order is always topology, then agent, then client. The subscription
+ * registry has a lock of its own.
+ *
  * @author Lalith Suresh <suresh.lalith@gmail.com>
  *
  */
@@ -62,22 +75,60 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 	private final LvapManager lvapManager;
 	private final PoolManager poolManager;
 
-	private long subscriptionId = 0;
-	private String subscriptionList = "";
+	private final SubscriptionRegistry subscriptionRegistry;
+	private final HearingGraph hearingGraph;
+	private final ClientTimeSeriesStore timeSeries;
+	private final RxStatsCollector rxStatsCollector;
+	private final ProbeResponseCoalescer probeResponseCoalescer;
+	private final HandoffTracer handoffTracer;
+	private final LvapPrestager lvapPrestager;
+	private final SpectralScanManager spectralScanManager = new SpectralScanManager();
+	private volatile SpectralScanServer spectralScanServer = null;
+	private final PublishStats publishStats = new PublishStats();
+	private volatile OdinAgentProtocolServer protocolServer = null;
+	private final List<OdinApplication> applications = new CopyOnWriteArrayList<OdinApplication>();
+	private OdinApplicationRuntime applicationRuntime;
+	private final AgentFanOut fanOut = new AgentFanOut(AgentFanOut.DEFAULT_THREADS);
 	private int idleLvapTimeout = 60; // Seconds
+	private final OdinTimeoutWheel idleLvapTimeouts;
+	private OdinJournal journal = null;
+	private final IdleLvapReclaimer idleLvapReclaimer = new IdleLvapReclaimer();
+	private final AgentManager.AgentListener agentListener = new AgentManager.AgentListener() {
+		@Override
+		public void agentAdded(IOdinAgent agent) {
+			// push the current subscription list to
+			// the newly tracked agent
+			subscriptionRegistry.pushToAgent(agent);
+		}
 
-	private final ConcurrentMap<Long, SubscriptionCallbackTuple> subscriptions = new ConcurrentHashMap<Long, SubscriptionCallbackTuple>();
+		@Override
+		public void lvapsRecovered(IOdinAgent agent) {
+			OdinMaster.this.lvapsRecovered(agent);
+		}
+	};
 
 	// some defaults
 	static private final String DEFAULT_POOL_FILE = "poolfile";
 	static private final String DEFAULT_CLIENT_LIST_FILE = "odin_client_list";
 	static private final int DEFAULT_PORT = 2819;
+	static private final String SIGNAL_STATISTIC = "signal";
+	static private final long DEFAULT_JOURNAL_SNAPSHOT_INTERVAL = 60000; // milliseconds
 
 	public OdinMaster(){
 		clientManager = new ClientManager();
 		lvapManager = new LvapManager();
 		poolManager = new PoolManager();
 		agentManager = new AgentManager(clientManager, poolManager);
+		subscriptionRegistry = new SubscriptionRegistry(poolManager, agentManager);
+		subscriptionRegistry.setFanOut(fanOut);
+		hearingGraph = new HearingGraph(clientManager, agentManager.getTimeoutWheel());
+		timeSeries = new ClientTimeSeriesStore(clientManager);
+		rxStatsCollector = new RxStatsCollector(agentManager, hearingGraph, timeSeries);
+		probeResponseCoalescer = new ProbeResponseCoalescer(agentManager.getTimeoutWheel(), ProbeResponseCoalescer.DEFAULT_WINDOW);
+		handoffTracer = new HandoffTracer(agentManager.getTimeoutWheel());
+		lvapPrestager = new LvapPrestager(hearingGraph, poolManager, agentManager.getTimeoutWheel());
+		idleLvapTimeouts = agentManager.getTimeoutWheel();
+		agentManager.setAgentListener(agentListener);
 	}
 
 	public OdinMaster(AgentManager agentManager, ClientManager clientManager, LvapManager lvapManager, PoolManager poolManager){
@@ -85,73 +136,142 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 		this.clientManager = clientManager;
 		this.lvapManager = lvapManager;
 		this.poolManager = poolManager;
+		this.subscriptionRegistry = new SubscriptionRegistry(poolManager, agentManager);
+		this.subscriptionRegistry.setFanOut(fanOut);
+		this.hearingGraph = new HearingGraph(clientManager, agentManager.getTimeoutWheel());
+		this.timeSeries = new ClientTimeSeriesStore(clientManager);
+		this.rxStatsCollector = new RxStatsCollector(agentManager, hearingGraph, timeSeries);
+		this.probeResponseCoalescer = new ProbeResponseCoalescer(agentManager.getTimeoutWheel(), ProbeResponseCoalescer.DEFAULT_WINDOW);
+		this.handoffTracer = new HandoffTracer(agentManager.getTimeoutWheel());
+		this.lvapPrestager = new LvapPrestager(hearingGraph, poolManager, agentManager.getTimeoutWheel());
+		this.idleLvapTimeouts = agentManager.getTimeoutWheel();
+		this.agentManager.setAgentListener(agentListener);
 	}
 
 
 	//********* Odin Agent->Master protocol handlers *********//
 
+	/**
+	 * Get a MACAddress for a client hw address decoded from an
+	 * agent's message. Tracked clients get their own instance back,
+	 * so messages about known clients allocate nothing here.
+	 *
+	 * @param clientHwAddress hw address as returned by MACAddress.toLong()
+	 * @return the client's MACAddress
+	 */
+	MACAddress getClientHwAddress (long clientHwAddress) {
+		OdinClient oc = clientManager.getClient(clientHwAddress);
+		return oc != null ? oc.getMacAddress() : MACAddress.valueOf(clientHwAddress);
+	}
+
+
 	/**
 	 * Handle a ping from an agent
 	 *
 	 * @param InetAddress of the agent
 	 */
-	synchronized void receivePing (final InetAddress odinAgentAddr) {
-		if (agentManager.receivePing(odinAgentAddr)) {
-			// if the above leads to a new agent being
-			// tracked, push the current subscription list
-			// to it.
-			IOdinAgent agent = agentManager.getAgent(odinAgentAddr);
-			pushSubscriptionListToAgent(agent);
+	void receivePing (final InetAddress odinAgentAddr) {
+		if (odinAgentAddr == null)
+			return;
 
-			// Reclaim idle lvaps and also attach flows to lvaps
-			for (OdinClient client: agent.getLvapsLocal()) {
-				executor.schedule(new IdleLvapReclaimTask(client), idleLvapTimeout, TimeUnit.SECONDS);
+		// Common case: an agent we already know about
+		if (agentManager.isTracked(odinAgentAddr)) {
+			updateAgentLastHeard (odinAgentAddr);
+			return;
+		}
 
-				// Assign flow tables
-				if (!client.getIpAddress().getHostAddress().equals("0.0.0.0")) {
+		// The agent manager registers the agent on the executor,
+		// and takes the topology and agent locks to publish it
+		if (!agentManager.receivePing(odinAgentAddr)) {
+			updateAgentLastHeard (odinAgentAddr);
+		}
+	}
 
+	/**
+	 * Record the protocol an agent pinged us in. Agents that speak
+	 * the binary protocol are sent binary handler arguments, but
+	 * still accept text ones, which is what they get until their
+	 * first binary ping is heard.
+	 *
+	 * @param odinAgentAddr InetAddress of the agent
+	 * @param version binary protocol version, or 0 for text
+	 */
+	void setAgentProtocolVersion (final InetAddress odinAgentAddr, final int version) {
+		IOdinAgent agent = agentManager.getAgent(odinAgentAddr);
+
+		if (agent == null || agent.getProtocolVersion() == version)
+			return;
+
+		log.info("Agent " + odinAgentAddr.getHostAddress() + " speaks "
+				+ (version > 0 ? "binary protocol version " + version : "the text protocol"));
+		agent.setProtocolVersion(version);
+	}
+
+	/**
+	 * Reclaim idle LVAPs of an agent that has just registered,
+	 * and attach flows to them, once its LVAP table is known
+	 */
+	private void lvapsRecovered (final IOdinAgent agent) {
+		for (OdinClient client: agent.getLvapsLocal()) {
+			scheduleIdleLvapReclaim(client.getMacAddress());
+
+			// Assign flow tables
+			if (!client.getIpAddress().getHostAddress().equals("0.0.0.0")) {
+				Lock clientLock = clientManager.getClientLock(client.getMacAddress());
+				clientLock.lock();
+
+				try {
 					// Obtain reference to client entity from clientManager, because agent.getLvapsLocal()
 					// returns a separate copy of the client objects.
-					OdinClient trackedClient = clientManager.getClients().get(client.getMacAddress());
+					OdinClient trackedClient = clientManager.getClient(client.getMacAddress());
 					Lvap lvap = trackedClient.getLvap();
 					assert (lvap != null);
 					lvap.setOFMessageList(lvapManager.getDefaultOFModList(client.getIpAddress()));
 
 					// Push flow messages associated with the client
-        			try {
-        				lvap.getAgent().getSwitch().write(lvap.getOFMessageList(), null);
-        			} catch (IOException e) {
-        				log.error("Failed to update switch's flow tables " + lvap.getAgent().getSwitch());
-        			}
+					try {
+						lvap.getAgent().getSwitch().write(lvap.getOFMessageList(), null);
+					} catch (IOException e) {
+						log.error("Failed to update switch's flow tables " + lvap.getAgent().getSwitch());
+					}
+				} finally {
+					clientLock.unlock();
 				}
 			}
 		}
-		else {
-			updateAgentLastHeard (odinAgentAddr);
-		}
 	}
 
-	synchronized void receiveDeauth (final InetAddress odinAgentAddr, final MACAddress clientHwAddress) {
+	void receiveDeauth (final InetAddress odinAgentAddr, final MACAddress clientHwAddress) {
 
 		if (clientHwAddress == null || odinAgentAddr == null)
 			return;
 
-		IOdinAgent agent = agentManager.getAgent(odinAgentAddr);
-		OdinClient oc = clientManager.getClient(clientHwAddress);
+		Lock clientLock = lockClient(clientHwAddress);
 
-		if(agent == null)
-			return;
+		try {
+			IOdinAgent agent = agentManager.getAgent(odinAgentAddr);
+			OdinClient oc = clientManager.getClient(clientHwAddress);
 
-		log.info("Clearing Lvap " + clientHwAddress +
-		" from agent:" + agent.getIpAddress() + " due to deauthentication/inactivity");
-		poolManager.removeClientPoolMapping(oc);
-		agent.removeClientLvap(oc);
-		clientManager.removeClient(clientHwAddress);
+			if(agent == null || oc == null)
+				return;
 
+			log.info("Clearing Lvap " + clientHwAddress +
+			" from agent:" + agent.getIpAddress() + " due to deauthentication/inactivity");
+			poolManager.removeClientPoolMapping(oc);
+			agent.removeClientLvap(oc);
+			clientManager.removeClient(clientHwAddress);
+			hearingGraph.removeClient(clientHwAddress);
+			timeSeries.removeClient(clientHwAddress);
+			subscriptionRegistry.removeClient(clientHwAddress);
+			lvapPrestager.clientRemoved(clientHwAddress);
+			idleLvapTimeouts.cancel(clientHwAddress);
+		} finally {
+			unlockClient(clientLock);
+		}
 	}
 
 	/* This method stops the timer that clears the lvap if an IP is not received for the client */
-	synchronized void receiveAssoc (final InetAddress odinAgentAddr, final MACAddress clientHwAddress) {
+	void receiveAssoc (final InetAddress odinAgentAddr, final MACAddress clientHwAddress) {
 
 		if (clientHwAddress == null || odinAgentAddr == null)
 			return;
@@ -163,8 +283,18 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 
 		log.info("Client " + clientHwAddress + " completed the association");
 
-		OdinClient oc = clientManager.getClient(clientHwAddress);
-		oc.getLvap().setAssocState(true); //associated;
+		Lock clientLock = lockClient(clientHwAddress);
+
+		try {
+			OdinClient oc = clientManager.getClient(clientHwAddress);
+
+			if (oc != null) {
+				oc.getLvap().setAssocState(true); //associated;
+				idleLvapTimeouts.cancel(clientHwAddress);
+			}
+		} finally {
+			unlockClient(clientLock);
+		}
 
 		//poolManager.removeClientPoolMapping(oc);
 		//agent.removeClientLvap(oc);
@@ -179,7 +309,7 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 	 * @param odinAgentAddr InetAddress of agent
 	 * @param clientHwAddress MAC address of client that performed probe scan
 	 */
-	synchronized void receiveProbe (final InetAddress odinAgentAddr, final MACAddress clientHwAddress, String ssid) {
+	void receiveProbe (final InetAddress odinAgentAddr, final MACAddress clientHwAddress, String ssid) {
 
 		if (odinAgentAddr == null
 	    	|| clientHwAddress == null
@@ -190,6 +320,16 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 			return;
 		}
 
+		Lock clientLock = lockClient(clientHwAddress);
+
+		try {
+			receiveProbeLocked(odinAgentAddr, clientHwAddress, ssid);
+		} finally {
+			unlockClient(clientLock);
+		}
+	}
+
+	private void receiveProbeLocked (final InetAddress odinAgentAddr, final MACAddress clientHwAddress, String ssid) {
 		updateAgentLastHeard(odinAgentAddr);
 
 		/*
@@ -197,21 +337,16 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 		 * probe responses without spawning lvaps
 		 */
 		if (ssid.equals("")) {
-			// we just send probe responses
+			// we just send probe responses, but only one per
+			// burst of probes from the client
 			IOdinAgent agent = agentManager.getAgent(odinAgentAddr);
-			MACAddress bssid = poolManager.generateBssidForClient(clientHwAddress);
-
-			// FIXME: Sub-optimal. We'll end up generating redundant probe requests
-			Set<String> ssidSet = new TreeSet<String> ();
-			for (String pool: poolManager.getPoolsForAgent(odinAgentAddr)) {
-
-				if (pool.equals(PoolManager.GLOBAL_POOL))
-					continue;
 
-				ssidSet.addAll(poolManager.getSsidListForPool(pool));
-			}
+			if (agent == null
+				|| !probeResponseCoalescer.shouldSend(odinAgentAddr, clientHwAddress, poolManager.getSsidVersion()))
+				return;
 
-			executor.execute(new OdinAgentSendProbeResponseRunnable(agent, clientHwAddress, bssid, ssidSet));
+			MACAddress bssid = poolManager.generateBssidForClient(clientHwAddress);
+			agent.sendProbeResponse(clientHwAddress, bssid, poolManager.getSsidSetForAgent(odinAgentAddr));
 
 			return;
 		}
@@ -221,44 +356,43 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 		 * which pool is hosting the SSID, and assign
 		 * an LVAP into that pool
 		 */
-		for (String pool: poolManager.getPoolsForAgent(odinAgentAddr)) {
-			if (poolManager.getSsidListForPool(pool).contains(ssid)) {
-				OdinClient oc = clientManager.getClient(clientHwAddress);
+		String pool = poolManager.getPoolForSsid(ssid);
 
-		    	// Hearing from this client for the first time
-		    	if (oc == null) {
-					List<String> ssidList = new ArrayList<String> ();
-					ssidList.addAll(poolManager.getSsidListForPool(pool));
+		if (pool == null || !poolManager.isAgentInPool(odinAgentAddr, pool))
+			return;
 
-					Lvap lvap = new Lvap (poolManager.generateBssidForClient(clientHwAddress), ssidList);
+		OdinClient oc = clientManager.getClient(clientHwAddress);
 
-					try {
-						oc = new OdinClient(clientHwAddress, InetAddress.getByName("0.0.0.0"), lvap);
-					} catch (UnknownHostException e) {
-						e.printStackTrace();
-					}
-		    		clientManager.addClient(oc);
-		    	}
+		// Hearing from this client for the first time
+		if (oc == null) {
+			List<String> ssidList = new ArrayList<String> ();
+			ssidList.addAll(poolManager.getSsidListForPool(pool));
 
-		    	Lvap lvap = oc.getLvap();
-		    	assert (lvap != null);
+			Lvap lvap = new Lvap (poolManager.generateBssidForClient(clientHwAddress), ssidList);
 
-				if (lvap.getAgent() == null) {
-					// client is connecting for the
-					// first time, had explicitly
-					// disconnected, or knocked
-					// out at as a result of an agent
-					// failure.
+			try {
+				oc = new OdinClient(clientHwAddress, InetAddress.getByName("0.0.0.0"), lvap);
+			} catch (UnknownHostException e) {
+				e.printStackTrace();
+			}
+			clientManager.addClient(oc);
+		}
 
-					// Use global pool for first time connections
-					handoffClientToApInternal(PoolManager.GLOBAL_POOL, clientHwAddress, odinAgentAddr);
-				}
+		Lvap lvap = oc.getLvap();
+		assert (lvap != null);
 
-				poolManager.mapClientToPool(oc, pool);
+		if (lvap.getAgent() == null) {
+			// client is connecting for the
+			// first time, had explicitly
+			// disconnected, or knocked
+			// out at as a result of an agent
+			// failure.
 
-				return;
-			}
+			// Use global pool for first time connections
+			handoffClientToApInternal(PoolManager.GLOBAL_POOL, clientHwAddress, odinAgentAddr);
 		}
+
+		poolManager.mapClientToPool(oc, pool);
 	}
 
 	/**
@@ -268,7 +402,7 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 	 * @param odinAgentAddr agent at which the event was triggered
 	 * @param subscriptionIds list of subscription Ids that the event matches
 	 */
-	synchronized void receivePublish (final MACAddress clientHwAddress, final InetAddress odinAgentAddr, final Map<Long, Long> subscriptionIds) {
+	void receivePublish (final MACAddress clientHwAddress, final InetAddress odinAgentAddr, final Map<Long, Long> subscriptionIds) {
 
 		// The check for null clientHwAddress might go away
 		// in the future if we end up having events
@@ -283,22 +417,151 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 			return;
 
 		// Update last-heard for failure detection
-		oa.setLastHeard(System.currentTimeMillis());
+		agentManager.agentHeard(oa);
+		handoffTracer.publishHeard(clientHwAddress, odinAgentAddr);
+		publishStats.publishReceived(odinAgentAddr, subscriptionIds.size());
+
+		// Callbacks for the same client run one at a time,
+		// callbacks for different clients run in parallel
+		Lock clientLock = lockClient(clientHwAddress);
+
+		try {
+			boolean signalHeard = false;
+			List<SubscriptionRegistry.Subscription> matched = new ArrayList<SubscriptionRegistry.Subscription>();
+
+			for (Entry<Long, Long> entry: subscriptionIds.entrySet()) {
+				matched.clear();
+				String statistic = subscriptionRegistry.match(entry.getKey(), clientHwAddress, odinAgentAddr, entry.getValue(), matched);
+
+				/* This might occur as a race condition when the master
+				 * has cleared all subscriptions, but hasn't notified
+				 * the agent about it yet.
+				 */
+				if (statistic == null)
+					continue;
 
-		for (Entry<Long, Long> entry: subscriptionIds.entrySet()) {
-			SubscriptionCallbackTuple tup = subscriptions.get(entry.getKey());
+				if (!signalHeard && SIGNAL_STATISTIC.equals(statistic)) {
+					long now = System.currentTimeMillis();
+					hearingGraph.hear(clientHwAddress, odinAgentAddr, entry.getValue(), now);
+					timeSeries.record(clientHwAddress, odinAgentAddr, ClientMetric.SIGNAL, entry.getValue(), now);
+					considerPrestaging(clientHwAddress, oa);
+					signalHeard = true;
+				}
 
-			/* This might occur as a race condition when the master
-			 * has cleared all subscriptions, but hasn't notified
-			 * the agent about it yet.
-			 */
-			if (tup == null)
-				continue;
+				for (SubscriptionRegistry.Subscription sub: matched) {
+					NotificationCallbackContext cntx = new NotificationCallbackContext(clientHwAddress, oa, entry.getValue());
+
+					sub.cb.exec(sub.oes, cntx);
+				}
+			}
+		} finally {
+			unlockClient(clientLock);
+		}
+	}
+
+
+	/**
+	 * Handle a batch of publishes from an agent, about any number of
+	 * clients. Plain callbacks run once per entry, as for a publish,
+	 * while BatchNotificationCallbacks run once per batch, with all
+	 * its entries for their subscription.
+	 *
+	 * The arrays are only valid for the duration of the call.
+	 *
+	 * @param odinAgentAddr InetAddress of the agent
+	 * @param clientHwAddresses the client the i-th entry is about
+	 * @param subscriptionIds subscription of the i-th entry
+	 * @param values value of the i-th entry
+	 * @param count number of entries
+	 */
+	void receivePublish (final InetAddress odinAgentAddr, final MACAddress[] clientHwAddresses,
+			final long[] subscriptionIds, final long[] values, final int count) {
+
+		if (odinAgentAddr == null || clientHwAddresses == null || subscriptionIds == null || values == null)
+			return;
+
+		IOdinAgent oa = agentManager.getAgent(odinAgentAddr);
+
+		// This should never happen!
+		if (oa == null)
+			return;
+
+		agentManager.agentHeard(oa);
+		publishStats.batchReceived(odinAgentAddr, count);
 
+		Map<SubscriptionRegistry.Subscription, List<Integer>> batched = null;
+		List<SubscriptionRegistry.Subscription> matched = new ArrayList<SubscriptionRegistry.Subscription>();
+		long now = System.currentTimeMillis();
+		int i = 0;
 
-			NotificationCallbackContext cntx = new NotificationCallbackContext(clientHwAddress, oa, entry.getValue());
+		while (i < count) {
+			// Agents put the entries about a client next to each
+			// other, and each run of them is handled under one lock
+			MACAddress clientHwAddress = clientHwAddresses[i];
+			int runEnd = i + 1;
 
-			tup.cb.exec(tup.oes, cntx);
+			while (runEnd < count && clientHwAddresses[runEnd].equals(clientHwAddress))
+				runEnd++;
+
+			handoffTracer.publishHeard(clientHwAddress, odinAgentAddr);
+			Lock clientLock = lockClient(clientHwAddress);
+
+			try {
+				boolean signalHeard = false;
+
+				for (; i < runEnd; i++) {
+					matched.clear();
+					String statistic = subscriptionRegistry.match(subscriptionIds[i], clientHwAddress, odinAgentAddr, values[i], matched);
+
+					if (statistic == null)
+						continue;
+
+					if (!signalHeard && SIGNAL_STATISTIC.equals(statistic)) {
+						hearingGraph.hear(clientHwAddress, odinAgentAddr, values[i], now);
+						timeSeries.record(clientHwAddress, odinAgentAddr, ClientMetric.SIGNAL, values[i], now);
+						considerPrestaging(clientHwAddress, oa);
+						signalHeard = true;
+					}
+
+					for (SubscriptionRegistry.Subscription sub: matched) {
+						if (sub.cb instanceof BatchNotificationCallback) {
+							if (batched == null)
+								batched = new LinkedHashMap<SubscriptionRegistry.Subscription, List<Integer>>();
+
+							List<Integer> entries = batched.get(sub);
+
+							if (entries == null) {
+								entries = new ArrayList<Integer>();
+								batched.put(sub, entries);
+							}
+
+							entries.add(i);
+							continue;
+						}
+
+						sub.cb.exec(sub.oes, new NotificationCallbackContext(clientHwAddress, oa, values[i]));
+					}
+				}
+			} finally {
+				unlockClient(clientLock);
+			}
+		}
+
+		if (batched == null)
+			return;
+
+		for (Entry<SubscriptionRegistry.Subscription, List<Integer>> entry: batched.entrySet()) {
+			SubscriptionRegistry.Subscription sub = entry.getKey();
+			List<Integer> entries = entry.getValue();
+			MACAddress[] batchHwAddresses = new MACAddress[entries.size()];
+			long[] batchValues = new long[entries.size()];
+
+			for (int j = 0; j < batchValues.length; j++) {
+				batchHwAddresses[j] = clientHwAddresses[entries.get(j)];
+				batchValues[j] = values[entries.get(j)];
+			}
+
+			((BatchNotificationCallback) sub.cb).execBatch(sub.oes, new BatchNotificationCallbackContext(oa, batchHwAddresses, batchValues));
 		}
 	}
 
@@ -319,7 +582,9 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 			return;
 		}
 
-		synchronized (this) {
+		Lock clientLock = lockClient(clientHwAddr);
+
+		try {
 
 			IOdinAgent newAgent = agentManager.getAgent(newApIpAddr);
 
@@ -329,86 +594,159 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 				return;
 			}
 
-			OdinClient client = clientManager.getClient(clientHwAddr);
+			handoffLocked(pool, clientHwAddr, newAgent, null);
+		} finally {
+			unlockClient(clientLock);
+		}
+	}
 
-			// Ignore request if we don't know the client
-			if (client == null) {
-				log.error("Handoff request ignored: OdinClient " + clientHwAddr + " doesn't exist");
-				return;
-			}
+	/**
+	 * Hand off a client whose lock is held. If a batch is given,
+	 * flow messages are collected in it instead of being written
+	 * straight away, and the agents involved join its command batch.
+	 *
+	 * @return future that completes once the agents have acknowledged
+	 *         the LVAP commands, or has failed if the handoff was refused
+	 */
+	private OdinAgentFuture<Void> handoffLocked (String pool, final MACAddress clientHwAddr, final IOdinAgent newAgent, HandoffBatch batch) {
+		InetAddress newApIpAddr = newAgent.getIpAddress();
+		OdinClient client = clientManager.getClient(clientHwAddr);
 
-			Lvap lvap = client.getLvap();
+		// Ignore request if we don't know the client
+		if (client == null) {
+			return refuseHandoff("Handoff request ignored: OdinClient " + clientHwAddr + " doesn't exist");
+		}
 
-			assert (lvap != null);
+		Lvap lvap = client.getLvap();
 
-			/* If the client is connecting for the first time, then it
-			 * doesn't have a VAP associated with it already
-			 */
-			if (lvap.getAgent() == null) {
-				log.info ("Client: " + clientHwAddr + " connecting for first time. Assigning to: " + newAgent.getIpAddress());
+		assert (lvap != null);
 
-				// Push flow messages associated with the client
-				try {
-					newAgent.getSwitch().write(lvap.getOFMessageList(), null);
-				} catch (IOException e) {
-					log.error("Failed to update switch's flow tables " + newAgent.getSwitch());
-				}
+		/* If the client is connecting for the first time, then it
+		 * doesn't have a VAP associated with it already
+		 */
+		if (lvap.getAgent() == null) {
+			log.info ("Client: " + clientHwAddr + " connecting for first time. Assigning to: " + newAgent.getIpAddress());
 
-				newAgent.addClientLvap(client);
-				lvap.setAgent(newAgent);
-				executor.schedule(new IdleLvapReclaimTask (client), idleLvapTimeout, TimeUnit.SECONDS);
-				return;
-			}
+			HandoffTracer.Trace trace = handoffTracer.begin(clientHwAddr, pool, null, newApIpAddr);
 
-			/* If the client is already associated with AP-newIpAddr, we ignore
-			 * the request.
-			 */
-			InetAddress currentApIpAddress = lvap.getAgent().getIpAddress();
-			if (currentApIpAddress.getHostAddress().equals(newApIpAddr.getHostAddress())) {
-				log.info ("Client " + clientHwAddr + " is already associated with AP " + newApIpAddr);
-				return;
-			}
+			// Push flow messages associated with the client
+			writeFlowMessages(newAgent, lvap.getOFMessageList(), batch, trace);
 
-			/* Verify permissions.
-			 *
-			 * - newAP and oldAP should both fall within the same pool.
-			 * - client should be within the same pool as the two APs.
-			 * - invoking application should be operating on the same pools
-			 *
-			 * By design, this prevents handoffs within the scope of the
-			 * GLOBAL_POOL since that would violate a lot of invariants
-			 * in the rest of the system.
-			 */
+			if (batch != null)
+				batch.join(newAgent);
 
-			String clientPool = poolManager.getPoolForClient(client);
+			OdinAgentFuture<Void> added = newAgent.addClientLvapAsync(client);
+			added.addListener(new LvapCommandFailureLogger("add", newAgent, client));
+			added.addListener(new HandoffPhaseListener(trace, HandoffTracer.Phase.ADD_VAP));
+			clientManager.setClientAgent(client, newAgent);
+			scheduleIdleLvapReclaim(clientHwAddr);
+			return added;
+		}
 
-			if (clientPool == null || !clientPool.equals(pool)) {
-				log.error ("Cannot handoff client '" + client.getMacAddress() + "' from " + clientPool + " domain when in domain: '" + pool + "'");
-			}
+		/* If the client is already associated with AP-newIpAddr, we ignore
+		 * the request.
+		 */
+		InetAddress currentApIpAddress = lvap.getAgent().getIpAddress();
+		if (currentApIpAddress.getHostAddress().equals(newApIpAddr.getHostAddress())) {
+			log.info ("Client " + clientHwAddr + " is already associated with AP " + newApIpAddr);
+			return OdinAgentFuture.completed(null);
+		}
 
-			if (! (poolManager.getPoolsForAgent(newApIpAddr).contains(pool)
-					&& poolManager.getPoolsForAgent(currentApIpAddress).contains(pool)) ){
-				log.info ("Agents " + newApIpAddr + " and " + currentApIpAddress + " are not in the same pool: " + pool);
-				return;
-			}
+		/* Verify permissions.
+		 *
+		 * - newAP and oldAP should both fall within the same pool.
+		 * - client should be within the same pool as the two APs.
+		 * - invoking application should be operating on the same pools
+		 *
+		 * By design, this prevents handoffs within the scope of the
+		 * GLOBAL_POOL since that would violate a lot of invariants
+		 * in the rest of the system.
+		 */
 
-			// Push flow messages associated with the client
-			try {
-				newAgent.getSwitch().write(lvap.getOFMessageList(), null);
-			} catch (IOException e) {
-				log.error("Failed to update switch's flow tables " + newAgent.getSwitch());
-			}
+		String clientPool = poolManager.getPoolForClient(client);
 
-			/* Client is with another AP. We remove the VAP from
-			 * the current AP of the client, and spawn it on the new one.
-			 * We split the add and remove VAP operations across two threads
-			 * to make it faster. Note that there is a temporary inconsistent
-			 * state between setting the agent for the client and it actually
-			 * being reflected in the network
-			 */
-			lvap.setAgent(newAgent);
-			executor.execute(new OdinAgentLvapAddRunnable(newAgent, client));
-			executor.execute(new OdinAgentLvapRemoveRunnable(agentManager.getAgent(currentApIpAddress), client));
+		if (clientPool == null || !clientPool.equals(pool)) {
+			log.error ("Cannot handoff client '" + client.getMacAddress() + "' from " + clientPool + " domain when in domain: '" + pool + "'");
+		}
+
+		if (! (poolManager.getPoolsForAgent(newApIpAddr).contains(pool)
+				&& poolManager.getPoolsForAgent(currentApIpAddress).contains(pool)) ){
+			log.info ("Agents " + newApIpAddr + " and " + currentApIpAddress + " are not in the same pool: " + pool);
+			return OdinAgentFuture.failed(new IllegalArgumentException("Agents " + newApIpAddr + " and "
+					+ currentApIpAddress + " are not in the same pool: " + pool));
+		}
+
+		HandoffTracer.Trace trace = handoffTracer.begin(clientHwAddr, pool, currentApIpAddress, newApIpAddr);
+
+		/* Push flow messages associated with the client, unless
+		 * they were pushed when its LVAP was staged on the new agent
+		 */
+		if (lvapPrestager.claim(client, newAgent)) {
+			handoffTracer.markPrestaged(trace);
+			handoffTracer.mark(trace, HandoffTracer.Phase.FLOW_MODS);
+		}
+		else {
+			writeFlowMessages(newAgent, lvap.getOFMessageList(), batch, trace);
+		}
+
+		/* Client is with another AP. We remove the VAP from
+		 * the current AP of the client, and spawn it on the new one.
+		 * Both operations are queued on the agents' control channels
+		 * without waiting for the replies, so neither agent can stall
+		 * the other. Note that there is a temporary inconsistent
+		 * state between setting the agent for the client and it actually
+		 * being reflected in the network
+		 */
+		IOdinAgent oldAgent = agentManager.getAgent(currentApIpAddress);
+
+		if (batch != null) {
+			batch.join(newAgent);
+			batch.join(oldAgent);
+		}
+
+		clientManager.setClientAgent(client, newAgent);
+		List<OdinAgentFuture<Void>> commands = new ArrayList<OdinAgentFuture<Void>>(2);
+		commands.add(newAgent.addClientLvapAsync(client));
+		commands.get(0).addListener(new LvapCommandFailureLogger("add", newAgent, client));
+		commands.get(0).addListener(new HandoffPhaseListener(trace, HandoffTracer.Phase.ADD_VAP));
+		commands.add(oldAgent.removeClientLvapAsync(client));
+		commands.get(1).addListener(new LvapCommandFailureLogger("remove", oldAgent, client));
+		commands.get(1).addListener(new HandoffPhaseListener(trace, HandoffTracer.Phase.REMOVE_VAP));
+
+		return OdinAgentFuture.all(commands);
+	}
+
+	/**
+	 * Stage the LVAP of a client whose lock is held on an agent
+	 * that has just heard it, if the agent is a likely next one
+	 */
+	private void considerPrestaging (MACAddress clientHwAddress, IOdinAgent agent) {
+		if (!lvapPrestager.isEnabled())
+			return;
+
+		OdinClient client = clientManager.getClient(clientHwAddress);
+
+		if (client != null)
+			lvapPrestager.consider(client, agent);
+	}
+
+	private OdinAgentFuture<Void> refuseHandoff (String reason) {
+		log.error(reason);
+		return OdinAgentFuture.failed(new IllegalArgumentException(reason));
+	}
+
+	private void writeFlowMessages (IOdinAgent agent, List<OFMessage> messages, HandoffBatch batch, HandoffTracer.Trace trace) {
+		if (batch != null) {
+			batch.addFlowMessages(agent, messages, trace);
+			return;
+		}
+
+		try {
+			agent.getSwitch().write(messages, null);
+			handoffTracer.mark(trace, HandoffTracer.Phase.FLOW_MODS);
+		} catch (IOException e) {
+			log.error("Failed to update switch's flow tables " + agent.getSwitch());
+			handoffTracer.fail(trace, HandoffTracer.Phase.FLOW_MODS);
 		}
 	}
 
@@ -426,6 +764,71 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 	}
 
 
+	/**
+	 * VAP-Handoff several clients at once. Each target agent is looked
+	 * up once, every client is validated under its own lock as in
+	 * handoffClientToAp(), and the resulting Click commands and flow
+	 * messages are grouped per agent, so that each agent's control
+	 * socket and switch see a single write for the whole batch.
+	 *
+	 * @param pool that the invoking application corresponds to
+	 * @param handoffs new AP for each client, keyed by client HW address
+	 * @return future for each client, that fails if its handoff was refused
+	 */
+	@Override
+	public Map<MACAddress, OdinAgentFuture<Void>> handoffClientsToAps (String pool, Map<MACAddress, InetAddress> handoffs) {
+		Map<MACAddress, OdinAgentFuture<Void>> results = new HashMap<MACAddress, OdinAgentFuture<Void>>();
+
+		if (pool == null || handoffs == null) {
+			log.error("null argument in handoffClientsToAps(): pool: " + pool + " handoffs: " + handoffs);
+			return results;
+		}
+
+		Map<InetAddress, IOdinAgent> targets = new HashMap<InetAddress, IOdinAgent>();
+		HandoffBatch batch = new HandoffBatch();
+
+		try {
+			for (Entry<MACAddress, InetAddress> entry: handoffs.entrySet()) {
+				MACAddress clientHwAddr = entry.getKey();
+				InetAddress newApIpAddr = entry.getValue();
+
+				if (clientHwAddr == null || newApIpAddr == null) {
+					results.put(clientHwAddr, refuseHandoff("null argument in handoffClientsToAps(): clientHwAddr: "
+							+ clientHwAddr + " newApIpAddr: " + newApIpAddr));
+					continue;
+				}
+
+				IOdinAgent newAgent = targets.get(newApIpAddr);
+
+				if (newAgent == null) {
+					newAgent = agentManager.getAgent(newApIpAddr);
+
+					if (newAgent == null) {
+						results.put(clientHwAddr, refuseHandoff("Handoff request ignored: OdinAgent " + newApIpAddr + " doesn't exist"));
+						continue;
+					}
+
+					targets.put(newApIpAddr, newAgent);
+				}
+
+				Lock clientLock = lockClient(clientHwAddr);
+
+				try {
+					results.put(clientHwAddr, handoffLocked(pool, clientHwAddr, newAgent, batch));
+				} finally {
+					unlockClient(clientLock);
+				}
+			}
+
+			batch.writeFlowMessages();
+		} finally {
+			batch.end();
+		}
+
+		return results;
+	}
+
+
 	/**
 	 * Get the list of clients currently registered with Odin
 	 *
@@ -465,6 +868,153 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 	}
 
 
+	/**
+	 * Get RxStats of an agent from the stats cache
+	 *
+	 * @param pool that the invoking application corresponds to
+	 * @param agentAddr InetAddress of the agent
+	 * @param maxStaleness maximum age of the stats, in milliseconds
+	 * @param forceRefresh read the stats from the agent regardless
+	 *
+	 * @return snapshot of the agent's stats, or null if the agent isn't tracked
+	 */
+	@Override
+	public RxStatsSnapshot getRxStats (String pool, InetAddress agentAddr, long maxStaleness, boolean forceRefresh) {
+		return forceRefresh ? rxStatsCollector.refresh(agentAddr) : rxStatsCollector.getRxStats(agentAddr, maxStaleness);
+	}
+
+
+	/**
+	 * Get the agents in the pool that hear a client best, from the
+	 * hearing graph. Only agents that heard the client recently are
+	 * considered.
+	 *
+	 * @param pool that the invoking application corresponds to
+	 * @param clientHwAddress MACAddress of the client
+	 * @param k maximum number of agents to return
+	 *
+	 * @return up to k links, strongest smoothed signal first
+	 */
+	@Override
+	public List<HearingLink> getBestAgentsForClient (String pool, MACAddress clientHwAddress, int k) {
+		List<HearingLink> best = new ArrayList<HearingLink>(k);
+
+		for (HearingLink link: hearingGraph.getBestAgents(clientHwAddress, Integer.MAX_VALUE)) {
+			if (best.size() == k)
+				break;
+
+			if (agentManager.getAgent(link.getAgentAddress()) != null
+					&& poolManager.getPoolsForAgent(link.getAgentAddress()).contains(pool)) {
+				best.add(link);
+			}
+		}
+
+		return best;
+	}
+
+
+	/**
+	 * Get the clients of the pool that an agent hears, from the
+	 * hearing graph
+	 *
+	 * @param pool that the invoking application corresponds to
+	 * @param agentAddr InetAddress of the agent
+	 *
+	 * @return a link for each client the agent heard recently
+	 */
+	@Override
+	public List<HearingLink> getClientsHeardByAgent (String pool, InetAddress agentAddr) {
+		List<HearingLink> heard = new ArrayList<HearingLink>();
+
+		for (HearingLink link: hearingGraph.getAudibleClients(agentAddr)) {
+			OdinClient oc = clientManager.getClient(link.getClientHwAddress());
+
+			if (oc != null && pool.equals(poolManager.getPoolForClient(oc))) {
+				heard.add(link);
+			}
+		}
+
+		return heard;
+	}
+
+
+	/**
+	 * Summarize the recent history of a metric of a client, as
+	 * heard by an agent in the pool
+	 *
+	 * @param pool that the invoking application corresponds to
+	 * @param clientHwAddress MACAddress of the client
+	 * @param agentAddr InetAddress of the agent
+	 * @param metric the metric
+	 * @param window milliseconds to aggregate over, back from now
+	 *
+	 * @return the summary, or null if there is no history
+	 */
+	@Override
+	public TimeSeriesSummary getClientHistory (String pool, MACAddress clientHwAddress, InetAddress agentAddr, ClientMetric metric, long window) {
+		if (!poolManager.getPoolsForAgent(agentAddr).contains(pool))
+			return null;
+
+		return timeSeries.query(clientHwAddress, agentAddr, metric, window);
+	}
+
+
+	/**
+	 * Start the spectral scan of an agent in the pool
+	 *
+	 * @param pool that the invoking application corresponds to
+	 * @param agentAddr InetAddress of the agent
+	 * @param period milliseconds between the agent's scan rounds
+	 *
+	 * @return true if the scan was requested
+	 */
+	@Override
+	public boolean startSpectralScan (String pool, InetAddress agentAddr, int period) {
+		IOdinAgent agent = agentManager.getAgent(agentAddr);
+
+		if (agent == null || period <= 0 || !poolManager.getPoolsForAgent(agentAddr).contains(pool))
+			return false;
+
+		return spectralScanManager.start(agent, period);
+	}
+
+
+	/**
+	 * Stop the spectral scan of an agent in the pool
+	 *
+	 * @param pool that the invoking application corresponds to
+	 * @param agentAddr InetAddress of the agent
+	 *
+	 * @return true if the agent was scanning
+	 */
+	@Override
+	public boolean stopSpectralScan (String pool, InetAddress agentAddr) {
+		if (!poolManager.getPoolsForAgent(agentAddr).contains(pool))
+			return false;
+
+		return spectralScanManager.stop(agentAddr);
+	}
+
+
+	/**
+	 * Get per-channel aggregates of the spectral scan of an agent
+	 * in the pool
+	 *
+	 * @param pool that the invoking application corresponds to
+	 * @param agentAddr InetAddress of the agent
+	 * @param window milliseconds to aggregate over, back from now
+	 *
+	 * @return one entry per channel, by frequency, or null if the agent isn't scanning
+	 */
+	@Override
+	public List<ChannelOccupancy> getChannelOccupancy (String pool, InetAddress agentAddr, long window) {
+		if (!poolManager.getPoolsForAgent(agentAddr).contains(pool))
+			return null;
+
+		return spectralScanManager.getOccupancy(agentAddr, window);
+	}
+
+
 	/**
 	 * Get a list of Odin agents from the agent tracker
 	 * @return a map of OdinAgent objects keyed by Ipv4 addresses
@@ -486,142 +1036,300 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 	 * @param cb the callback
 	 */
 	@Override
-	public synchronized long registerSubscription (String pool, final OdinEventSubscription oes, final NotificationCallback cb) {
-		// FIXME: Need to calculate subscriptions per pool
+	public long registerSubscription (String pool, final OdinEventSubscription oes, final NotificationCallback cb) {
 		assert (oes != null);
 		assert (cb != null);
-		SubscriptionCallbackTuple tup = new SubscriptionCallbackTuple();
-		tup.oes = oes;
-		tup.cb = cb;
-		subscriptionId++;
-		subscriptions.put(subscriptionId, tup);
-
-		/**
-		 * Update the subscription list, and push to all agents
-		 * TODO: This is a common subsription string being
-		 * sent to all agents. Replace this with per-agent
-		 * subscriptions.
-		 */
-		subscriptionList = "";
-		int count = 0;
-		for (Entry<Long, SubscriptionCallbackTuple> entry: subscriptions.entrySet()) {
-			count++;
-			final String addr = entry.getValue().oes.getClient();
-			subscriptionList = subscriptionList +
-								entry.getKey() + " " +
-								(addr.equals("*") ? MACAddress.valueOf("00:00:00:00:00:00") : addr)  + " " +
-								entry.getValue().oes.getStatistic() + " " +
-								entry.getValue().oes.getRelation().ordinal() + " " +
-								entry.getValue().oes.getValue() + " ";
+
+		// Only the agents in the pool whose list
+		// has changed are updated
+		return subscriptionRegistry.register(pool, oes, cb);
+	}
+
+
+	/**
+	 * Remove a subscription from the list
+	 *
+	 * @param id subscription id to remove
+	 * @return
+	 */
+	@Override
+	public void unregisterSubscription (String pool, final long id) {
+		subscriptionRegistry.unregister(pool, id);
+	}
+
+
+	/**
+	 * Add an SSID to the Odin network.
+	 *
+	 * @param networkName
+	 * @return true if the network could be added, false otherwise
+	 */
+	@Override
+	public boolean addNetwork (String pool, String ssid) {
+		return addNetworkAsync(pool, ssid) != null;
+	}
+
+
+	/**
+	 * Add an SSID to the Odin network, and update the LVAPs
+	 * of the pool's clients on their agents
+	 *
+	 * @param networkName
+	 * @return report of the LVAP updates, or null if the network couldn't be added
+	 */
+	@Override
+	public FanOutReport addNetworkAsync (String pool, String ssid) {
+		Lock topologyLock = lockTopology();
+
+		try {
+			if (!poolManager.addNetworkForPool(pool, ssid))
+				return null;
+
+			for (OdinClient oc: poolManager.getClientsFromPool(pool)) {
+				Lvap lvap = oc.getLvap();
+				assert (lvap != null);
+				lvap.getSsids().add(ssid);
+			}
+
+			return updatePoolLvaps(pool, "addNetwork " + ssid);
+		} finally {
+			topologyLock.unlock();
 		}
+	}
+
+
+	/**
+	 * Remove an SSID from the Odin network.
+	 *
+	 * @param networkName
+	 * @return true if the network could be removed, false otherwise
+	 */
+	@Override
+	public boolean removeNetwork (String pool, String ssid) {
+		return removeNetworkAsync(pool, ssid) != null;
+	}
+
+
+	/**
+	 * Remove an SSID from the Odin network, and update the LVAPs
+	 * of the pool's clients on their agents
+	 *
+	 * @param networkName
+	 * @return report of the LVAP updates, or null if the network couldn't be removed
+	 */
+	@Override
+	public FanOutReport removeNetworkAsync (String pool, String ssid) {
+		Lock topologyLock = lockTopology();
+
+		try {
+			if (!poolManager.removeNetworkFromPool(pool, ssid))
+				return null;
+
+			// need to update all existing lvaps in the network as well
+			for (OdinClient oc: poolManager.getClientsFromPool(pool)) {
+				Lvap lvap = oc.getLvap();
+				assert (lvap != null);
+				lvap.getSsids().remove(ssid);
+			}
+
+			return updatePoolLvaps(pool, "removeNetwork " + ssid);
+		} finally {
+			topologyLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Send the LVAPs of a pool's clients to their agents, grouped
+	 * by agent. Called with the topology lock held: the LVAPs are
+	 * copied, and their updates queued, under the lock, so agents
+	 * get successive changes in order, but the commands are only
+	 * issued by the fan-out, once the lock has been released.
+	 */
+	private FanOutReport updatePoolLvaps (String pool, final String operation) {
+		Map<IOdinAgent, List<OdinClient>> updates = new HashMap<IOdinAgent, List<OdinClient>>();
+
+		for (OdinClient oc: poolManager.getClientsFromPool(pool)) {
+			Lvap lvap = oc.getLvap();
+			IOdinAgent agent = lvap.getAgent();
+
+			if (agent == null)
+				continue;
+
+			List<OdinClient> clients = updates.get(agent);
+
+			if (clients == null) {
+				clients = new ArrayList<OdinClient>();
+				updates.put(agent, clients);
+			}
+
+			clients.add(new OdinClient(oc.getMacAddress(), oc.getIpAddress(),
+					new Lvap(lvap.getBssid(), new ArrayList<String>(lvap.getSsids()))));
+		}
+
+		FanOutReport report = fanOut.submit(operation, updates, UPDATE_LVAP);
+
+		report.future().addListener(new OdinAgentFutureListener<FanOutReport>() {
+			@Override
+			public void operationComplete(OdinAgentFuture<FanOutReport> future) {
+				FanOutReport done = future.getNow();
+
+				if (done.getFailed() > 0) {
+					log.error(operation + ": " + done.getFailed() + " of " + done.getTotal()
+							+ " LVAP updates failed, on agents " + done.getFailures().keySet());
+				}
+			}
+		});
+
+		return report;
+	}
+
+
+	private static final AgentFanOut.AgentOperation<OdinClient> UPDATE_LVAP = new AgentFanOut.AgentOperation<OdinClient>() {
+		@Override
+		public OdinAgentFuture<Void> apply(IOdinAgent agent, OdinClient oc) {
+			return agent.updateClientLvapAsync(oc);
+		}
+	};
+
+
+	/**
+	 * Counters of the agent fan-out, and the progress of
+	 * the operations fanned out recently
+	 *
+	 * @return map of counters
+	 */
+	public Map<String, Object> getFanOutStats () {
+		return fanOut.getStats();
+	}
+
+
+	/**
+	 * Get the notification metrics of every application
+	 * started by the master: queue depth, drops and
+	 * dispatch latency, and what it has used of the
+	 * application runtime.
+	 *
+	 * @return metrics keyed by application and pool
+	 */
+	public Map<String, Map<String, Object>> getApplicationStats () {
+		Map<String, Map<String, Object>> stats = new TreeMap<String, Map<String, Object>>();
 
-		subscriptionList = String.valueOf(count) + " " + subscriptionList;
+		for (OdinApplication app: applications) {
+			NotificationDispatcher dispatcher = app.getNotificationDispatcher();
 
-		/**
-		 * Should probably have threads to do this
-		 */
-		for (InetAddress agentAddr : poolManager.getAgentAddrsForPool(pool)) {
-			pushSubscriptionListToAgent(agentManager.getAgent(agentAddr));
+			if (dispatcher != null) {
+				Map<String, Object> appStats = dispatcher.getStats();
+				OdinApplicationRuntime.AppContext context = app.getRuntimeContext();
+
+				if (context != null)
+					appStats.put("runtime", context.getStats());
+
+				stats.put(app.getClass().getName() + "@" + app.getPool(), appStats);
+			}
 		}
 
-		return subscriptionId;
+		return stats;
 	}
 
 
 	/**
-	 * Remove a subscription from the list
+	 * Get the number of probe responses that were sent
+	 * to clients, and how many were suppressed as duplicates.
 	 *
-	 * @param id subscription id to remove
-	 * @return
+	 * @return probe response metrics
 	 */
-	@Override
-	public synchronized void unregisterSubscription (String pool, final long id) {
-		// FIXME: Need to calculate subscriptions per pool
-		subscriptions.remove(id);
-
-		subscriptionList = "";
-		int count = 0;
-		for (Entry<Long, SubscriptionCallbackTuple> entry: subscriptions.entrySet()) {
-			count++;
-			final String addr = entry.getValue().oes.getClient();
-			subscriptionList = subscriptionList +
-								entry.getKey() + " " +
-								(addr.equals("*") ? MACAddress.valueOf("00:00:00:00:00:00") : addr)  + " " +
-								entry.getValue().oes.getStatistic() + " " +
-								entry.getValue().oes.getRelation().ordinal() + " " +
-								entry.getValue().oes.getValue() + " ";
-		}
+	public Map<String, Object> getProbeResponseStats () {
+		return probeResponseCoalescer.getStats();
+	}
 
-		subscriptionList = String.valueOf(count) + " " + subscriptionList;
 
-		/**
-		 * Should probably have threads to do this
-		 */
-		for (InetAddress agentAddr : poolManager.getAgentAddrsForPool(pool)) {
-			pushSubscriptionListToAgent(agentManager.getAgent(agentAddr));
-		}
+	/**
+	 * Counters of the server receiving from agents: what admission
+	 * control turned away, and what was dropped or is waiting in
+	 * each priority lane
+	 *
+	 * @return map of counters, empty until the master has started
+	 */
+	public Map<String, Object> getProtocolStats () {
+		OdinAgentProtocolServer server = protocolServer;
+
+		if (server == null)
+			return new HashMap<String, Object>();
+
+		return server.getStats();
 	}
 
 
 	/**
-	 * Add an SSID to the Odin network.
+	 * How the values agents publish reach the master, one client
+	 * at a time or in batches, per agent
 	 *
-	 * @param networkName
-	 * @return true if the network could be added, false otherwise
+	 * @return map of counters per agent
 	 */
-	@Override
-	public synchronized boolean addNetwork (String pool, String ssid) {
-		if (poolManager.addNetworkForPool(pool, ssid)) {
-
-			for(OdinClient oc: poolManager.getClientsFromPool(pool)) {
-				Lvap lvap = oc.getLvap();
-				assert (lvap != null);
-				lvap.getSsids().add(ssid);
+	public Map<String, Object> getPublishStats () {
+		return publishStats.getStats();
+	}
 
-				IOdinAgent agent = lvap.getAgent();
 
-				if (agent != null) {
-					// FIXME: Ugly API
-					agent.updateClientLvap(oc);
-				}
-			}
+	/**
+	 * Size of the client time-series store, and its counters
+	 *
+	 * @return map of counters
+	 */
+	public Map<String, Object> getTimeSeriesStats () {
+		return timeSeries.getStats();
+	}
 
-			return true;
-		}
 
-		return false;
+	/**
+	 * Where subscriptions are evaluated, and the counters
+	 * of the master's rule engine
+	 *
+	 * @return map of counters
+	 */
+	public Map<String, Object> getSubscriptionStats () {
+		return subscriptionRegistry.getStats();
 	}
 
 
 	/**
-	 * Remove an SSID from the Odin network.
+	 * Spectral scan server counters, and the scans running
 	 *
-	 * @param networkName
-	 * @return true if the network could be removed, false otherwise
+	 * @return map of counters, with one entry per scanning agent
 	 */
-	@Override
-	public synchronized boolean removeNetwork (String pool, String ssid) {
-		if (poolManager.removeNetworkFromPool(pool, ssid)){
-			// need to update all existing lvaps in the network as well
+	public Map<String, Object> getSpectralScanStats () {
+		Map<String, Object> stats = spectralScanManager.getStats();
+		SpectralScanServer server = spectralScanServer;
 
-			for (OdinClient oc: poolManager.getClientsFromPool(pool)) {
+		if (server != null)
+			stats.putAll(server.getStats());
 
-				Lvap lvap = oc.getLvap();
-				assert (lvap != null);
-				lvap.getSsids().remove(ssid);
+		return stats;
+	}
 
-				IOdinAgent agent = lvap.getAgent();
 
-				if (agent != null) {
-					// FIXME: Ugly API
-					agent.updateClientLvap(oc);
-				}
-			}
+	/**
+	 * Agents that have pinged the master, but whose
+	 * OpenFlow switch hasn't connected yet
+	 *
+	 * @return list of agents, with when and how often they pinged
+	 */
+	public List<Map<String, Object>> getPendingAgents () {
+		return agentManager.getPendingAgents();
+	}
 
-			return true;
-		}
 
-		return false;
+	/**
+	 * Handoff latencies per pool and per pair of agents,
+	 * with the most recent slow handoffs
+	 *
+	 * @return map of histograms and counters
+	 */
+	public Map<String, Object> getHandoffStats () {
+		Map<String, Object> stats = handoffTracer.getStats();
+		stats.put("prestaging", lvapPrestager.getStats());
+		return stats;
 	}
 
 
@@ -658,6 +1366,7 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 		restApi = context.getServiceImpl(IRestApiService.class);
 		IThreadPoolService tp = context.getServiceImpl(IThreadPoolService.class);
 		executor = tp.getScheduledExecutor();
+		agentManager.setExecutor(executor);
 	}
 
 	@Override
@@ -835,6 +1544,23 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 			e.printStackTrace();
 		}
 
+        // Journal of client, pool and subscription state, to recover
+        // from on restart. Disabled unless a directory is configured.
+        String journalDirStr = configOptions.get("journalDir");
+        if (journalDirStr != null) {
+        	int journalSize = OdinJournal.DEFAULT_CAPACITY;
+        	String journalSizeStr = configOptions.get("journalSize");
+        	if (journalSizeStr != null) {
+        		journalSize = Integer.parseInt(journalSizeStr);
+        	}
+
+        	try {
+        		recoverFromJournal(OdinJournal.open(new File(journalDirStr), journalSize));
+        	} catch (IOException e) {
+        		log.error("Failed to open journal in " + journalDirStr + ", running without one: " + e);
+        	}
+        }
+
         // Lvap timeout, port, and ssid-list
         String timeoutStr = configOptions.get("idleLvapTimeout");
         if (timeoutStr != null) {
@@ -845,28 +1571,382 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
         	}
         }
 
+        // Window during which duplicate probes from a client aren't answered
+        String probeWindowStr = configOptions.get("probeResponseWindow");
+        if (probeWindowStr != null) {
+        	long window = Long.parseLong(probeWindowStr);
+
+        	if (window >= 0) {
+        		probeResponseCoalescer.setWindow(window);
+        	}
+        }
+
+        String hearingMaxAgeStr = configOptions.get("hearingGraphMaxAge");
+        if (hearingMaxAgeStr != null) {
+        	long maxAge = Long.parseLong(hearingMaxAgeStr);
+
+        	if (maxAge > 0) {
+        		hearingGraph.setMaxAge(maxAge);
+        	}
+        }
+
+        String timeSeriesCapacityStr = configOptions.get("timeSeriesCapacity");
+        if (timeSeriesCapacityStr != null) {
+        	int capacity = Integer.parseInt(timeSeriesCapacityStr);
+
+        	if (capacity > 0) {
+        		timeSeries.setCapacity(Integer.highestOneBit(capacity));
+        	}
+        }
+
+        String timeSeriesAgentsStr = configOptions.get("timeSeriesAgentsPerClient");
+        if (timeSeriesAgentsStr != null) {
+        	int agents = Integer.parseInt(timeSeriesAgentsStr);
+
+        	if (agents > 0) {
+        		timeSeries.setAgentsPerClient(agents);
+        	}
+        }
+
+        String timeSeriesTauStr = configOptions.get("timeSeriesEwmaTau");
+        if (timeSeriesTauStr != null) {
+        	timeSeries.setEwmaTau(Double.parseDouble(timeSeriesTauStr));
+        }
+
+        // Evaluate every subscription on the master, from samples the
+        // agents stream, rather than on the agents
+        String subscriptionEvaluationStr = configOptions.get("subscriptionEvaluation");
+        if (subscriptionEvaluationStr != null) {
+        	subscriptionRegistry.setMasterEvaluation(subscriptionEvaluationStr.equals("master"));
+        }
+
+        String fanOutThreadsStr = configOptions.get("fanOutThreads");
+        if (fanOutThreadsStr != null) {
+        	int threads = Integer.parseInt(fanOutThreadsStr);
+
+        	if (threads > 0) {
+        		fanOut.setThreads(threads);
+        	}
+        }
+
+        String slowHandoffStr = configOptions.get("slowHandoffThreshold");
+        if (slowHandoffStr != null) {
+        	long threshold = Long.parseLong(slowHandoffStr);
+
+        	if (threshold >= 0) {
+        		handoffTracer.setSlowThreshold(threshold);
+        	}
+        }
+
+        String prestagingStr = configOptions.get("lvapPrestaging");
+        if (prestagingStr != null) {
+        	lvapPrestager.setEnabled(Boolean.parseBoolean(prestagingStr));
+        }
+
+        String prestageCandidatesStr = configOptions.get("prestageCandidates");
+        if (prestageCandidatesStr != null) {
+        	int candidates = Integer.parseInt(prestageCandidatesStr);
+
+        	if (candidates > 0) {
+        		lvapPrestager.setCandidates(candidates);
+        	}
+        }
+
+        String prestagePerAgentStr = configOptions.get("prestagePerAgent");
+        if (prestagePerAgentStr != null) {
+        	int perAgent = Integer.parseInt(prestagePerAgentStr);
+
+        	if (perAgent > 0) {
+        		lvapPrestager.setPerAgent(perAgent);
+        	}
+        }
+
+        String prestageTimeoutStr = configOptions.get("prestageTimeout");
+        if (prestageTimeoutStr != null) {
+        	long prestageTimeout = Long.parseLong(prestageTimeoutStr);
+
+        	if (prestageTimeout > 0) {
+        		lvapPrestager.setTimeout(prestageTimeout);
+        	}
+        }
+
+        String prestageMinTrendStr = configOptions.get("prestageMinTrend");
+        if (prestageMinTrendStr != null) {
+        	lvapPrestager.setMinTrend(Double.parseDouble(prestageMinTrendStr));
+        }
+
         int port = DEFAULT_PORT;
         String portNum = configOptions.get("masterPort");
         if (portNum != null) {
             port = Integer.parseInt(portNum);
         }
 
+        // Threads and per-thread queue size for handling agent messages
+        int protocolWorkers = OdinAgentProtocolServer.DEFAULT_NUM_WORKERS;
+        String protocolWorkersStr = configOptions.get("protocolWorkers");
+        if (protocolWorkersStr != null) {
+        	protocolWorkers = Integer.parseInt(protocolWorkersStr);
+        }
+
+        int protocolQueueSize = OdinAgentProtocolServer.DEFAULT_QUEUE_CAPACITY;
+        String protocolQueueSizeStr = configOptions.get("protocolQueueSize");
+        if (protocolQueueSizeStr != null) {
+        	protocolQueueSize = Integer.parseInt(protocolQueueSizeStr);
+        }
+
+        // Admission control of probes and publishes, per agent and per client
+        double agentRate = OdinAgentProtocolServer.DEFAULT_AGENT_RATE;
+        String agentRateStr = configOptions.get("agentRate");
+        if (agentRateStr != null) {
+        	agentRate = Double.parseDouble(agentRateStr);
+        }
+
+        double agentBurst = OdinAgentProtocolServer.DEFAULT_AGENT_BURST;
+        String agentBurstStr = configOptions.get("agentBurst");
+        if (agentBurstStr != null) {
+        	agentBurst = Double.parseDouble(agentBurstStr);
+        }
+
+        double clientProbeRate = OdinAgentProtocolServer.DEFAULT_CLIENT_PROBE_RATE;
+        String clientProbeRateStr = configOptions.get("clientProbeRate");
+        if (clientProbeRateStr != null) {
+        	clientProbeRate = Double.parseDouble(clientProbeRateStr);
+        }
+
+        double clientProbeBurst = OdinAgentProtocolServer.DEFAULT_CLIENT_PROBE_BURST;
+        String clientProbeBurstStr = configOptions.get("clientProbeBurst");
+        if (clientProbeBurstStr != null) {
+        	clientProbeBurst = Double.parseDouble(clientProbeBurstStr);
+        }
+
+        // Spectral scans stream to a port of their own, next to the master's by default
+        int spectralScanPort = port + 1;
+        String spectralScanPortStr = configOptions.get("spectralScanPort");
+        if (spectralScanPortStr != null) {
+        	spectralScanPort = Integer.parseInt(spectralScanPortStr);
+        }
+
+        String spectralScanFramesStr = configOptions.get("spectralScanFrames");
+        if (spectralScanFramesStr != null) {
+        	int frames = Integer.parseInt(spectralScanFramesStr);
+
+        	if (frames > 0) {
+        		spectralScanManager.setCapacity(Integer.highestOneBit(frames));
+        	}
+        }
+
+        String spectralScanThresholdStr = configOptions.get("spectralScanBusyThreshold");
+        if (spectralScanThresholdStr != null) {
+        	spectralScanManager.setBusyThreshold(Integer.parseInt(spectralScanThresholdStr));
+        }
+
         IThreadPoolService tp = context.getServiceImpl(IThreadPoolService.class);
         executor = tp.getScheduledExecutor();
-        // Spawn threads for different services
-        executor.execute(new OdinAgentProtocolServer(this, port, executor));
 
-        // Spawn applications
+        // The protocol server gets a thread of its own rather than
+        // one of the pool Floodlight modules share
+        protocolServer = new OdinAgentProtocolServer(this, port, protocolWorkers, protocolQueueSize);
+        protocolServer.setRateLimits(agentRate, agentBurst, clientProbeRate, clientProbeBurst);
+        Thread protocolThread = new Thread(protocolServer, "OdinAgentProtocolServer");
+        protocolThread.setDaemon(true);
+        protocolThread.start();
+
+        // A port of 0 turns spectral scans off
+        if (spectralScanPort > 0) {
+        	spectralScanManager.setPort(spectralScanPort);
+        	spectralScanServer = new SpectralScanServer(spectralScanManager, spectralScanPort);
+        	Thread spectralScanThread = new Thread(spectralScanServer, "OdinSpectralScanServer");
+        	spectralScanThread.setDaemon(true);
+        	spectralScanThread.start();
+        }
+
+        // Periodic journal snapshots
+        if (journal != null) {
+        	long snapshotInterval = DEFAULT_JOURNAL_SNAPSHOT_INTERVAL;
+        	String snapshotIntervalStr = configOptions.get("journalSnapshotInterval");
+        	if (snapshotIntervalStr != null) {
+        		snapshotInterval = Long.parseLong(snapshotIntervalStr);
+        	}
+
+        	if (snapshotInterval > 0) {
+        		executor.scheduleWithFixedDelay(new Runnable() {
+        			@Override
+        			public void run() {
+        				journal.snapshotIfChanged();
+        			}
+        		}, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+        	}
+        }
+
+        // Background rxstats polling
+        long rxStatsInterval = RxStatsCollector.DEFAULT_INTERVAL;
+        String rxStatsIntervalStr = configOptions.get("rxStatsInterval");
+        if (rxStatsIntervalStr != null) {
+        	rxStatsInterval = Long.parseLong(rxStatsIntervalStr);
+        }
+
+        if (rxStatsInterval > 0) {
+        	rxStatsCollector.start(executor, rxStatsInterval);
+        }
+
+        // Notification queues for applications
+        int notificationQueueSize = NotificationDispatcher.DEFAULT_CAPACITY;
+        String notificationQueueSizeStr = configOptions.get("notificationQueueSize");
+        if (notificationQueueSizeStr != null) {
+        	notificationQueueSize = Integer.parseInt(notificationQueueSizeStr);
+        }
+
+        NotificationDispatcher.OverflowPolicy defaultPolicy = NotificationDispatcher.DEFAULT_POLICY;
+        String policyStr = configOptions.get("notificationOverflowPolicy");
+        if (policyStr != null) {
+        	defaultPolicy = NotificationDispatcher.OverflowPolicy.valueOf(policyStr.toUpperCase());
+        }
+
+        long notificationBlockTimeout = NotificationDispatcher.DEFAULT_BLOCK_TIMEOUT;
+        String blockTimeoutStr = configOptions.get("notificationBlockTimeout");
+        if (blockTimeoutStr != null) {
+        	notificationBlockTimeout = Long.parseLong(blockTimeoutStr);
+        }
+
+        // Applications run on a runtime of their own, rather than
+        // on the pool Floodlight modules share
+        int appThreads = OdinApplicationRuntime.DEFAULT_THREADS;
+        String appThreadsStr = configOptions.get("appRuntimeThreads");
+        if (appThreadsStr != null) {
+        	appThreads = Math.max(1, Integer.parseInt(appThreadsStr));
+        }
+
+        double appCpuShare = OdinApplicationRuntime.DEFAULT_CPU_SHARE;
+        String appCpuShareStr = configOptions.get("appCpuShare");
+        if (appCpuShareStr != null) {
+        	double share = Double.parseDouble(appCpuShareStr);
+
+        	if (share > 0) {
+        		appCpuShare = share;
+        	}
+        }
+
+        long appCpuBurst = OdinApplicationRuntime.DEFAULT_BURST;
+        String appCpuBurstStr = configOptions.get("appCpuBurst");
+        if (appCpuBurstStr != null) {
+        	appCpuBurst = Long.parseLong(appCpuBurstStr);
+        }
+
+        applicationRuntime = new OdinApplicationRuntime(appThreads, appCpuShare, appCpuBurst, notificationQueueSize);
+
+        // Spawn applications, each with its own notification thread
         for (OdinApplication app: applicationList) {
-        	executor.execute(app);
+        	// Per-application override, e.g., notificationOverflowPolicy.net.floodlightcontroller.odin.applications.OdinMobilityManager
+        	NotificationDispatcher.OverflowPolicy policy = defaultPolicy;
+        	String appPolicyStr = configOptions.get("notificationOverflowPolicy." + app.getClass().getName());
+        	if (appPolicyStr != null) {
+        		policy = NotificationDispatcher.OverflowPolicy.valueOf(appPolicyStr.toUpperCase());
+        	}
+
+        	NotificationDispatcher dispatcher = new NotificationDispatcher(app.getClass().getSimpleName(), notificationQueueSize, policy, notificationBlockTimeout);
+        	app.setNotificationDispatcher(dispatcher);
+        	dispatcher.start();
+        	applications.add(app);
+
+        	OdinApplicationRuntime.AppContext appContext = applicationRuntime.start(app, app.getClass().getSimpleName());
+        	appContext.setNotificationDispatcher(dispatcher);
         }
 	}
 
+
+	/**
+	 * Stop the master's threads. Floodlight never stops its
+	 * modules, but tests do.
+	 */
+	void shutdown () {
+		OdinAgentProtocolServer server = protocolServer;
+		if (server != null)
+			server.shutdown();
+
+		SpectralScanServer scanServer = spectralScanServer;
+		if (scanServer != null)
+			scanServer.shutdown();
+
+		if (applicationRuntime != null)
+			applicationRuntime.shutdown();
+
+		for (OdinApplication app: applications) {
+			NotificationDispatcher dispatcher = app.getNotificationDispatcher();
+
+			if (dispatcher != null)
+				dispatcher.shutdown();
+		}
+
+		agentManager.shutdown();
+	}
+
+	/**
+	 * Rebuild the clients, their pools and the networks added at
+	 * runtime from the journal, and journal changes from then on.
+	 * No agent has connected yet, so the LVAPs each agent was hosting
+	 * are handed to the agent manager, to be bound to the agent when
+	 * it registers.
+	 *
+	 * @param journal journal opened with the state it recovered
+	 */
+	void recoverFromJournal(OdinJournal journal) {
+		OdinJournal.State state = journal.getState();
+
+		for (OdinJournal.NetworkChange change: state.networks.values()) {
+			if (!poolManager.hasPool(change.pool))
+				continue;
+
+			if (change.added)
+				poolManager.addNetworkForPool(change.pool, change.ssid);
+			else
+				poolManager.removeNetworkFromPool(change.pool, change.ssid);
+		}
+
+		for (OdinJournal.ClientRecord record: state.clients.values()) {
+			MACAddress hwAddress = MACAddress.valueOf(record.hwAddress);
+			OdinClient oc = clientManager.getClient(hwAddress);
+
+			// Clients from the static client list are kept as they are
+			if (oc == null) {
+				// Without an LVAP there's nothing to put back, and the
+				// client is added again the next time it probes
+				if (record.ssids == null) {
+					log.info("Not recovering client " + hwAddress + " from the journal, it had no LVAP");
+					journal.clientRemoved(hwAddress);
+					continue;
+				}
+
+				oc = new OdinClient(hwAddress, record.ipAddress, new Lvap(MACAddress.valueOf(record.bssid), record.ssids));
+				clientManager.addClient(oc);
+			}
+
+			if (record.pool != null && poolManager.hasPool(record.pool))
+				poolManager.mapClientToPool(oc, record.pool);
+
+			if (record.agentAddr != null && oc.getLvap() != null)
+				agentManager.expectLvap(record.agentAddr, oc);
+		}
+
+		subscriptionRegistry.reserveIds(state.lastSubscriptionId);
+
+		clientManager.setJournal(journal);
+		poolManager.setJournal(journal);
+		subscriptionRegistry.setJournal(journal);
+		this.journal = journal;
+	}
+
 	/** IOFSwitchListener methods **/
 
 	@Override
 	public void addedSwitch(IOFSwitch sw) {
-		// inform-agent manager
+		// inform-agent manager, and register the agent at the
+		// switch's address right away if it is waiting for it.
+		// This is Floodlight's update thread, so the agent manager
+		// only hands the registration to the executor.
+		if (agentManager.switchAdded(sw)) {
+			final InetAddress switchIpAddr = ((InetSocketAddress) sw.getChannel().getRemoteAddress()).getAddress();
+			receivePing(switchIpAddr);
+		}
 	}
 
 	@Override
@@ -879,7 +1959,10 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 		// Not all OF switches are Odin agents. We should immediately remove
 		// any associated Odin agent then.
 		final InetAddress switchIpAddr = ((InetSocketAddress) sw.getChannel().getRemoteAddress()).getAddress();
+		agentManager.switchRemoved(sw);
 		agentManager.removeAgent(switchIpAddr);
+		lvapPrestager.agentRemoved(switchIpAddr);
+		spectralScanManager.agentRemoved(switchIpAddr);
 	}
 
 
@@ -913,7 +1996,7 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 
 			//log.info("DHCP packet received...");
         		final MACAddress clientHwAddr = MACAddress.valueOf(packet.getClientHardwareAddress());
-        		final OdinClient oc = clientManager.getClients().get(clientHwAddr);
+        		final OdinClient oc = clientManager.getClient(clientHwAddr);
 
     			// Don't bother if we're not tracking the client
         		// or if the client is unassociated with the agent
@@ -938,7 +2021,9 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
         			}
 
         			log.info("Updating client: " + clientHwAddr + " with ipAddr: " + yourIp);
-        			oc.setIpAddress(yourIp);
+        			Lock clientLock = lockClient(clientHwAddr);
+        			try {
+        				clientManager.setClientIpAddress(oc, yourIp);
         		  /*oc.getLvap().setOFMessageList(lvapManager.getDefaultOFModList(yourIp)); //Commented because of Learning switch (Uncomment for SDN branch)
 
         			// Push flow messages associated with the client
@@ -947,7 +2032,12 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
         			} catch (IOException e) {
         				log.error("Failed to update switch's flow tables " + oc.getLvap().getAgent().getSwitch());
         			}*/
-        			oc.getLvap().getAgent().updateClientLvap(oc);
+        				IOdinAgent agent = oc.getLvap().getAgent();
+        				if (agent != null)
+        					agent.updateClientLvap(oc);
+        			} finally {
+        				unlockClient(clientLock);
+        			}
         		}
 
 			} catch (UnknownHostException e) {
@@ -971,12 +2061,14 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 	}
 
 	/**
-	 * Push the subscription list to the agent
+	 * Arm the timeout that reclaims a client's LVAP if the client
+	 * does not complete the association. There is one timeout per
+	 * client: arming it again replaces the previous one.
 	 *
-	 * @param oa agent to push subscription list to
+	 * @param clientHwAddr
 	 */
-	private void pushSubscriptionListToAgent (final IOdinAgent oa) {
-		oa.setSubscriptions(subscriptionList);
+	private void scheduleIdleLvapReclaim (final MACAddress clientHwAddr) {
+		idleLvapTimeouts.schedule(clientHwAddr, idleLvapTimeout, TimeUnit.SECONDS, idleLvapReclaimer);
 	}
 
 	private void updateAgentLastHeard (InetAddress odinAgentAddr) {
@@ -984,69 +2076,186 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 
 		if (agent != null) {
 			// Update last-heard for failure detection
-			agent.setLastHeard(System.currentTimeMillis());
+			agentManager.agentHeard(agent);
 		}
 	}
 
-	private class OdinAgentLvapAddRunnable implements Runnable {
-		final IOdinAgent oa;
-		final OdinClient oc;
+	/**
+	 * Take the locks needed to work on a client: the read side
+	 * of the topology lock, then the client's own lock.
+	 *
+	 * @param clientHwAddress client to lock
+	 * @return the client's lock, to be passed to unlockClient()
+	 */
+	private Lock lockClient (final MACAddress clientHwAddress) {
+		Lock clientLock = clientManager.getClientLock(clientHwAddress);
+		poolManager.getTopologyLock().readLock().lock();
+		clientLock.lock();
+		return clientLock;
+	}
 
-		OdinAgentLvapAddRunnable(IOdinAgent newAgent, OdinClient oc) {
-			this.oa = newAgent;
-			this.oc = oc;
-		}
-		@Override
-		public void run() {
-			oa.addClientLvap(oc);
+	private void unlockClient (final Lock clientLock) {
+		clientLock.unlock();
+		poolManager.getTopologyLock().readLock().unlock();
+	}
+
+	/**
+	 * Take the write side of the topology lock, which excludes
+	 * all client and agent work.
+	 *
+	 * A thread that holds the read side, such as one running a
+	 * subscription callback, would deadlock waiting for the write
+	 * side, so that is refused.
+	 *
+	 * @return the topology write lock
+	 */
+	private Lock lockTopology () {
+		ReentrantReadWriteLock topology = (ReentrantReadWriteLock) poolManager.getTopologyLock();
+
+		if (topology.getReadHoldCount() > 0) {
+			throw new IllegalStateException("Networks cannot be changed from a notification callback");
 		}
 
+		topology.writeLock().lock();
+		return topology.writeLock();
 	}
 
-	private class OdinAgentLvapRemoveRunnable implements Runnable {
+	private class LvapCommandFailureLogger implements OdinAgentFutureListener<Void> {
+		final String operation;
 		final IOdinAgent oa;
 		final OdinClient oc;
 
-		OdinAgentLvapRemoveRunnable(IOdinAgent oa, OdinClient oc) {
+		LvapCommandFailureLogger(String operation, IOdinAgent oa, OdinClient oc) {
+			this.operation = operation;
 			this.oa = oa;
 			this.oc = oc;
 		}
 		@Override
-		public void run() {
-			oa.removeClientLvap(oc);
+		public void operationComplete(OdinAgentFuture<Void> future) {
+			if (!future.isSuccess()) {
+				log.error("Failed to " + operation + " LVAP for client " + oc.getMacAddress()
+						+ " on agent " + oa.getIpAddress(), future.getCause());
+			}
 		}
 
 	}
 
-	private class OdinAgentSendProbeResponseRunnable implements Runnable {
-		final IOdinAgent oa;
-		final MACAddress clientHwAddr;
-		final MACAddress bssid;
-		final Set<String> ssidList;
+	/**
+	 * Agents and flow messages touched by a batch of handoffs. Every
+	 * agent is joined to the batch once, which holds back its control
+	 * socket writes until end() is called.
+	 */
+	private class HandoffBatch {
+		final Set<IOdinAgent> joined = new HashSet<IOdinAgent>();
+		final Map<IOdinAgent, List<OFMessage>> flowMessages = new HashMap<IOdinAgent, List<OFMessage>>();
+		final Map<IOdinAgent, List<HandoffTracer.Trace>> traces = new HashMap<IOdinAgent, List<HandoffTracer.Trace>>();
+
+		void join(IOdinAgent oa) {
+			if (joined.add(oa)) {
+				oa.beginCommandBatch();
+			}
+		}
 
-		OdinAgentSendProbeResponseRunnable(IOdinAgent oa, MACAddress clientHwAddr, MACAddress bssid, Set<String> ssidList) {
-			this.oa = oa;
-			this.clientHwAddr = clientHwAddr;
-			this.bssid = bssid;
-			this.ssidList = ssidList;
+		void addFlowMessages(IOdinAgent oa, List<OFMessage> messages, HandoffTracer.Trace trace) {
+			List<OFMessage> list = flowMessages.get(oa);
+
+			if (list == null) {
+				list = new ArrayList<OFMessage>();
+				flowMessages.put(oa, list);
+				traces.put(oa, new ArrayList<HandoffTracer.Trace>());
+			}
+
+			list.addAll(messages);
+			traces.get(oa).add(trace);
 		}
-		@Override
-		public void run() {
-			oa.sendProbeResponse(clientHwAddr, bssid, ssidList);
+
+		void writeFlowMessages() {
+			for (Entry<IOdinAgent, List<OFMessage>> entry: flowMessages.entrySet()) {
+				boolean written = true;
+
+				try {
+					entry.getKey().getSwitch().write(entry.getValue(), null);
+				} catch (IOException e) {
+					log.error("Failed to update switch's flow tables " + entry.getKey().getSwitch());
+					written = false;
+				}
+
+				for (HandoffTracer.Trace trace: traces.get(entry.getKey())) {
+					if (written)
+						handoffTracer.mark(trace, HandoffTracer.Phase.FLOW_MODS);
+					else
+						handoffTracer.fail(trace, HandoffTracer.Phase.FLOW_MODS);
+				}
+			}
+
+			flowMessages.clear();
+			traces.clear();
 		}
 
+		void end() {
+			for (IOdinAgent oa: joined) {
+				oa.endCommandBatch();
+			}
+
+			joined.clear();
+		}
 	}
 
-	private class IdleLvapReclaimTask implements Runnable {
-		private final OdinClient oc;
+	private class HandoffPhaseListener implements OdinAgentFutureListener<Void> {
+		final HandoffTracer.Trace trace;
+		final HandoffTracer.Phase phase;
 
-		IdleLvapReclaimTask(final OdinClient oc) {
-			this.oc = oc;
+		HandoffPhaseListener(HandoffTracer.Trace trace, HandoffTracer.Phase phase) {
+			this.trace = trace;
+			this.phase = phase;
+		}
+
+		@Override
+		public void operationComplete(OdinAgentFuture<Void> future) {
+			if (future.isSuccess())
+				handoffTracer.mark(trace, phase);
+			else
+				handoffTracer.fail(trace, phase);
 		}
+	}
+
+	private class IdleLvapReclaimer implements OdinTimeoutWheel.TimeoutHandler<MACAddress> {
 
 		@Override
-		public void run() {
-			OdinClient client = clientManager.getClients().get(oc.getMacAddress());
+		public void timeout(final MACAddress clientHwAddr) {
+			ScheduledExecutorService ex = executor;
+
+			// The wheel also drives agent failure detection, so
+			// don't wait for the client's locks on its thread
+			if (ex == null) {
+				reclaimLocked(clientHwAddr);
+				return;
+			}
+
+			try {
+				ex.execute(new Runnable() {
+					@Override
+					public void run() {
+						reclaimLocked(clientHwAddr);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				log.warn("Could not reclaim the LVAP of idle client " + clientHwAddr, e);
+			}
+		}
+
+		private void reclaimLocked(MACAddress clientHwAddr) {
+			Lock clientLock = lockClient(clientHwAddr);
+
+			try {
+				reclaim(clientHwAddr);
+			} finally {
+				unlockClient(clientLock);
+			}
+		}
+
+		private void reclaim(MACAddress clientHwAddr) {
+			OdinClient client = clientManager.getClient(clientHwAddr);
 
 			if (client == null) {
 				return;
@@ -1063,6 +2272,10 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 					poolManager.removeClientPoolMapping(client);
 					agent.removeClientLvap(client);
 					clientManager.removeClient(client.getMacAddress());
+					hearingGraph.removeClient(client.getMacAddress());
+					timeSeries.removeClient(client.getMacAddress());
+					subscriptionRegistry.removeClient(client.getMacAddress());
+					lvapPrestager.clientRemoved(client.getMacAddress());
 				}
 
 			 }else{
@@ -1090,9 +2303,4 @@ public class OdinMaster implements IFloodlightModule, IOFSwitchListener, IOdinMa
 */
 		}
 	}
-
-	private class SubscriptionCallbackTuple {
-		OdinEventSubscription oes;
-		NotificationCallback cb;
-	}
 }
@@ -19,7 +19,18 @@ class OdinMasterWebRoutable implements RestletRoutable {
 		router.attach("/clients/all/json", AllClientsResource.class);
 		router.attach("/clients/connected/json", ConnectedClientsResource.class);
 		router.attach("/agents/json", AgentManagerResource.class);
+		router.attach("/agents/pending/json", PendingAgentsResource.class);
 		router.attach("/handoff/json", LvapHandoffResource.class);
+		router.attach("/handoff/batch/json", LvapBatchHandoffResource.class);
+		router.attach("/handoff/stats/json", HandoffStatsResource.class);
+		router.attach("/applications/json", ApplicationStatsResource.class);
+		router.attach("/probes/json", ProbeResponseStatsResource.class);
+		router.attach("/publish/stats/json", PublishStatsResource.class);
+		router.attach("/protocol/stats/json", ProtocolStatsResource.class);
+		router.attach("/spectral/stats/json", SpectralScanStatsResource.class);
+		router.attach("/timeseries/stats/json", TimeSeriesStatsResource.class);
+		router.attach("/subscriptions/stats/json", SubscriptionStatsResource.class);
+		router.attach("/fanout/stats/json", FanOutStatsResource.class);
 		return router;
 	}
 }
\ No newline at end of file
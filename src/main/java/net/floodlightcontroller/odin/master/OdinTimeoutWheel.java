@@ -0,0 +1,294 @@
+package net.floodlightcontroller.odin.master;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel for Odin's timeouts, such as agent failure
+ * detection and idle LVAP reclamation.
+ *
+ * There is at most one timeout per key. Scheduling a key that already
+ * has a timeout re-arms it: the new deadline is recorded in the entry
+ * with a single compare-and-set, and the entry is only moved to the
+ * right bucket once the wheel reaches the bucket it currently sits in.
+ * Re-arming is therefore O(1), and keeps a single live entry per key no
+ * matter how often the key is heard from.
+ *
+ * Handlers run on the wheel's thread and should be quick.
+ */
+class OdinTimeoutWheel {
+	protected static Logger log = LoggerFactory.getLogger(OdinTimeoutWheel.class);
+
+	static final long DEFAULT_TICK_MILLIS = 100;
+	static final int DEFAULT_WHEEL_SIZE = 512;
+
+	// Deadline of an entry that has fired or was cancelled
+	private static final long DONE = Long.MIN_VALUE;
+
+	/**
+	 * Invoked when a key's timeout expires
+	 */
+	interface TimeoutHandler<K> {
+		void timeout(K key);
+	}
+
+	private final long tickNanos;
+	private final int mask;
+	private final long startNanos = System.nanoTime();
+
+	private final ConcurrentHashMap<Object, Entry> entries = new ConcurrentHashMap<Object, Entry>();
+	private final ConcurrentLinkedQueue<Entry> newEntries = new ConcurrentLinkedQueue<Entry>();
+
+	// Only touched by the wheel thread
+	private final ArrayDeque<Entry>[] buckets;
+	private final ArrayDeque<Entry> expiring = new ArrayDeque<Entry>();
+	private long tick = 0;
+
+	private volatile Thread thread;
+	private volatile boolean running = true;
+
+
+	OdinTimeoutWheel () {
+		this(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+	}
+
+
+	/**
+	 * @param tickDuration resolution of the wheel
+	 * @param unit unit of tickDuration
+	 * @param wheelSize number of buckets, rounded up to a power of two
+	 */
+	@SuppressWarnings("unchecked")
+	OdinTimeoutWheel (long tickDuration, TimeUnit unit, int wheelSize) {
+		int size = 1;
+
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+
+		tickNanos = unit.toNanos(tickDuration);
+		mask = size - 1;
+		buckets = (ArrayDeque<Entry>[]) new ArrayDeque<?>[size];
+
+		for (int i = 0; i < size; i++) {
+			buckets[i] = new ArrayDeque<Entry>();
+		}
+	}
+
+
+	/**
+	 * Schedule a timeout for a key, replacing the key's
+	 * current timeout if it has one.
+	 *
+	 * @param key the key, e.g., an agent address or client MAC address
+	 * @param delay time until the timeout expires
+	 * @param unit unit of delay
+	 * @param handler invoked when the timeout expires
+	 */
+	<K> void schedule (K key, long delay, TimeUnit unit, TimeoutHandler<K> handler) {
+		long deadline = System.nanoTime() + unit.toNanos(delay);
+		Entry e = entries.get(key);
+
+		if (e != null && e.rearm(deadline)) {
+			if (e.handler != handler)
+				e.handler = handler;
+
+			return;
+		}
+
+		e = new Entry(key, deadline, handler);
+		Entry previous = entries.put(key, e);
+
+		if (previous != null)
+			previous.cancel();
+
+		newEntries.add(e);
+		ensureStarted();
+	}
+
+
+	/**
+	 * Push back the timeout of a key, if it has one
+	 *
+	 * @param key the key
+	 * @param delay time until the timeout expires
+	 * @param unit unit of delay
+	 * @return true if the key had a timeout
+	 */
+	boolean touch (Object key, long delay, TimeUnit unit) {
+		Entry e = entries.get(key);
+		return e != null && e.rearm(System.nanoTime() + unit.toNanos(delay));
+	}
+
+
+	/**
+	 * Cancel the timeout of a key
+	 *
+	 * @param key the key
+	 * @return true if a pending timeout was cancelled
+	 */
+	boolean cancel (Object key) {
+		Entry e = entries.remove(key);
+		return e != null && e.cancel();
+	}
+
+
+	/**
+	 * @return true if the key has a pending timeout
+	 */
+	boolean isScheduled (Object key) {
+		return entries.containsKey(key);
+	}
+
+
+	/**
+	 * @return number of pending timeouts
+	 */
+	int size () {
+		return entries.size();
+	}
+
+
+	/**
+	 * Stop the wheel. Pending timeouts never fire.
+	 */
+	void stop () {
+		running = false;
+
+		Thread t = thread;
+		if (t != null)
+			LockSupport.unpark(t);
+	}
+
+
+	private void ensureStarted () {
+		if (thread != null)
+			return;
+
+		synchronized (this) {
+			if (thread == null) {
+				Thread t = new Thread(new Worker(), "OdinTimeoutWheel");
+				t.setDaemon(true);
+				thread = t;
+				t.start();
+			}
+		}
+	}
+
+
+	/**
+	 * Put an entry in the bucket of its deadline, or of
+	 * the next tick if the deadline is already close.
+	 */
+	private void place (Entry e, long deadline) {
+		long ticks = (deadline - startNanos) / tickNanos;
+		buckets[(int) (Math.max(ticks, tick + 1) & mask)].add(e);
+	}
+
+
+	private void expireBucket (long now) {
+		ArrayDeque<Entry> bucket = buckets[(int) (tick & mask)];
+		expiring.addAll(bucket);
+		bucket.clear();
+
+		Entry e;
+		while ((e = expiring.poll()) != null) {
+			long deadline = e.deadline.get();
+
+			if (deadline == DONE)
+				continue;
+
+			if (deadline - now > 0) {
+				// Re-armed since it was placed
+				place(e, deadline);
+				continue;
+			}
+
+			if (!e.deadline.compareAndSet(deadline, DONE)) {
+				// Re-armed or cancelled just now
+				expiring.add(e);
+				continue;
+			}
+
+			entries.remove(e.key, e);
+			e.fire();
+		}
+	}
+
+
+	private class Worker implements Runnable {
+		@Override
+		public void run () {
+			while (running) {
+				long tickDeadline = startNanos + (tick + 1) * tickNanos;
+				long now;
+
+				while (running && (now = System.nanoTime()) - tickDeadline < 0) {
+					LockSupport.parkNanos(this, tickDeadline - now);
+				}
+
+				if (!running)
+					return;
+
+				Entry e;
+				while ((e = newEntries.poll()) != null) {
+					long deadline = e.deadline.get();
+
+					if (deadline != DONE)
+						place(e, deadline);
+				}
+
+				tick++;
+				expireBucket(System.nanoTime());
+			}
+		}
+	}
+
+
+	private static class Entry {
+		final Object key;
+		final AtomicLong deadline;
+		volatile TimeoutHandler<?> handler;
+
+		Entry (Object key, long deadline, TimeoutHandler<?> handler) {
+			this.key = key;
+			this.deadline = new AtomicLong(deadline);
+			this.handler = handler;
+		}
+
+		/**
+		 * @return false if the entry has already fired or was cancelled
+		 */
+		boolean rearm (long newDeadline) {
+			while (true) {
+				long current = deadline.get();
+
+				if (current == DONE)
+					return false;
+
+				if (deadline.compareAndSet(current, newDeadline))
+					return true;
+			}
+		}
+
+		boolean cancel () {
+			return deadline.getAndSet(DONE) != DONE;
+		}
+
+		@SuppressWarnings("unchecked")
+		void fire () {
+			try {
+				((TimeoutHandler<Object>) handler).timeout(key);
+			} catch (RuntimeException e) {
+				log.error("Timeout handler for " + key + " threw an exception", e);
+			}
+		}
+	}
+}
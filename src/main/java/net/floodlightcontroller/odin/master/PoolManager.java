@@ -9,6 +9,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.floodlightcontroller.util.MACAddress;
 
@@ -18,6 +21,15 @@ import net.floodlightcontroller.util.MACAddress;
  * refer to an instance of this class to enforce
  * pool constraints. 
  * 
+ * Changes to the pools' agents and networks are made while holding
+ * the write side of the topology lock; everything that depends on
+ * them holds the read side. Client-to-pool mappings change under
+ * the client's own lock, so the client sets are concurrent.
+ * 
+ * The agent, pool and network maps hold immutable snapshots that are
+ * replaced, never modified, so lookups can hand them out as they are.
+ * An SSID-to-pool index makes finding the pool hosting an SSID O(1).
+ * 
  * @author Lalith Suresh <suresh.lalith@gmail.com>
  *
  */
@@ -28,14 +40,54 @@ class PoolManager {
 	private final Map<InetAddress, List<String>> agentToPoolListMap = new ConcurrentHashMap<InetAddress, List<String>>();
 	private final Map<String, Set<InetAddress>> poolToAgentSetMap = new ConcurrentHashMap<String, Set<InetAddress>>();
 	private final Map<String, Set<String>> poolToSsidListMap = new ConcurrentHashMap<String, Set<String>>();
+	private final Map<String, String> ssidToPoolMap = new ConcurrentHashMap<String, String>();
 	private final Map<String, Set<OdinClient>> poolToClientSetMap = new ConcurrentHashMap<String, Set<OdinClient>> ();
 	private final Map<OdinClient, String> clientToPoolMap = new ConcurrentHashMap<OdinClient, String>();
-	private int numNetworks = 0;
+	private final ReadWriteLock topologyLock = new ReentrantReadWriteLock();
+	private volatile int numNetworks = 0;
+	private volatile OdinJournal journal = null;
+	
+	// Bumped whenever an agent could be offering a different set
+	// of SSIDs, which invalidates the cached per-agent sets
+	private volatile long ssidVersion = 0;
+	private final Map<InetAddress, AgentSsidSet> agentToSsidSetMap = new ConcurrentHashMap<InetAddress, AgentSsidSet>();
 	
 	PoolManager () {
-		poolToAgentSetMap.put(GLOBAL_POOL, new HashSet<InetAddress>());
-		poolToSsidListMap.put(GLOBAL_POOL, new TreeSet<String>());
-		poolToClientSetMap.put(GLOBAL_POOL, new TreeSet<OdinClient>());
+		poolToAgentSetMap.put(GLOBAL_POOL, Collections.<InetAddress>emptySet());
+		poolToSsidListMap.put(GLOBAL_POOL, Collections.<String>emptySet());
+		poolToClientSetMap.put(GLOBAL_POOL, new ConcurrentSkipListSet<OdinClient>());
+	}
+	
+	
+	/**
+	 * Journal changes to client pools and networks from now on
+	 * 
+	 * @param journal the journal, or null to stop journaling
+	 */
+	void setJournal(OdinJournal journal) {
+		this.journal = journal;
+	}
+	
+	
+	/**
+	 * Check if a pool exists, i.e., some agent was placed in it
+	 * 
+	 * @param pool
+	 * @return true if the pool exists
+	 */
+	boolean hasPool(String pool) {
+		return poolToClientSetMap.containsKey(pool);
+	}
+	
+	
+	/**
+	 * Get the lock that guards the pool topology: which agents
+	 * and networks make up each pool.
+	 * 
+	 * @return the topology lock
+	 */
+	ReadWriteLock getTopologyLock() {
+		return topologyLock;
 	}
 	
 	
@@ -47,10 +99,23 @@ class PoolManager {
 	 * @return immutable list of pools that the agent belongs to
 	 */
 	List<String> getPoolsForAgent(InetAddress agentInetAddr) {
-		if (agentToPoolListMap.containsKey(agentInetAddr))
-			return Collections.unmodifiableList(agentToPoolListMap.get(agentInetAddr));
-		else
-			return Collections.<String>emptyList();
+		List<String> ret = agentToPoolListMap.get(agentInetAddr);
+		
+		return (ret == null) ? Collections.<String>emptyList() : ret;
+	}
+	
+	
+	/**
+	 * Check if an agent belongs to a pool
+	 * 
+	 * @param agentInetAddr agent's address
+	 * @param pool
+	 * @return true if the agent is in the pool
+	 */
+	boolean isAgentInPool(InetAddress agentInetAddr, String pool) {
+		Set<InetAddress> agents = poolToAgentSetMap.get(pool);
+		
+		return agents != null && agents.contains(agentInetAddr);
 	}
 	
 	
@@ -61,24 +126,72 @@ class PoolManager {
 	 * @param pool the pool to add the agent to
 	 * 
 	 */
-	void addPoolForAgent(InetAddress agentInetAddr, String pool) {
-		if (agentToPoolListMap.containsKey(agentInetAddr)) {
-			agentToPoolListMap.get(agentInetAddr).add(pool);
-		}				
-		else {
-			List<String> poolList = new ArrayList<String>();
-			poolList.add(pool);
-			agentToPoolListMap.put(agentInetAddr, poolList);
+	synchronized void addPoolForAgent(InetAddress agentInetAddr, String pool) {
+		List<String> poolList = getPoolsForAgent(agentInetAddr);
+		
+		if (!poolList.contains(pool)) {
+			List<String> newPoolList = new ArrayList<String>(poolList);
+			newPoolList.add(pool);
+			agentToPoolListMap.put(agentInetAddr, Collections.unmodifiableList(newPoolList));
 		}
 		
 		if (!poolToClientSetMap.containsKey(pool)) {
-			poolToAgentSetMap.put(pool, new HashSet<InetAddress>());
-			poolToClientSetMap.put(pool, new TreeSet<OdinClient>());
-			poolToSsidListMap.put(pool, new TreeSet<String>());
+			poolToAgentSetMap.put(pool, Collections.<InetAddress>emptySet());
+			poolToClientSetMap.put(pool, new ConcurrentSkipListSet<OdinClient>());
+			poolToSsidListMap.put(pool, Collections.<String>emptySet());
+		}
+		
+		poolToAgentSetMap.put(GLOBAL_POOL, with(poolToAgentSetMap.get(GLOBAL_POOL), agentInetAddr));
+		poolToAgentSetMap.put(pool, with(poolToAgentSetMap.get(pool), agentInetAddr));
+		ssidVersion++;
+	}
+	
+	
+	/**
+	 * Get the set of SSIDs that an agent offers, i.e., those
+	 * of every pool it belongs to. The set is computed once per
+	 * change to the pools or their networks, and then shared.
+	 * 
+	 * @param agentInetAddr agent's address
+	 * @return An immutable, sorted set of SSIDs
+	 */
+	Set<String> getSsidSetForAgent(InetAddress agentInetAddr) {
+		long version = ssidVersion;
+		AgentSsidSet cached = agentToSsidSetMap.get(agentInetAddr);
+		
+		if (cached != null && cached.version == version)
+			return cached.ssids;
+		
+		Set<String> ssidSet = new TreeSet<String>();
+		
+		for (String pool: getPoolsForAgent(agentInetAddr)) {
+			if (pool.equals(GLOBAL_POOL))
+				continue;
+			
+			ssidSet.addAll(getSsidListForPool(pool));
 		}
 		
-		poolToAgentSetMap.get(GLOBAL_POOL).add(agentInetAddr);
-		poolToAgentSetMap.get(pool).add(agentInetAddr);
+		/*
+		 * If the pools changed while we were at it, version
+		 * is already out of date and the set will be rebuilt
+		 * on the next call.
+		 */
+		cached = new AgentSsidSet(version, Collections.unmodifiableSet(ssidSet));
+		agentToSsidSetMap.put(agentInetAddr, cached);
+		
+		return cached.ssids;
+	}
+	
+	
+	/**
+	 * Get the version of the pools' SSID configuration. It changes
+	 * whenever an agent may have started offering a different set
+	 * of SSIDs.
+	 * 
+	 * @return the current version
+	 */
+	long getSsidVersion() {
+		return ssidVersion;
 	}
 	
 	/**
@@ -89,10 +202,20 @@ class PoolManager {
 	 * @return An immutable set of SSIDs
 	 */
 	Set<String> getSsidListForPool(String pool){
-		if (!poolToSsidListMap.containsKey(pool)) {
-			return Collections.emptySet();
-		}
-		return Collections.unmodifiableSet(poolToSsidListMap.get(pool));
+		Set<String> ret = poolToSsidListMap.get(pool);
+		
+		return (ret == null) ? Collections.<String>emptySet() : ret;
+	}
+	
+	
+	/**
+	 * Get the pool that hosts an SSID
+	 * 
+	 * @param ssid
+	 * @return the pool, or null if no pool hosts the SSID
+	 */
+	String getPoolForSsid(String ssid) {
+		return ssidToPoolMap.get(ssid);
 	}
 	
 	
@@ -105,20 +228,28 @@ class PoolManager {
 	 * @param ssid
 	 * @return true if the SSID was added, false otherwise.
 	 */
-	boolean addNetworkForPool(String pool, String ssid) {
+	synchronized boolean addNetworkForPool(String pool, String ssid) {
 		assert (pool != GLOBAL_POOL);
+		
+		Set<String> ssids = poolToSsidListMap.get(pool);
+		
 		/*
-		 * First add to the global pool. If this addition
-		 * is successful, it follows that the SSID is unique,
-		 * and can be added to the specified pool as well.
+		 * Every SSID is unique across pools, so an SSID can
+		 * only be added if no pool is hosting it yet.
 		 */
-		if (poolToSsidListMap.get(GLOBAL_POOL).add(ssid)) {
-			poolToSsidListMap.get(pool).add(ssid);
-			numNetworks++;
-			return true;
-		}
+		if (ssids == null || ssidToPoolMap.containsKey(ssid))
+			return false;
+		
+		poolToSsidListMap.put(pool, withSorted(ssids, ssid));
+		poolToSsidListMap.put(GLOBAL_POOL, withSorted(poolToSsidListMap.get(GLOBAL_POOL), ssid));
+		ssidToPoolMap.put(ssid, pool);
+		numNetworks++;
+		ssidVersion++;
+		
+		if (journal != null)
+			journal.networkAdded(pool, ssid);
 		
-		return false;
+		return true;
 	}
 	
 	
@@ -130,19 +261,22 @@ class PoolManager {
 	 * @param ssid
 	 * @return true if the ssid could be removed. False otherwise.
 	 */
-	boolean removeNetworkFromPool(String pool, String ssid) {
+	synchronized boolean removeNetworkFromPool(String pool, String ssid) {
 		assert (pool != GLOBAL_POOL);
-		/*
-		 * First remove from local pool. If that succeeds, remove
-		 * from the global pool as well.
-		 */
-		if (poolToSsidListMap.get(pool).remove(ssid)) {
-			poolToSsidListMap.get(GLOBAL_POOL).remove(ssid);
-			numNetworks--;
-			return true;
-		}
 		
-		return false;
+		if (!pool.equals(ssidToPoolMap.get(ssid)))
+			return false;
+		
+		poolToSsidListMap.put(pool, withoutSorted(poolToSsidListMap.get(pool), ssid));
+		poolToSsidListMap.put(GLOBAL_POOL, withoutSorted(poolToSsidListMap.get(GLOBAL_POOL), ssid));
+		ssidToPoolMap.remove(ssid);
+		numNetworks--;
+		ssidVersion++;
+		
+		if (journal != null)
+			journal.networkRemoved(pool, ssid);
+		
+		return true;
 	}
 	
 	
@@ -193,6 +327,9 @@ class PoolManager {
 		
 		poolToClientSetMap.get(GLOBAL_POOL).add(client);
 		poolToClientSetMap.get(pool).add(client);
+		
+		if (journal != null && !pool.equals(currentPool))
+			journal.clientPoolChanged(client.getMacAddress(), pool);
 	}
 	
 	
@@ -207,6 +344,9 @@ class PoolManager {
 		if (currentPool != null) {
 			poolToClientSetMap.get(currentPool).remove(client);
 			clientToPoolMap.remove(client);
+			
+			if (journal != null)
+				journal.clientPoolChanged(client.getMacAddress(), null);
 		}
 	}
 	
@@ -238,4 +378,39 @@ class PoolManager {
 		
 		return (ret == null) ? Collections.<InetAddress>emptySet() : ret; 
 	}
-}
\ No newline at end of file
+	
+	
+	private static <T> Set<T> with(Set<T> set, T element) {
+		if (set.contains(element))
+			return set;
+		
+		Set<T> copy = new HashSet<T>(set);
+		copy.add(element);
+		return Collections.unmodifiableSet(copy);
+	}
+	
+	
+	private static Set<String> withSorted(Set<String> set, String element) {
+		Set<String> copy = new TreeSet<String>(set);
+		copy.add(element);
+		return Collections.unmodifiableSet(copy);
+	}
+	
+	
+	private static Set<String> withoutSorted(Set<String> set, String element) {
+		Set<String> copy = new TreeSet<String>(set);
+		copy.remove(element);
+		return Collections.unmodifiableSet(copy);
+	}
+	
+	
+	private static class AgentSsidSet {
+		final long version;
+		final Set<String> ssids;
+		
+		AgentSsidSet (long version, Set<String> ssids) {
+			this.version = version;
+			this.ssids = ssids;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Suppresses duplicate probe responses. Clients scanning for
+ * networks send bursts of identical broadcast probes, on every
+ * channel, and each of them used to trigger a probe response from
+ * the agent that heard it. Within a window, we now answer only the
+ * first probe an agent hears from a client, unless the SSIDs the
+ * agent offers have changed since.
+ *
+ * An entry is kept per (agent, client) pair that was recently sent
+ * a response, and is dropped by the timing wheel once its window
+ * has passed.
+ */
+class ProbeResponseCoalescer {
+	static final long DEFAULT_WINDOW = 500; // milliseconds
+
+	private final OdinTimeoutWheel timeouts;
+	private final ConcurrentHashMap<ProbeKey, LastResponse> recent = new ConcurrentHashMap<ProbeKey, LastResponse>();
+	private final OdinTimeoutWheel.TimeoutHandler<ProbeKey> expirer = new OdinTimeoutWheel.TimeoutHandler<ProbeKey>() {
+		@Override
+		public void timeout(ProbeKey key) {
+			recent.remove(key);
+		}
+	};
+
+	private volatile long window;
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong suppressed = new AtomicLong();
+
+
+	/**
+	 * @param timeouts wheel that expires the recent responses
+	 * @param window milliseconds during which duplicate
+	 *        probes are not answered, 0 to answer every probe
+	 */
+	ProbeResponseCoalescer (OdinTimeoutWheel timeouts, long window) {
+		this.timeouts = timeouts;
+		this.window = window;
+	}
+
+
+	void setWindow (long window) {
+		assert (window >= 0);
+		this.window = window;
+	}
+
+
+	/**
+	 * Decide whether a probe from a client, heard by an agent,
+	 * should be answered. If so, it is recorded as answered.
+	 *
+	 * @param agentAddr agent that heard the probe
+	 * @param clientHwAddress client that sent the probe
+	 * @param ssidVersion version of the SSIDs the agent would offer
+	 * @return true if a probe response should be sent
+	 */
+	boolean shouldSend (InetAddress agentAddr, MACAddress clientHwAddress, long ssidVersion) {
+		long windowMillis = window;
+
+		if (windowMillis <= 0) {
+			sent.incrementAndGet();
+			return true;
+		}
+
+		long now = System.nanoTime();
+		long windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		ProbeKey key = new ProbeKey(agentAddr, clientHwAddress.toLong());
+		LastResponse last = recent.get(key);
+
+		if (last == null) {
+			last = recent.putIfAbsent(key, new LastResponse(now, ssidVersion));
+		}
+
+		if (last != null) {
+			synchronized (last) {
+				if (now - last.sentAt < windowNanos && last.ssidVersion == ssidVersion) {
+					suppressed.incrementAndGet();
+					return false;
+				}
+
+				last.sentAt = now;
+				last.ssidVersion = ssidVersion;
+			}
+		}
+
+		timeouts.schedule(key, windowMillis, TimeUnit.MILLISECONDS, expirer);
+		sent.incrementAndGet();
+		return true;
+	}
+
+
+	/**
+	 * @return number of probe responses that were sent
+	 */
+	long getSentCount () {
+		return sent.get();
+	}
+
+
+	/**
+	 * @return number of probe responses that were suppressed
+	 */
+	long getSuppressedCount () {
+		return suppressed.get();
+	}
+
+
+	/**
+	 * @return the coalescer's configuration and counters
+	 */
+	Map<String, Object> getStats () {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		long s = sent.get();
+		long d = suppressed.get();
+
+		stats.put("windowMillis", window);
+		stats.put("sent", s);
+		stats.put("suppressed", d);
+		stats.put("suppressedRatio", (s + d) == 0 ? 0.0 : (double) d / (s + d));
+		stats.put("tracked", recent.size());
+
+		return stats;
+	}
+
+
+	private static class LastResponse {
+		// Guarded by this
+		long sentAt;
+		long ssidVersion;
+
+		LastResponse (long sentAt, long ssidVersion) {
+			this.sentAt = sentAt;
+			this.ssidVersion = ssidVersion;
+		}
+	}
+
+
+	private static class ProbeKey {
+		final InetAddress agentAddr;
+		final long clientHwAddress;
+
+		ProbeKey (InetAddress agentAddr, long clientHwAddress) {
+			this.agentAddr = agentAddr;
+			this.clientHwAddress = clientHwAddress;
+		}
+
+		@Override
+		public boolean equals (Object o) {
+			if (!(o instanceof ProbeKey))
+				return false;
+
+			ProbeKey other = (ProbeKey) o;
+			return clientHwAddress == other.clientHwAddress && agentAddr.equals(other.agentAddr);
+		}
+
+		@Override
+		public int hashCode () {
+			return agentAddr.hashCode() * 31 + (int) (clientHwAddress ^ (clientHwAddress >>> 32));
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package net.floodlightcontroller.odin.master;
+
+import java.util.Map;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+public class ProtocolStatsResource extends ServerResource {
+
+	@Get("json")
+    public Map<String, Object> retreive() {
+    	OdinMaster oc = (OdinMaster) getContext().getAttributes().
+        					get(OdinMaster.class.getCanonicalName());
+    	
+    	return oc.getProtocolStats();
+    }
+}
@@ -0,0 +1,105 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts, per agent, how the values it publishes reach the master:
+ * one client at a time in publish messages, or many at once in
+ * batches. Every message is dispatched as a unit, so the number of
+ * entries per message is what batching buys.
+ */
+class PublishStats {
+	private final ConcurrentHashMap<InetAddress, AgentStats> agents = new ConcurrentHashMap<InetAddress, AgentStats>();
+
+
+	/**
+	 * Count a publish about a single client
+	 *
+	 * @param agentAddr agent that sent it
+	 * @param entries number of values in it
+	 */
+	void publishReceived (InetAddress agentAddr, int entries) {
+		AgentStats stats = statsFor(agentAddr);
+		stats.publishes.incrementAndGet();
+		stats.publishEntries.addAndGet(entries);
+	}
+
+
+	/**
+	 * Count a batch of publishes
+	 *
+	 * @param agentAddr agent that sent it
+	 * @param entries number of values in it
+	 */
+	void batchReceived (InetAddress agentAddr, int entries) {
+		AgentStats stats = statsFor(agentAddr);
+		stats.batches.incrementAndGet();
+		stats.batchEntries.addAndGet(entries);
+
+		if (entries > stats.maxBatchEntries)
+			stats.maxBatchEntries = entries;
+	}
+
+
+	/**
+	 * @return counters per agent, with the average number of entries
+	 *         per message and the share of entries that were batched
+	 */
+	Map<String, Object> getStats () {
+		Map<String, Object> stats = new TreeMap<String, Object>();
+
+		for (Map.Entry<InetAddress, AgentStats> entry: agents.entrySet()) {
+			stats.put(entry.getKey().getHostAddress(), entry.getValue().toMap());
+		}
+
+		return stats;
+	}
+
+
+	private AgentStats statsFor (InetAddress agentAddr) {
+		AgentStats stats = agents.get(agentAddr);
+
+		if (stats == null) {
+			AgentStats newStats = new AgentStats();
+			stats = agents.putIfAbsent(agentAddr, newStats);
+
+			if (stats == null)
+				stats = newStats;
+		}
+
+		return stats;
+	}
+
+
+	private static class AgentStats {
+		final AtomicLong publishes = new AtomicLong();
+		final AtomicLong publishEntries = new AtomicLong();
+		final AtomicLong batches = new AtomicLong();
+		final AtomicLong batchEntries = new AtomicLong();
+		volatile int maxBatchEntries = 0;
+
+		Map<String, Object> toMap () {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			long p = publishes.get();
+			long pe = publishEntries.get();
+			long b = batches.get();
+			long be = batchEntries.get();
+
+			map.put("publishes", p);
+			map.put("batches", b);
+			map.put("entries", pe + be);
+			map.put("batchedEntries", be);
+			map.put("batchedRatio", (pe + be) == 0 ? 0.0 : (double) be / (pe + be));
+			map.put("entriesPerMessage", (p + b) == 0 ? 0.0 : (double) (pe + be) / (p + b));
+			map.put("avgBatchEntries", b == 0 ? 0.0 : (double) be / b);
+			map.put("maxBatchEntries", maxBatchEntries);
+
+			return map;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls every agent for its rxstats in the background and caches
+ * the latest snapshot per agent, so that applications share one
+ * read of an agent's stats rather than each issuing their own.
+ *
+ * A round of polling issues a read to every agent at once. The
+ * reads are pipelined on each agent's control socket, so agents
+ * are polled in parallel without tying up a thread per agent.
+ * There is at most one outstanding read per agent: callers that
+ * need fresher stats than the cache holds join it. Every snapshot
+ * that is read also goes into the hearing graph and the time-series
+ * store, if there are any.
+ */
+class RxStatsCollector implements Runnable {
+	protected static Logger log = LoggerFactory.getLogger(RxStatsCollector.class);
+
+	static final long DEFAULT_INTERVAL = 5000; // milliseconds
+	static final long READ_TIMEOUT = 10000; // milliseconds
+
+	private final AgentManager agentManager;
+	private final HearingGraph hearingGraph;
+	private final ClientTimeSeriesStore timeSeries;
+	private final ConcurrentHashMap<InetAddress, AgentStats> cache = new ConcurrentHashMap<InetAddress, AgentStats>();
+
+
+	RxStatsCollector (AgentManager agentManager) {
+		this(agentManager, null);
+	}
+
+
+	/**
+	 * @param agentManager agents to poll
+	 * @param hearingGraph graph to feed the stats into, or null
+	 */
+	RxStatsCollector (AgentManager agentManager, HearingGraph hearingGraph) {
+		this(agentManager, hearingGraph, null);
+	}
+
+
+	/**
+	 * @param agentManager agents to poll
+	 * @param hearingGraph graph to feed the stats into, or null
+	 * @param timeSeries store to record the stats in, or null
+	 */
+	RxStatsCollector (AgentManager agentManager, HearingGraph hearingGraph, ClientTimeSeriesStore timeSeries) {
+		this.agentManager = agentManager;
+		this.hearingGraph = hearingGraph;
+		this.timeSeries = timeSeries;
+	}
+
+
+	/**
+	 * Start polling the agents
+	 *
+	 * @param executor executor to run the polling rounds on
+	 * @param interval milliseconds between rounds
+	 */
+	void start (ScheduledExecutorService executor, long interval) {
+		executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Run one round of polling
+	 */
+	@Override
+	public void run () {
+		try {
+			Map<InetAddress, IOdinAgent> agents = agentManager.getAgents();
+
+			for (IOdinAgent agent: agents.values()) {
+				getAgentStats(agent.getIpAddress()).refresh(agent);
+			}
+
+			// Forget agents that have gone away
+			cache.keySet().retainAll(agents.keySet());
+		} catch (RuntimeException e) {
+			// Don't let the executor cancel future rounds
+			log.error("Failed to poll agents for rxstats", e);
+		}
+	}
+
+
+	/**
+	 * Get an agent's stats, reading them from the agent only if the
+	 * cached snapshot is older than maxStaleness.
+	 *
+	 * @param agentAddr the agent
+	 * @param maxStaleness maximum age of the stats, in milliseconds
+	 * @return the stats, which may be older than maxStaleness if the
+	 *         agent couldn't be read, or null if the agent isn't tracked
+	 */
+	RxStatsSnapshot getRxStats (InetAddress agentAddr, long maxStaleness) {
+		IOdinAgent agent = agentManager.getAgent(agentAddr);
+
+		if (agent == null)
+			return null;
+
+		AgentStats stats = getAgentStats(agentAddr);
+		RxStatsSnapshot snapshot = stats.snapshot;
+
+		if (maxStaleness >= 0 && snapshot.getAge() <= maxStaleness)
+			return snapshot;
+
+		OdinAgentFuture<RxStatsSnapshot> future = stats.refresh(agent);
+
+		try {
+			future.await(READ_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// The read's listener may not have updated the cache yet
+		RxStatsSnapshot fresh = future.getNow();
+		snapshot = stats.snapshot;
+
+		return (fresh != null && fresh.getCollectedAt() >= snapshot.getCollectedAt()) ? fresh : snapshot;
+	}
+
+
+	/**
+	 * Read an agent's stats now, ignoring the cache
+	 *
+	 * @param agentAddr the agent
+	 * @return the stats, which are the cached ones if the agent
+	 *         couldn't be read, or null if the agent isn't tracked
+	 */
+	RxStatsSnapshot refresh (InetAddress agentAddr) {
+		return getRxStats(agentAddr, -1);
+	}
+
+
+	private AgentStats getAgentStats (InetAddress agentAddr) {
+		AgentStats stats = cache.get(agentAddr);
+
+		if (stats == null) {
+			AgentStats created = new AgentStats(agentAddr);
+			stats = cache.putIfAbsent(agentAddr, created);
+
+			if (stats == null)
+				stats = created;
+		}
+
+		return stats;
+	}
+
+
+	private class AgentStats implements OdinAgentFutureListener<RxStatsSnapshot> {
+		private volatile RxStatsSnapshot snapshot;
+
+		// Guarded by this
+		private OdinAgentFuture<RxStatsSnapshot> inFlight;
+		private long inFlightSince;
+
+		AgentStats (InetAddress agentAddr) {
+			snapshot = RxStatsSnapshot.empty(agentAddr);
+		}
+
+		/**
+		 * Read the stats from the agent, unless a read is already
+		 * outstanding, in which case that one is returned. A read
+		 * that has been outstanding for too long is given up on.
+		 */
+		OdinAgentFuture<RxStatsSnapshot> refresh (IOdinAgent agent) {
+			OdinAgentFuture<RxStatsSnapshot> future;
+
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+
+				if (inFlight != null && now - inFlightSince < READ_TIMEOUT)
+					return inFlight;
+
+				future = agent.getRxStatsSnapshotAsync();
+
+				if (future.isDone()) {
+					inFlight = null;
+				}
+				else {
+					inFlight = future;
+					inFlightSince = now;
+				}
+			}
+
+			future.addListener(this);
+			return future;
+		}
+
+		@Override
+		public void operationComplete (OdinAgentFuture<RxStatsSnapshot> future) {
+			synchronized (this) {
+				if (inFlight == future)
+					inFlight = null;
+
+				if (!future.isSuccess()) {
+					log.warn("Failed to read rxstats from agent " + snapshot.getAgentAddress(), future.getCause());
+					return;
+				}
+
+				RxStatsSnapshot result = future.getNow();
+
+				if (result.getCollectedAt() < snapshot.getCollectedAt())
+					return;
+
+				snapshot = result;
+			}
+
+			if (hearingGraph != null) {
+				hearingGraph.hear(future.getNow());
+			}
+
+			if (timeSeries != null) {
+				timeSeries.record(future.getNow());
+			}
+		}
+	}
+}
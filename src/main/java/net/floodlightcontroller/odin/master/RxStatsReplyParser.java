@@ -0,0 +1,118 @@
+package net.floodlightcontroller.odin.master;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Parses the output of the OdinAgent's rxstats read handler. We
+ * get rows like this:
+ *
+ *   MAC_ADDR1 prop1:<value> prop2:<value> ...
+ *   MAC_ADDR2 prop1:<value> prop2:<value> ...
+ *
+ * Rows that don't carry exactly numProperties properties are skipped.
+ */
+class RxStatsReplyParser extends ClickReplyParser<Map<MACAddress, Map<String, String>>> {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int MAX_CACHED_KEYS = 16;
+
+	private final int numProperties;
+
+	// Property names repeat on every row, so keep one String per name
+	private volatile String[] keyCache = new String[0];
+
+
+	RxStatsReplyParser (int numProperties) {
+		this.numProperties = numProperties;
+	}
+
+
+	@Override
+	Map<MACAddress, Map<String, String>> parse (byte[] data, int offset, int length) {
+		Map<MACAddress, Map<String, String>> ret = new HashMap<MACAddress, Map<String, String>>();
+		int end = offset + length;
+		int rowStart = offset;
+
+		while (rowStart < end) {
+			int rowEnd = indexOf(data, rowStart, end, (byte) '\n');
+			parseRow(data, rowStart, rowEnd, ret);
+			rowStart = rowEnd + 1;
+		}
+
+		return Collections.unmodifiableMap(ret);
+	}
+
+
+	private void parseRow (byte[] data, int from, int to, Map<MACAddress, Map<String, String>> ret) {
+		int macEnd = indexOf(data, from, to, (byte) ' ');
+
+		if (macEnd == to)
+			return;
+
+		Map<String, String> innerMap = new HashMap<String, String>(numProperties * 2);
+		int fieldStart = macEnd + 1;
+
+		while (fieldStart < to) {
+			int fieldEnd = indexOf(data, fieldStart, to, (byte) ' ');
+			int colon = indexOf(data, fieldStart, fieldEnd, (byte) ':');
+
+			if (colon == fieldEnd)
+				return;
+
+			innerMap.put(getKey(data, fieldStart, colon),
+					new String(data, colon + 1, fieldEnd - colon - 1, ASCII));
+			fieldStart = fieldEnd + 1;
+		}
+
+		if (innerMap.size() != numProperties)
+			return;
+
+		MACAddress eth;
+
+		try {
+			eth = MACAddress.valueOf(parseMacAddress(data, from, macEnd));
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+
+		ret.put(eth, Collections.unmodifiableMap(innerMap));
+	}
+
+
+	private String getKey (byte[] data, int from, int to) {
+		String[] cache = keyCache;
+
+		for (String key: cache) {
+			if (matches(key, data, from, to))
+				return key;
+		}
+
+		String key = new String(data, from, to - from, ASCII);
+
+		if (cache.length < MAX_CACHED_KEYS) {
+			String[] bigger = new String[cache.length + 1];
+			System.arraycopy(cache, 0, bigger, 0, cache.length);
+			bigger[cache.length] = key;
+			keyCache = bigger;
+		}
+
+		return key;
+	}
+
+
+	private static boolean matches (String key, byte[] data, int from, int to) {
+		if (key.length() != to - from)
+			return false;
+
+		for (int i = 0; i < key.length(); i++) {
+			if (key.charAt(i) != data[from + i])
+				return false;
+		}
+
+		return true;
+	}
+}
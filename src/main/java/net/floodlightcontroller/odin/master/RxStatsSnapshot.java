@@ -0,0 +1,132 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Map;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Immutable snapshot of the rxstats an agent reported at
+ * a point in time, with every value already parsed.
+ *
+ * Snapshots are shared by every application that reads
+ * them, so they must never be modified.
+ */
+public final class RxStatsSnapshot {
+	private final InetAddress agentAddr;
+	private final long collectedAt;
+	private final Map<MACAddress, Station> stations;
+
+
+	/**
+	 * Rx statistics of a single station, as heard by the agent
+	 */
+	public static final class Station {
+		private final int rate;
+		private final int signal;
+		private final int noise;
+		private final int avgSignal;
+		private final double lastReceived;
+
+		Station (int rate, int signal, int noise, int avgSignal, double lastReceived) {
+			this.rate = rate;
+			this.signal = signal;
+			this.noise = noise;
+			this.avgSignal = avgSignal;
+			this.lastReceived = lastReceived;
+		}
+
+		/**
+		 * @return rate of the last frame received from the station
+		 */
+		public int getRate() {
+			return rate;
+		}
+
+		/**
+		 * @return signal strength of the last frame received from the station
+		 */
+		public int getSignal() {
+			return signal;
+		}
+
+		/**
+		 * @return noise level of the last frame received from the station
+		 */
+		public int getNoise() {
+			return noise;
+		}
+
+		/**
+		 * @return average signal strength of frames received from the station
+		 */
+		public int getAvgSignal() {
+			return avgSignal;
+		}
+
+		/**
+		 * @return agent timestamp, in seconds, of the last frame received
+		 */
+		public double getLastReceived() {
+			return lastReceived;
+		}
+	}
+
+
+	RxStatsSnapshot (InetAddress agentAddr, long collectedAt, Map<MACAddress, Station> stations) {
+		this.agentAddr = agentAddr;
+		this.collectedAt = collectedAt;
+		this.stations = Collections.unmodifiableMap(stations);
+	}
+
+
+	/**
+	 * Snapshot of an agent we haven't been able to read from
+	 */
+	static RxStatsSnapshot empty (InetAddress agentAddr) {
+		return new RxStatsSnapshot(agentAddr, 0, Collections.<MACAddress, Station>emptyMap());
+	}
+
+
+	/**
+	 * @return the agent that reported the stats
+	 */
+	public InetAddress getAgentAddress() {
+		return agentAddr;
+	}
+
+
+	/**
+	 * @return time the stats were collected, in milliseconds
+	 *         since the epoch, or 0 if they never were
+	 */
+	public long getCollectedAt() {
+		return collectedAt;
+	}
+
+
+	/**
+	 * @return milliseconds since the stats were collected
+	 */
+	public long getAge() {
+		return System.currentTimeMillis() - collectedAt;
+	}
+
+
+	/**
+	 * @return stats of every station the agent can hear
+	 */
+	public Map<MACAddress, Station> getStations() {
+		return stations;
+	}
+
+
+	/**
+	 * @param staHwAddr station's MAC address
+	 * @return the station's stats, or null if the agent can't hear it
+	 */
+	public Station getStation(MACAddress staHwAddr) {
+		return stations.get(staHwAddr);
+	}
+}
@@ -0,0 +1,126 @@
+package net.floodlightcontroller.odin.master;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Parses the output of the OdinAgent's rxstats read handler straight
+ * into numeric fields. Rows look like this:
+ *
+ *   MAC_ADDR rate:<n> signal:<n> noise:<n> avg_signal:<n> last_received:<secs>.<usecs>
+ *
+ * Properties may come in any order. Rows that are missing one of
+ * them, or that carry a value that isn't a number, are skipped.
+ */
+class RxStatsSnapshotParser extends ClickReplyParser<Map<MACAddress, RxStatsSnapshot.Station>> {
+	private static final byte[] RATE = ascii("rate");
+	private static final byte[] SIGNAL = ascii("signal");
+	private static final byte[] NOISE = ascii("noise");
+	private static final byte[] AVG_SIGNAL = ascii("avg_signal");
+	private static final byte[] LAST_RECEIVED = ascii("last_received");
+
+	private static final int HAS_RATE = 1;
+	private static final int HAS_SIGNAL = 2;
+	private static final int HAS_NOISE = 4;
+	private static final int HAS_AVG_SIGNAL = 8;
+	private static final int HAS_LAST_RECEIVED = 16;
+	private static final int HAS_ALL = 31;
+
+
+	@Override
+	Map<MACAddress, RxStatsSnapshot.Station> parse (byte[] data, int offset, int length) {
+		Map<MACAddress, RxStatsSnapshot.Station> ret = new HashMap<MACAddress, RxStatsSnapshot.Station>();
+		int end = offset + length;
+		int rowStart = offset;
+
+		while (rowStart < end) {
+			int rowEnd = indexOf(data, rowStart, end, (byte) '\n');
+
+			try {
+				parseRow(data, rowStart, rowEnd, ret);
+			} catch (IllegalArgumentException e) {
+				// skip the row, NumberFormatException included
+			}
+
+			rowStart = rowEnd + 1;
+		}
+
+		return ret;
+	}
+
+
+	private static void parseRow (byte[] data, int from, int to, Map<MACAddress, RxStatsSnapshot.Station> ret) {
+		int macEnd = indexOf(data, from, to, (byte) ' ');
+
+		if (macEnd == to)
+			return;
+
+		int rate = 0, signal = 0, noise = 0, avgSignal = 0;
+		double lastReceived = 0;
+		int seen = 0;
+		int fieldStart = macEnd + 1;
+
+		while (fieldStart < to) {
+			int fieldEnd = indexOf(data, fieldStart, to, (byte) ' ');
+			int colon = indexOf(data, fieldStart, fieldEnd, (byte) ':');
+
+			if (colon == fieldEnd)
+				return;
+
+			if (matches(RATE, data, fieldStart, colon)) {
+				rate = (int) parseLong(data, colon + 1, fieldEnd);
+				seen |= HAS_RATE;
+			}
+			else if (matches(SIGNAL, data, fieldStart, colon)) {
+				signal = (int) parseLong(data, colon + 1, fieldEnd);
+				seen |= HAS_SIGNAL;
+			}
+			else if (matches(NOISE, data, fieldStart, colon)) {
+				noise = (int) parseLong(data, colon + 1, fieldEnd);
+				seen |= HAS_NOISE;
+			}
+			else if (matches(AVG_SIGNAL, data, fieldStart, colon)) {
+				avgSignal = (int) parseLong(data, colon + 1, fieldEnd);
+				seen |= HAS_AVG_SIGNAL;
+			}
+			else if (matches(LAST_RECEIVED, data, fieldStart, colon)) {
+				lastReceived = parseDecimal(data, colon + 1, fieldEnd);
+				seen |= HAS_LAST_RECEIVED;
+			}
+
+			fieldStart = fieldEnd + 1;
+		}
+
+		if (seen != HAS_ALL)
+			return;
+
+		MACAddress eth = MACAddress.valueOf(parseMacAddress(data, from, macEnd));
+		ret.put(eth, new RxStatsSnapshot.Station(rate, signal, noise, avgSignal, lastReceived));
+	}
+
+
+	private static boolean matches (byte[] name, byte[] data, int from, int to) {
+		if (name.length != to - from)
+			return false;
+
+		for (int i = 0; i < name.length; i++) {
+			if (name[i] != data[from + i])
+				return false;
+		}
+
+		return true;
+	}
+
+
+	private static byte[] ascii (String s) {
+		byte[] b = new byte[s.length()];
+
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) s.charAt(i);
+		}
+
+		return b;
+	}
+}
@@ -0,0 +1,188 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts and stops the spectral scans of agents, and keeps the ring
+ * of sample frames each running scan streams into. Frames are only
+ * kept for agents with a scan running, so the memory spent on scans
+ * is bounded by the number of such agents times the ring capacity.
+ */
+class SpectralScanManager {
+	protected static Logger log = LoggerFactory.getLogger(SpectralScanManager.class);
+
+	static final int DEFAULT_CAPACITY = 2048; // frames per agent, a power of two
+	static final int DEFAULT_BUSY_THRESHOLD = -85; // dBm
+
+	private final ConcurrentHashMap<InetAddress, Scan> scans = new ConcurrentHashMap<InetAddress, Scan>();
+	private volatile int port = 0;
+	private volatile int capacity = DEFAULT_CAPACITY;
+	private volatile int busyThreshold = DEFAULT_BUSY_THRESHOLD;
+
+
+	/**
+	 * @param port where the spectral scan server listens, 0 if it isn't
+	 */
+	void setPort (int port) {
+		this.port = port;
+	}
+
+
+	/**
+	 * @param capacity frames kept per agent, a power of two,
+	 *        for scans started from now on
+	 */
+	void setCapacity (int capacity) {
+		assert (Integer.bitCount(capacity) == 1);
+		this.capacity = capacity;
+	}
+
+
+	/**
+	 * @param busyThreshold dBm above which an FFT bin counts as busy
+	 */
+	void setBusyThreshold (int busyThreshold) {
+		this.busyThreshold = busyThreshold;
+	}
+
+
+	int getBusyThreshold () {
+		return busyThreshold;
+	}
+
+
+	/**
+	 * Start an agent's spectral scan, or change the period of
+	 * the one it is running
+	 *
+	 * @param agent the agent
+	 * @param period milliseconds between the agent's scan rounds
+	 * @return false if there is nowhere to stream the frames to
+	 */
+	boolean start (final IOdinAgent agent, int period) {
+		assert (period > 0);
+
+		if (port == 0) {
+			log.error("Can't start a spectral scan on " + agent.getIpAddress() + ": no spectral scan port");
+			return false;
+		}
+
+		final InetAddress agentAddr = agent.getIpAddress();
+		Scan scan = scans.get(agentAddr);
+
+		if (scan == null || scan.agent != agent) {
+			scan = new Scan(agent, new SpectralScanRing(capacity));
+			scans.put(agentAddr, scan);
+		}
+
+		scan.period = period;
+
+		final Scan started = scan;
+
+		agent.setSpectralScanAsync(true, port, period).addListener(new OdinAgentFutureListener<Void>() {
+			@Override
+			public void operationComplete(OdinAgentFuture<Void> future) {
+				if (!future.isSuccess() && scans.remove(agentAddr, started)) {
+					log.error("Failed to start the spectral scan of agent " + agentAddr, future.getCause());
+				}
+			}
+		});
+
+		return true;
+	}
+
+
+	/**
+	 * Stop an agent's spectral scan, and drop its frames
+	 *
+	 * @return false if the agent wasn't scanning
+	 */
+	boolean stop (InetAddress agentAddr) {
+		Scan scan = scans.remove(agentAddr);
+
+		if (scan == null)
+			return false;
+
+		scan.agent.setSpectralScanAsync(false, port, 0);
+
+		return true;
+	}
+
+
+	/**
+	 * Forget about the scan of an agent that is gone
+	 */
+	void agentRemoved (InetAddress agentAddr) {
+		scans.remove(agentAddr);
+	}
+
+
+	/**
+	 * @return the frames of an agent's scan, or null if it isn't scanning
+	 */
+	SpectralScanRing getRing (InetAddress agentAddr) {
+		Scan scan = scans.get(agentAddr);
+		return (scan == null) ? null : scan.ring;
+	}
+
+
+	/**
+	 * @param agentAddr the agent
+	 * @param window milliseconds to aggregate over, back from now
+	 * @return per-channel aggregates, by frequency, or null if the
+	 *         agent isn't scanning
+	 */
+	List<ChannelOccupancy> getOccupancy (InetAddress agentAddr, long window) {
+		SpectralScanRing ring = getRing(agentAddr);
+
+		if (ring == null)
+			return null;
+
+		return ring.summarize(System.currentTimeMillis() - window);
+	}
+
+
+	Map<String, Object> getStats () {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		stats.put("port", port);
+		stats.put("busyThresholdDbm", busyThreshold);
+
+		Map<String, Object> agents = new LinkedHashMap<String, Object>();
+
+		for (Map.Entry<InetAddress, Scan> entry: scans.entrySet()) {
+			Scan scan = entry.getValue();
+			Map<String, Object> agentStats = new LinkedHashMap<String, Object>();
+
+			agentStats.put("periodMillis", scan.period);
+			agentStats.put("startedAt", scan.startedAt);
+			agentStats.put("frames", scan.ring.getFrameCount());
+			agentStats.put("capacity", scan.ring.capacity());
+			agents.put(entry.getKey().getHostAddress(), agentStats);
+		}
+
+		stats.put("agents", agents);
+
+		return stats;
+	}
+
+
+	private static final class Scan {
+		final IOdinAgent agent;
+		final SpectralScanRing ring;
+		final long startedAt = System.currentTimeMillis();
+		volatile int period;
+
+		Scan (IOdinAgent agent, SpectralScanRing ring) {
+			this.agent = agent;
+			this.ring = ring;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package net.floodlightcontroller.odin.master;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The most recent spectral scan frames of one agent, in a ring of
+ * primitive arrays allocated once. A frame is reduced to what the
+ * windowed aggregates need: when it arrived, its channel, its peak
+ * power, and how many of its FFT bins were busy. Ingesting a frame
+ * allocates nothing, so scans can run continuously on every agent.
+ *
+ * There is a single writer, the thread receiving frames, and any
+ * number of readers. Readers walk back from the newest frame and
+ * stop at the first one that may have been overwritten while they
+ * were reading it, so they see at most capacity - 1 frames.
+ */
+class SpectralScanRing {
+	static final int MAX_CHANNELS = 64;
+
+	private final int capacity;
+	private final int mask;
+	private final long[] times;
+	private final short[] frequencies;
+	private final byte[] peaks;
+	private final byte[] busyBins;
+	private final byte[] bins;
+
+	// Number of frames ever added, written by the writer only
+	private volatile long head = 0;
+
+
+	/**
+	 * @param capacity number of frames kept, a power of two
+	 */
+	SpectralScanRing (int capacity) {
+		assert (Integer.bitCount(capacity) == 1);
+
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.times = new long[capacity];
+		this.frequencies = new short[capacity];
+		this.peaks = new byte[capacity];
+		this.busyBins = new byte[capacity];
+		this.bins = new byte[capacity];
+	}
+
+
+	/**
+	 * Writer side: add a frame, overwriting the oldest one
+	 * once the ring is full
+	 *
+	 * @param time when the frame arrived, in milliseconds
+	 * @param frequency channel center frequency, in MHz
+	 * @param peak strongest bin power, in dBm
+	 * @param busy number of bins above the busy threshold
+	 * @param binCount number of bins in the frame, at most 255
+	 */
+	void add (long time, int frequency, int peak, int busy, int binCount) {
+		long h = head;
+		int slot = (int) (h & mask);
+
+		times[slot] = time;
+		frequencies[slot] = (short) frequency;
+		peaks[slot] = (byte) peak;
+		busyBins[slot] = (byte) busy;
+		bins[slot] = (byte) binCount;
+
+		head = h + 1;
+	}
+
+
+	/**
+	 * @return number of frames ever added
+	 */
+	long getFrameCount () {
+		return head;
+	}
+
+
+	int capacity () {
+		return capacity;
+	}
+
+
+	/**
+	 * Aggregate the frames that arrived since a point in time,
+	 * per channel
+	 *
+	 * @param since milliseconds
+	 * @return one entry per channel, by frequency
+	 */
+	List<ChannelOccupancy> summarize (long since) {
+		int[] frequency = new int[MAX_CHANNELS];
+		long[] frames = new long[MAX_CHANNELS];
+		long[] busyFrames = new long[MAX_CHANNELS];
+		long[] busySum = new long[MAX_CHANNELS];
+		long[] binSum = new long[MAX_CHANNELS];
+		long[] powerSum = new long[MAX_CHANNELS];
+		int[] peak = new int[MAX_CHANNELS];
+		int channels = 0;
+
+		long newest = head - 1;
+
+		for (long i = newest; i >= 0 && i > newest - capacity; i--) {
+			int slot = (int) (i & mask);
+			long time = times[slot];
+			int freq = frequencies[slot] & 0xffff;
+			int power = peaks[slot];
+			int busy = busyBins[slot] & 0xff;
+			int binCount = bins[slot] & 0xff;
+
+			// The writer may have lapped us while we were reading
+			if (i <= head - capacity || time < since)
+				break;
+
+			int c = 0;
+			while (c < channels && frequency[c] != freq)
+				c++;
+
+			if (c == channels) {
+				if (channels == MAX_CHANNELS)
+					continue;
+
+				frequency[c] = freq;
+				peak[c] = power;
+				channels++;
+			}
+
+			frames[c]++;
+			busySum[c] += busy;
+			binSum[c] += binCount;
+			powerSum[c] += power;
+			peak[c] = Math.max(peak[c], power);
+
+			if (busy > 0)
+				busyFrames[c]++;
+		}
+
+		List<ChannelOccupancy> result = new ArrayList<ChannelOccupancy>(channels);
+
+		for (int n = 0; n < channels; n++) {
+			// Channels are few, so pick them in order of frequency
+			int c = -1;
+
+			for (int j = 0; j < channels; j++) {
+				if (frames[j] > 0 && (c < 0 || frequency[j] < frequency[c]))
+					c = j;
+			}
+
+			result.add(new ChannelOccupancy(frequency[c], frames[c],
+					binSum[c] == 0 ? 0.0 : (double) busySum[c] / binSum[c],
+					(double) busyFrames[c] / frames[c], peak[c], (double) powerSum[c] / frames[c]));
+			frames[c] = 0;
+		}
+
+		return result;
+	}
+}
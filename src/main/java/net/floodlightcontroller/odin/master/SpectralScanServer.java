@@ -0,0 +1,188 @@
+package net.floodlightcontroller.odin.master;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives the spectral scan frames agents stream to the master, on
+ * a port of their own so that they never compete with pings, probes
+ * and publishes. Frames are decoded straight out of a direct buffer
+ * into the ring of the agent that sent them.
+ *
+ * A datagram holds any number of frames:
+ *
+ *   0x53 version(1) count(1) frame*
+ *   frame := frequency(2, MHz) noise(1, signed dBm) bins(1) bin*
+ *
+ * where each bin is the power of an FFT bin in dB above the noise
+ * floor. Multi-byte fields are big-endian.
+ */
+class SpectralScanServer implements Runnable {
+	protected static Logger log = LoggerFactory.getLogger(SpectralScanServer.class);
+
+	static final int MAGIC = 0x53;
+	static final int VERSION = 1;
+
+	private static final int MAX_DATAGRAM_SIZE = 8192;
+
+	private final int port;
+	private final SpectralScanManager manager;
+
+	// Only touched by the thread running the server
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+
+	private volatile DatagramChannel channel;
+	private volatile boolean running = true;
+
+	// Counters
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong frames = new AtomicLong();
+	private final AtomicLong notScanning = new AtomicLong();
+	private final AtomicLong parseErrors = new AtomicLong();
+
+
+	SpectralScanServer (SpectralScanManager manager, int port) {
+		this.manager = manager;
+		this.port = port;
+	}
+
+
+	@Override
+	public void run() {
+		try {
+			channel = DatagramChannel.open();
+			channel.socket().bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			log.error("Unable to listen for spectral scans on port " + port, e);
+			return;
+		}
+
+		while (running) {
+			try {
+				buffer.clear();
+				SocketAddress sender = channel.receive(buffer);
+				buffer.flip();
+				received.incrementAndGet();
+				ingest(((InetSocketAddress) sender).getAddress(), buffer, System.currentTimeMillis());
+			}
+			catch (IOException e) {
+				if (running) {
+					log.error("Receiving spectral scans failed on port " + port, e);
+				}
+				break;
+			}
+		}
+
+		running = false;
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+
+	/**
+	 * Stop receiving
+	 */
+	void shutdown () {
+		running = false;
+
+		DatagramChannel c = channel;
+
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+
+	/**
+	 * Decode the frames of a datagram into the ring of the agent
+	 * that sent it. Frames from agents that aren't scanning are
+	 * dropped, as are the remaining frames of a malformed datagram.
+	 *
+	 * @param agentAddr sender of the datagram
+	 * @param buf the datagram
+	 * @param now milliseconds
+	 * @return number of frames ingested
+	 */
+	int ingest (InetAddress agentAddr, ByteBuffer buf, long now) {
+		SpectralScanRing ring = manager.getRing(agentAddr);
+
+		if (ring == null) {
+			notScanning.incrementAndGet();
+			return 0;
+		}
+
+		if (buf.remaining() < 3 || (buf.get() & 0xff) != MAGIC || (buf.get() & 0xff) != VERSION) {
+			parseErrors.incrementAndGet();
+			return 0;
+		}
+
+		int count = buf.get() & 0xff;
+		int threshold = manager.getBusyThreshold();
+		int n = 0;
+
+		for (; n < count; n++) {
+			if (buf.remaining() < 4) {
+				parseErrors.incrementAndGet();
+				break;
+			}
+
+			int frequency = buf.getShort() & 0xffff;
+			int noise = buf.get();
+			int binCount = buf.get() & 0xff;
+
+			if (buf.remaining() < binCount) {
+				parseErrors.incrementAndGet();
+				break;
+			}
+
+			int max = 0;
+			int busy = 0;
+
+			for (int b = 0; b < binCount; b++) {
+				int power = buf.get() & 0xff;
+
+				if (power > max)
+					max = power;
+
+				if (noise + power >= threshold)
+					busy++;
+			}
+
+			ring.add(now, frequency, Math.min(Byte.MAX_VALUE, noise + max), busy, binCount);
+		}
+
+		frames.addAndGet(n);
+
+		return n;
+	}
+
+
+	Map<String, Object> getStats () {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		stats.put("received", received.get());
+		stats.put("frames", frames.get());
+		stats.put("notScanning", notScanning.get());
+		stats.put("parseErrors", parseErrors.get());
+
+		return stats;
+	}
+}
@@ -1,9 +1,14 @@
 package net.floodlightcontroller.odin.master;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.odin.master.IOdinAgent;
@@ -22,13 +27,86 @@ class StubOdinAgent implements IOdinAgent {
 	private IOFSwitch sw = null;
 	private InetAddress ipAddr = null;
 	private long lastHeard;
+	private int protocolVersion = 0;
 	private ConcurrentSkipListSet<OdinClient> clientList = new ConcurrentSkipListSet<OdinClient>();
+	private ConcurrentSkipListSet<OdinClient> stagedList = new ConcurrentSkipListSet<OdinClient>();
+	private volatile boolean prestagingSupported = true;
+	private volatile boolean prestagingFails = false;
+	private volatile boolean lvapUpdatesFail = false;
+	private final List<OdinClient> updatedLvaps = new CopyOnWriteArrayList<OdinClient>();
+	private volatile int spectralScanPeriod = 0;
+	private volatile String subscriptionList = null;
+	private volatile int subscriptionUpdates = 0;
+	private volatile Map<MACAddress, RxStatsSnapshot.Station> stationStats = new HashMap<MACAddress, RxStatsSnapshot.Station>();
+	private final AtomicInteger rxStatsReads = new AtomicInteger();
+	private final AtomicInteger probeResponses = new AtomicInteger();
+	private final AtomicInteger openBatches = new AtomicInteger();
+	private final AtomicInteger commandBatches = new AtomicInteger();
+	private volatile Set<String> lastProbeResponseSsids = null;
 	
 	@Override
 	public void addClientLvap(OdinClient oc) {
+		stagedList.remove(oc);
 		clientList.add(oc);
 	}
 
+	@Override
+	public OdinAgentFuture<Void> addClientLvapAsync(OdinClient oc) {
+		addClientLvap(oc);
+		return OdinAgentFuture.completed(null);
+	}
+
+	@Override
+	public OdinAgentFuture<Void> prestageClientLvapAsync(OdinClient oc) {
+		if (!prestagingSupported)
+			return OdinAgentFuture.failed(new OdinAgentHandlerException("prestage_vap", ipAddr,
+					OdinAgentHandlerException.NO_SUCH_HANDLER + " No such handler 'odinagent.prestage_vap'"));
+
+		if (prestagingFails)
+			return OdinAgentFuture.failed(new IOException("prestage_vap"));
+
+		stagedList.add(oc);
+		return OdinAgentFuture.completed(null);
+	}
+
+	@Override
+	public OdinAgentFuture<Void> unstageClientLvapAsync(OdinClient oc) {
+		stagedList.remove(oc);
+		return OdinAgentFuture.completed(null);
+	}
+
+	/**
+	 * @return clients with a dormant LVAP on this agent
+	 */
+	Set<OdinClient> getStagedLvaps() {
+		return stagedList;
+	}
+
+	void setPrestagingSupported(boolean supported) {
+		prestagingSupported = supported;
+	}
+
+	/**
+	 * Make prestage_vap fail the way a handler with a
+	 * transient error does
+	 */
+	void setPrestagingFails(boolean fail) {
+		prestagingFails = fail;
+	}
+
+	@Override
+	public OdinAgentFuture<Void> setSpectralScanAsync(boolean enabled, int port, int period) {
+		spectralScanPeriod = enabled ? period : 0;
+		return OdinAgentFuture.completed(null);
+	}
+
+	/**
+	 * @return period of the running spectral scan, or 0 if none is
+	 */
+	int getSpectralScanPeriod() {
+		return spectralScanPeriod;
+	}
+
 	@Override
 	public InetAddress getIpAddress() {
 		return ipAddr;
@@ -39,6 +117,31 @@ class StubOdinAgent implements IOdinAgent {
 		return null;
 	}
 
+	@Override
+	public OdinAgentFuture<Map<MACAddress, Map<String, String>>> getRxStatsAsync() {
+		return OdinAgentFuture.completed(getRxStats());
+	}
+
+	@Override
+	public OdinAgentFuture<RxStatsSnapshot> getRxStatsSnapshotAsync() {
+		rxStatsReads.incrementAndGet();
+		return OdinAgentFuture.completed(new RxStatsSnapshot(ipAddr, System.currentTimeMillis(), stationStats));
+	}
+
+	/**
+	 * Set the stats the agent reports from now on
+	 */
+	void setStationStats(Map<MACAddress, RxStatsSnapshot.Station> stationStats) {
+		this.stationStats = stationStats;
+	}
+
+	/**
+	 * @return number of times rxstats were read from the agent
+	 */
+	int getRxStatsReads() {
+		return rxStatsReads.get();
+	}
+
 	@Override
 	public IOFSwitch getSwitch() {
 		return sw;
@@ -49,6 +152,11 @@ class StubOdinAgent implements IOdinAgent {
 		return clientList;
 	}
 
+	@Override
+	public OdinAgentFuture<Set<OdinClient>> getLvapsRemoteAsync() {
+		return OdinAgentFuture.completed(getLvapsRemote());
+	}
+
 	@Override
 	public int init(InetAddress host) {
 		this.ipAddr = host;
@@ -61,6 +169,12 @@ class StubOdinAgent implements IOdinAgent {
 		clientList.remove(oc);
 	}
 
+	@Override
+	public OdinAgentFuture<Void> removeClientLvapAsync(OdinClient oc) {
+		removeClientLvap(oc);
+		return OdinAgentFuture.completed(null);
+	}
+
 	@Override
 	public void setSwitch(IOFSwitch sw) {
 		this.sw = sw;
@@ -75,6 +189,16 @@ class StubOdinAgent implements IOdinAgent {
 		this.lastHeard = t;
 	}
 
+	@Override
+	public int getProtocolVersion () {
+		return protocolVersion;
+	}
+
+	@Override
+	public void setProtocolVersion (int version) {
+		this.protocolVersion = version;
+	}
+
 	@Override
 	public Set<OdinClient> getLvapsLocal() {
 		return clientList;
@@ -82,15 +206,104 @@ class StubOdinAgent implements IOdinAgent {
 
 	@Override
 	public void setSubscriptions(String subscriptionList) {
-		// Do nothing.
+		this.subscriptionList = subscriptionList;
+		subscriptionUpdates++;
 	}
 
 	@Override
-	public void updateClientLvap(OdinClient oc) {		
+	public OdinAgentFuture<Void> setSubscriptionsAsync(String subscriptionList) {
+		setSubscriptions(subscriptionList);
+		return OdinAgentFuture.completed(null);
+	}
+
+	/**
+	 * @return the last subscription list set on the agent
+	 */
+	String getSubscriptionList() {
+		return subscriptionList;
+	}
+
+	/**
+	 * @return number of times the subscription list was set
+	 */
+	int getSubscriptionUpdates() {
+		return subscriptionUpdates;
+	}
+
+	@Override
+	public void updateClientLvap(OdinClient oc) {
+		updateClientLvapAsync(oc);
+	}
+
+	@Override
+	public OdinAgentFuture<Void> updateClientLvapAsync(OdinClient oc) {
+		if (lvapUpdatesFail)
+			return OdinAgentFuture.failed(new IOException("set_vap"));
+
+		updatedLvaps.add(oc);
+		return OdinAgentFuture.completed(null);
+	}
+
+	/**
+	 * @return the LVAPs the agent was sent updates of, in order
+	 */
+	List<OdinClient> getUpdatedLvaps() {
+		return updatedLvaps;
+	}
+
+	void setLvapUpdatesFail(boolean fail) {
+		lvapUpdatesFail = fail;
 	}
 
 	@Override
 	public void sendProbeResponse(MACAddress clientHwAddr, MACAddress bssid,
 			Set<String> ssidLists) {
+		probeResponses.incrementAndGet();
+		lastProbeResponseSsids = ssidLists;
+	}
+
+	/**
+	 * @return number of probe responses sent by the agent
+	 */
+	int getProbeResponses() {
+		return probeResponses.get();
+	}
+
+	/**
+	 * @return SSIDs offered in the last probe response
+	 */
+	Set<String> getLastProbeResponseSsids() {
+		return lastProbeResponseSsids;
+	}
+
+	@Override
+	public OdinAgentFuture<Void> sendProbeResponseAsync(MACAddress clientHwAddr,
+			MACAddress bssid, Set<String> ssidLists) {
+		return OdinAgentFuture.completed(null);
+	}
+
+	@Override
+	public void beginCommandBatch() {
+		openBatches.incrementAndGet();
+	}
+
+	@Override
+	public void endCommandBatch() {
+		openBatches.decrementAndGet();
+		commandBatches.incrementAndGet();
+	}
+
+	/**
+	 * @return number of command batches that are still open
+	 */
+	int getOpenBatches() {
+		return openBatches.get();
+	}
+
+	/**
+	 * @return number of command batches that were closed
+	 */
+	int getCommandBatches() {
+		return commandBatches.get();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,507 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Keeps track of the subscriptions applications have registered,
+ * and of the subscription list each agent has been sent.
+ *
+ * A subscription registered for a pool only goes to the agents in
+ * that pool (subscriptions for the global pool go to every agent).
+ * Each subscription is encoded once, when it is registered, and the
+ * list for a given set of pools is compiled once and cached until
+ * a subscription in one of those pools changes. When a pool's
+ * subscriptions change, only the agents in that pool are considered,
+ * and only those whose list actually differs from what they were
+ * last sent are updated. Updates are issued asynchronously, so all
+ * agents are reconfigured in parallel, and are handed to the
+ * AgentFanOut, when there is one, so that their commands are issued
+ * after the registry's lock is released.
+ *
+ * Subscriptions agents can't evaluate (compound ones, and those with
+ * hysteresis), and every subscription when the master is set to
+ * evaluate them all, go to the SubscriptionRuleEngine instead. Agents
+ * are then sent a sample subscription for each statistic (and client)
+ * those rules need, which matches every sample, and the samples they
+ * publish for it are evaluated by the master.
+ *
+ * The list sent to an agent has the following format:
+ *
+ *   <count> <id> <client> <statistic> <relation> <value> ...
+ */
+class SubscriptionRegistry {
+	protected static Logger log = LoggerFactory.getLogger(SubscriptionRegistry.class);
+
+	private static final String WILD_CARD_CLIENT = MACAddress.valueOf("00:00:00:00:00:00").toString();
+
+	// Sample subscriptions match every sample the agent takes
+	private static final double SAMPLE_THRESHOLD = -Double.MAX_VALUE;
+
+	private final PoolManager poolManager;
+	private final AgentManager agentManager;
+	private final SubscriptionRuleEngine ruleEngine;
+
+	// Read without locking when dispatching publishes
+	private final Map<Long, Subscription> subscriptions = new ConcurrentHashMap<Long, Subscription>();
+
+	// Statistic of each sample subscription
+	private final Map<Long, String> sampleStatistics = new ConcurrentHashMap<Long, String>();
+
+	// Guarded by this
+	private long subscriptionId = 0;
+	private OdinJournal journal = null;
+	private AgentFanOut fanOut = null;
+	private boolean masterEvaluation = false;
+	private final Map<String, Long> sampleIds = new HashMap<String, Long>();
+	private final Map<String, TreeMap<Long, Subscription>> subscriptionsByPool = new HashMap<String, TreeMap<Long, Subscription>>();
+	private final Map<List<String>, String> compiledByPools = new HashMap<List<String>, String>();
+
+	// Last list sent to each agent
+	private final ConcurrentHashMap<InetAddress, String> pushedLists = new ConcurrentHashMap<InetAddress, String>();
+
+
+	/**
+	 * A registered subscription
+	 */
+	static class Subscription {
+		final long id;
+		final String pool;
+		final OdinEventSubscription oes;
+		final NotificationCallback cb;
+		final String encoded;
+
+		Subscription (long id, String pool, OdinEventSubscription oes, NotificationCallback cb) {
+			this.id = id;
+			this.pool = pool;
+			this.oes = oes;
+			this.cb = cb;
+
+			final String addr = oes.getClient();
+			this.encoded = id + " " +
+							(addr.equals("*") ? WILD_CARD_CLIENT : addr) + " " +
+							oes.getStatistic() + " " +
+							oes.getRelation().ordinal() + " " +
+							oes.getValue() + " ";
+		}
+	}
+
+
+	SubscriptionRegistry (PoolManager poolManager, AgentManager agentManager) {
+		this.poolManager = poolManager;
+		this.agentManager = agentManager;
+		this.ruleEngine = new SubscriptionRuleEngine(poolManager);
+	}
+
+	/**
+	 * Journal subscriptions from now on
+	 *
+	 * @param journal the journal, or null to stop journaling
+	 */
+	synchronized void setJournal (OdinJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Send subscription lists through a fan-out from now on
+	 *
+	 * @param fanOut the fan-out, or null to send them directly
+	 */
+	synchronized void setFanOut (AgentFanOut fanOut) {
+		this.fanOut = fanOut;
+	}
+
+	/**
+	 * Hand out ids past those used before a restart, since
+	 * agents may still publish for the old ones
+	 *
+	 * @param lastId the last id handed out before the restart
+	 */
+	synchronized void reserveIds (long lastId) {
+		subscriptionId = Math.max(subscriptionId, lastId);
+	}
+
+	/**
+	 * Choose whether the master evaluates every subscription,
+	 * or only those agents can't, and update the agents
+	 *
+	 * @param masterEvaluation true for the master to evaluate them all
+	 */
+	synchronized void setMasterEvaluation (boolean masterEvaluation) {
+		if (this.masterEvaluation == masterEvaluation)
+			return;
+
+		this.masterEvaluation = masterEvaluation;
+		ruleEngine.clear();
+
+		for (Subscription sub: subscriptions.values()) {
+			if (evaluatedByMaster(sub))
+				ruleEngine.add(sub);
+		}
+
+		compiledByPools.clear();
+		poolChanged(PoolManager.GLOBAL_POOL);
+	}
+
+
+	/**
+	 * Add a subscription, and update the agents of the pool
+	 *
+	 * @param pool pool of the application registering the subscription
+	 * @param oes the subscription
+	 * @param cb the callback
+	 * @return id of the subscription
+	 */
+	synchronized long register (String pool, OdinEventSubscription oes, NotificationCallback cb) {
+		subscriptionId++;
+		Subscription sub = new Subscription(subscriptionId, pool, oes, cb);
+
+		TreeMap<Long, Subscription> poolSubscriptions = subscriptionsByPool.get(pool);
+
+		if (poolSubscriptions == null) {
+			poolSubscriptions = new TreeMap<Long, Subscription>();
+			subscriptionsByPool.put(pool, poolSubscriptions);
+		}
+
+		poolSubscriptions.put(sub.id, sub);
+		subscriptions.put(sub.id, sub);
+
+		if (evaluatedByMaster(sub))
+			ruleEngine.add(sub);
+
+		if (journal != null)
+			journal.subscriptionAdded(sub.id, pool, sub.encoded);
+
+		poolChanged(pool);
+
+		return sub.id;
+	}
+
+
+	/**
+	 * Remove a subscription, and update the agents of the pool.
+	 * Applications may only remove subscriptions of their own pool.
+	 *
+	 * @param pool pool of the application removing the subscription
+	 * @param id subscription id to remove
+	 * @return true if the subscription was removed
+	 */
+	synchronized boolean unregister (String pool, long id) {
+		Subscription sub = subscriptions.get(id);
+
+		if (sub == null)
+			return false;
+
+		if (!sub.pool.equals(pool)) {
+			log.error("Subscription " + id + " belongs to pool " + sub.pool + ", cannot remove it from pool " + pool);
+			return false;
+		}
+
+		subscriptions.remove(id);
+		subscriptionsByPool.get(pool).remove(id);
+		ruleEngine.remove(sub);
+
+		if (journal != null)
+			journal.subscriptionRemoved(id);
+
+		poolChanged(pool);
+
+		return true;
+	}
+
+
+	/**
+	 * Look up a subscription, e.g., to dispatch a publish
+	 *
+	 * @param id subscription id
+	 * @return the subscription, or null if it doesn't exist
+	 */
+	Subscription get (long id) {
+		return subscriptions.get(id);
+	}
+
+
+	/**
+	 * Find the subscriptions a published entry matches: the one it
+	 * was published for, or, for a sample, those the rule engine
+	 * matches it with. Must be called under the client's lock.
+	 *
+	 * @param id subscription id the entry was published for
+	 * @param clientHwAddress the client the entry is about
+	 * @param agentAddr the agent that published the entry
+	 * @param value the value published
+	 * @param matched the subscriptions matched are added to it
+	 * @return the statistic of the entry, or null if the id is unknown
+	 */
+	String match (long id, MACAddress clientHwAddress, InetAddress agentAddr,
+			long value, List<Subscription> matched) {
+		Subscription sub = subscriptions.get(id);
+
+		if (sub != null) {
+			matched.add(sub);
+			return sub.oes.getStatistic();
+		}
+
+		String statistic = sampleStatistics.get(id);
+
+		if (statistic != null)
+			ruleEngine.evaluate(statistic, clientHwAddress, agentAddr, value, matched);
+
+		return statistic;
+	}
+
+
+	/**
+	 * Forget the samples heard about a client
+	 *
+	 * @param clientHwAddress the client
+	 */
+	void removeClient (MACAddress clientHwAddress) {
+		ruleEngine.removeClient(clientHwAddress);
+	}
+
+
+	/**
+	 * @return the evaluation mode, number of subscriptions
+	 *         and the rule engine's counters
+	 */
+	Map<String, Object> getStats () {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		synchronized (this) {
+			stats.put("evaluation", masterEvaluation ? "master" : "agent");
+			stats.put("subscriptions", subscriptions.size());
+			stats.put("sampleSubscriptions", sampleIds.size());
+		}
+
+		stats.put("ruleEngine", ruleEngine.getStats());
+
+		return stats;
+	}
+
+
+	/**
+	 * Get the subscription list for an agent, compiling it
+	 * if it isn't cached.
+	 *
+	 * @param agentAddr the agent
+	 * @return the encoded list of subscriptions for the agent's pools
+	 */
+	synchronized String getSubscriptionList (InetAddress agentAddr) {
+		List<String> pools = new ArrayList<String>(poolManager.getPoolsForAgent(agentAddr));
+		pools.add(PoolManager.GLOBAL_POOL);
+		Collections.sort(pools);
+
+		String list = compiledByPools.get(pools);
+
+		if (list == null) {
+			list = compile(pools);
+			compiledByPools.put(pools, list);
+		}
+
+		return list;
+	}
+
+
+	/**
+	 * Send an agent its subscription list, e.g., when it
+	 * has just connected, whether or not it has been sent
+	 * the same list before.
+	 *
+	 * @param agent the agent
+	 */
+	synchronized void pushToAgent (IOdinAgent agent) {
+		String list = getSubscriptionList(agent.getIpAddress());
+		push(Collections.singletonMap(agent, Collections.singletonList(list)));
+	}
+
+
+	/**
+	 * Invalidate the lists that include a pool, and update the
+	 * agents whose list has changed as a result.
+	 */
+	private void poolChanged (String pool) {
+		Iterator<List<String>> it = compiledByPools.keySet().iterator();
+
+		while (it.hasNext()) {
+			if (it.next().contains(pool))
+				it.remove();
+		}
+
+		Iterable<InetAddress> affected = pool.equals(PoolManager.GLOBAL_POOL)
+				? agentManager.getAgents().keySet()
+				: poolManager.getAgentAddrsForPool(pool);
+		Map<IOdinAgent, List<String>> lists = new HashMap<IOdinAgent, List<String>>();
+
+		for (InetAddress agentAddr: affected) {
+			IOdinAgent agent = agentManager.getAgent(agentAddr);
+
+			// Agents that haven't connected yet are sent
+			// their list once they do
+			if (agent == null)
+				continue;
+
+			String list = getSubscriptionList(agentAddr);
+
+			if (!list.equals(pushedLists.get(agentAddr))) {
+				lists.put(agent, Collections.singletonList(list));
+			}
+		}
+
+		if (!lists.isEmpty())
+			push(lists);
+	}
+
+
+	/**
+	 * Send agents their lists. With a fan-out, lists go through
+	 * the agent's queue, so a list can't overtake one that is
+	 * still queued for the same agent.
+	 */
+	private void push (Map<IOdinAgent, List<String>> lists) {
+		for (Entry<IOdinAgent, List<String>> entry: lists.entrySet()) {
+			pushedLists.put(entry.getKey().getIpAddress(), entry.getValue().get(0));
+		}
+
+		if (fanOut != null) {
+			fanOut.submit("setSubscriptions", lists, sendList);
+			return;
+		}
+
+		for (Entry<IOdinAgent, List<String>> entry: lists.entrySet()) {
+			sendList.apply(entry.getKey(), entry.getValue().get(0));
+		}
+	}
+
+
+	private final AgentFanOut.AgentOperation<String> sendList = new AgentFanOut.AgentOperation<String>() {
+		@Override
+		public OdinAgentFuture<Void> apply(IOdinAgent agent, final String list) {
+			final InetAddress agentAddr = agent.getIpAddress();
+			OdinAgentFuture<Void> future = agent.setSubscriptionsAsync(list);
+
+			future.addListener(new OdinAgentFutureListener<Void>() {
+				@Override
+				public void operationComplete(OdinAgentFuture<Void> future) {
+					if (!future.isSuccess()) {
+						log.error("Failed to set subscriptions on agent " + agentAddr, future.getCause());
+
+						// Make sure the next change is sent
+						pushedLists.remove(agentAddr, list);
+					}
+				}
+			});
+
+			return future;
+		}
+	};
+
+
+	private boolean evaluatedByMaster (Subscription sub) {
+		return masterEvaluation || sub.oes.needsMasterEvaluation();
+	}
+
+
+	private String compile (List<String> pools) {
+		TreeMap<Long, Subscription> merged = new TreeMap<Long, Subscription>();
+
+		for (String pool: pools) {
+			TreeMap<Long, Subscription> poolSubscriptions = subscriptionsByPool.get(pool);
+
+			if (poolSubscriptions != null)
+				merged.putAll(poolSubscriptions);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		int count = 0;
+
+		// Clients whose samples of each statistic the rules need
+		TreeMap<String, TreeSet<String>> sampled = new TreeMap<String, TreeSet<String>>();
+
+		for (Subscription sub: merged.values()) {
+			if (!evaluatedByMaster(sub)) {
+				sb.append(sub.encoded);
+				count++;
+				continue;
+			}
+
+			sample(sampled, sub.oes.getStatistic(), sub.oes.getClient());
+
+			for (OdinEventSubscription.Condition condition: sub.oes.getConditions()) {
+				sample(sampled, condition.getStatistic(), sub.oes.getClient());
+			}
+		}
+
+		for (Entry<String, TreeSet<String>> entry: sampled.entrySet()) {
+			String statistic = entry.getKey();
+			Set<String> clients = entry.getValue();
+
+			// Samples of every client cover those of any one
+			if (clients.contains("*"))
+				clients = Collections.singleton("*");
+
+			for (String client: clients) {
+				sb.append(getSampleId(statistic, client)).append(' ')
+					.append(client.equals("*") ? WILD_CARD_CLIENT : client).append(' ')
+					.append(statistic).append(' ')
+					.append(OdinEventSubscription.Relation.GREATER_THAN.ordinal()).append(' ')
+					.append(SAMPLE_THRESHOLD).append(' ');
+				count++;
+			}
+		}
+
+		return count + " " + sb.toString();
+	}
+
+
+	private static void sample (Map<String, TreeSet<String>> sampled, String statistic, String client) {
+		TreeSet<String> clients = sampled.get(statistic);
+
+		if (clients == null) {
+			clients = new TreeSet<String>();
+			sampled.put(statistic, clients);
+		}
+
+		clients.add(client);
+	}
+
+
+	/**
+	 * Get the id of the sample subscription of a statistic and
+	 * client, handing one out the first time. Ids are journaled
+	 * like those of subscriptions, so they aren't reused after
+	 * a restart.
+	 */
+	private long getSampleId (String statistic, String client) {
+		String key = statistic + " " + client;
+		Long id = sampleIds.get(key);
+
+		if (id == null) {
+			subscriptionId++;
+			id = subscriptionId;
+			sampleIds.put(key, id);
+			sampleStatistics.put(id, statistic);
+
+			if (journal != null)
+				journal.subscriptionAdded(id, PoolManager.GLOBAL_POOL, key);
+		}
+
+		return id;
+	}
+}
@@ -0,0 +1,492 @@
+package net.floodlightcontroller.odin.master;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.odin.master.OdinEventSubscription.Relation;
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Evaluates the subscriptions the master, rather than the agents,
+ * is responsible for, against the raw samples agents stream to it.
+ *
+ * Every condition of every rule is compiled into a single index,
+ * bucketed by statistic and then by client (with a bucket for the
+ * wild-card client). Within a bucket, EQUALS thresholds are hashed and
+ * GREATER_THAN and LESSER_THAN thresholds are kept sorted, so a sample
+ * only visits the conditions it satisfies, never the whole rule set.
+ * The index is rebuilt whenever a rule is added or removed, and is
+ * swapped in whole, so evaluation never waits on it.
+ *
+ * A compound rule is indexed under each of its conditions; when a
+ * sample satisfies one of them, the others are checked against the
+ * last samples the same agent sent about the same client. A rule with
+ * hysteresis is latched once it matches on a (client, agent), and is
+ * released once a sample has moved back past its threshold by at
+ * least the hysteresis, so a sample also visits the rules latched on
+ * its stream.
+ *
+ * Samples about a client must be evaluated under that client's lock.
+ */
+class SubscriptionRuleEngine {
+
+	private final PoolManager poolManager;
+
+	// Guarded by this
+	private final Map<Long, Rule> rules = new LinkedHashMap<Long, Rule>();
+
+	private volatile Map<String, StatisticRules> index = Collections.emptyMap();
+
+	// Last samples and latched rules of each (client, agent),
+	// guarded by the client's lock
+	private final ConcurrentLongMap<Map<InetAddress, Stream>> streams = new ConcurrentLongMap<Map<InetAddress, Stream>>();
+
+	private final AtomicLong samples = new AtomicLong();
+	private final AtomicLong matches = new AtomicLong();
+	private final AtomicLong suppressed = new AtomicLong();
+
+
+	/**
+	 * A subscription, compiled
+	 */
+	static final class Rule {
+		final SubscriptionRegistry.Subscription sub;
+		final MACAddress client; // null for every client
+		final String[] statistics;
+		final Relation[] relations;
+		final double[] values;
+		final double hysteresis;
+		volatile boolean removed = false;
+
+		Rule (SubscriptionRegistry.Subscription sub) {
+			OdinEventSubscription oes = sub.oes;
+			List<OdinEventSubscription.Condition> conditions = oes.getConditions();
+			int count = conditions.size() + 1;
+
+			this.sub = sub;
+			this.client = oes.getClient().equals("*") ? null : MACAddress.valueOf(oes.getClient());
+			this.statistics = new String[count];
+			this.relations = new Relation[count];
+			this.values = new double[count];
+			this.hysteresis = oes.getHysteresis();
+
+			statistics[0] = oes.getStatistic();
+			relations[0] = oes.getRelation();
+			values[0] = oes.getValue();
+
+			for (int i = 1; i < count; i++) {
+				OdinEventSubscription.Condition condition = conditions.get(i - 1);
+				statistics[i] = condition.getStatistic();
+				relations[i] = condition.getRelation();
+				values[i] = condition.getValue();
+			}
+		}
+
+		boolean isCompound () {
+			return statistics.length > 1;
+		}
+
+		boolean holds (int condition, double sample) {
+			switch (relations[condition]) {
+			case EQUALS:
+				return sample == values[condition];
+			case GREATER_THAN:
+				return sample > values[condition];
+			case LESSER_THAN:
+				return sample < values[condition];
+			default:
+				return false;
+			}
+		}
+
+		boolean releases (int condition, double sample) {
+			switch (relations[condition]) {
+			case EQUALS:
+				return Math.abs(sample - values[condition]) >= hysteresis;
+			case GREATER_THAN:
+				return sample <= values[condition] - hysteresis;
+			case LESSER_THAN:
+				return sample >= values[condition] + hysteresis;
+			default:
+				return true;
+			}
+		}
+	}
+
+
+	/**
+	 * One condition of a rule, as indexed
+	 */
+	private static final class Term {
+		final Rule rule;
+		final int condition;
+
+		// Whether this is the rule's first condition on its
+		// statistic, so that a sample satisfying several of
+		// them matches the rule once
+		final boolean first;
+
+		Term (Rule rule, int condition, boolean first) {
+			this.rule = rule;
+			this.condition = condition;
+			this.first = first;
+		}
+	}
+
+
+	/**
+	 * The conditions on a statistic of one client (or of all)
+	 */
+	private static final class Thresholds {
+		final Map<Double, List<Term>> equal = new HashMap<Double, List<Term>>();
+		final TreeMap<Double, List<Term>> greater = new TreeMap<Double, List<Term>>();
+		final TreeMap<Double, List<Term>> lesser = new TreeMap<Double, List<Term>>();
+
+		void add (Term term) {
+			Rule rule = term.rule;
+			Map<Double, List<Term>> map;
+
+			switch (rule.relations[term.condition]) {
+			case EQUALS:
+				map = equal;
+				break;
+			case GREATER_THAN:
+				map = greater;
+				break;
+			default:
+				map = lesser;
+				break;
+			}
+
+			// + 0.0 folds -0.0 into 0.0, which == treats the same
+			Double value = rule.values[term.condition] + 0.0;
+			List<Term> terms = map.get(value);
+
+			if (terms == null) {
+				terms = new ArrayList<Term>(1);
+				map.put(value, terms);
+			}
+
+			terms.add(term);
+		}
+
+		void match (double sample, List<Term> out) {
+			List<Term> terms = equal.isEmpty() ? null : equal.get(sample + 0.0);
+
+			if (terms != null)
+				out.addAll(terms);
+
+			// Conditions 'sample > value' hold for the values below
+			// the sample, and 'sample < value' for those above it
+			for (List<Term> below: greater.headMap(sample, false).values())
+				out.addAll(below);
+
+			for (List<Term> above: lesser.tailMap(sample, false).values())
+				out.addAll(above);
+		}
+	}
+
+
+	/**
+	 * The conditions on one statistic
+	 */
+	private static final class StatisticRules {
+		final Thresholds anyClient = new Thresholds();
+		final Map<MACAddress, Thresholds> byClient = new HashMap<MACAddress, Thresholds>();
+
+		// Whether a compound rule needs the last sample of
+		// the statistic, and whether rules on it may be latched
+		boolean compound = false;
+		boolean latching = false;
+
+		Thresholds forClient (MACAddress client) {
+			if (client == null)
+				return anyClient;
+
+			Thresholds thresholds = byClient.get(client);
+
+			if (thresholds == null) {
+				thresholds = new Thresholds();
+				byClient.put(client, thresholds);
+			}
+
+			return thresholds;
+		}
+	}
+
+
+	/**
+	 * What a (client, agent) has been heard to be
+	 */
+	private static final class Stream {
+		final Map<String, Double> lastSamples = new HashMap<String, Double>();
+		final Set<Rule> latched = new LinkedHashSet<Rule>();
+	}
+
+
+	SubscriptionRuleEngine (PoolManager poolManager) {
+		this.poolManager = poolManager;
+	}
+
+
+	/**
+	 * Add a subscription to the rules
+	 *
+	 * @param sub the subscription
+	 */
+	synchronized void add (SubscriptionRegistry.Subscription sub) {
+		rules.put(sub.id, new Rule(sub));
+		compile();
+	}
+
+
+	/**
+	 * Remove a subscription from the rules
+	 *
+	 * @param sub the subscription
+	 * @return true if it was one of the rules
+	 */
+	synchronized boolean remove (SubscriptionRegistry.Subscription sub) {
+		Rule rule = rules.remove(sub.id);
+
+		if (rule == null)
+			return false;
+
+		rule.removed = true;
+		compile();
+
+		return true;
+	}
+
+
+	/**
+	 * Remove every rule
+	 */
+	synchronized void clear () {
+		for (Rule rule: rules.values()) {
+			rule.removed = true;
+		}
+
+		rules.clear();
+		compile();
+	}
+
+
+	/**
+	 * @return the subscriptions the rules were compiled from
+	 */
+	synchronized Collection<SubscriptionRegistry.Subscription> getSubscriptions () {
+		List<SubscriptionRegistry.Subscription> subs = new ArrayList<SubscriptionRegistry.Subscription>(rules.size());
+
+		for (Rule rule: rules.values()) {
+			subs.add(rule.sub);
+		}
+
+		return subs;
+	}
+
+
+	/**
+	 * Evaluate a sample against the rules. Must be called
+	 * under the client's lock.
+	 *
+	 * @param statistic the statistic sampled
+	 * @param clientHwAddress the client
+	 * @param agentAddr the agent that took the sample
+	 * @param sample the sample
+	 * @param matched the subscriptions the sample matches are added to it
+	 */
+	void evaluate (String statistic, MACAddress clientHwAddress, InetAddress agentAddr,
+			long sample, List<SubscriptionRegistry.Subscription> matched) {
+		StatisticRules statisticRules = index.get(statistic);
+
+		if (statisticRules == null)
+			return;
+
+		samples.incrementAndGet();
+
+		double value = sample;
+		Stream stream = null;
+
+		if (statisticRules.compound || statisticRules.latching) {
+			stream = getStream(clientHwAddress, agentAddr);
+
+			if (statisticRules.compound)
+				stream.lastSamples.put(statistic, value);
+
+			if (!stream.latched.isEmpty())
+				release(stream, statistic, value);
+		}
+
+		List<Term> terms = new ArrayList<Term>();
+		statisticRules.anyClient.match(value, terms);
+		Thresholds clientThresholds = statisticRules.byClient.get(clientHwAddress);
+
+		if (clientThresholds != null)
+			clientThresholds.match(value, terms);
+
+		List<String> agentPools = null;
+
+		for (Term term: terms) {
+			Rule rule = term.rule;
+
+			if (!term.first)
+				continue;
+
+			if (rule.isCompound() && !allHold(rule, stream))
+				continue;
+
+			String pool = rule.sub.pool;
+
+			if (!pool.equals(PoolManager.GLOBAL_POOL)) {
+				if (agentPools == null)
+					agentPools = poolManager.getPoolsForAgent(agentAddr);
+
+				if (!agentPools.contains(pool))
+					continue;
+			}
+
+			if (rule.hysteresis > 0 && !stream.latched.add(rule)) {
+				suppressed.incrementAndGet();
+				continue;
+			}
+
+			matches.incrementAndGet();
+			matched.add(rule.sub);
+		}
+	}
+
+
+	/**
+	 * Forget what was heard about a client
+	 *
+	 * @param clientHwAddress the client
+	 */
+	void removeClient (MACAddress clientHwAddress) {
+		streams.remove(clientHwAddress.toLong());
+	}
+
+
+	/**
+	 * @return number of rules, and counters
+	 */
+	Map<String, Object> getStats () {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		synchronized (this) {
+			stats.put("rules", rules.size());
+		}
+
+		stats.put("statistics", index.size());
+		stats.put("clients", streams.size());
+		stats.put("samples", samples.get());
+		stats.put("matches", matches.get());
+		stats.put("suppressed", suppressed.get());
+
+		return stats;
+	}
+
+
+	private Stream getStream (MACAddress clientHwAddress, InetAddress agentAddr) {
+		long key = clientHwAddress.toLong();
+		Map<InetAddress, Stream> agents = streams.get(key);
+
+		if (agents == null) {
+			Map<InetAddress, Stream> created = new HashMap<InetAddress, Stream>();
+			agents = streams.putIfAbsent(key, created);
+
+			if (agents == null)
+				agents = created;
+		}
+
+		Stream stream = agents.get(agentAddr);
+
+		if (stream == null) {
+			stream = new Stream();
+			agents.put(agentAddr, stream);
+		}
+
+		return stream;
+	}
+
+
+	/**
+	 * Release the rules latched on a stream that the sample
+	 * has moved back past
+	 */
+	private static void release (Stream stream, String statistic, double value) {
+		Iterator<Rule> it = stream.latched.iterator();
+
+		while (it.hasNext()) {
+			Rule rule = it.next();
+
+			if (rule.removed) {
+				it.remove();
+				continue;
+			}
+
+			for (int i = 0; i < rule.statistics.length; i++) {
+				if (rule.statistics[i].equals(statistic) && rule.releases(i, value)) {
+					it.remove();
+					break;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Check every condition of a compound rule against the last
+	 * sample of its statistic, the current sample being the last
+	 * of its own
+	 */
+	private static boolean allHold (Rule rule, Stream stream) {
+		for (int i = 0; i < rule.statistics.length; i++) {
+			Double last = stream.lastSamples.get(rule.statistics[i]);
+
+			if (last == null || !rule.holds(i, last))
+				return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Rebuild the index from the rules, and swap it in
+	 */
+	private void compile () {
+		Map<String, StatisticRules> compiled = new HashMap<String, StatisticRules>();
+
+		for (Rule rule: rules.values()) {
+			Set<String> seen = new LinkedHashSet<String>();
+
+			for (int i = 0; i < rule.statistics.length; i++) {
+				String statistic = rule.statistics[i];
+				StatisticRules statisticRules = compiled.get(statistic);
+
+				if (statisticRules == null) {
+					statisticRules = new StatisticRules();
+					compiled.put(statistic, statisticRules);
+				}
+
+				statisticRules.compound |= rule.isCompound();
+				statisticRules.latching |= rule.hysteresis > 0;
+				statisticRules.forClient(rule.client).add(new Term(rule, i, seen.add(statistic)));
+			}
+		}
+
+		index = compiled;
+	}
+}
@@ -0,0 +1,86 @@
+package net.floodlightcontroller.odin.master;
+
+/**
+ * Aggregates of the recent history of a metric of a client, as
+ * heard by an agent. Summaries are computed from the master's
+ * time-series store when asked for, and don't change once handed out.
+ */
+public class TimeSeriesSummary {
+	private final int samples;
+	private final long latest;
+	private final long latestTime;
+	private final long min;
+	private final long max;
+	private final double mean;
+	private final double ewma;
+	private final double slope;
+
+	TimeSeriesSummary (int samples, long latest, long latestTime, long min, long max, double mean, double ewma, double slope) {
+		this.samples = samples;
+		this.latest = latest;
+		this.latestTime = latestTime;
+		this.min = min;
+		this.max = max;
+		this.mean = mean;
+		this.ewma = ewma;
+		this.slope = slope;
+	}
+
+	/**
+	 * @return number of samples in the window
+	 */
+	public int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the most recent sample, whether in the window or not
+	 */
+	public long getLatest() {
+		return latest;
+	}
+
+	/**
+	 * @return when the most recent sample was taken, in milliseconds
+	 */
+	public long getLatestTime() {
+		return latestTime;
+	}
+
+	/**
+	 * @return smallest sample in the window
+	 */
+	public long getMin() {
+		return min;
+	}
+
+	/**
+	 * @return largest sample in the window
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @return average of the samples in the window
+	 */
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * @return exponentially weighted moving average of every sample
+	 *         so far, weighted by how long ago it was taken
+	 */
+	public double getEwma() {
+		return ewma;
+	}
+
+	/**
+	 * @return least squares slope of the samples in the window,
+	 *         per second, or 0 with fewer than two samples
+	 */
+	public double getSlope() {
+		return slope;
+	}
+}
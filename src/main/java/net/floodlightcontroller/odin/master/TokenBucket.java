@@ -0,0 +1,75 @@
+package net.floodlightcontroller.odin.master;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket for admission control: up to burst messages are let
+ * through at once, and then rate per second on average. Tokens are
+ * refilled lazily from the time passed in by the caller, so a bucket
+ * costs nothing while nobody sends.
+ *
+ * Buckets aren't thread-safe, as they are only used by the thread
+ * receiving from agents.
+ */
+final class TokenBucket {
+	final long key; // what the bucket limits, so that it can be swept
+
+	private final double tokensPerNano;
+	private final double burst;
+	private double tokens;
+	private long lastRefill;
+
+
+	/**
+	 * @param key what the bucket limits
+	 * @param rate tokens per second
+	 * @param burst most tokens the bucket holds, and starts with
+	 * @param now System.nanoTime()
+	 */
+	TokenBucket (long key, double rate, double burst, long now) {
+		this.key = key;
+		this.tokensPerNano = rate / TimeUnit.SECONDS.toNanos(1);
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastRefill = now;
+	}
+
+
+	/**
+	 * Take a token if there is one
+	 *
+	 * @param now System.nanoTime()
+	 * @return true if the message is let through
+	 */
+	boolean tryAcquire (long now) {
+		refill(now);
+
+		if (tokens < 1)
+			return false;
+
+		tokens -= 1;
+		return true;
+	}
+
+
+	/**
+	 * @param now System.nanoTime()
+	 * @return true if the bucket is full, in which case it is
+	 *         no different from a new one
+	 */
+	boolean isFull (long now) {
+		refill(now);
+		return tokens >= burst;
+	}
+
+
+	private void refill (long now) {
+		long elapsed = now - lastRefill;
+
+		if (elapsed <= 0)
+			return;
+
+		tokens = Math.min(burst, tokens + elapsed * tokensPerNano);
+		lastRefill = now;
+	}
+}
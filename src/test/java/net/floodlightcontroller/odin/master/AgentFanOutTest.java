@@ -0,0 +1,149 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that pool-wide operations reach every agent in a command
+ * batch per agent, that their reports account for every command,
+ * failed or not, and that an agent sees operations in order.
+ */
+public class AgentFanOutTest {
+	private static final String[] AGENT_ADDRS = {"172.17.2.161", "172.17.2.162", "172.17.2.163"};
+
+	private static final AgentFanOut.AgentOperation<OdinClient> UPDATE_LVAP = new AgentFanOut.AgentOperation<OdinClient>() {
+		@Override
+		public OdinAgentFuture<Void> apply(IOdinAgent agent, OdinClient client) {
+			return agent.updateClientLvapAsync(client);
+		}
+	};
+
+	private AgentFanOut fanOut;
+	private final StubOdinAgent[] agents = new StubOdinAgent[AGENT_ADDRS.length];
+
+	@Before
+	public void setup() throws Exception {
+		fanOut = new AgentFanOut(2);
+
+		for (int i = 0; i < AGENT_ADDRS.length; i++) {
+			agents[i] = new StubOdinAgent();
+			agents[i].init(InetAddress.getByName(AGENT_ADDRS[i]));
+		}
+	}
+
+	private static List<OdinClient> clients(int first, int n, String ssid) throws Exception {
+		List<OdinClient> clients = new ArrayList<OdinClient>();
+
+		for (int i = first; i < first + n; i++) {
+			List<String> ssids = new ArrayList<String>();
+			ssids.add(ssid);
+			clients.add(new OdinClient(MACAddress.valueOf(0x000000000100L + i), InetAddress.getByName("172.17.2." + (50 + i)),
+					new Lvap(MACAddress.valueOf(0x000000001100L + i), ssids)));
+		}
+
+		return clients;
+	}
+
+	// Batches are closed after the last command has been issued,
+	// which may be after the report has completed
+	private static void awaitBatchesClosed(StubOdinAgent agent) throws Exception {
+		long end = System.currentTimeMillis() + 2000;
+
+		while (agent.getOpenBatches() != 0 && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+
+		assertEquals(0, agent.getOpenBatches());
+	}
+
+	@Test
+	public void testCommandsGroupedPerAgent() throws Exception {
+		Map<IOdinAgent, List<OdinClient>> work = new LinkedHashMap<IOdinAgent, List<OdinClient>>();
+		work.put(agents[0], clients(0, 5, "odin"));
+		work.put(agents[1], clients(5, 3, "odin"));
+		work.put(agents[2], new ArrayList<OdinClient>());
+
+		FanOutReport report = fanOut.submit("addNetwork", work, UPDATE_LVAP);
+
+		assertTrue(report.future().await(2, TimeUnit.SECONDS));
+		assertTrue(report.isDone());
+		assertEquals("addNetwork", report.getOperation());
+		assertEquals(3, report.getAgents());
+		assertEquals(8, report.getTotal());
+		assertEquals(8, report.getCompleted());
+		assertEquals(0, report.getFailed());
+
+		awaitBatchesClosed(agents[0]);
+		awaitBatchesClosed(agents[1]);
+
+		// One batch per agent that had anything to do
+		assertEquals(1, agents[0].getCommandBatches());
+		assertEquals(1, agents[1].getCommandBatches());
+		assertEquals(0, agents[2].getCommandBatches());
+		assertEquals(5, agents[0].getUpdatedLvaps().size());
+		assertEquals(3, agents[1].getUpdatedLvaps().size());
+	}
+
+	@Test
+	public void testFailuresAreReportedPerAgent() throws Exception {
+		agents[1].setLvapUpdatesFail(true);
+
+		Map<IOdinAgent, List<OdinClient>> work = new LinkedHashMap<IOdinAgent, List<OdinClient>>();
+		work.put(agents[0], clients(0, 2, "odin"));
+		work.put(agents[1], clients(2, 3, "odin"));
+
+		FanOutReport report = fanOut.submit("removeNetwork", work, UPDATE_LVAP);
+
+		// The report completes, failures and all
+		assertTrue(report.future().await(2, TimeUnit.SECONDS));
+		assertTrue(report.future().isSuccess());
+		assertEquals(5, report.getCompleted());
+		assertEquals(3, report.getFailed());
+		assertEquals(1, report.getFailures().size());
+		assertTrue(report.getFailures().containsKey(agents[1].getIpAddress()));
+		assertEquals(2, agents[0].getUpdatedLvaps().size());
+	}
+
+	@Test
+	public void testOperationsReachAnAgentInOrder() throws Exception {
+		List<FanOutReport> reports = new ArrayList<FanOutReport>();
+
+		for (int i = 0; i < 50; i++) {
+			Map<IOdinAgent, List<OdinClient>> work = new LinkedHashMap<IOdinAgent, List<OdinClient>>();
+			work.put(agents[0], clients(0, 1, "ssid-" + i));
+			work.put(agents[1], clients(1, 1, "ssid-" + i));
+			reports.add(fanOut.submit("addNetwork", work, UPDATE_LVAP));
+		}
+
+		for (FanOutReport report: reports) {
+			assertTrue(report.future().await(2, TimeUnit.SECONDS));
+		}
+
+		for (int a = 0; a < 2; a++) {
+			List<OdinClient> updated = agents[a].getUpdatedLvaps();
+			assertEquals(50, updated.size());
+
+			for (int i = 0; i < 50; i++) {
+				assertEquals("ssid-" + i, updated.get(i).getLvap().getSsids().get(0));
+			}
+
+			// A single command is issued without a batch
+			assertEquals(0, agents[a].getCommandBatches());
+		}
+
+		assertEquals(50L, fanOut.getStats().get("operations"));
+		assertEquals(AgentFanOut.RECENT_OPERATIONS, ((List<?>) fanOut.getStats().get("recent")).size());
+	}
+}
@@ -0,0 +1,225 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.test.MockFloodlightProvider;
+import net.floodlightcontroller.core.test.MockThreadPoolService;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.restserver.RestApiServer;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+import net.floodlightcontroller.util.MACAddress;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.jboss.netty.channel.Channel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFMessage;
+
+/**
+ * Tests for handing off several clients in one call.
+ */
+public class BatchHandoffTest {
+	private static final String POOL = "pool-1";
+	private static final String[] AGENT_ADDRS = {"172.17.2.161", "172.17.2.162", "172.17.2.163"};
+	private static final int CLIENTS = 6;
+
+	private MockFloodlightProvider mockFloodlightProvider;
+	private OdinMaster odinMaster;
+	private AgentManager agentManager;
+	private ClientManager clientManager;
+	private PoolManager poolManager;
+	private final InetAddress[] agentAddrs = new InetAddress[AGENT_ADDRS.length];
+	private final AtomicInteger[] switchWrites = new AtomicInteger[AGENT_ADDRS.length];
+	private final List<MACAddress> clients = new ArrayList<MACAddress>();
+
+	@Before
+	public void setup() throws Exception {
+		FloodlightModuleContext cntx = new FloodlightModuleContext();
+		RestApiServer restApi = new RestApiServer();
+		mockFloodlightProvider = new MockFloodlightProvider();
+
+		OdinAgentFactory.setOdinAgentType("MockOdinAgent");
+
+		clientManager = new ClientManager();
+		poolManager = new PoolManager();
+		agentManager = new AgentManager(clientManager, poolManager);
+		odinMaster = new OdinMaster(agentManager, clientManager, new LvapManager(), poolManager);
+
+		cntx.addService(IFloodlightProviderService.class, mockFloodlightProvider);
+		cntx.addService(IRestApiService.class, restApi);
+		cntx.addService(IThreadPoolService.class, new MockThreadPoolService());
+		restApi.init(cntx);
+		odinMaster.init(cntx);
+		agentManager.setFloodlightProvider(mockFloodlightProvider);
+
+		for (int i = 0; i < AGENT_ADDRS.length; i++) {
+			agentAddrs[i] = InetAddress.getByName(AGENT_ADDRS[i]);
+			switchWrites[i] = new AtomicInteger();
+			poolManager.addPoolForAgent(agentAddrs[i], POOL);
+			addSwitch(i + 1, AGENT_ADDRS[i], switchWrites[i]);
+			odinMaster.receivePing(agentAddrs[i]);
+			assertTrue(agentManager.isTracked(agentAddrs[i]));
+		}
+
+		poolManager.addNetworkForPool(POOL, "odin");
+
+		for (int i = 0; i < CLIENTS; i++) {
+			MACAddress mac = MACAddress.valueOf(0x000000000100L + i);
+			List<String> ssids = new ArrayList<String>();
+			ssids.add("odin");
+			clientManager.addClient(mac, InetAddress.getByName("172.17.2." + (50 + i)), new Lvap(MACAddress.valueOf(0x000000001100L + i), ssids));
+			poolManager.mapClientToPool(clientManager.getClient(mac), POOL);
+			odinMaster.handoffClientToAp(POOL, mac, agentAddrs[0]);
+			clients.add(mac);
+		}
+
+		for (AtomicInteger writes: switchWrites) {
+			writes.set(0);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		odinMaster.shutdown();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addSwitch(long id, String addr, final AtomicInteger writes) throws Exception {
+		IOFSwitch sw = EasyMock.createNiceMock(IOFSwitch.class);
+		Channel ch = EasyMock.createMock(Channel.class);
+		expect(sw.getChannel()).andReturn(ch).anyTimes();
+		expect(ch.getRemoteAddress()).andReturn((SocketAddress) new InetSocketAddress(addr, 12345)).anyTimes();
+		expect(sw.getId()).andReturn(id).anyTimes();
+		sw.write((List<OFMessage>) anyObject(), (FloodlightContext) anyObject());
+		EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+			@Override
+			public Object answer() {
+				writes.incrementAndGet();
+				return null;
+			}
+		}).anyTimes();
+		EasyMock.replay(sw);
+		EasyMock.replay(ch);
+		mockFloodlightProvider.getSwitches().put(id, sw);
+	}
+
+	private StubOdinAgent stub(int i) {
+		return (StubOdinAgent) agentManager.getAgent(agentAddrs[i]);
+	}
+
+	/**
+	 * Every agent involved sees a single command batch, and every
+	 * switch a single write, however many clients are moved.
+	 */
+	@Test
+	public void testCommandsGroupedPerAgent() throws Exception {
+		Map<MACAddress, InetAddress> handoffs = new HashMap<MACAddress, InetAddress>();
+
+		for (int i = 0; i < CLIENTS; i++) {
+			handoffs.put(clients.get(i), agentAddrs[1 + i % 2]);
+		}
+
+		Map<MACAddress, OdinAgentFuture<Void>> results = odinMaster.handoffClientsToAps(POOL, handoffs);
+
+		assertEquals(CLIENTS, results.size());
+
+		for (int i = 0; i < CLIENTS; i++) {
+			assertTrue(results.get(clients.get(i)).isSuccess());
+			assertEquals(agentAddrs[1 + i % 2], clientManager.getClient(clients.get(i)).getLvap().getAgent().getIpAddress());
+		}
+
+		assertEquals(0, stub(0).getLvapsLocal().size());
+		assertEquals(CLIENTS / 2, stub(1).getLvapsLocal().size());
+		assertEquals(CLIENTS / 2, stub(2).getLvapsLocal().size());
+
+		assertEquals(0, switchWrites[0].get());
+		assertEquals(1, switchWrites[1].get());
+		assertEquals(1, switchWrites[2].get());
+
+		for (int i = 0; i < AGENT_ADDRS.length; i++) {
+			assertEquals(0, stub(i).getOpenBatches());
+			assertEquals(1, stub(i).getCommandBatches());
+		}
+	}
+
+	/**
+	 * Bad entries fail on their own, without holding back the
+	 * rest of the batch.
+	 */
+	@Test
+	public void testInvalidEntriesFailIndividually() throws Exception {
+		MACAddress unknownClient = MACAddress.valueOf("00:00:00:00:ff:ff");
+		MACAddress toUnknownAgent = clients.get(0);
+		MACAddress toCurrentAgent = clients.get(1);
+		MACAddress moved = clients.get(2);
+
+		Map<MACAddress, InetAddress> handoffs = new HashMap<MACAddress, InetAddress>();
+		handoffs.put(unknownClient, agentAddrs[1]);
+		handoffs.put(toUnknownAgent, InetAddress.getByName("172.17.2.200"));
+		handoffs.put(toCurrentAgent, agentAddrs[0]);
+		handoffs.put(moved, agentAddrs[1]);
+
+		Map<MACAddress, OdinAgentFuture<Void>> results = odinMaster.handoffClientsToAps(POOL, handoffs);
+
+		assertFalse(results.get(unknownClient).isSuccess());
+		assertTrue(results.get(unknownClient).getCause() instanceof IllegalArgumentException);
+		assertFalse(results.get(toUnknownAgent).isSuccess());
+		assertTrue(results.get(toCurrentAgent).isSuccess());
+		assertTrue(results.get(moved).isSuccess());
+
+		assertEquals(agentAddrs[0], clientManager.getClient(toUnknownAgent).getLvap().getAgent().getIpAddress());
+		assertEquals(agentAddrs[1], clientManager.getClient(moved).getLvap().getAgent().getIpAddress());
+		assertEquals(1, switchWrites[1].get());
+
+		for (int i = 0; i < AGENT_ADDRS.length; i++) {
+			assertEquals(0, stub(i).getOpenBatches());
+		}
+	}
+
+	/**
+	 * Batched handoffs are traced, and complete once the
+	 * clients are heard of through their new agents.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testHandoffsTraced() throws Exception {
+		Map<MACAddress, InetAddress> handoffs = new HashMap<MACAddress, InetAddress>();
+
+		for (int i = 0; i < CLIENTS; i++) {
+			handoffs.put(clients.get(i), agentAddrs[1]);
+		}
+
+		odinMaster.handoffClientsToAps(POOL, handoffs);
+		assertEquals(CLIENTS, odinMaster.getHandoffStats().get("inProgress"));
+
+		for (int i = 0; i < CLIENTS; i++) {
+			odinMaster.receivePublish(clients.get(i), agentAddrs[1], new HashMap<Long, Long>());
+		}
+
+		Map<String, Object> stats = odinMaster.getHandoffStats();
+		assertEquals((long) CLIENTS, stats.get("completed"));
+		assertEquals(0, stats.get("inProgress"));
+
+		Map<String, Object> pairs = (Map<String, Object>) stats.get("agentPairs");
+		assertEquals((long) CLIENTS, ((Map<String, Object>) pairs.get(AGENT_ADDRS[0] + " -> " + AGENT_ADDRS[1])).get("count"));
+	}
+}
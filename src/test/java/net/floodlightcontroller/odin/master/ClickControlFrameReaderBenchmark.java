@@ -0,0 +1,171 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.Test;
+
+/**
+ * Microbenchmark of how the time to read an rxstats reply grows
+ * with the number of stations the agent reports, comparing the
+ * framed reader against the old byte-at-a-time String concatenation.
+ */
+public class ClickControlFrameReaderBenchmark {
+	private static final int[] STATION_COUNTS = {25, 50, 100, 200, 400};
+	private static final int LEGACY_ITERATIONS = 3;
+	private static final int ITERATIONS = 100;
+	private static final int SEGMENT_SIZE = 1460; // bytes per read, like a TCP segment
+
+	/**
+	 * Hands out the reply in segments, as a socket would
+	 */
+	private static class SegmentedChannel implements ReadableByteChannel {
+		private final byte[] data;
+		private int pos = 0;
+
+		SegmentedChannel (byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (pos == data.length)
+				return 0;
+
+			int n = Math.min(Math.min(SEGMENT_SIZE, dst.remaining()), data.length - pos);
+			dst.put(data, pos, n);
+			pos += n;
+			return n;
+		}
+
+		boolean isDrained() {
+			return pos == data.length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static class RxStatsHandler implements ClickControlFrameReader.FrameHandler {
+		private final RxStatsReplyParser parser = new RxStatsReplyParser(5);
+		Map<MACAddress, Map<String, String>> result;
+
+		@Override
+		public boolean expectsData() {
+			return true;
+		}
+
+		@Override
+		public void onStatus(boolean success, String statusLine) {
+			throw new IllegalStateException(statusLine);
+		}
+
+		@Override
+		public void onData(byte[] data, int offset, int length) {
+			result = parser.parse(data, offset, length);
+		}
+	}
+
+	private static byte[] buildReply(int stations) throws IOException {
+		StringBuilder body = new StringBuilder();
+
+		for (int i = 0; i < stations; i++) {
+			body.append(MACAddress.valueOf(0x001122000000L + i));
+			body.append(" rate:54 signal:").append(180 + (i % 40));
+			body.append(" noise:-95 avg_signal:").append(175 + (i % 40));
+			body.append(" last_received:0.").append(i % 10).append("\n");
+		}
+
+		String reply = "200 Read handler 'odinagent.rxstats' OK\r\nDATA " + body.length() + "\r\n" + body;
+		return reply.getBytes("US-ASCII");
+	}
+
+	/**
+	 * The way OdinAgent used to read DATA frames
+	 */
+	private static String legacyRead(byte[] reply) throws IOException {
+		BufferedReader inBuf = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(reply)));
+		String line = "";
+		String data = null;
+
+		while ((data = inBuf.readLine()).contains("DATA") == false) {
+			// skip
+		}
+
+		int numBytes = Integer.parseInt(data.split(" ")[1]);
+
+		while (numBytes != 0) {
+			numBytes--;
+			char[] buf = new char[1];
+			inBuf.read(buf);
+			line = line + new String(buf);
+		}
+
+		return line;
+	}
+
+	private static Map<MACAddress, Map<String, String>> framedRead(ClickControlFrameReader reader, byte[] reply) throws IOException {
+		SegmentedChannel channel = new SegmentedChannel(reply);
+		RxStatsHandler handler = new RxStatsHandler();
+
+		while (!channel.isDrained()) {
+			reader.read(channel, handler);
+		}
+
+		return handler.result;
+	}
+
+	@Test
+	public void testReadTimeByStationCount() throws Exception {
+		System.out.println("stations   bytes   legacy(us)   framed(us)");
+
+		long legacyLargest = 0;
+		long framedLargest = 0;
+
+		for (int stations: STATION_COUNTS) {
+			byte[] reply = buildReply(stations);
+			// The banner is consumed once per connection
+			ClickControlFrameReader reader = new ClickControlFrameReader(4096);
+			framedRead(reader, "Click::ControlSocket/1.3\r\n".getBytes("US-ASCII"));
+
+			// Warm up, and check the parse
+			assertEquals(stations, framedRead(reader, reply).size());
+			legacyRead(reply);
+
+			long start = System.nanoTime();
+			for (int i = 0; i < LEGACY_ITERATIONS; i++) {
+				legacyRead(reply);
+			}
+			long legacy = (System.nanoTime() - start) / LEGACY_ITERATIONS / 1000;
+
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				framedRead(reader, reply);
+			}
+			long framed = (System.nanoTime() - start) / ITERATIONS / 1000;
+
+			System.out.println(String.format("%8d %7d %12d %12d", stations, reply.length, legacy, framed));
+
+			legacyLargest = legacy;
+			framedLargest = framed;
+		}
+
+		assertTrue(framedLargest < legacyLargest);
+	}
+}
@@ -0,0 +1,105 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.Test;
+
+/**
+ * Cost of finding the client an agent's message is about, for 10k
+ * clients:
+ *
+ *   string: MACAddress.valueOf(String) then a ConcurrentHashMap
+ *           lookup, as the master used to do for every message
+ *   object: MACAddress.valueOf(long) then a ConcurrentHashMap lookup
+ *   long:   a ConcurrentLongMap lookup on the decoded address
+ */
+public class ClientRegistryBenchmark {
+	private static final int CLIENTS = 10000;
+	private static final int ROUNDS = 20;
+
+	private static long stringRun(Map<MACAddress, OdinClient> map, String[] macs) {
+		long found = 0;
+
+		for (int r = 0; r < ROUNDS; r++) {
+			for (int i = 0; i < macs.length; i++) {
+				if (map.get(MACAddress.valueOf(macs[i])) != null)
+					found++;
+			}
+		}
+
+		return found;
+	}
+
+	private static long objectRun(Map<MACAddress, OdinClient> map, long[] macs) {
+		long found = 0;
+
+		for (int r = 0; r < ROUNDS; r++) {
+			for (int i = 0; i < macs.length; i++) {
+				if (map.get(MACAddress.valueOf(macs[i])) != null)
+					found++;
+			}
+		}
+
+		return found;
+	}
+
+	private static long longRun(ConcurrentLongMap<OdinClient> map, long[] macs) {
+		long found = 0;
+
+		for (int r = 0; r < ROUNDS; r++) {
+			for (int i = 0; i < macs.length; i++) {
+				if (map.get(macs[i]) != null)
+					found++;
+			}
+		}
+
+		return found;
+	}
+
+	@Test
+	public void testLookupCost() throws Exception {
+		Map<MACAddress, OdinClient> objectMap = new ConcurrentHashMap<MACAddress, OdinClient>();
+		ConcurrentLongMap<OdinClient> longMap = new ConcurrentLongMap<OdinClient>();
+		String[] strings = new String[CLIENTS];
+		long[] longs = new long[CLIENTS];
+
+		for (int i = 0; i < CLIENTS; i++) {
+			MACAddress mac = MACAddress.valueOf(0x001122000000L + i);
+			OdinClient oc = new OdinClient(mac, null, null);
+			objectMap.put(mac, oc);
+			longMap.put(mac.toLong(), oc);
+			strings[i] = mac.toString();
+			longs[i] = mac.toLong();
+		}
+
+		long expected = (long) CLIENTS * ROUNDS;
+
+		// Warm up, and check every lookup hits
+		assertEquals(expected, stringRun(objectMap, strings));
+		assertEquals(expected, objectRun(objectMap, longs));
+		assertEquals(expected, longRun(longMap, longs));
+
+		long start = System.nanoTime();
+		stringRun(objectMap, strings);
+		long string = (System.nanoTime() - start) / expected;
+
+		start = System.nanoTime();
+		objectRun(objectMap, longs);
+		long object = (System.nanoTime() - start) / expected;
+
+		start = System.nanoTime();
+		longRun(longMap, longs);
+		long primitive = (System.nanoTime() - start) / expected;
+
+		System.out.println("lookup(ns)   string   object     long");
+		System.out.println(String.format("%10s %8d %8d %8d", "", string, object, primitive));
+
+		assertTrue(primitive < string);
+	}
+}
@@ -0,0 +1,157 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the client time-series store and its delta-encoded rings.
+ */
+public class ClientTimeSeriesStoreTest {
+	private ClientManager clientManager;
+	private ClientTimeSeriesStore store;
+	private InetAddress[] agents = new InetAddress[3];
+	private MACAddress client1;
+	private MACAddress client2;
+
+	@Before
+	public void setup() throws Exception {
+		clientManager = new ClientManager();
+		store = new ClientTimeSeriesStore(clientManager);
+
+		for (int i = 0; i < agents.length; i++) {
+			agents[i] = InetAddress.getByName("172.17.2." + (161 + i));
+		}
+
+		client1 = MACAddress.valueOf("00:00:00:00:00:01");
+		client2 = MACAddress.valueOf("00:00:00:00:00:02");
+		clientManager.addClient(client1, InetAddress.getByName("172.17.2.51"), null);
+	}
+
+	/**
+	 * Windows see the samples rebuilt from their deltas, and
+	 * the ring only holds the most recent ones
+	 */
+	@Test
+	public void testWindowedAggregates() {
+		DeltaEncodedRing ring = new DeltaEncodedRing(8);
+
+		// 10 samples a second apart, rising by 2 a second
+		for (int i = 0; i < 10; i++) {
+			assertTrue(ring.add(10000 + i * 1000, -80 + 2 * i, 0));
+		}
+
+		assertEquals(8, ring.size());
+		assertFalse(ring.add(15000, 0, 0));
+
+		TimeSeriesSummary all = ring.summarize(0);
+		assertEquals(8, all.getSamples());
+		assertEquals(-76, all.getMin());
+		assertEquals(-62, all.getMax());
+		assertEquals(-62, all.getLatest());
+		assertEquals(19000, all.getLatestTime());
+		assertEquals(-69.0, all.getMean(), 0.0001);
+		assertEquals(2.0, all.getSlope(), 0.0001);
+		assertEquals(-62.0, all.getEwma(), 0.0001);
+
+		TimeSeriesSummary recent = ring.summarize(17000);
+		assertEquals(3, recent.getSamples());
+		assertEquals(-66, recent.getMin());
+		assertEquals(2.0, recent.getSlope(), 0.0001);
+
+		// Nothing in the window, but the latest is still reported
+		TimeSeriesSummary none = ring.summarize(20000);
+		assertEquals(0, none.getSamples());
+		assertEquals(-62, none.getLatest());
+	}
+
+	/**
+	 * Gaps and jumps that don't fit a delta start over
+	 */
+	@Test
+	public void testResets() {
+		DeltaEncodedRing ring = new DeltaEncodedRing(8);
+
+		ring.add(0, 10, 1000);
+		ring.add(1000, 20, 1000);
+		assertEquals(2, ring.size());
+
+		ring.add(1000 + DeltaEncodedRing.MAX_GAP + 1, 30, 1000);
+		assertEquals(1, ring.size());
+
+		ring.add(80000, 100000, 1000);
+		assertEquals(1, ring.size());
+		assertEquals(2, ring.getResets());
+		assertEquals(100000.0, ring.summarize(0).getEwma(), 0.0001);
+
+		// One time constant later, the average moves most of the way
+		ring.add(81000, 90000, 1000);
+		double ewma = ring.summarize(0).getEwma();
+		assertTrue(ewma < 94000 && ewma > 93000);
+	}
+
+	/**
+	 * Only tracked clients are recorded, each keeping the history
+	 * of a bounded number of agents, and forgotten once removed
+	 */
+	@Test
+	public void testStore() {
+		long now = System.currentTimeMillis();
+		store.setAgentsPerClient(2);
+
+		store.record(client2, agents[0], ClientMetric.SIGNAL, -60, now);
+		assertNull(store.query(client2, agents[0], ClientMetric.SIGNAL, 60000));
+
+		store.record(client1, agents[0], ClientMetric.SIGNAL, -60, now - 2000);
+		store.record(client1, agents[0], ClientMetric.SIGNAL, -50, now - 1000);
+		store.record(client1, agents[1], ClientMetric.SIGNAL, -70, now - 1000);
+
+		TimeSeriesSummary summary = store.query(client1, agents[0], ClientMetric.SIGNAL, 60000);
+		assertEquals(2, summary.getSamples());
+		assertEquals(10.0, summary.getSlope(), 0.0001);
+		assertNull(store.query(client1, agents[0], ClientMetric.RATE, 60000));
+
+		// A third agent evicts the one heard from least recently
+		store.record(client1, agents[0], ClientMetric.SIGNAL, -50, now);
+		store.record(client1, agents[2], ClientMetric.SIGNAL, -80, now);
+		assertNotNull(store.query(client1, agents[0], ClientMetric.SIGNAL, 60000));
+		assertNull(store.query(client1, agents[1], ClientMetric.SIGNAL, 60000));
+		assertNotNull(store.query(client1, agents[2], ClientMetric.SIGNAL, 60000));
+
+		assertEquals(1, store.getStats().get("clients"));
+		assertEquals(2, store.getStats().get("rings"));
+
+		store.removeClient(client1);
+		assertNull(store.query(client1, agents[0], ClientMetric.SIGNAL, 60000));
+	}
+
+	/**
+	 * Rxstats feed every metric
+	 */
+	@Test
+	public void testRxStats() {
+		Map<MACAddress, RxStatsSnapshot.Station> stations = new HashMap<MACAddress, RxStatsSnapshot.Station>();
+		stations.put(client1, new RxStatsSnapshot.Station(54, 180, -95, 175, 1.0));
+		stations.put(client2, new RxStatsSnapshot.Station(54, 190, -95, 185, 0.0));
+
+		long now = System.currentTimeMillis();
+		store.record(new RxStatsSnapshot(agents[0], now, stations));
+
+		assertEquals(180, store.query(client1, agents[0], ClientMetric.SIGNAL, 60000).getLatest());
+		assertEquals(54, store.query(client1, agents[0], ClientMetric.RATE, 60000).getLatest());
+		assertEquals(-95, store.query(client1, agents[0], ClientMetric.NOISE, 60000).getLatest());
+		assertEquals(now - 1000, store.query(client1, agents[0], ClientMetric.NOISE, 60000).getLatestTime());
+		assertNull(store.query(client2, agents[0], ClientMetric.SIGNAL, 60000));
+	}
+}
@@ -0,0 +1,114 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Tests for the long-keyed concurrent map that backs the client registry.
+ */
+public class ConcurrentLongMapTest {
+
+	@Test
+	public void testPutGetRemove() {
+		ConcurrentLongMap<String> map = new ConcurrentLongMap<String>();
+
+		assertNull(map.get(0L));
+		assertNull(map.put(0L, "zero"));
+		assertNull(map.put(0x001122334455L, "a"));
+		assertEquals("a", map.put(0x001122334455L, "b"));
+		assertEquals("zero", map.get(0L));
+		assertEquals("b", map.get(0x001122334455L));
+		assertEquals(2, map.size());
+
+		assertEquals("b", map.putIfAbsent(0x001122334455L, "c"));
+		assertEquals("b", map.remove(0x001122334455L));
+		assertNull(map.remove(0x001122334455L));
+		assertFalse(map.containsKey(0x001122334455L));
+		assertEquals(1, map.size());
+		assertEquals(1, map.values().size());
+	}
+
+	/**
+	 * The table grows with its contents, and churn doesn't
+	 * fill it up with tombstones
+	 */
+	@Test
+	public void testGrowthAndChurn() {
+		ConcurrentLongMap<Long> map = new ConcurrentLongMap<Long>();
+
+		for (long i = 0; i < 10000; i++) {
+			map.put(0x001122000000L + i, i);
+		}
+
+		assertEquals(10000, map.size());
+		assertTrue(map.capacity() >= 20000);
+
+		for (long i = 0; i < 10000; i++) {
+			assertEquals(Long.valueOf(i), map.get(0x001122000000L + i));
+		}
+
+		ConcurrentLongMap<Long> churned = new ConcurrentLongMap<Long>();
+
+		for (long i = 0; i < 100000; i++) {
+			churned.put(i, i);
+			churned.remove(i);
+		}
+
+		assertEquals(0, churned.size());
+		assertTrue(churned.capacity() <= 64);
+	}
+
+	/**
+	 * Readers never miss an entry that stays in the map,
+	 * while others come and go and the table is rehashed
+	 */
+	@Test
+	public void testReadersDuringWrites() throws Exception {
+		final ConcurrentLongMap<Long> map = new ConcurrentLongMap<Long>();
+		final int stable = 1000;
+		final AtomicBoolean missed = new AtomicBoolean(false);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final CountDownLatch finished = new CountDownLatch(2);
+
+		for (long i = 0; i < stable; i++) {
+			map.put(i, i);
+		}
+
+		for (int t = 0; t < 2; t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (!done.get()) {
+						for (long i = 0; i < stable; i++) {
+							Long value = map.get(i);
+
+							if (value == null || value.longValue() != i)
+								missed.set(true);
+						}
+					}
+
+					finished.countDown();
+				}
+			}).start();
+		}
+
+		for (long i = stable; i < 200000; i++) {
+			map.put(i, i);
+
+			if (i % 2 == 0 && i > stable)
+				map.remove(i - 1);
+		}
+
+		done.set(true);
+		finished.await();
+
+		assertFalse(missed.get());
+	}
+}
@@ -0,0 +1,175 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the handoff tracer and its latency histograms.
+ */
+public class HandoffTracerTest {
+	private static final String POOL = "pool-1";
+
+	private OdinTimeoutWheel wheel;
+	private HandoffTracer tracer;
+	private InetAddress oldAgent;
+	private InetAddress newAgent;
+	private MACAddress client;
+
+	@Before
+	public void setup() throws Exception {
+		wheel = new OdinTimeoutWheel();
+		tracer = new HandoffTracer(wheel, 4);
+		oldAgent = InetAddress.getByName("172.17.2.161");
+		newAgent = InetAddress.getByName("172.17.2.162");
+		client = MACAddress.valueOf("00:00:00:00:00:01");
+	}
+
+	@After
+	public void tearDown() {
+		wheel.stop();
+	}
+
+	/**
+	 * Reported values never undershoot, and overshoot
+	 * by at most one sub-bucket
+	 */
+	@Test
+	public void testHistogramBuckets() {
+		for (long v = 0; v < 1000000; v = v * 2 + 7) {
+			long upper = LatencyHistogram.upperBoundOf(LatencyHistogram.indexOf(v));
+			assertTrue(upper >= v);
+			assertTrue(upper <= v + v / 8 + 1);
+			assertEquals(LatencyHistogram.indexOf(v), LatencyHistogram.indexOf(upper));
+		}
+
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		for (long v = 1; v <= 10000; v++) {
+			histogram.record(v);
+		}
+
+		assertEquals(10000, histogram.getCount());
+		assertEquals(10000, histogram.getMax());
+		assertTrue(Math.abs(histogram.getValueAtQuantile(0.5) - 5000) <= 5000 / 8);
+		assertTrue(Math.abs(histogram.getValueAtQuantile(0.99) - 9900) <= 9900 / 8);
+		assertEquals(10000, histogram.getValueAtQuantile(1.0));
+	}
+
+	/**
+	 * A handoff completes once its acks are in and the client
+	 * has been heard of through the new agent, not the old one.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testHandoffCompletesOnFirstPublish() {
+		HandoffTracer.Trace trace = tracer.begin(client, POOL, oldAgent, newAgent);
+		tracer.mark(trace, HandoffTracer.Phase.FLOW_MODS);
+		tracer.mark(trace, HandoffTracer.Phase.ADD_VAP);
+		tracer.mark(trace, HandoffTracer.Phase.REMOVE_VAP);
+		tracer.publishHeard(client, oldAgent);
+
+		assertEquals(0L, tracer.getStats().get("completed"));
+		assertEquals(1, tracer.getStats().get("inProgress"));
+
+		tracer.publishHeard(client, newAgent);
+
+		Map<String, Object> stats = tracer.getStats();
+		assertEquals(1L, stats.get("completed"));
+		assertEquals(0, stats.get("inProgress"));
+		assertTrue(trace.isFinished());
+		assertTrue(trace.getPhase(HandoffTracer.Phase.FIRST_PUBLISH) >= trace.getPhase(HandoffTracer.Phase.FLOW_MODS));
+
+		Map<String, Object> pools = (Map<String, Object>) stats.get("pools");
+		assertEquals(1L, ((Map<String, Object>) pools.get(POOL)).get("count"));
+
+		Map<String, Object> pairs = (Map<String, Object>) stats.get("agentPairs");
+		assertTrue(pairs.containsKey("172.17.2.161 -> 172.17.2.162"));
+
+		// Later publishes don't count twice
+		tracer.publishHeard(client, newAgent);
+		assertEquals(1L, tracer.getStats().get("completed"));
+	}
+
+
+	/**
+	 * Handoffs to an agent the LVAP was staged on are
+	 * recorded apart from cold ones
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testPrestagedHandoffsRecordedApart() {
+		HandoffTracer.Trace trace = tracer.begin(client, POOL, oldAgent, newAgent);
+		tracer.markPrestaged(trace);
+
+		for (HandoffTracer.Phase phase: HandoffTracer.Phase.values()) {
+			tracer.mark(trace, phase);
+		}
+
+		trace = tracer.begin(client, POOL, newAgent, oldAgent);
+
+		for (HandoffTracer.Phase phase: HandoffTracer.Phase.values()) {
+			tracer.mark(trace, phase);
+		}
+
+		Map<String, Object> stats = tracer.getStats();
+		assertEquals(1L, ((Map<String, Object>) stats.get("prestaged")).get("count"));
+		assertEquals(1L, ((Map<String, Object>) stats.get("cold")).get("count"));
+		assertEquals(Boolean.TRUE, tracer.getRecent(1).toMap().get("prestaged"));
+		assertEquals(Boolean.FALSE, tracer.getRecent(0).toMap().get("prestaged"));
+	}
+
+	/**
+	 * Failed handoffs are counted apart, and show up as slow
+	 * with the phase that failed
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testFailedHandoffReported() {
+		tracer.setSlowThreshold(0);
+
+		HandoffTracer.Trace trace = tracer.begin(client, POOL, null, newAgent);
+		tracer.mark(trace, HandoffTracer.Phase.FLOW_MODS);
+		tracer.fail(trace, HandoffTracer.Phase.ADD_VAP);
+
+		Map<String, Object> stats = tracer.getStats();
+		assertEquals(1L, stats.get("failed"));
+		assertEquals(0L, stats.get("completed"));
+
+		List<Map<String, Object>> slow = (List<Map<String, Object>>) stats.get("slowHandoffs");
+		assertEquals(1, slow.size());
+		assertEquals("ADD_VAP", slow.get(0).get("failedPhase"));
+		assertEquals("none -> 172.17.2.162", slow.get(0).get("agents"));
+	}
+
+	/**
+	 * The ring only keeps the most recent handoffs, and a new
+	 * handoff of a client abandons the one in progress
+	 */
+	@Test
+	public void testRingKeepsMostRecent() {
+		HandoffTracer.Trace first = tracer.begin(client, POOL, oldAgent, newAgent);
+
+		for (int i = 0; i < 5; i++) {
+			tracer.begin(MACAddress.valueOf(0x100L + i), POOL, oldAgent, newAgent);
+		}
+
+		assertEquals(5, tracer.getRecent(0).id);
+		assertEquals(2, tracer.getRecent(3).id);
+		assertNull(tracer.getRecent(4));
+
+		tracer.begin(client, POOL, newAgent, oldAgent);
+		assertTrue(first.isFinished());
+		assertEquals(1L, tracer.getStats().get("unheard"));
+	}
+}
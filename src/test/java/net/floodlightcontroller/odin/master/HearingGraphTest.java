@@ -0,0 +1,170 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the hearing graph of which agents hear which clients.
+ */
+public class HearingGraphTest {
+	private static final long MAX_AGE = 300; // milliseconds
+
+	private ClientManager clientManager;
+	private OdinTimeoutWheel wheel;
+	private HearingGraph graph;
+	private InetAddress[] agents = new InetAddress[3];
+	private MACAddress client1;
+	private MACAddress client2;
+
+	@Before
+	public void setup() throws Exception {
+		clientManager = new ClientManager();
+		wheel = new OdinTimeoutWheel(10, TimeUnit.MILLISECONDS, 64);
+		graph = new HearingGraph(clientManager, wheel, MAX_AGE, 0.5);
+
+		for (int i = 0; i < agents.length; i++) {
+			agents[i] = InetAddress.getByName("172.17.2." + (161 + i));
+		}
+
+		client1 = MACAddress.valueOf("00:00:00:00:00:01");
+		client2 = MACAddress.valueOf("00:00:00:00:00:02");
+		clientManager.addClient(client1, InetAddress.getByName("172.17.2.51"), null);
+		clientManager.addClient(client2, InetAddress.getByName("172.17.2.52"), null);
+	}
+
+	@After
+	public void tearDown() {
+		wheel.stop();
+	}
+
+	/**
+	 * Agents come back strongest first, by smoothed signal
+	 */
+	@Test
+	public void testBestAgentsBySmoothedSignal() {
+		long now = System.currentTimeMillis();
+
+		graph.hear(client1, agents[0], 180, now);
+		graph.hear(client1, agents[1], 200, now);
+		graph.hear(client1, agents[2], 170, now);
+
+		// 200 then 100 averages to 150, below agent 0
+		graph.hear(client1, agents[1], 100, now + 1);
+
+		// Samples older than the last one are ignored
+		graph.hear(client1, agents[2], 250, now - 1);
+
+		List<HearingLink> best = graph.getBestAgents(client1, 2);
+
+		assertEquals(2, best.size());
+		assertEquals(agents[0], best.get(0).getAgentAddress());
+		assertEquals(agents[2], best.get(1).getAgentAddress());
+
+		HearingLink link = graph.getBestAgents(client1, 3).get(2);
+		assertEquals(150.0, link.getSignal(), 0.001);
+		assertEquals(100, link.getLastSignal());
+		assertEquals(2, link.getSamples());
+
+		// Stations that aren't clients aren't tracked
+		graph.hear(MACAddress.valueOf("00:00:00:00:00:99"), agents[0], 200, now);
+		assertEquals(3, graph.getEdgeCount());
+	}
+
+	/**
+	 * Each agent knows which clients it hears, and forgetting
+	 * a client or an agent clears both sides of the graph
+	 */
+	@Test
+	public void testAudibleClientsAndRemoval() {
+		long now = System.currentTimeMillis();
+
+		graph.hear(client1, agents[0], 180, now);
+		graph.hear(client2, agents[0], 190, now);
+		graph.hear(client2, agents[1], 190, now);
+
+		assertEquals(2, graph.getAudibleClients(agents[0]).size());
+		assertEquals(1, graph.getAudibleClients(agents[1]).size());
+		assertEquals(0, graph.getAudibleClients(agents[2]).size());
+
+		graph.removeClient(client2);
+
+		assertEquals(1, graph.getAudibleClients(agents[0]).size());
+		assertEquals(client1, graph.getAudibleClients(agents[0]).get(0).getClientHwAddress());
+		assertEquals(0, graph.getAudibleClients(agents[1]).size());
+		assertEquals(0, graph.getBestAgents(client2, 3).size());
+
+		graph.removeAgent(agents[0]);
+
+		assertEquals(0, graph.getBestAgents(client1, 3).size());
+		assertEquals(0, graph.getEdgeCount());
+	}
+
+	/**
+	 * Edges that aren't refreshed are dropped, and stations heard
+	 * through rxstats are timed from when the agent last heard them
+	 */
+	@Test
+	public void testStaleEdgesExpire() throws Exception {
+		Map<MACAddress, RxStatsSnapshot.Station> stations = new HashMap<MACAddress, RxStatsSnapshot.Station>();
+		stations.put(client1, new RxStatsSnapshot.Station(54, 180, -95, 175, 0.0));
+		stations.put(client2, new RxStatsSnapshot.Station(54, 190, -95, 185, 10.0));
+
+		graph.hear(new RxStatsSnapshot(agents[0], System.currentTimeMillis(), stations));
+
+		// client2 was last heard 10s ago, so is already stale
+		assertEquals(1, graph.getEdgeCount());
+		assertEquals(1, graph.getAudibleClients(agents[0]).size());
+
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (graph.getEdgeCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(0, graph.getEdgeCount());
+		assertEquals(0, graph.getBestAgents(client1, 1).size());
+	}
+
+	/**
+	 * Lots of clients, heard by a few agents each: the graph
+	 * answers from its indexes without scanning every client
+	 */
+	@Test
+	public void testManyClients() throws Exception {
+		HearingGraph graph = new HearingGraph(clientManager, wheel);
+		List<MACAddress> macs = new ArrayList<MACAddress>();
+		long now = System.currentTimeMillis();
+
+		for (int i = 0; i < 5000; i++) {
+			MACAddress mac = MACAddress.valueOf(0x001122000000L + i);
+			clientManager.addClient(mac, null, null);
+			macs.add(mac);
+
+			for (int a = 0; a < agents.length; a++) {
+				graph.hear(mac, agents[a], 150 + (i + a) % agents.length, now);
+			}
+		}
+
+		assertEquals(5000 * agents.length, graph.getEdgeCount());
+		assertEquals(5000, graph.getAudibleClients(agents[1]).size());
+
+		for (int i = 0; i < 5000; i += 97) {
+			List<HearingLink> best = graph.getBestAgents(macs.get(i), 1);
+			assertEquals(1, best.size());
+			assertTrue(best.get(0).getSignal() == 152.0);
+		}
+	}
+}
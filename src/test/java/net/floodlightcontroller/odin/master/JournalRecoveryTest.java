@@ -0,0 +1,240 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.test.MockFloodlightProvider;
+import net.floodlightcontroller.core.test.MockThreadPoolService;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.restserver.RestApiServer;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+import net.floodlightcontroller.util.MACAddress;
+
+import org.easymock.EasyMock;
+import org.jboss.netty.channel.Channel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for a restarted master rebuilding its state from the
+ * journal, and reconciling it with the agents as they register.
+ */
+public class JournalRecoveryTest {
+	private static final String POOL = "pool-1";
+	private static final String[] AGENT_ADDRS = {"172.17.2.161", "172.17.2.162"};
+	private static final int CLIENTS = 4;
+
+	private File dir;
+	private final List<OdinJournal> journals = new ArrayList<OdinJournal>();
+	private final InetAddress[] agentAddrs = new InetAddress[AGENT_ADDRS.length];
+
+	// The master as it is now, restarted or not
+	private OdinMaster odinMaster;
+	private AgentManager agentManager;
+	private ClientManager clientManager;
+	private PoolManager poolManager;
+
+	@Before
+	public void setup() throws Exception {
+		dir = OdinJournalTest.createTempDir();
+		OdinAgentFactory.setOdinAgentType("MockOdinAgent");
+
+		for (int i = 0; i < AGENT_ADDRS.length; i++) {
+			agentAddrs[i] = InetAddress.getByName(AGENT_ADDRS[i]);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		if (odinMaster != null)
+			odinMaster.shutdown();
+
+		for (OdinJournal journal: journals) {
+			journal.close();
+		}
+
+		OdinJournalTest.deleteDir(dir);
+	}
+
+	/**
+	 * Bring up a master, as if it had just started with the
+	 * journal directory configured
+	 */
+	private void startMaster() throws Exception {
+		FloodlightModuleContext cntx = new FloodlightModuleContext();
+		RestApiServer restApi = new RestApiServer();
+		MockFloodlightProvider mockFloodlightProvider = new MockFloodlightProvider();
+
+		// The previous master, if any, is gone
+		if (odinMaster != null)
+			odinMaster.shutdown();
+
+		clientManager = new ClientManager();
+		poolManager = new PoolManager();
+		agentManager = new AgentManager(clientManager, poolManager);
+		odinMaster = new OdinMaster(agentManager, clientManager, new LvapManager(), poolManager);
+
+		cntx.addService(IFloodlightProviderService.class, mockFloodlightProvider);
+		cntx.addService(IRestApiService.class, restApi);
+		cntx.addService(IThreadPoolService.class, new MockThreadPoolService());
+		restApi.init(cntx);
+		odinMaster.init(cntx);
+		agentManager.setFloodlightProvider(mockFloodlightProvider);
+
+		// What the pool file says
+		for (int i = 0; i < AGENT_ADDRS.length; i++) {
+			poolManager.addPoolForAgent(agentAddrs[i], POOL);
+			addSwitch(mockFloodlightProvider, i + 1, AGENT_ADDRS[i]);
+		}
+
+		poolManager.addNetworkForPool(POOL, "odin");
+
+		OdinJournal journal = OdinJournal.open(dir, OdinJournal.DEFAULT_CAPACITY);
+		journals.add(journal);
+		odinMaster.recoverFromJournal(journal);
+	}
+
+	private void addSwitch(MockFloodlightProvider provider, long id, String addr) {
+		IOFSwitch sw = EasyMock.createNiceMock(IOFSwitch.class);
+		Channel ch = EasyMock.createMock(Channel.class);
+		expect(sw.getChannel()).andReturn(ch).anyTimes();
+		expect(ch.getRemoteAddress()).andReturn((SocketAddress) new InetSocketAddress(addr, 12345)).anyTimes();
+		expect(sw.getId()).andReturn(id).anyTimes();
+		EasyMock.replay(sw);
+		EasyMock.replay(ch);
+		provider.getSwitches().put(id, sw);
+	}
+
+	private static MACAddress mac(int i) {
+		return MACAddress.valueOf(0x000000000100L + i);
+	}
+
+	/**
+	 * Clients, their pools and LVAP assignments, and networks added
+	 * at runtime all come back, and each agent gets its LVAPs back
+	 * when it registers
+	 */
+	@Test
+	public void testRecoverClientsAndLvaps() throws Exception {
+		startMaster();
+
+		for (InetAddress addr: agentAddrs) {
+			odinMaster.receivePing(addr);
+		}
+
+		poolManager.addNetworkForPool(POOL, "odin-guest");
+
+		for (int i = 0; i < CLIENTS; i++) {
+			List<String> ssids = new ArrayList<String>();
+			ssids.add("odin");
+			clientManager.addClient(mac(i), InetAddress.getByName("172.17.2." + (50 + i)), new Lvap(MACAddress.valueOf(0x000000001100L + i), ssids));
+			poolManager.mapClientToPool(clientManager.getClient(mac(i)), POOL);
+			odinMaster.handoffClientToAp(POOL, mac(i), agentAddrs[i % agentAddrs.length]);
+		}
+
+		// One client moves, one leaves
+		odinMaster.handoffClientToAp(POOL, mac(0), agentAddrs[1]);
+		odinMaster.receiveDeauth(agentAddrs[1], mac(3));
+
+		// The master crashes, and comes back with no agents connected
+		startMaster();
+
+		assertEquals(CLIENTS - 1, clientManager.getClients().size());
+		assertNull(clientManager.getClient(mac(3)));
+		assertTrue(poolManager.getSsidListForPool(POOL).contains("odin-guest"));
+
+		for (int i = 0; i < CLIENTS - 1; i++) {
+			OdinClient oc = clientManager.getClient(mac(i));
+			assertNotNull(oc);
+			assertEquals(POOL, poolManager.getPoolForClient(oc));
+			assertNull(oc.getLvap().getAgent());
+		}
+
+		// As agents register, they get their LVAPs back
+		for (InetAddress addr: agentAddrs) {
+			odinMaster.receivePing(addr);
+		}
+
+		IOdinAgent agent0 = agentManager.getAgent(agentAddrs[0]);
+		IOdinAgent agent1 = agentManager.getAgent(agentAddrs[1]);
+
+		assertSame(agent1, clientManager.getClient(mac(0)).getLvap().getAgent());
+		assertSame(agent1, clientManager.getClient(mac(1)).getLvap().getAgent());
+		assertSame(agent0, clientManager.getClient(mac(2)).getLvap().getAgent());
+
+		// The stub agents came back empty, so the LVAPs were pushed to them again
+		assertEquals(1, agent0.getLvapsLocal().size());
+		assertEquals(2, agent1.getLvapsLocal().size());
+	}
+
+	/**
+	 * A client journaled without an LVAP isn't brought back with
+	 * a null one, and is dropped from the journal
+	 */
+	@Test
+	public void testClientWithoutLvapNotRecovered() throws Exception {
+		startMaster();
+
+		List<String> ssids = new ArrayList<String>();
+		ssids.add("odin");
+		clientManager.addClient(mac(0), InetAddress.getByName("172.17.2.50"), new Lvap(MACAddress.valueOf(0x000000001100L), ssids));
+		clientManager.addClient(mac(1), InetAddress.getByName("172.17.2.51"), null);
+		poolManager.mapClientToPool(clientManager.getClient(mac(1)), POOL);
+
+		startMaster();
+
+		assertNotNull(clientManager.getClient(mac(0)).getLvap());
+		assertNull(clientManager.getClient(mac(1)));
+
+		for (OdinClient oc: clientManager.getClients().values()) {
+			assertNotNull(oc.getLvap());
+		}
+
+		// Nor does it come back on the restart after that
+		startMaster();
+
+		assertEquals(1, clientManager.getClients().size());
+		assertNull(clientManager.getClient(mac(1)));
+	}
+
+	/**
+	 * Subscriptions made after a restart don't reuse the ids
+	 * handed out before it
+	 */
+	@Test
+	public void testSubscriptionIdsNotReused() throws Exception {
+		startMaster();
+
+		OdinEventSubscription oes = new OdinEventSubscription();
+		oes.setSubscription("*", "signal", OdinEventSubscription.Relation.GREATER_THAN, 180);
+		NotificationCallback cb = new NotificationCallback() {
+			@Override
+			public void exec(OdinEventSubscription oes, NotificationCallbackContext cntx) {
+			}
+		};
+		long id = 0;
+
+		for (int i = 0; i < 3; i++) {
+			id = odinMaster.registerSubscription(POOL, oes, cb);
+		}
+
+		startMaster();
+
+		assertEquals(id + 1, odinMaster.registerSubscription(POOL, oes, cb));
+	}
+}
@@ -0,0 +1,229 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for staging LVAPs on the agents clients are likely to move to.
+ */
+public class LvapPrestagerTest {
+	private static final String POOL = "pool-1";
+
+	private ClientManager clientManager;
+	private PoolManager poolManager;
+	private OdinTimeoutWheel wheel;
+	private HearingGraph graph;
+	private LvapPrestager prestager;
+	private StubOdinAgent[] agents = new StubOdinAgent[3];
+	private long now;
+
+	@Before
+	public void setup() throws Exception {
+		clientManager = new ClientManager();
+		poolManager = new PoolManager();
+		wheel = new OdinTimeoutWheel(10, TimeUnit.MILLISECONDS, 64);
+		graph = new HearingGraph(clientManager, wheel, 60000, 0.5);
+		prestager = new LvapPrestager(graph, poolManager, wheel);
+		prestager.setEnabled(true);
+		now = System.currentTimeMillis();
+
+		for (int i = 0; i < agents.length; i++) {
+			agents[i] = new StubOdinAgent();
+			agents[i].init(InetAddress.getByName("172.17.2." + (161 + i)));
+			poolManager.addPoolForAgent(agents[i].getIpAddress(), POOL);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		wheel.stop();
+	}
+
+	private OdinClient addClient (int n) throws Exception {
+		MACAddress hwAddress = MACAddress.valueOf("00:00:00:00:00:0" + n);
+		OdinClient oc = new OdinClient(hwAddress, InetAddress.getByName("172.17.2.5" + n),
+				new Lvap(MACAddress.valueOf("00:00:00:00:01:0" + n), Arrays.asList("odin")));
+
+		clientManager.addClient(oc);
+		clientManager.setClientAgent(oc, agents[0]);
+		poolManager.mapClientToPool(oc, POOL);
+		graph.hear(hwAddress, agents[0].getIpAddress(), 200, now);
+
+		return oc;
+	}
+
+	/**
+	 * Two samples a second apart; rising by 40 gives a trend of
+	 * 20 per second with a smoothing of 0.5
+	 */
+	private void hear (OdinClient oc, StubOdinAgent agent, long first, long second) {
+		graph.hear(oc.getMacAddress(), agent.getIpAddress(), first, now);
+		graph.hear(oc.getMacAddress(), agent.getIpAddress(), second, now + 1000);
+	}
+
+	/**
+	 * Only agents hearing the client better and better are staged on,
+	 * and a handoff to one of them claims the staged LVAP
+	 */
+	@Test
+	public void testStagesOnRisingCandidate() throws Exception {
+		OdinClient oc = addClient(1);
+
+		hear(oc, agents[1], 100, 140);
+		hear(oc, agents[2], 150, 110);
+
+		assertEquals(20.0, graph.getLink(oc.getMacAddress(), agents[1].getIpAddress()).getTrend(), 0.001);
+
+		prestager.consider(oc, agents[0]);
+		prestager.consider(oc, agents[1]);
+		prestager.consider(oc, agents[2]);
+
+		assertTrue(agents[1].getStagedLvaps().contains(oc));
+		assertTrue(agents[2].getStagedLvaps().isEmpty());
+		assertTrue(agents[0].getStagedLvaps().isEmpty());
+
+		// Already staged
+		prestager.consider(oc, agents[1]);
+		assertEquals(1L, prestager.getStats().get("staged"));
+
+		assertTrue(prestager.claim(oc, agents[1]));
+		assertFalse(prestager.claim(oc, agents[1]));
+		assertFalse(prestager.claim(oc, agents[2]));
+		assertEquals(1L, prestager.getStats().get("hits"));
+		assertEquals(2L, prestager.getStats().get("misses"));
+
+		// add_vap activates the staged LVAP
+		agents[1].addClientLvap(oc);
+		assertTrue(agents[1].getStagedLvaps().isEmpty());
+	}
+
+	/**
+	 * Only the best agents other than the current one are candidates
+	 */
+	@Test
+	public void testOnlyBestAgentsAreCandidates() throws Exception {
+		prestager.setCandidates(1);
+		OdinClient oc = addClient(1);
+
+		hear(oc, agents[1], 100, 140);
+		hear(oc, agents[2], 150, 190);
+
+		prestager.consider(oc, agents[1]);
+		prestager.consider(oc, agents[2]);
+
+		assertTrue(agents[1].getStagedLvaps().isEmpty());
+		assertTrue(agents[2].getStagedLvaps().contains(oc));
+	}
+
+	/**
+	 * Agents hold a bounded number of staged LVAPs, the oldest of
+	 * which are evicted, and unused ones expire
+	 */
+	@Test
+	public void testEvictionAndExpiry() throws Exception {
+		prestager.setPerAgent(1);
+		OdinClient oc1 = addClient(1);
+		OdinClient oc2 = addClient(2);
+
+		hear(oc1, agents[1], 100, 140);
+		hear(oc2, agents[1], 100, 140);
+
+		prestager.consider(oc1, agents[1]);
+		prestager.consider(oc2, agents[1]);
+
+		assertFalse(agents[1].getStagedLvaps().contains(oc1));
+		assertTrue(agents[1].getStagedLvaps().contains(oc2));
+		assertEquals(1, prestager.getStagedCount(agents[1].getIpAddress()));
+		assertEquals(1L, prestager.getStats().get("evicted"));
+
+		prestager.setTimeout(50);
+		prestager.consider(oc1, agents[1]);
+
+		for (int i = 0; i < 100 && !agents[1].getStagedLvaps().isEmpty(); i++) {
+			Thread.sleep(10);
+		}
+
+		assertTrue(agents[1].getStagedLvaps().isEmpty());
+		assertEquals(0, prestager.getStagedCount(agents[1].getIpAddress()));
+		assertEquals(1L, prestager.getStats().get("expired"));
+		assertFalse(prestager.claim(oc1, agents[1]));
+	}
+
+	/**
+	 * Agents that reject the staging handler aren't asked again,
+	 * and handoffs to them are cold
+	 */
+	@Test
+	public void testUnsupportedAgentFallsBack() throws Exception {
+		agents[1].setPrestagingSupported(false);
+		OdinClient oc1 = addClient(1);
+		OdinClient oc2 = addClient(2);
+
+		hear(oc1, agents[1], 100, 140);
+		hear(oc2, agents[1], 100, 140);
+
+		prestager.consider(oc1, agents[1]);
+		prestager.consider(oc2, agents[1]);
+
+		assertTrue(prestager.isUnsupported(agents[1].getIpAddress()));
+		assertEquals(0, prestager.getStagedCount(agents[1].getIpAddress()));
+		assertEquals(1L, prestager.getStats().get("staged"));
+		assertEquals(1L, prestager.getStats().get("unsupported"));
+		assertFalse(prestager.claim(oc1, agents[1]));
+	}
+
+	/**
+	 * A staging that fails for any other reason only drops that
+	 * LVAP, and the client is staged again when next heard
+	 */
+	@Test
+	public void testFailedStagingIsRetried() throws Exception {
+		agents[1].setPrestagingFails(true);
+		OdinClient oc = addClient(1);
+
+		hear(oc, agents[1], 100, 140);
+		prestager.consider(oc, agents[1]);
+
+		assertFalse(prestager.isUnsupported(agents[1].getIpAddress()));
+		assertEquals(0, prestager.getStagedCount(agents[1].getIpAddress()));
+		assertEquals(0L, prestager.getStats().get("unsupported"));
+
+		agents[1].setPrestagingFails(false);
+		prestager.consider(oc, agents[1]);
+
+		assertEquals(1, prestager.getStagedCount(agents[1].getIpAddress()));
+		assertEquals(1, agents[1].getStagedLvaps().size());
+		assertTrue(prestager.claim(oc, agents[1]));
+	}
+
+	/**
+	 * Removed clients are unstaged everywhere
+	 */
+	@Test
+	public void testClientRemoved() throws Exception {
+		OdinClient oc = addClient(1);
+
+		hear(oc, agents[1], 100, 140);
+		hear(oc, agents[2], 100, 140);
+
+		prestager.consider(oc, agents[1]);
+		prestager.consider(oc, agents[2]);
+		assertEquals(1, agents[2].getStagedLvaps().size());
+
+		prestager.clientRemoved(oc.getMacAddress());
+
+		assertTrue(agents[1].getStagedLvaps().isEmpty());
+		assertTrue(agents[2].getStagedLvaps().isEmpty());
+	}
+}
@@ -0,0 +1,239 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.odin.master.NotificationDispatcher.OverflowPolicy;
+import net.floodlightcontroller.odin.master.OdinEventSubscription.Relation;
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks the overflow policies of the per-application
+ * notification queues.
+ */
+public class NotificationDispatcherTest {
+	private static final MACAddress CLIENT1 = MACAddress.valueOf("00:00:00:00:00:01");
+	private static final MACAddress CLIENT2 = MACAddress.valueOf("00:00:00:00:00:02");
+
+	private final OdinEventSubscription oes = new OdinEventSubscription();
+	private NotificationDispatcher dispatcher;
+
+	/**
+	 * Records the values it is notified of
+	 */
+	private static class RecordingCallback implements NotificationCallback {
+		final List<Long> values = Collections.synchronizedList(new ArrayList<Long>());
+		final CountDownLatch latch;
+
+		RecordingCallback(int expected) {
+			latch = new CountDownLatch(expected);
+		}
+
+		@Override
+		public void exec(OdinEventSubscription oes, NotificationCallbackContext cntx) {
+			values.add(cntx.value);
+			latch.countDown();
+		}
+	}
+
+	{
+		oes.setSubscription("*", "signal", Relation.GREATER_THAN, 180);
+	}
+
+	@After
+	public void tearDown() {
+		if (dispatcher != null)
+			dispatcher.shutdown();
+	}
+
+	private void publish(NotificationCallback cb, MACAddress client, long value) {
+		cb.exec(oes, new NotificationCallbackContext(client, null, value));
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		dispatcher = new NotificationDispatcher("test", 2, OverflowPolicy.DROP_OLDEST);
+		RecordingCallback app = new RecordingCallback(2);
+		NotificationCallback cb = dispatcher.wrap(app);
+
+		publish(cb, CLIENT1, 1);
+		publish(cb, CLIENT1, 2);
+		publish(cb, CLIENT2, 3);
+
+		assertEquals(2, dispatcher.getQueueDepth());
+		assertEquals(1, dispatcher.getDroppedCount());
+
+		dispatcher.start();
+		assertTrue(app.latch.await(5, TimeUnit.SECONDS));
+		assertEquals(2L, (long) app.values.get(0));
+		assertEquals(3L, (long) app.values.get(1));
+	}
+
+	@Test
+	public void testCoalesce() throws Exception {
+		dispatcher = new NotificationDispatcher("test", 2, OverflowPolicy.COALESCE);
+		RecordingCallback app = new RecordingCallback(2);
+		NotificationCallback cb = dispatcher.wrap(app);
+
+		publish(cb, CLIENT1, 1);
+		publish(cb, CLIENT2, 2);
+		publish(cb, CLIENT1, 3);
+		publish(cb, CLIENT1, 4);
+
+		assertEquals(2, dispatcher.getQueueDepth());
+		assertEquals(2, dispatcher.getCoalescedCount());
+		assertEquals(0, dispatcher.getDroppedCount());
+
+		dispatcher.start();
+		assertTrue(app.latch.await(5, TimeUnit.SECONDS));
+
+		// Client 1 keeps its place in the queue, with the latest value
+		assertEquals(4L, (long) app.values.get(0));
+		assertEquals(2L, (long) app.values.get(1));
+	}
+
+	/**
+	 * Batch callbacks stay batch callbacks once wrapped, and their
+	 * batches are queued whole, next to single notifications
+	 */
+	@Test
+	public void testBatches() throws Exception {
+		dispatcher = new NotificationDispatcher("test", 4, OverflowPolicy.COALESCE);
+		final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch latch = new CountDownLatch(3);
+
+		NotificationCallback cb = dispatcher.wrap(new BatchNotificationCallback() {
+			@Override
+			public void exec(OdinEventSubscription oes, NotificationCallbackContext cntx) {
+				batchSizes.add(0);
+				latch.countDown();
+			}
+
+			@Override
+			public void execBatch(OdinEventSubscription oes, BatchNotificationCallbackContext cntx) {
+				batchSizes.add(cntx.size());
+				latch.countDown();
+			}
+		});
+
+		assertTrue(cb instanceof BatchNotificationCallback);
+
+		BatchNotificationCallbackContext batch = new BatchNotificationCallbackContext(null,
+				new MACAddress[] {CLIENT1, CLIENT2}, new long[] {1, 2});
+		((BatchNotificationCallback) cb).execBatch(oes, batch);
+		publish(cb, CLIENT1, 3);
+		((BatchNotificationCallback) cb).execBatch(oes, batch);
+
+		// Batches aren't coalesced with one another
+		assertEquals(3, dispatcher.getQueueDepth());
+		assertEquals(0, dispatcher.getCoalescedCount());
+
+		dispatcher.start();
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+		assertEquals(2, (int) batchSizes.get(0));
+		assertEquals(0, (int) batchSizes.get(1));
+		assertEquals(2, (int) batchSizes.get(2));
+		assertFalse(dispatcher.wrap(new RecordingCallback(1)) instanceof BatchNotificationCallback);
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		dispatcher = new NotificationDispatcher("test", 1, OverflowPolicy.BLOCK);
+		RecordingCallback app = new RecordingCallback(2);
+		final NotificationCallback cb = dispatcher.wrap(app);
+		final CountDownLatch published = new CountDownLatch(1);
+
+		publish(cb, CLIENT1, 1);
+
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				publish(cb, CLIENT2, 2);
+				published.countDown();
+			}
+		});
+		t.start();
+
+		// No room until the dispatcher runs
+		assertFalse(published.await(200, TimeUnit.MILLISECONDS));
+
+		dispatcher.start();
+		assertTrue(published.await(5, TimeUnit.SECONDS));
+		assertTrue(app.latch.await(5, TimeUnit.SECONDS));
+		assertEquals(0, dispatcher.getDroppedCount());
+		assertEquals(2, app.values.size());
+	}
+
+	/**
+	 * A publisher waits for room for a bounded time only, since it
+	 * holds the master's locks while it waits
+	 */
+	@Test
+	public void testBlockGivesUpAfterTimeout() throws Exception {
+		dispatcher = new NotificationDispatcher("test", 1, OverflowPolicy.BLOCK, 50);
+		RecordingCallback app = new RecordingCallback(1);
+		NotificationCallback cb = dispatcher.wrap(app);
+
+		// The dispatcher isn't running, so room never comes
+		publish(cb, CLIENT1, 1);
+		publish(cb, CLIENT2, 2);
+
+		assertEquals(1, dispatcher.getDroppedCount());
+		assertEquals(1, dispatcher.getBlockTimeoutCount());
+
+		dispatcher.start();
+		assertTrue(app.latch.await(5, TimeUnit.SECONDS));
+		assertEquals(Collections.singletonList(2L), app.values);
+	}
+
+	/**
+	 * A slow callback holds up neither the publisher nor the metrics
+	 */
+	@Test
+	public void testSlowApplicationDoesNotBlockPublisher() throws Exception {
+		dispatcher = new NotificationDispatcher("test", 16, OverflowPolicy.DROP_OLDEST);
+		final CountDownLatch done = new CountDownLatch(3);
+		NotificationCallback cb = dispatcher.wrap(new NotificationCallback() {
+			@Override
+			public void exec(OdinEventSubscription oes, NotificationCallbackContext cntx) {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				done.countDown();
+			}
+		});
+		dispatcher.start();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 3; i++) {
+			publish(cb, CLIENT1, i);
+		}
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertTrue("publishing took " + elapsed + "ms", elapsed < 100);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+
+		// Metrics are updated once the callback has returned
+		for (int i = 0; i < 100 && dispatcher.getDispatchedCount() < 3; i++) {
+			Thread.sleep(10);
+		}
+
+		Map<String, Object> stats = dispatcher.getStats();
+		assertEquals(3L, stats.get("dispatched"));
+		assertTrue((Long) stats.get("maxLatencyMicros") >= 300000);
+	}
+}
@@ -0,0 +1,201 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises OdinAgentChannel against a minimal imitation of
+ * the Click control socket.
+ */
+public class OdinAgentChannelTest {
+
+	private static final ClickReplyParser<String> STRING_PARSER = new ClickReplyParser<String>() {
+		@Override
+		String parse(byte[] data, int offset, int length) {
+			try {
+				return new String(data, offset, length, "US-ASCII");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	};
+
+	private ServerSocket serverSocket;
+	private OdinAgentChannelSelector selector;
+	private volatile int batchSize = 1;
+
+	/**
+	 * Accepts a single connection and answers commands in order,
+	 * but only once batchSize commands have arrived. This lets
+	 * the tests check that commands are pipelined.
+	 */
+	private class FakeControlSocket implements Runnable {
+		private final CountDownLatch closeAfterCommands;
+
+		FakeControlSocket (CountDownLatch closeAfterCommands) {
+			this.closeAfterCommands = closeAfterCommands;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Socket s = serverSocket.accept();
+				BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+				OutputStream out = s.getOutputStream();
+				out.write("Click::ControlSocket/1.3\r\n".getBytes("US-ASCII"));
+				out.flush();
+
+				List<String> batch = new ArrayList<String>();
+				String line;
+
+				while ((line = in.readLine()) != null) {
+					batch.add(line);
+
+					if (closeAfterCommands != null) {
+						closeAfterCommands.countDown();
+						if (closeAfterCommands.getCount() == 0) {
+							s.close();
+							return;
+						}
+						continue;
+					}
+
+					if (batch.size() < batchSize)
+						continue;
+
+					StringBuilder reply = new StringBuilder();
+
+					for (String cmd: batch) {
+						String[] fields = cmd.split(" ");
+
+						if (fields[1].endsWith("bad")) {
+							reply.append("511-No such handler\r\n511 Handler '" + fields[1] + "' error\r\n");
+						}
+						else if (fields[0].equals("READ")) {
+							String data = "data for " + fields[1] + "\n";
+							reply.append("200 Read handler '" + fields[1] + "' OK\r\n");
+							reply.append("DATA " + data.length() + "\r\n");
+							reply.append(data);
+						}
+						else {
+							reply.append("200 Write handler '" + fields[1] + "' OK\r\n");
+						}
+					}
+
+					batch.clear();
+					out.write(reply.toString().getBytes("US-ASCII"));
+					out.flush();
+				}
+
+				s.close();
+			} catch (Exception e) {
+				// test will fail on the client side
+			}
+		}
+	}
+
+	@Before
+	public void setup() throws Exception {
+		serverSocket = new ServerSocket(0);
+		selector = OdinAgentChannelSelector.getInstance();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		serverSocket.close();
+	}
+
+	private OdinAgentChannel connect(CountDownLatch closeAfterCommands) throws Exception {
+		Thread t = new Thread(new FakeControlSocket(closeAfterCommands));
+		t.setDaemon(true);
+		t.start();
+
+		return OdinAgentChannel.connect(InetAddress.getByName("127.0.0.1"), serverSocket.getLocalPort(), selector);
+	}
+
+	/**
+	 * Replies only arrive once every command has been sent,
+	 * so the commands must have been pipelined, and each
+	 * reply must be matched to the command that caused it.
+	 */
+	@Test
+	public void testPipelinedRepliesMatchedInOrder() throws Exception {
+		batchSize = 4;
+		OdinAgentChannel channel = connect(null);
+
+		OdinAgentFuture<String> rxstats = channel.invokeReadHandler("odinagent.rxstats", STRING_PARSER);
+		OdinAgentFuture<Void> addVap = channel.invokeWriteHandler("odinagent.add_vap", "00:00:00:00:00:01");
+		OdinAgentFuture<String> table = channel.invokeReadHandler("odinagent.table", STRING_PARSER);
+		OdinAgentFuture<Void> bad = channel.invokeWriteHandler("odinagent.bad", "");
+
+		assertEquals("data for odinagent.rxstats\n", rxstats.get(5, TimeUnit.SECONDS));
+		addVap.get(5, TimeUnit.SECONDS);
+		assertTrue(addVap.isSuccess());
+		assertEquals("data for odinagent.table\n", table.get(5, TimeUnit.SECONDS));
+
+		assertTrue(bad.await(5, TimeUnit.SECONDS));
+		assertFalse(bad.isSuccess());
+		assertTrue(((OdinAgentHandlerException) bad.getCause()).isRejected());
+	}
+
+	/**
+	 * Commands that are outstanding when the agent goes
+	 * away must fail rather than hang.
+	 */
+	@Test
+	public void testPendingCommandsFailOnDisconnect() throws Exception {
+		OdinAgentChannel channel = connect(new CountDownLatch(2));
+
+		OdinAgentFuture<String> first = channel.invokeReadHandler("odinagent.rxstats", STRING_PARSER);
+		OdinAgentFuture<Void> second = channel.invokeWriteHandler("odinagent.remove_vap", "00:00:00:00:00:01");
+
+		assertTrue(first.await(5, TimeUnit.SECONDS));
+		assertTrue(second.await(5, TimeUnit.SECONDS));
+		assertFalse(first.isSuccess());
+		assertFalse(second.isSuccess());
+		assertFalse(second.getCause() instanceof OdinAgentHandlerException);
+
+		// Commands issued after the channel was closed fail straight away
+		assertFalse(channel.invokeWriteHandler("odinagent.add_vap", "").isSuccess());
+	}
+
+
+	/**
+	 * Commands issued inside a batch are held back until the
+	 * batch is closed, then answered as usual.
+	 */
+	@Test
+	public void testBatchedCommandsHeldUntilEndBatch() throws Exception {
+		OdinAgentChannel channel = connect(null);
+
+		channel.beginBatch();
+		OdinAgentFuture<Void> first = channel.invokeWriteHandler("odinagent.add_vap", "00:00:00:00:00:01");
+		OdinAgentFuture<Void> second = channel.invokeWriteHandler("odinagent.add_vap", "00:00:00:00:00:02");
+
+		assertFalse(first.await(200, TimeUnit.MILLISECONDS));
+
+		channel.endBatch();
+
+		assertTrue(first.await(5, TimeUnit.SECONDS));
+		assertTrue(second.await(5, TimeUnit.SECONDS));
+		assertTrue(first.isSuccess());
+		assertTrue(second.isSuccess());
+	}
+}
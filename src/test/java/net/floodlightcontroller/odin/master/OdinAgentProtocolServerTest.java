@@ -0,0 +1,382 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.Test;
+
+/**
+ * Checks the in-place decoding of agent messages, and that
+ * datagrams make it through the server to the master.
+ */
+public class OdinAgentProtocolServerTest {
+
+	private static final InetAddress AGENT = address("172.17.2.161");
+
+	private static InetAddress address(String s) {
+		try {
+			return InetAddress.getByName(s);
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static OdinAgentEvent decode(String msg) throws Exception {
+		// Use a direct buffer with some padding, as the server does
+		ByteBuffer buf = ByteBuffer.allocateDirect(256);
+		buf.put((byte) 'x');
+		buf.put(msg.getBytes("ISO-8859-1"));
+		buf.flip();
+		buf.position(1);
+
+		OdinAgentEvent event = new OdinAgentEvent();
+		return OdinAgentMessageDecoder.decode(buf, AGENT, event) ? event : null;
+	}
+
+	@Test
+	public void testDecodeMessages() throws Exception {
+		OdinAgentEvent event = decode("ping\n");
+		assertEquals(OdinAgentEvent.TYPE_PING, event.type);
+		assertEquals(AGENT, event.agentAddr);
+
+		event = decode("PROBE 00:0a:0B:0c:0d:0e");
+		assertEquals(OdinAgentEvent.TYPE_PROBE, event.type);
+		assertEquals(MACAddress.valueOf("00:0a:0b:0c:0d:0e").toLong(), event.clientHwAddress);
+		assertEquals(0, event.ssidLength);
+
+		event = decode("probe 00:00:00:00:00:01 My Network\n\0\0");
+		assertEquals(OdinAgentEvent.TYPE_PROBE, event.type);
+		assertEquals("my network", new String(event.ssid, 0, event.ssidLength, "ISO-8859-1"));
+
+		event = decode("publish 00:00:00:00:00:02 2 7:-45 12:3");
+		assertEquals(OdinAgentEvent.TYPE_PUBLISH, event.type);
+		assertEquals(2, event.publishCount);
+		assertEquals(7, event.subscriptionIds[0]);
+		assertEquals(-45, event.subscriptionValues[0]);
+		assertEquals(12, event.subscriptionIds[1]);
+		assertEquals(3, event.subscriptionValues[1]);
+
+		event = decode("publish_batch 3 00:00:00:00:00:01 7:-45 00:00:00:00:00:01 12:3 00:00:00:00:00:05 7:-70");
+		assertEquals(OdinAgentEvent.TYPE_PUBLISH_BATCH, event.type);
+		assertEquals(3, event.publishCount);
+		assertEquals(1, event.publishHwAddresses[1]);
+		assertEquals(12, event.subscriptionIds[1]);
+		assertEquals(5, event.publishHwAddresses[2]);
+		assertEquals(-70, event.subscriptionValues[2]);
+
+		event = decode("deauthentication 00:00:00:00:00:03");
+		assertEquals(OdinAgentEvent.TYPE_DEAUTH, event.type);
+		assertEquals(3, event.clientHwAddress);
+
+		event = decode("association 00:00:00:00:00:04");
+		assertEquals(OdinAgentEvent.TYPE_ASSOC, event.type);
+		assertEquals(4, event.clientHwAddress);
+	}
+
+	@Test
+	public void testRejectMalformedMessages() throws Exception {
+		assertEquals(null, decode(""));
+		assertEquals(null, decode("pong"));
+		assertEquals(null, decode("probe"));
+		assertEquals(null, decode("probe 00:00:00:00:00"));
+		assertEquals(null, decode("probe 00:00:00:00:00:0g"));
+		assertEquals(null, decode("probe 00:00:00:00:00:01 this-ssid-is-longer-than-32-bytes"));
+		assertEquals(null, decode("publish 00:00:00:00:00:01 2 7:1"));
+		assertEquals(null, decode("publish 00:00:00:00:00:01 1 7"));
+		assertEquals(null, decode("publish 00:00:00:00:00:01 x 7:1"));
+		assertEquals(null, decode("publish_batch 1 7:1"));
+		assertEquals(null, decode("publish_batch 2 00:00:00:00:00:01 7:1"));
+		assertEquals(null, decode("publish_batch 1 00:00:00:00:00:01 7"));
+	}
+
+	@Test
+	public void testRingDropsWhenFull() {
+		OdinAgentEventRing ring = new OdinAgentEventRing(3);
+		assertEquals(4, ring.capacity());
+
+		for (int i = 0; i < 4; i++) {
+			OdinAgentEvent slot = ring.claim();
+			slot.clientHwAddress = i;
+			ring.publish();
+		}
+
+		assertEquals(null, ring.claim());
+		assertEquals(4, ring.size());
+
+		OdinAgentEvent event = ring.take();
+		assertEquals(0, event.clientHwAddress);
+		ring.release();
+
+		assertTrue(ring.claim() != null);
+		assertEquals(3, ring.size());
+	}
+
+	private static OdinAgentEvent event(int type, long clientHwAddress) {
+		OdinAgentEvent event = new OdinAgentEvent();
+		event.type = type;
+		event.agentAddr = AGENT;
+		event.clientHwAddress = clientHwAddress;
+		return event;
+	}
+
+	@Test
+	public void testLanesTakeHighestPriorityFirst() {
+		OdinAgentEventLanes lanes = new OdinAgentEventLanes(8);
+		int[] types = {OdinAgentEvent.TYPE_PROBE, OdinAgentEvent.TYPE_PUBLISH, OdinAgentEvent.TYPE_PING,
+				OdinAgentEvent.TYPE_PUBLISH_BATCH, OdinAgentEvent.TYPE_DEAUTH, OdinAgentEvent.TYPE_PROBE};
+
+		for (int i = 0; i < types.length; i++) {
+			int lane = OdinAgentEventLanes.laneFor(types[i]);
+			lanes.claim(lane).copyFrom(event(types[i], i));
+			lanes.publish(lane);
+		}
+
+		assertEquals(6, lanes.size());
+
+		// Deauthentication, ping, publishes and then probes, each kind in order
+		long[] expected = {4, 2, 1, 3, 0, 5};
+
+		for (long clientHwAddress: expected) {
+			OdinAgentEvent event = lanes.take();
+			assertEquals(clientHwAddress, event.clientHwAddress);
+			lanes.release();
+		}
+
+		assertEquals(0, lanes.size());
+
+		// Once closed, an empty worker doesn't wait
+		lanes.close();
+		assertEquals(null, lanes.take());
+	}
+
+	@Test
+	public void testAdmissionControl() {
+		OdinAgentProtocolServer server = new OdinAgentProtocolServer(null, 0, 1, 64);
+		server.setRateLimits(10, 5, 2, 3);
+		long now = 1000000000L;
+
+		// A client scanning away is held back first...
+		for (int i = 0; i < 3; i++) {
+			assertTrue(server.offer(event(OdinAgentEvent.TYPE_PROBE, 1), now));
+		}
+
+		assertFalse(server.offer(event(OdinAgentEvent.TYPE_PROBE, 1), now));
+
+		// ...and then the agent reporting a crowd of them
+		assertTrue(server.offer(event(OdinAgentEvent.TYPE_PROBE, 2), now));
+		assertTrue(server.offer(event(OdinAgentEvent.TYPE_PUBLISH, 3), now));
+		assertFalse(server.offer(event(OdinAgentEvent.TYPE_PUBLISH, 4), now));
+		assertFalse(server.offer(event(OdinAgentEvent.TYPE_PROBE, 5), now));
+
+		// Handoffs and failure detection are never held back
+		for (int i = 0; i < 8; i++) {
+			assertTrue(server.offer(event(OdinAgentEvent.TYPE_PING, 0), now));
+			assertTrue(server.offer(event(OdinAgentEvent.TYPE_ASSOC, i), now));
+		}
+
+		Map<String, Object> stats = server.getStats();
+		assertEquals(1L, stats.get("clientRateLimited"));
+		assertEquals(2L, stats.get("agentRateLimited"));
+
+		// The buckets fill up again over time
+		now += 500000000L;
+		assertTrue(server.offer(event(OdinAgentEvent.TYPE_PROBE, 1), now));
+		assertTrue(server.offer(event(OdinAgentEvent.TYPE_PUBLISH, 4), now));
+		assertEquals(0, server.getDroppedCount());
+	}
+
+	@Test
+	public void testProbesShedFirst() {
+		OdinAgentProtocolServer server = new OdinAgentProtocolServer(null, 0, 1, 16);
+		server.setRateLimits(0, 0, 0, 0);
+		long now = 0;
+
+		// Publishes back up past half of their lane
+		for (int i = 0; i < 9; i++) {
+			assertTrue(server.offer(event(OdinAgentEvent.TYPE_PUBLISH, i), now));
+		}
+
+		assertFalse(server.offer(event(OdinAgentEvent.TYPE_PROBE, 1), now));
+		assertTrue(server.offer(event(OdinAgentEvent.TYPE_DEAUTH, 1), now));
+
+		for (int i = 9; i < 16; i++) {
+			assertTrue(server.offer(event(OdinAgentEvent.TYPE_PUBLISH, i), now));
+		}
+
+		// A full lane drops its own events only
+		assertFalse(server.offer(event(OdinAgentEvent.TYPE_PUBLISH, 16), now));
+		assertTrue(server.offer(event(OdinAgentEvent.TYPE_PING, 0), now));
+
+		Map<String, Object> stats = server.getStats();
+		assertEquals(1L, stats.get("probesShed"));
+
+		@SuppressWarnings("unchecked")
+		Map<String, Object> publishes = (Map<String, Object>) stats.get("publish");
+		assertEquals(1L, publishes.get("dropped"));
+		assertEquals(16, publishes.get("queueDepth"));
+		assertEquals(2, server.getDroppedCount());
+		assertEquals(18, server.getQueueDepth());
+	}
+
+	/**
+	 * Records what the server hands over
+	 */
+	private static class RecordingOdinMaster extends OdinMaster {
+		final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch latch;
+
+		RecordingOdinMaster(int expected) {
+			latch = new CountDownLatch(expected);
+		}
+
+		@Override
+		synchronized void receivePing(InetAddress odinAgentAddr) {
+			messages.add("ping " + odinAgentAddr.getHostAddress());
+			latch.countDown();
+		}
+
+		@Override
+		synchronized void receiveProbe(InetAddress odinAgentAddr, MACAddress clientHwAddress, String ssid) {
+			messages.add("probe " + clientHwAddress + " '" + ssid + "'");
+			latch.countDown();
+		}
+
+		@Override
+		synchronized void receivePublish(MACAddress clientHwAddress, InetAddress odinAgentAddr, Map<Long, Long> subscriptionIds) {
+			messages.add("publish " + clientHwAddress + " " + subscriptionIds);
+			latch.countDown();
+		}
+
+		@Override
+		synchronized void receivePublish(InetAddress odinAgentAddr, MACAddress[] clientHwAddresses, long[] subscriptionIds, long[] values, int count) {
+			StringBuilder sb = new StringBuilder("batch");
+
+			for (int i = 0; i < count; i++) {
+				sb.append(" " + clientHwAddresses[i] + " " + subscriptionIds[i] + "=" + values[i]);
+			}
+
+			messages.add(sb.toString());
+			latch.countDown();
+		}
+
+		@Override
+		synchronized void setAgentProtocolVersion(InetAddress odinAgentAddr, int version) {
+			messages.add("version " + odinAgentAddr.getHostAddress() + " " + version);
+		}
+	}
+
+	@Test
+	public void testDatagramsReachMaster() throws Exception {
+		DatagramSocket probe = new DatagramSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+
+		RecordingOdinMaster master = new RecordingOdinMaster(3);
+		OdinAgentProtocolServer server = new OdinAgentProtocolServer(master, port, 2, 16);
+		Thread t = new Thread(server);
+		t.setDaemon(true);
+		t.start();
+
+		DatagramSocket agent = new DatagramSocket();
+		InetAddress localhost = InetAddress.getByName("127.0.0.1");
+		String[] msgs = {"ping", "garbage", "probe 00:00:00:00:00:01 odin", "publish 00:00:00:00:00:01 1 5:-60"};
+
+		try {
+			// The server may not have bound yet, so keep sending until everything arrived
+			for (int attempt = 0; attempt < 50 && master.latch.getCount() == 3; attempt++) {
+				byte[] b = msgs[0].getBytes("US-ASCII");
+				agent.send(new DatagramPacket(b, b.length, localhost, port));
+				Thread.sleep(100);
+			}
+
+			for (int i = 1; i < msgs.length; i++) {
+				byte[] b = msgs[i].getBytes("US-ASCII");
+				agent.send(new DatagramPacket(b, b.length, localhost, port));
+			}
+
+			assertTrue(master.latch.await(5, TimeUnit.SECONDS));
+			assertTrue(master.messages.contains("ping 127.0.0.1"));
+			assertTrue(master.messages.contains("version 127.0.0.1 0"));
+			assertTrue(master.messages.contains("probe 00:00:00:00:00:01 'odin'"));
+			assertTrue(master.messages.contains("publish 00:00:00:00:00:01 {5=-60}"));
+			assertEquals(1, server.getParseErrorCount());
+			assertEquals(0, server.getDroppedCount());
+			assertFalse(server.getReceivedCount() < msgs.length);
+		} finally {
+			agent.close();
+			server.shutdown();
+		}
+	}
+
+	/**
+	 * Events packed into one binary datagram all reach the master,
+	 * and the binary ping tells it which version the agent speaks
+	 */
+	@Test
+	public void testBinaryDatagramReachesMaster() throws Exception {
+		DatagramSocket probe = new DatagramSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+
+		RecordingOdinMaster master = new RecordingOdinMaster(5);
+		OdinAgentProtocolServer server = new OdinAgentProtocolServer(master, port, 2, 16);
+		Thread t = new Thread(server);
+		t.setDaemon(true);
+		t.start();
+
+		ByteBuffer buf = ByteBuffer.allocate(128);
+		OdinBinaryProtocol.putHeader(buf);
+		OdinBinaryProtocol.putPing(buf);
+		OdinBinaryProtocol.putProbe(buf, 1, "Odin".getBytes("US-ASCII"));
+		OdinBinaryProtocol.putPublish(buf, 1, new long[] {5}, new double[] {-60.2}, 1);
+		OdinBinaryProtocol.putPublishBatch(buf, new long[] {1, 2}, new long[] {5, 5}, new double[] {-61, -75}, 2);
+		byte[] packed = new byte[buf.position()];
+		buf.flip();
+		buf.get(packed);
+		byte[] truncated = {OdinBinaryProtocol.MAGIC, OdinBinaryProtocol.VERSION, OdinAgentEvent.TYPE_ASSOC, 0, 0};
+
+		DatagramSocket agent = new DatagramSocket();
+		InetAddress localhost = InetAddress.getByName("127.0.0.1");
+
+		try {
+			// The server may not have bound yet, so keep sending until everything arrived
+			for (int attempt = 0; attempt < 50 && master.latch.getCount() > 0; attempt++) {
+				agent.send(new DatagramPacket(packed, packed.length, localhost, port));
+				Thread.sleep(100);
+			}
+
+			agent.send(new DatagramPacket(truncated, truncated.length, localhost, port));
+
+			assertTrue(master.latch.await(5, TimeUnit.SECONDS));
+			assertTrue(master.messages.contains("ping 127.0.0.1"));
+			assertTrue(master.messages.contains("version 127.0.0.1 " + OdinBinaryProtocol.VERSION));
+			assertTrue(master.messages.contains("probe 00:00:00:00:00:01 'odin'"));
+			assertTrue(master.messages.contains("publish 00:00:00:00:00:01 {5=-60}"));
+			assertTrue(master.messages.contains("batch 00:00:00:00:00:01 5=-61 00:00:00:00:00:02 5=-75"));
+
+			for (int attempt = 0; attempt < 50 && server.getParseErrorCount() == 0; attempt++) {
+				Thread.sleep(100);
+			}
+
+			assertEquals(1, server.getParseErrorCount());
+			assertEquals(0, server.getDroppedCount());
+		} finally {
+			agent.close();
+			server.shutdown();
+		}
+	}
+}
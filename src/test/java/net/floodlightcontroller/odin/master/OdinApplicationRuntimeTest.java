@@ -0,0 +1,185 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that applications' tasks run on the runtime, are accounted
+ * to them, and that an application using more than its share of the
+ * CPU is held back without holding back the others.
+ */
+public class OdinApplicationRuntimeTest {
+	private OdinApplicationRuntime runtime;
+
+	/**
+	 * Application that registers its tasks from run(), and returns
+	 */
+	private static class PeriodicApplication extends OdinApplication {
+		final CountDownLatch ticks = new CountDownLatch(3);
+		volatile ScheduledFuture<?> future;
+
+		@Override
+		public void run() {
+			future = schedulePeriodic(new Runnable() {
+				@Override
+				public void run() {
+					ticks.countDown();
+				}
+			}, 10, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static class IdleApplication extends OdinApplication {
+		@Override
+		public void run() {
+		}
+	}
+
+	/**
+	 * Clock that only moves when the test moves it. The CPU time is
+	 * what the test's tasks claim to use, so the runtime's budget is
+	 * independent of how busy the machine is.
+	 */
+	private static class ManualClock implements OdinApplicationRuntime.Clock {
+		private final AtomicLong now = new AtomicLong();
+		private final AtomicLong cpu = new AtomicLong();
+
+		@Override
+		public long nanoTime() {
+			return now.get();
+		}
+
+		@Override
+		public long threadCpuTime() {
+			return cpu.get();
+		}
+
+		void advance(long millis) {
+			now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+
+		Runnable use(final long millis) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					cpu.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+				}
+			};
+		}
+	}
+
+	private static void awaitRunCount(OdinApplicationRuntime.AppContext context, long runs) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+
+		while (context.getRunCount() < runs && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+	}
+
+	private static void awaitThrottled(OdinApplicationRuntime.AppContext context) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+
+		while (context.getThrottledCount() == 0 && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		if (runtime != null)
+			runtime.shutdown();
+	}
+
+	@Test
+	public void testPeriodicTasksRunOnTheRuntime() throws Exception {
+		runtime = new OdinApplicationRuntime(1, 1.0, OdinApplicationRuntime.DEFAULT_BURST, 16);
+		PeriodicApplication app = new PeriodicApplication();
+		OdinApplicationRuntime.AppContext context = runtime.start(app, "Periodic");
+
+		assertTrue(app.ticks.await(5, TimeUnit.SECONDS));
+
+		// Runs are counted once the task has returned
+		awaitRunCount(context, 3);
+		assertTrue(context.getRunCount() >= 3);
+
+		// run() has returned, the application holds no thread
+		assertEquals(Boolean.FALSE, context.getStats().get("mainThreadAlive"));
+
+		app.future.cancel(false);
+	}
+
+	@Test
+	public void testEventCallbacksRunAsTasks() throws Exception {
+		runtime = new OdinApplicationRuntime(1, 1.0, OdinApplicationRuntime.DEFAULT_BURST, 16);
+		OdinApplicationRuntime.AppContext context = runtime.start(new IdleApplication(), "Events");
+		final CountDownLatch called = new CountDownLatch(1);
+		final Thread[] callbackThread = new Thread[1];
+
+		NotificationCallback cb = context.wrap(new NotificationCallback() {
+			@Override
+			public void exec(OdinEventSubscription oes, NotificationCallbackContext cntx) {
+				callbackThread[0] = Thread.currentThread();
+				called.countDown();
+			}
+		});
+
+		cb.exec(new OdinEventSubscription(), new NotificationCallbackContext(MACAddress.valueOf("00:00:00:00:00:01"), null, 0));
+
+		assertTrue(called.await(5, TimeUnit.SECONDS));
+		assertTrue(callbackThread[0].getName().startsWith("OdinAppRuntime-"));
+		assertTrue(callbackThread[0] != Thread.currentThread());
+	}
+
+	@Test
+	public void testSpinningApplicationIsThrottled() throws Exception {
+		// A tenth of a CPU, with a 5 ms burst, on a single thread
+		// the applications share. The clock stands still unless
+		// the test advances it, so budgets only refill when it does.
+		ManualClock clock = new ManualClock();
+		runtime = new OdinApplicationRuntime(1, 0.1, 5, 64, clock);
+		OdinApplicationRuntime.AppContext spinning = runtime.start(new IdleApplication(), "Spinning");
+		OdinApplicationRuntime.AppContext quiet = runtime.start(new IdleApplication(), "Quiet");
+
+		for (int i = 0; i < 20; i++) {
+			spinning.submit(clock.use(20));
+		}
+
+		// The quiet application gets its turn, though the
+		// spinning one has most of its backlog left
+		final CountDownLatch ran = new CountDownLatch(1);
+		quiet.submit(new Runnable() {
+			@Override
+			public void run() {
+				ran.countDown();
+			}
+		});
+
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		awaitRunCount(quiet, 1);
+		assertEquals(1, quiet.getRunCount());
+
+		// The first task went 15 ms past the burst, and
+		// the spinning application is held back
+		awaitThrottled(spinning);
+		assertTrue(spinning.getThrottledCount() > 0);
+		assertEquals(1, spinning.getRunCount());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(20), spinning.getTaskCpuNanos());
+
+		// At a tenth of a CPU, 15 ms take 150 ms to refill: one
+		// more task runs, which overdraws the budget again
+		clock.advance(151);
+		awaitRunCount(spinning, 2);
+		assertEquals(2, spinning.getRunCount());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(40), spinning.getTaskCpuNanos());
+	}
+}
@@ -0,0 +1,376 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.Test;
+
+/**
+ * Conformance tests for the binary agent protocol: the exact bytes
+ * of each message, the edge cases of its fields, what is rejected,
+ * and equivalence with the text protocol.
+ */
+public class OdinBinaryProtocolTest {
+
+	private static final InetAddress AGENT = address("172.17.2.161");
+
+	private static InetAddress address(String s) {
+		try {
+			return InetAddress.getByName(s);
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static byte[] bytes(String hex) {
+		hex = hex.replace(" ", "");
+		byte[] b = new byte[hex.length() / 2];
+
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+
+		return b;
+	}
+
+	private static String hex(ByteBuffer buf) {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = buf.position(); i < buf.limit(); i++) {
+			sb.append(String.format("%02x", buf.get(i)));
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Copy a datagram into a direct buffer with some padding
+	 * in front, as the server receives it
+	 */
+	private static ByteBuffer datagram(byte[] b) {
+		ByteBuffer buf = ByteBuffer.allocateDirect(b.length + 3);
+		buf.put(new byte[3]);
+		buf.put(b);
+		buf.flip();
+		buf.position(3);
+		return buf;
+	}
+
+	/**
+	 * Decode every event of a datagram
+	 *
+	 * @return the events, or null if any of them is malformed
+	 */
+	private static List<OdinAgentEvent> decodeAll(ByteBuffer buf) {
+		List<OdinAgentEvent> events = new ArrayList<OdinAgentEvent>();
+		int pos = OdinBinaryProtocol.start(buf);
+
+		while (pos >= 0 && pos < buf.limit()) {
+			OdinAgentEvent event = new OdinAgentEvent();
+			pos = OdinBinaryProtocol.decode(buf, pos, AGENT, event);
+			events.add(event);
+		}
+
+		return pos < 0 ? null : events;
+	}
+
+	private static OdinAgentEvent decodeOne(String hex) {
+		List<OdinAgentEvent> events = decodeAll(datagram(bytes(hex)));
+
+		if (events == null)
+			return null;
+
+		assertEquals(1, events.size());
+		return events.get(0);
+	}
+
+	/**
+	 * The bytes of each message, both ways
+	 */
+	@Test
+	public void testGoldenMessages() throws Exception {
+		long mac = MACAddress.valueOf("00:1b:b3:0a:0b:0c").toLong();
+		ByteBuffer buf = ByteBuffer.allocate(256);
+
+		OdinBinaryProtocol.putHeader(buf);
+		OdinBinaryProtocol.putPing(buf);
+		buf.flip();
+		assertEquals("b00101", hex(buf));
+
+		OdinAgentEvent event = decodeOne("b00101");
+		assertEquals(OdinAgentEvent.TYPE_PING, event.type);
+		assertEquals(AGENT, event.agentAddr);
+		assertEquals(OdinBinaryProtocol.VERSION, event.version);
+
+		buf.clear();
+		OdinBinaryProtocol.putHeader(buf);
+		OdinBinaryProtocol.putProbe(buf, mac, "Odin".getBytes("ISO-8859-1"));
+		buf.flip();
+		assertEquals("b00102001bb30a0b0c044f64696e", hex(buf));
+
+		event = decodeOne("b00102001bb30a0b0c044f64696e");
+		assertEquals(OdinAgentEvent.TYPE_PROBE, event.type);
+		assertEquals(mac, event.clientHwAddress);
+		assertEquals("odin", new String(event.ssid, 0, event.ssidLength, "ISO-8859-1"));
+
+		event = decodeOne("b00102001bb30a0b0c00");
+		assertEquals(OdinAgentEvent.TYPE_PROBE, event.type);
+		assertEquals(0, event.ssidLength);
+
+		// 7 -> -45.0 and 300 -> 3.0
+		buf.clear();
+		OdinBinaryProtocol.putHeader(buf);
+		OdinBinaryProtocol.putPublish(buf, 2, new long[] {7, 300}, new double[] {-45.0, 3.0}, 2);
+		buf.flip();
+		assertEquals("b00103000000000002" + "02" + "07c046800000000000" + "ac024008000000000000", hex(buf));
+
+		event = decodeOne("b00103000000000002 02 07c046800000000000 ac024008000000000000");
+		assertEquals(OdinAgentEvent.TYPE_PUBLISH, event.type);
+		assertEquals(2, event.clientHwAddress);
+		assertEquals(2, event.publishCount);
+		assertEquals(7, event.subscriptionIds[0]);
+		assertEquals(-45, event.subscriptionValues[0]);
+		assertEquals(300, event.subscriptionIds[1]);
+		assertEquals(3, event.subscriptionValues[1]);
+
+		buf.clear();
+		OdinBinaryProtocol.putHeader(buf);
+		OdinBinaryProtocol.putDeauth(buf, 3);
+		OdinBinaryProtocol.putAssoc(buf, 4);
+		buf.flip();
+		assertEquals("b00104000000000003" + "05000000000004", hex(buf));
+
+		assertEquals(OdinAgentEvent.TYPE_DEAUTH, decodeOne("b00104000000000003").type);
+		assertEquals(3, decodeOne("b00104000000000003").clientHwAddress);
+		assertEquals(OdinAgentEvent.TYPE_ASSOC, decodeOne("b00105000000000004").type);
+		assertEquals(4, decodeOne("b00105000000000004").clientHwAddress);
+	}
+
+	/**
+	 * A batch carries entries about several clients
+	 */
+	@Test
+	public void testGoldenBatch() {
+		ByteBuffer buf = ByteBuffer.allocate(128);
+		OdinBinaryProtocol.putHeader(buf);
+		OdinBinaryProtocol.putPublishBatch(buf, new long[] {1, 2}, new long[] {7, 300}, new double[] {-45.0, 3.0}, 2);
+		buf.flip();
+
+		String golden = "b001" + "06" + "02" + "000000000001" + "07c046800000000000" + "000000000002" + "ac024008000000000000";
+		assertEquals(golden, hex(buf));
+
+		OdinAgentEvent event = decodeOne(golden);
+		assertEquals(OdinAgentEvent.TYPE_PUBLISH_BATCH, event.type);
+		assertEquals(2, event.publishCount);
+		assertEquals(1, event.publishHwAddresses[0]);
+		assertEquals(7, event.subscriptionIds[0]);
+		assertEquals(-45, event.subscriptionValues[0]);
+		assertEquals(2, event.publishHwAddresses[1]);
+		assertEquals(300, event.subscriptionIds[1]);
+		assertEquals(3, event.subscriptionValues[1]);
+
+		assertEquals(null, decodeOne("b001 06 01 0000000000")); // truncated MAC
+		assertEquals(null, decodeOne("b001 06 02 000000000001 07c046800000000000")); // missing entry
+		assertEquals(null, decodeOne("b001 06 41")); // 65 entries
+
+		// Same as in text
+		OdinAgentEvent fromText = new OdinAgentEvent();
+		assertTrue(OdinAgentMessageDecoder.decode(datagram(ascii("publish_batch 2 00:00:00:00:00:01 7:-45 00:00:00:00:00:02 300:3")), AGENT, fromText));
+		assertEquals(OdinAgentEvent.TYPE_PUBLISH_BATCH, fromText.type);
+		assertEquals(event.publishCount, fromText.publishCount);
+
+		for (int i = 0; i < event.publishCount; i++) {
+			assertEquals(event.publishHwAddresses[i], fromText.publishHwAddresses[i]);
+			assertEquals(event.subscriptionIds[i], fromText.subscriptionIds[i]);
+			assertEquals(event.subscriptionValues[i], fromText.subscriptionValues[i]);
+		}
+
+		// Batches are handled on the worker of the agent that sent them
+		OdinAgentEvent ping = decodeOne("b00101");
+		assertEquals(ping.partition(7), event.partition(7));
+	}
+
+	private static byte[] ascii(String s) {
+		try {
+			return s.getBytes("US-ASCII");
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Several events packed into one datagram come out in order
+	 */
+	@Test
+	public void testPackedDatagram() {
+		ByteBuffer buf = ByteBuffer.allocate(2048);
+		OdinBinaryProtocol.putHeader(buf);
+		OdinBinaryProtocol.putPing(buf);
+
+		for (int i = 0; i < 40; i++) {
+			OdinBinaryProtocol.putPublish(buf, i, new long[] {i}, new double[] {-50 - i}, 1);
+		}
+
+		OdinBinaryProtocol.putAssoc(buf, 99);
+		buf.flip();
+
+		byte[] b = new byte[buf.remaining()];
+		buf.get(b);
+		List<OdinAgentEvent> events = decodeAll(datagram(b));
+
+		assertEquals(42, events.size());
+		assertEquals(OdinAgentEvent.TYPE_PING, events.get(0).type);
+
+		for (int i = 0; i < 40; i++) {
+			OdinAgentEvent event = events.get(i + 1);
+			assertEquals(OdinAgentEvent.TYPE_PUBLISH, event.type);
+			assertEquals(i, event.clientHwAddress);
+			assertEquals(i, event.subscriptionIds[0]);
+			assertEquals(-50 - i, event.subscriptionValues[0]);
+		}
+
+		assertEquals(OdinAgentEvent.TYPE_ASSOC, events.get(41).type);
+		assertEquals(99, events.get(41).clientHwAddress);
+
+		// 40 text publishes would take one datagram each
+		assertTrue(b.length < 40 * "publish 00:00:00:00:00:01 1 1:-50".length());
+	}
+
+	/**
+	 * Varints at the boundaries of their lengths
+	 */
+	@Test
+	public void testVarints() {
+		long[] values = {0, 1, 127, 128, 16383, 16384, (1L << 21) - 1, 1L << 21, Integer.MAX_VALUE, Long.MAX_VALUE};
+		int[] lengths = {1, 1, 1, 2, 2, 3, 3, 4, 5, 9};
+
+		for (int i = 0; i < values.length; i++) {
+			ByteBuffer buf = ByteBuffer.allocate(16);
+			OdinBinaryProtocol.putVarint(buf, values[i]);
+
+			assertEquals(lengths[i], buf.position());
+			assertEquals(lengths[i], OdinBinaryProtocol.varintLength(values[i]));
+			assertEquals(values[i], OdinBinaryProtocol.getVarint(buf, 0));
+		}
+
+		assertEquals(-1, OdinBinaryProtocol.getVarint(ByteBuffer.wrap(bytes("80")), 0)); // truncated
+		assertEquals(-1, OdinBinaryProtocol.getVarint(ByteBuffer.wrap(bytes("8000")), 0)); // not shortest
+		assertEquals(-1, OdinBinaryProtocol.getVarint(ByteBuffer.wrap(bytes("ffffffffffffffffff01")), 0)); // 64 bits
+	}
+
+	/**
+	 * Malformed datagrams are rejected, never half-decoded
+	 */
+	@Test
+	public void testRejectMalformed() {
+		assertEquals(-1, OdinBinaryProtocol.start(datagram(bytes("b0"))));
+		assertEquals(-1, OdinBinaryProtocol.start(datagram(bytes("b00201")))); // unknown version
+		assertFalse(OdinBinaryProtocol.isBinary(datagram(bytes("70696e67")))); // "ping"
+
+		assertEquals(null, decodeOne("b00109")); // unknown type
+		assertEquals(null, decodeOne("b0010200000000")); // truncated MAC
+		assertEquals(null, decodeOne("b00102000000000001")); // missing SSID length
+		assertEquals(null, decodeOne("b00102000000000001 05 6f64696e")); // truncated SSID
+		assertEquals(null, decodeOne("b00102000000000001 21 " + "61616161616161616161616161616161616161616161616161616161616161616161")); // 33 bytes
+		assertEquals(null, decodeOne("b00103000000000001 41")); // 65 entries
+		assertEquals(null, decodeOne("b00103000000000001 01 07c0468000")); // truncated value
+		assertEquals(null, decodeOne("b00103000000000001 01 077ff8000000000000")); // NaN
+		assertEquals(null, decodeOne("b00103000000000001 02 07c046800000000000")); // missing entry
+
+		// Events before a malformed one are still decoded
+		ByteBuffer buf = datagram(bytes("b00101 09"));
+		OdinAgentEvent event = new OdinAgentEvent();
+		int pos = OdinBinaryProtocol.decode(buf, OdinBinaryProtocol.start(buf), AGENT, event);
+		assertEquals(OdinAgentEvent.TYPE_PING, event.type);
+		assertEquals(-1, OdinBinaryProtocol.decode(buf, pos, AGENT, event));
+	}
+
+	/**
+	 * Binary and text messages decode to the same events
+	 */
+	@Test
+	public void testSameEventsAsText() throws Exception {
+		String[] text = {
+			"ping",
+			"probe 00:1b:b3:0a:0b:0c MyNet",
+			"publish 00:00:00:00:00:02 2 7:-45 300:3",
+			"deauthentication 00:00:00:00:00:03",
+			"association 00:00:00:00:00:04",
+		};
+
+		ByteBuffer[] binary = new ByteBuffer[text.length];
+
+		for (int i = 0; i < binary.length; i++) {
+			binary[i] = ByteBuffer.allocate(128);
+			OdinBinaryProtocol.putHeader(binary[i]);
+		}
+
+		OdinBinaryProtocol.putPing(binary[0]);
+		OdinBinaryProtocol.putProbe(binary[1], 0x001bb30a0b0cL, "MyNet".getBytes("ISO-8859-1"));
+		OdinBinaryProtocol.putPublish(binary[2], 2, new long[] {7, 300}, new double[] {-45, 3}, 2);
+		OdinBinaryProtocol.putDeauth(binary[3], 3);
+		OdinBinaryProtocol.putAssoc(binary[4], 4);
+
+		for (int i = 0; i < text.length; i++) {
+			binary[i].flip();
+			byte[] b = new byte[binary[i].remaining()];
+			binary[i].get(b);
+
+			OdinAgentEvent fromText = new OdinAgentEvent();
+			assertTrue(OdinAgentMessageDecoder.decode(datagram(text[i].getBytes("US-ASCII")), AGENT, fromText));
+			List<OdinAgentEvent> fromBinary = decodeAll(datagram(b));
+			assertEquals(1, fromBinary.size());
+			OdinAgentEvent event = fromBinary.get(0);
+
+			assertEquals(fromText.type, event.type);
+			assertEquals(fromText.clientHwAddress, event.clientHwAddress);
+			assertEquals(new String(fromText.ssid, 0, fromText.ssidLength, "ISO-8859-1"),
+					new String(event.ssid, 0, event.ssidLength, "ISO-8859-1"));
+			assertEquals(fromText.publishCount, event.publishCount);
+
+			for (int j = 0; j < event.publishCount; j++) {
+				assertEquals(fromText.subscriptionIds[j], event.subscriptionIds[j]);
+				assertEquals(fromText.subscriptionValues[j], event.subscriptionValues[j]);
+			}
+
+			assertEquals(0, fromText.version);
+			assertEquals(OdinBinaryProtocol.VERSION, event.version);
+
+			// A ping is the only message that isn't shorter
+			if (event.type != OdinAgentEvent.TYPE_PING)
+				assertTrue(text[i], b.length < text[i].length());
+		}
+	}
+
+	/**
+	 * The arguments sent to the write handlers of agents that speak binary
+	 */
+	@Test
+	public void testHandlerArguments() throws Exception {
+		List<String> ssids = new ArrayList<String>();
+		ssids.add("odin");
+		ssids.add("guest");
+		MACAddress mac = MACAddress.valueOf("00:00:00:00:00:01");
+		MACAddress bssid = MACAddress.valueOf("00:1b:b3:00:00:01");
+		OdinClient oc = new OdinClient(mac, InetAddress.getByName("172.17.2.51"), new Lvap(bssid, ssids));
+
+		assertEquals("b001" + "000000000001" + "04ac110233" + "001bb3000001" + "02" + "046f64696e" + "056775657374",
+				hex(ByteBuffer.wrap(OdinBinaryProtocol.encodeLvap(oc))));
+
+		assertEquals("b001000000000001", hex(ByteBuffer.wrap(OdinBinaryProtocol.encodeRemoveLvap(mac))));
+
+		Set<String> ssidSet = new LinkedHashSet<String>(ssids);
+		assertEquals("b001" + "000000000001" + "001bb3000001" + "02" + "046f64696e" + "056775657374",
+				hex(ByteBuffer.wrap(OdinBinaryProtocol.encodeProbeResponse(mac, bssid, ssidSet))));
+	}
+}
@@ -0,0 +1,226 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the write-ahead journal of the master's state.
+ */
+public class OdinJournalTest {
+	private static final int CAPACITY = 64 * 1024;
+
+	private File dir;
+	private List<OdinJournal> journals = new ArrayList<OdinJournal>();
+
+	static File createTempDir() throws IOException {
+		File dir = File.createTempFile("odin-journal", "");
+
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Cannot create " + dir);
+
+		return dir;
+	}
+
+	static void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+
+		if (files != null) {
+			for (File f: files) {
+				f.delete();
+			}
+		}
+
+		dir.delete();
+	}
+
+	private OdinJournal open(int capacity) throws IOException {
+		OdinJournal journal = OdinJournal.open(dir, capacity);
+		journals.add(journal);
+		return journal;
+	}
+
+	private static OdinClient client(long hwAddress, String ip) throws Exception {
+		List<String> ssids = new ArrayList<String>();
+		ssids.add("odin");
+		ssids.add("odin-guest");
+		return new OdinClient(MACAddress.valueOf(hwAddress), InetAddress.getByName(ip),
+				new Lvap(MACAddress.valueOf(0x001bb3000000L + hwAddress), ssids));
+	}
+
+	@Before
+	public void setup() throws Exception {
+		dir = createTempDir();
+	}
+
+	@After
+	public void tearDown() {
+		for (OdinJournal journal: journals) {
+			journal.close();
+		}
+
+		deleteDir(dir);
+	}
+
+	/**
+	 * Whatever was journaled before the master went away is
+	 * there when it opens the journal again
+	 */
+	@Test
+	public void testRecoverAfterRestart() throws Exception {
+		OdinJournal journal = open(CAPACITY);
+		InetAddress agent = InetAddress.getByName("172.17.2.161");
+
+		OdinClient a = client(1, "0.0.0.0");
+		OdinClient b = client(2, "0.0.0.0");
+		journal.clientAdded(a);
+		journal.clientAdded(b);
+		journal.clientPoolChanged(a.getMacAddress(), "pool-1");
+		journal.clientAgentChanged(a.getMacAddress(), agent);
+		journal.clientIpChanged(a.getMacAddress(), InetAddress.getByName("172.17.2.51"));
+		journal.clientRemoved(b.getMacAddress());
+		journal.networkAdded("pool-1", "odin-new");
+		journal.networkRemoved("pool-1", "odin-old");
+		journal.subscriptionAdded(3, "pool-1", "3 00:00:00:00:00:00 signal 1 180 ");
+
+		assertEquals(9, journal.getAppended());
+		assertTrue(journal.getJournalSize() > 0);
+
+		OdinJournal.State state = open(CAPACITY).getState();
+
+		assertEquals(1, state.clients.size());
+		assertNull(state.clients.get(2));
+
+		OdinJournal.ClientRecord record = state.clients.get(1);
+		assertEquals(InetAddress.getByName("172.17.2.51"), record.ipAddress);
+		assertEquals(agent, record.agentAddr);
+		assertEquals("pool-1", record.pool);
+		assertEquals(a.getLvap().getBssid().toLong(), record.bssid);
+		assertEquals(a.getLvap().getSsids(), record.ssids);
+
+		Iterator<OdinJournal.NetworkChange> changes = state.networks.values().iterator();
+		OdinJournal.NetworkChange change = changes.next();
+		assertEquals("odin-new", change.ssid);
+		assertTrue(change.added);
+		change = changes.next();
+		assertEquals("odin-old", change.ssid);
+		assertFalse(change.added);
+
+		// Callbacks don't survive a restart, only the ids do
+		assertEquals(0, state.subscriptions.size());
+		assertEquals(3, state.lastSubscriptionId);
+	}
+
+	/**
+	 * A record torn by a crash, and whatever follows it, is dropped
+	 */
+	@Test
+	public void testTornRecordDropped() throws Exception {
+		OdinJournal journal = open(CAPACITY);
+
+		journal.clientAdded(client(1, "172.17.2.51"));
+		int end = 16 + journal.getJournalSize();
+		journal.clientAdded(client(2, "172.17.2.52"));
+		journal.clientAdded(client(3, "172.17.2.53"));
+
+		// Flip a byte in the second record's payload
+		RandomAccessFile raf = new RandomAccessFile(new File(dir, OdinJournal.JOURNAL_FILE), "rw");
+		raf.seek(end + 10);
+		int b = raf.read();
+		raf.seek(end + 10);
+		raf.write(b ^ 0xff);
+		raf.close();
+
+		OdinJournal.State state = open(CAPACITY).getState();
+
+		assertEquals(1, state.clients.size());
+		assertTrue(state.clients.containsKey(1));
+	}
+
+	/**
+	 * A journal left over from before the latest snapshot has
+	 * already been folded into it, and isn't replayed
+	 */
+	@Test
+	public void testStaleJournalIgnored() throws Exception {
+		OdinJournal journal = open(CAPACITY);
+		OdinClient a = client(1, "172.17.2.51");
+
+		journal.clientAdded(a);
+		journal.clientPoolChanged(a.getMacAddress(), "pool-1");
+
+		File journalFile = new File(dir, OdinJournal.JOURNAL_FILE);
+		File copy = new File(dir, "journal.copy");
+		copy(journalFile, copy);
+
+		journal.snapshot();
+		journal.clientPoolChanged(a.getMacAddress(), "pool-2");
+		journal.snapshot();
+		journal.close();
+		journals.clear();
+
+		// As if the master had crashed right after writing the first snapshot
+		copy(copy, journalFile);
+
+		OdinJournal.State state = open(CAPACITY).getState();
+
+		assertEquals(1, state.clients.size());
+		assertEquals("pool-2", state.clients.get(1).pool);
+	}
+
+	/**
+	 * A full journal is folded into a snapshot and started over
+	 */
+	@Test
+	public void testFullJournalSnapshots() throws Exception {
+		OdinJournal journal = open(4096);
+		long snapshots = journal.getSnapshots();
+
+		for (int i = 0; i < 1000; i++) {
+			journal.clientAdded(client(i, "172.17.2.51"));
+			journal.clientPoolChanged(MACAddress.valueOf(i), "pool-1");
+		}
+
+		assertTrue(journal.getSnapshots() > snapshots + 10);
+		assertTrue(journal.getJournalSize() < 4096);
+
+		OdinJournal.State state = open(4096).getState();
+
+		assertEquals(1000, state.clients.size());
+
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("pool-1", state.clients.get(i).pool);
+		}
+	}
+
+	private static void copy(File from, File to) throws IOException {
+		FileInputStream in = new FileInputStream(from);
+		FileOutputStream out = new FileOutputStream(to);
+		byte[] buf = new byte[8192];
+		int n;
+
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+
+		in.close();
+		out.close();
+	}
+}
@@ -0,0 +1,141 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.odin.master.OdinEventSubscription.Relation;
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Publish throughput of the master as the number of threads handing
+ * it publishes grows. The callback is delivered the way it is to an
+ * application started by the master, through the application's
+ * NotificationDispatcher, so publishers only contend on the master's
+ * locks and on the application's queue, never on the callback.
+ */
+public class OdinMasterConcurrencyBenchmark {
+	private static final String POOL = "pool-1";
+	private static final String AGENT_ADDR = "172.17.2.161";
+	private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+	private static final int PUBLISHES = 20000;
+	private static final int CLIENTS = 64;
+	private static final long CALLBACK_WORK_MILLIS = 1; // e.g. an application querying an agent
+
+	private OdinTestFixture fixture;
+	private OdinMaster odinMaster;
+	private AgentManager agentManager;
+	private InetAddress agentAddr;
+	private NotificationDispatcher dispatcher;
+
+	@Before
+	public void setup() throws Exception {
+		fixture = new OdinTestFixture();
+		odinMaster = fixture.startMaster();
+		agentManager = fixture.agentManager;
+
+		agentAddr = fixture.addAgent(AGENT_ADDR, POOL).getIpAddress();
+		assertTrue(agentManager.isTracked(agentAddr));
+		fixture.poolManager.addNetworkForPool(POOL, "odin");
+
+		dispatcher = new NotificationDispatcher("Benchmark", NotificationDispatcher.DEFAULT_CAPACITY,
+				NotificationDispatcher.OverflowPolicy.DROP_OLDEST);
+		dispatcher.start();
+	}
+
+	@After
+	public void tearDown() {
+		dispatcher.shutdown();
+		fixture.shutdown();
+	}
+
+	private long registerSlowSubscription() {
+		OdinEventSubscription oes = new OdinEventSubscription();
+		oes.setSubscription("*", "signal", Relation.GREATER_THAN, 160);
+
+		return odinMaster.registerSubscription(POOL, oes, dispatcher.wrap(new NotificationCallback() {
+			@Override
+			public void exec(OdinEventSubscription oes, NotificationCallbackContext cntx) {
+				try {
+					Thread.sleep(CALLBACK_WORK_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Publishes PUBLISHES events, spread over CLIENTS clients,
+	 * from the given number of threads.
+	 *
+	 * @return publishes handled per second
+	 */
+	private double runPublishes(final int threads, final long subscriptionId) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger next = new AtomicInteger();
+
+		for (int t = 0; t < threads; t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Map<Long, Long> ids = new HashMap<Long, Long>();
+					ids.put(subscriptionId, 170L);
+
+					try {
+						start.await();
+						int i;
+						while ((i = next.getAndIncrement()) < PUBLISHES) {
+							odinMaster.receivePublish(MACAddress.valueOf(0x001122000000L + (i % CLIENTS)), agentAddr, ids);
+						}
+					} catch (InterruptedException e) {
+						// fall through
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+
+		return PUBLISHES / (elapsed / 1e9);
+	}
+
+	@Test
+	public void testPublishThroughput() throws Exception {
+		long id = registerSlowSubscription();
+
+		// warm up
+		runPublishes(THREAD_COUNTS[THREAD_COUNTS.length - 1], id);
+
+		System.out.println("threads   publishes/s   speedup");
+		double base = 0;
+
+		for (int threads: THREAD_COUNTS) {
+			double throughput = runPublishes(threads, id);
+
+			if (base == 0)
+				base = throughput;
+
+			System.out.println(String.format("%7d %13.0f %9.2f", threads, throughput, throughput / base));
+		}
+
+		// Every publish reached the application's queue, however
+		// many the application had to drop
+		assertEquals((long) PUBLISHES * (THREAD_COUNTS.length + 1), dispatcher.getStats().get("enqueued"));
+	}
+}
@@ -0,0 +1,171 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.odin.master.OdinEventSubscription.Relation;
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stress tests for the master's locking. Work on different clients
+ * should proceed in parallel, while work on the same client must
+ * stay serialized.
+ */
+public class OdinMasterConcurrencyTest {
+	private static final String POOL = "pool-1";
+	private static final String AGENT_ADDR = "172.17.2.161";
+	private static final int THREADS = 8;
+	private static final int PUBLISHES = 400;
+	private static final int CLIENTS = 64;
+	private static final long CALLBACK_WORK_MILLIS = 1; // e.g. an application querying an agent
+
+	private OdinTestFixture fixture;
+	private OdinMaster odinMaster;
+	private AgentManager agentManager;
+	private ClientManager clientManager;
+	private PoolManager poolManager;
+	private InetAddress agentAddr;
+
+	private final ConcurrentMap<MACAddress, Boolean> inCallback = new ConcurrentHashMap<MACAddress, Boolean>();
+	private final AtomicBoolean overlapped = new AtomicBoolean(false);
+	private final AtomicInteger callbacks = new AtomicInteger();
+
+	@Before
+	public void setup() throws Exception {
+		fixture = new OdinTestFixture();
+		odinMaster = fixture.startMaster();
+		agentManager = fixture.agentManager;
+		clientManager = fixture.clientManager;
+		poolManager = fixture.poolManager;
+
+		agentAddr = fixture.addAgent(AGENT_ADDR, POOL).getIpAddress();
+		assertTrue(agentManager.isTracked(agentAddr));
+		poolManager.addNetworkForPool(POOL, "odin");
+	}
+
+	@After
+	public void tearDown() {
+		fixture.shutdown();
+	}
+
+	private long registerSlowSubscription() {
+		OdinEventSubscription oes = new OdinEventSubscription();
+		oes.setSubscription("*", "signal", Relation.GREATER_THAN, 160);
+
+		return odinMaster.registerSubscription(POOL, oes, new NotificationCallback() {
+			@Override
+			public void exec(OdinEventSubscription oes, NotificationCallbackContext cntx) {
+				if (inCallback.putIfAbsent(cntx.clientHwAddress, Boolean.TRUE) != null) {
+					overlapped.set(true);
+				}
+
+				try {
+					Thread.sleep(CALLBACK_WORK_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				inCallback.remove(cntx.clientHwAddress);
+				callbacks.incrementAndGet();
+			}
+		});
+	}
+
+	/**
+	 * Publishes PUBLISHES events, spread over CLIENTS clients,
+	 * from the given number of threads.
+	 */
+	private void runPublishes(final int threads, final long subscriptionId) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger next = new AtomicInteger();
+
+		for (int t = 0; t < threads; t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Map<Long, Long> ids = new HashMap<Long, Long>();
+					ids.put(subscriptionId, 170L);
+
+					try {
+						start.await();
+						int i;
+						while ((i = next.getAndIncrement()) < PUBLISHES) {
+							odinMaster.receivePublish(MACAddress.valueOf(0x001122000000L + (i % CLIENTS)), agentAddr, ids);
+						}
+					} catch (InterruptedException e) {
+						// fall through
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		start.countDown();
+		done.await();
+	}
+
+	/**
+	 * Publishes for different clients proceed in parallel, while
+	 * the callbacks for a client never overlap. Throughput is
+	 * measured by OdinMasterConcurrencyBenchmark.
+	 */
+	@Test
+	public void testPublishesForAClientDoNotOverlap() throws Exception {
+		long id = registerSlowSubscription();
+
+		runPublishes(THREADS, id);
+
+		assertFalse("callbacks for the same client overlapped", overlapped.get());
+		assertEquals(PUBLISHES, callbacks.get());
+	}
+
+	/**
+	 * Concurrent probes for many clients must each end up
+	 * with exactly one LVAP, in the right pool.
+	 */
+	@Test
+	public void testConcurrentProbes() throws Exception {
+		final CountDownLatch done = new CountDownLatch(THREADS);
+
+		for (int t = 0; t < THREADS; t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < CLIENTS; i++) {
+							odinMaster.receiveProbe(agentAddr, MACAddress.valueOf(0x001122000000L + i), "odin");
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		done.await();
+
+		assertEquals(CLIENTS, clientManager.getClients().size());
+		assertEquals(CLIENTS, poolManager.getClientsFromPool(POOL).size());
+
+		for (OdinClient oc: clientManager.getClients().values()) {
+			assertEquals(agentAddr, oc.getLvap().getAgent().getIpAddress());
+			assertEquals(POOL, poolManager.getPoolForClient(oc));
+		}
+	}
+}
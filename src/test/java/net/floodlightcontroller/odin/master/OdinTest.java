@@ -4,6 +4,7 @@ import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -12,6 +13,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFSwitch;
@@ -22,6 +24,8 @@ import net.floodlightcontroller.core.test.MockThreadPoolService;
 
 import net.floodlightcontroller.odin.applications.OdinMobilityManager;
 import net.floodlightcontroller.odin.master.AgentManager;
+import net.floodlightcontroller.odin.master.BatchNotificationCallback;
+import net.floodlightcontroller.odin.master.BatchNotificationCallbackContext;
 import net.floodlightcontroller.odin.master.ClientManager;
 import net.floodlightcontroller.odin.master.Lvap;
 import net.floodlightcontroller.odin.master.LvapManager;
@@ -41,6 +45,7 @@ import net.floodlightcontroller.util.MACAddress;
 
 import org.easymock.EasyMock;
 import org.jboss.netty.channel.Channel;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -135,6 +140,11 @@ public class OdinTest {
         mockFloodlightProvider.addOFSwitchListener(odinMaster);
         agentManager.setFloodlightProvider(mockFloodlightProvider);
     }
+
+    @After
+    public void tearDown() {
+        odinMaster.shutdown();
+    }
     
     /************* Master Tests ******************/
 
@@ -214,6 +224,96 @@ public class OdinTest {
         agentManager.receivePing(InetAddress.getByName("172.17.5.63"));
         assertEquals(agentManager.getAgents().size(),1);
     }
+
+    /**
+     * Agents that ping before their switch connects are listed as
+     * pending, and registered as soon as the switch connects
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPendingAgentRegisteredOnSwitchConnect() throws Exception {
+    	InetAddress agentAddr = InetAddress.getByName("172.17.2.161");
+    	poolManager.addPoolForAgent(agentAddr, "pool-1");
+
+    	odinMaster.receivePing(agentAddr);
+    	odinMaster.receivePing(agentAddr);
+
+    	assertEquals(agentManager.getAgents().size(),0);
+    	assertEquals(odinMaster.getPendingAgents().size(),1);
+    	assertEquals(odinMaster.getPendingAgents().get(0).get("agent"),"172.17.2.161");
+    	assertEquals(odinMaster.getPendingAgents().get(0).get("pings"),2L);
+
+    	IOFSwitch sw1 = EasyMock.createNiceMock(IOFSwitch.class);
+    	Channel ch = EasyMock.createMock(Channel.class);
+        expect(sw1.getChannel()).andReturn(ch).anyTimes();
+        expect(ch.getRemoteAddress()).andReturn((SocketAddress) new InetSocketAddress(agentAddr, 12345)).anyTimes();
+        EasyMock.replay(sw1);
+        EasyMock.replay(ch);
+
+        // No further ping needed
+        odinMaster.addedSwitch(sw1);
+
+        assertEquals(agentManager.getAgents().size(),1);
+        assertEquals(agentManager.getAgent(agentAddr).getSwitch(),sw1);
+        assertEquals(odinMaster.getPendingAgents().size(),0);
+
+        // Once the switch is gone, the agent waits for it again
+        odinMaster.removedSwitch(sw1);
+        assertEquals(agentManager.getAgents().size(),0);
+
+        odinMaster.receivePing(agentAddr);
+        assertEquals(agentManager.getAgents().size(),0);
+        assertEquals(odinMaster.getPendingAgents().size(),1);
+    }
+
+
+    /**
+     * A switch connecting only hands the registration of the agent
+     * waiting for it to the executor, and no lock is held until the
+     * registration runs
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSwitchConnectDefersRegistration() throws Exception {
+    	final List<Runnable> tasks = new ArrayList<Runnable>();
+    	agentManager.setExecutor(new Executor() {
+    		@Override
+    		public void execute(Runnable task) {
+    			tasks.add(task);
+    		}
+    	});
+
+    	InetAddress agentAddr = InetAddress.getByName("172.17.2.161");
+    	poolManager.addPoolForAgent(agentAddr, "pool-1");
+    	odinMaster.receivePing(agentAddr);
+
+    	IOFSwitch sw1 = EasyMock.createNiceMock(IOFSwitch.class);
+    	Channel ch = EasyMock.createMock(Channel.class);
+        expect(sw1.getChannel()).andReturn(ch).anyTimes();
+        expect(ch.getRemoteAddress()).andReturn((SocketAddress) new InetSocketAddress(agentAddr, 12345)).anyTimes();
+        EasyMock.replay(sw1);
+        EasyMock.replay(ch);
+
+        odinMaster.addedSwitch(sw1);
+
+        // Pings while the agent registers don't register it again
+        odinMaster.receivePing(agentAddr);
+
+        assertEquals(tasks.size(),1);
+        assertEquals(agentManager.getAgents().size(),0);
+
+        // Networks can still be changed
+        assertTrue(poolManager.getTopologyLock().writeLock().tryLock());
+        poolManager.getTopologyLock().writeLock().unlock();
+
+        tasks.get(0).run();
+
+        assertEquals(agentManager.getAgents().size(),1);
+        assertEquals(agentManager.getAgent(agentAddr).getSwitch(),sw1);
+        assertEquals(odinMaster.getPendingAgents().size(),0);
+    }
     
     
     /**
@@ -1096,6 +1196,91 @@ public class OdinTest {
     	assertEquals(app1.counter2, 2);
     }
         
+    /**
+     * A batch of publishes about several clients runs plain
+     * callbacks once per entry, and batch callbacks once with
+     * all of their entries.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testBatchedPublish() throws Exception {
+    	String ipAddress1 = "172.17.2.161";
+    	InetAddress agentAddr = InetAddress.getByName(ipAddress1);
+    	poolManager.addPoolForAgent(agentAddr, "pool-1");
+    	poolManager.addNetworkForPool("pool-1", "odin");
+    	addAgentWithMockSwitch(ipAddress1, 12345);
+    	
+    	MACAddress client1 = MACAddress.valueOf("00:00:00:00:00:01");
+    	MACAddress client2 = MACAddress.valueOf("00:00:00:00:00:02");
+    	MACAddress client3 = MACAddress.valueOf("00:00:00:00:00:03");
+    	
+    	final List<MACAddress> plain = new ArrayList<MACAddress>();
+    	final List<MACAddress> unbatched = new ArrayList<MACAddress>();
+    	final List<BatchNotificationCallbackContext> batches = new ArrayList<BatchNotificationCallbackContext>();
+    	OdinEventSubscription oes = new OdinEventSubscription();
+    	oes.setSubscription("*", "signal", Relation.GREATER_THAN, 180);
+    	
+    	long plainId = odinMaster.registerSubscription(PoolManager.GLOBAL_POOL, oes, new NotificationCallback() {
+			@Override
+			public void exec(OdinEventSubscription oes, NotificationCallbackContext cntx) {
+				plain.add(cntx.clientHwAddress);
+			}
+		});
+    	
+    	long batchId = odinMaster.registerSubscription(PoolManager.GLOBAL_POOL, oes, new BatchNotificationCallback() {
+			@Override
+			public void exec(OdinEventSubscription oes, NotificationCallbackContext cntx) {
+				unbatched.add(cntx.clientHwAddress);
+			}
+			
+			@Override
+			public void execBatch(OdinEventSubscription oes, BatchNotificationCallbackContext cntx) {
+				batches.add(cntx);
+			}
+		});
+    	
+    	MACAddress[] clients = {client1, client1, client2, client3, client3};
+    	long[] ids = {plainId, batchId, batchId, plainId, 99};
+    	long[] values = {10, 11, 12, 13, 14};
+    	
+    	odinMaster.receivePublish(agentAddr, clients, ids, values, clients.length);
+    	
+    	assertEquals(2, plain.size());
+    	assertEquals(client1, plain.get(0));
+    	assertEquals(client3, plain.get(1));
+    	assertEquals(0, unbatched.size());
+    	assertEquals(1, batches.size());
+    	
+    	BatchNotificationCallbackContext batch = batches.get(0);
+    	assertEquals(2, batch.size());
+    	assertEquals(client1, batch.clientHwAddresses[0]);
+    	assertEquals(11, batch.values[0]);
+    	assertEquals(client2, batch.clientHwAddresses[1]);
+    	assertEquals(12, batch.values[1]);
+    	assertEquals(agentAddr, batch.agent.getIpAddress());
+    	
+    	// Outside of a batch, batch callbacks get single values
+    	Map<Long, Long> subscriptionIds = new HashMap<Long, Long>();
+    	subscriptionIds.put(batchId, 15L);
+    	odinMaster.receivePublish(client2, agentAddr, subscriptionIds);
+    	assertEquals(1, unbatched.size());
+    	assertEquals(1, batches.size());
+    	
+    	// Batches from unknown agents are ignored
+    	odinMaster.receivePublish(InetAddress.getByName("172.17.2.199"), clients, ids, values, clients.length);
+    	assertEquals(1, batches.size());
+    	
+    	@SuppressWarnings("unchecked")
+    	Map<String, Object> stats = (Map<String, Object>) odinMaster.getPublishStats().get(ipAddress1);
+    	assertEquals(1L, stats.get("publishes"));
+    	assertEquals(1L, stats.get("batches"));
+    	assertEquals(6L, stats.get("entries"));
+    	assertEquals(5L, stats.get("batchedEntries"));
+    	assertEquals(3.0, (Double) stats.get("entriesPerMessage"), 0.001);
+    }
+    
+    
     /**
      * Test to see if the LVAP generation works correctly
      * 
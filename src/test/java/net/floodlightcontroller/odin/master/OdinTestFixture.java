@@ -0,0 +1,133 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.test.MockFloodlightProvider;
+import net.floodlightcontroller.core.test.MockThreadPoolService;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.restserver.RestApiServer;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+import org.easymock.EasyMock;
+import org.jboss.netty.channel.Channel;
+
+/**
+ * The managers of a master, and optionally the master itself, with
+ * StubOdinAgents that show up the way agents do in a running network:
+ * a switch connects from the agent's address, then the agent pings.
+ */
+class OdinTestFixture {
+	final MockFloodlightProvider floodlightProvider = new MockFloodlightProvider();
+	final ClientManager clientManager = new ClientManager();
+	final PoolManager poolManager = new PoolManager();
+	final AgentManager agentManager;
+	private OdinMaster odinMaster = null;
+	private long switchId = 1;
+
+
+	OdinTestFixture () {
+		OdinAgentFactory.setOdinAgentType("MockOdinAgent");
+		agentManager = new AgentManager(clientManager, poolManager);
+		agentManager.setFloodlightProvider(floodlightProvider);
+	}
+
+
+	/**
+	 * Create and initialize a master over the fixture's managers.
+	 * Agents added from then on ping the master.
+	 *
+	 * @return the master
+	 */
+	OdinMaster startMaster () throws Exception {
+		FloodlightModuleContext cntx = new FloodlightModuleContext();
+		RestApiServer restApi = new RestApiServer();
+
+		odinMaster = new OdinMaster(agentManager, clientManager, new LvapManager(), poolManager);
+
+		cntx.addService(IFloodlightProviderService.class, floodlightProvider);
+		cntx.addService(IRestApiService.class, restApi);
+		cntx.addService(IThreadPoolService.class, new MockThreadPoolService());
+		restApi.init(cntx);
+		odinMaster.init(cntx);
+		agentManager.setFloodlightProvider(floodlightProvider);
+
+		return odinMaster;
+	}
+
+
+	/**
+	 * Connect a switch from an agent's address
+	 *
+	 * @return the switch
+	 */
+	IOFSwitch addSwitch (String ipAddress) {
+		long id = switchId++;
+		IOFSwitch sw = EasyMock.createNiceMock(IOFSwitch.class);
+		Channel ch = EasyMock.createMock(Channel.class);
+		expect(sw.getChannel()).andReturn(ch).anyTimes();
+		expect(ch.getRemoteAddress()).andReturn((SocketAddress) new InetSocketAddress(ipAddress, 12345)).anyTimes();
+		expect(sw.getId()).andReturn(id).anyTimes();
+		EasyMock.replay(sw);
+		EasyMock.replay(ch);
+		floodlightProvider.getSwitches().put(id, sw);
+
+		return sw;
+	}
+
+
+	/**
+	 * Add an agent that is in no pool
+	 */
+	StubOdinAgent addAgent (String ipAddress) throws Exception {
+		return addAgent(ipAddress, null);
+	}
+
+
+	/**
+	 * Add an agent: its switch connects and it pings, through
+	 * the master if there is one
+	 *
+	 * @param ipAddress address of the agent
+	 * @param pool pool of the agent, or null
+	 * @return the agent
+	 */
+	StubOdinAgent addAgent (String ipAddress, String pool) throws Exception {
+		InetAddress addr = InetAddress.getByName(ipAddress);
+
+		if (pool != null)
+			poolManager.addPoolForAgent(addr, pool);
+
+		addSwitch(ipAddress);
+
+		if (odinMaster != null)
+			odinMaster.receivePing(addr);
+		else
+			assertTrue(agentManager.receivePing(addr));
+
+		StubOdinAgent agent = (StubOdinAgent) agentManager.getAgent(addr);
+		assertNotNull(agent);
+
+		return agent;
+	}
+
+
+	/**
+	 * Stop the threads of the master, or of the agent
+	 * manager if there is no master
+	 */
+	void shutdown () {
+		if (odinMaster != null)
+			odinMaster.shutdown();
+		else
+			agentManager.shutdown();
+	}
+}
@@ -0,0 +1,164 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.Test;
+
+/**
+ * Keeping a timeout per client up to date as 10k clients are heard
+ * from, compared with scheduling a fresh task on a
+ * ScheduledExecutorService every time, which is how idle LVAP
+ * reclamation used to work.
+ *
+ * Re-arming costs about the same either way. The difference is in
+ * what is left behind: the executor keeps every stale task queued
+ * and runs each of them when it expires, while the wheel keeps one
+ * entry per client and expires each client once.
+ */
+public class OdinTimeoutWheelBenchmark {
+	private static final int CLIENTS = 10000;
+	private static final int ROUNDS = 10; // times each client is heard from
+	private static final long TIMEOUT = 500; // milliseconds
+	private static final long DRAIN_TIMEOUT = 30000; // milliseconds
+
+	private static class Result {
+		long rearmNanos;
+		long drainNanos;
+		int queued;
+		int expired;
+	}
+
+	private static MACAddress[] clients() {
+		MACAddress[] macs = new MACAddress[CLIENTS];
+
+		for (int i = 0; i < CLIENTS; i++) {
+			macs[i] = MACAddress.valueOf(0x001122000000L + i);
+		}
+
+		return macs;
+	}
+
+	private static void awaitCount(AtomicInteger count, int expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+
+		while (count.get() < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+	}
+
+	private static Result executorRun(MACAddress[] macs) throws InterruptedException {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+		final AtomicInteger expired = new AtomicInteger();
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				expired.incrementAndGet();
+			}
+		};
+		Result result = new Result();
+
+		try {
+			// Every client is tracked once before being heard from
+			for (int i = 0; i < macs.length; i++) {
+				executor.schedule(task, TIMEOUT, TimeUnit.MILLISECONDS);
+			}
+
+			long start = System.nanoTime();
+
+			for (int r = 0; r < ROUNDS; r++) {
+				for (int i = 0; i < macs.length; i++) {
+					executor.schedule(task, TIMEOUT, TimeUnit.MILLISECONDS);
+				}
+			}
+
+			long end = System.nanoTime();
+			result.rearmNanos = end - start;
+			result.queued = executor.getQueue().size() + expired.get();
+
+			int expected = CLIENTS * (ROUNDS + 1);
+			awaitCount(expired, expected);
+			result.drainNanos = System.nanoTime() - end;
+			result.expired = expired.get();
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return result;
+	}
+
+	private static Result wheelRun(MACAddress[] macs) throws InterruptedException {
+		OdinTimeoutWheel wheel = new OdinTimeoutWheel(10, TimeUnit.MILLISECONDS, 512);
+		final AtomicInteger expired = new AtomicInteger();
+		OdinTimeoutWheel.TimeoutHandler<MACAddress> handler = new OdinTimeoutWheel.TimeoutHandler<MACAddress>() {
+			@Override
+			public void timeout(MACAddress key) {
+				expired.incrementAndGet();
+			}
+		};
+		Result result = new Result();
+
+		try {
+			for (int i = 0; i < macs.length; i++) {
+				wheel.schedule(macs[i], TIMEOUT, TimeUnit.MILLISECONDS, handler);
+			}
+
+			long start = System.nanoTime();
+
+			for (int r = 0; r < ROUNDS; r++) {
+				for (int i = 0; i < macs.length; i++) {
+					wheel.schedule(macs[i], TIMEOUT, TimeUnit.MILLISECONDS, handler);
+				}
+			}
+
+			long end = System.nanoTime();
+			result.rearmNanos = end - start;
+			result.queued = wheel.size() + expired.get();
+
+			awaitCount(expired, CLIENTS);
+			result.drainNanos = System.nanoTime() - end;
+
+			// Make sure nothing stale fires later on
+			Thread.sleep(TIMEOUT);
+			result.expired = expired.get();
+		} finally {
+			wheel.stop();
+		}
+
+		return result;
+	}
+
+	@Test
+	public void testTenThousandClients() throws Exception {
+		MACAddress[] macs = clients();
+
+		// Warm up
+		executorRun(macs);
+		wheelRun(macs);
+
+		Result executor = executorRun(macs);
+		Result wheel = wheelRun(macs);
+
+		int updates = CLIENTS * ROUNDS;
+		System.out.println("scheduler   clients   rearm(ns/op)   entries   expirations   drain(ms)");
+		System.out.println(String.format("executor  %9d %14d %9d %13d %11d", CLIENTS,
+				executor.rearmNanos / updates, executor.queued, executor.expired, executor.drainNanos / 1000000));
+		System.out.println(String.format("wheel     %9d %14d %9d %13d %11d", CLIENTS,
+				wheel.rearmNanos / updates, wheel.queued, wheel.expired, wheel.drainNanos / 1000000));
+
+		assertEquals(CLIENTS * (ROUNDS + 1), executor.queued);
+		assertEquals(CLIENTS * (ROUNDS + 1), executor.expired);
+		assertEquals(CLIENTS, wheel.queued);
+		assertEquals(CLIENTS, wheel.expired);
+
+		// Re-arming is a lookup and a compare-and-set, whatever the
+		// number of clients
+		assertTrue(wheel.rearmNanos / updates < 10000);
+	}
+}
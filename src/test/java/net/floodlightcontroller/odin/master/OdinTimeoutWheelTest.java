@@ -0,0 +1,106 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Keyed schedule, re-arm and cancel semantics of OdinTimeoutWheel
+ */
+public class OdinTimeoutWheelTest {
+	private OdinTimeoutWheel wheel;
+	private final ConcurrentLinkedQueue<String> fired = new ConcurrentLinkedQueue<String>();
+
+	private final OdinTimeoutWheel.TimeoutHandler<String> recorder = new OdinTimeoutWheel.TimeoutHandler<String>() {
+		@Override
+		public void timeout(String key) {
+			fired.add(key);
+		}
+	};
+
+	@Before
+	public void setup() {
+		wheel = new OdinTimeoutWheel(10, TimeUnit.MILLISECONDS, 8);
+	}
+
+	@After
+	public void tearDown() {
+		wheel.stop();
+	}
+
+	@Test
+	public void testTimeoutFiresOnceAfterDelay() throws Exception {
+		long start = System.nanoTime();
+		wheel.schedule("a", 100, TimeUnit.MILLISECONDS, recorder);
+		assertTrue(wheel.isScheduled("a"));
+
+		while (fired.isEmpty() && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+			Thread.sleep(5);
+		}
+
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(elapsed >= 100);
+		assertEquals(1, fired.size());
+		assertFalse(wheel.isScheduled("a"));
+
+		Thread.sleep(200);
+		assertEquals(1, fired.size());
+	}
+
+	@Test
+	public void testRearmKeepsOneEntryPerKey() throws Exception {
+		// Deadlines well past a rotation of the wheel (80ms)
+		wheel.schedule("a", 300, TimeUnit.MILLISECONDS, recorder);
+
+		for (int i = 0; i < 6; i++) {
+			Thread.sleep(100);
+			assertTrue(wheel.touch("a", 300, TimeUnit.MILLISECONDS));
+			wheel.schedule("b", 300, TimeUnit.MILLISECONDS, recorder);
+			assertEquals(2, wheel.size());
+		}
+
+		assertTrue(fired.isEmpty());
+
+		Thread.sleep(600);
+		assertEquals(2, fired.size());
+		assertTrue(fired.contains("a"));
+		assertTrue(fired.contains("b"));
+
+		// Nothing left to push back
+		assertFalse(wheel.touch("a", 300, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		wheel.schedule("a", 50, TimeUnit.MILLISECONDS, recorder);
+		wheel.schedule("b", 50, TimeUnit.MILLISECONDS, recorder);
+		assertTrue(wheel.cancel("a"));
+		assertFalse(wheel.cancel("a"));
+
+		Thread.sleep(300);
+		assertEquals(1, fired.size());
+		assertEquals("b", fired.peek());
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testHandlerFailureDoesNotStopWheel() throws Exception {
+		wheel.schedule("bad", 10, TimeUnit.MILLISECONDS, new OdinTimeoutWheel.TimeoutHandler<String>() {
+			@Override
+			public void timeout(String key) {
+				throw new IllegalStateException("expected");
+			}
+		});
+		wheel.schedule("good", 50, TimeUnit.MILLISECONDS, recorder);
+
+		Thread.sleep(300);
+		assertEquals(1, fired.size());
+	}
+}
@@ -0,0 +1,96 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the SSID-to-pool index, and that readers are handed
+ * immutable snapshots that later changes don't affect.
+ */
+public class PoolManagerTest {
+	private PoolManager poolManager;
+	private InetAddress a1;
+	private InetAddress a2;
+
+	@Before
+	public void setup() throws Exception {
+		poolManager = new PoolManager();
+		a1 = InetAddress.getByName("172.17.2.161");
+		a2 = InetAddress.getByName("172.17.2.162");
+		poolManager.addPoolForAgent(a1, "pool-1");
+		poolManager.addPoolForAgent(a2, "pool-2");
+		poolManager.addNetworkForPool("pool-1", "odin-1");
+		poolManager.addNetworkForPool("pool-2", "odin-2");
+	}
+
+	@Test
+	public void testSsidIndex() throws Exception {
+		assertEquals("pool-1", poolManager.getPoolForSsid("odin-1"));
+		assertEquals("pool-2", poolManager.getPoolForSsid("odin-2"));
+		assertNull(poolManager.getPoolForSsid("odin-3"));
+
+		// SSIDs are unique across pools
+		assertFalse(poolManager.addNetworkForPool("pool-2", "odin-1"));
+		assertFalse(poolManager.removeNetworkFromPool("pool-2", "odin-1"));
+		assertFalse(poolManager.addNetworkForPool("pool-that-doesnt-exist", "odin-3"));
+		assertEquals(2, poolManager.getNumNetworks());
+
+		assertTrue(poolManager.removeNetworkFromPool("pool-1", "odin-1"));
+		assertNull(poolManager.getPoolForSsid("odin-1"));
+		assertTrue(poolManager.addNetworkForPool("pool-2", "odin-1"));
+		assertEquals("pool-2", poolManager.getPoolForSsid("odin-1"));
+		assertEquals(2, poolManager.getSsidListForPool(PoolManager.GLOBAL_POOL).size());
+	}
+
+	@Test
+	public void testAgentPoolMembership() throws Exception {
+		assertTrue(poolManager.isAgentInPool(a1, "pool-1"));
+		assertFalse(poolManager.isAgentInPool(a1, "pool-2"));
+		assertTrue(poolManager.isAgentInPool(a2, PoolManager.GLOBAL_POOL));
+		assertFalse(poolManager.isAgentInPool(a1, "pool-that-doesnt-exist"));
+
+		// Adding an agent to a pool twice doesn't list the pool twice
+		poolManager.addPoolForAgent(a1, "pool-1");
+		assertEquals(1, poolManager.getPoolsForAgent(a1).size());
+	}
+
+	@Test
+	public void testSnapshotsAreImmutable() throws Exception {
+		List<String> pools = poolManager.getPoolsForAgent(a1);
+		Set<InetAddress> agents = poolManager.getAgentAddrsForPool("pool-1");
+		Set<String> ssids = poolManager.getSsidListForPool("pool-1");
+
+		// No allocation on lookups
+		assertSame(pools, poolManager.getPoolsForAgent(a1));
+		assertSame(ssids, poolManager.getSsidListForPool("pool-1"));
+
+		poolManager.addPoolForAgent(a1, "pool-2");
+		poolManager.addPoolForAgent(a2, "pool-1");
+		poolManager.addNetworkForPool("pool-1", "odin-3");
+
+		assertEquals(1, pools.size());
+		assertEquals(1, agents.size());
+		assertEquals(1, ssids.size());
+		assertEquals(2, poolManager.getPoolsForAgent(a1).size());
+		assertEquals(2, poolManager.getAgentAddrsForPool("pool-1").size());
+		assertEquals(2, poolManager.getSsidListForPool("pool-1").size());
+
+		try {
+			agents.add(a2);
+			fail("Agent sets must not be modifiable");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+}
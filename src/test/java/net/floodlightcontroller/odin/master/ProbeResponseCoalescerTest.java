@@ -0,0 +1,115 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that bursts of broadcast probes are answered once per
+ * agent, and that the SSIDs offered follow changes to the pools.
+ */
+public class ProbeResponseCoalescerTest {
+	private static final MACAddress CLIENT = MACAddress.valueOf("00:00:00:00:00:01");
+
+	private OdinTestFixture fixture;
+	private OdinMaster odinMaster;
+	private PoolManager poolManager;
+
+	@Before
+	public void setup() throws Exception {
+		fixture = new OdinTestFixture();
+		odinMaster = fixture.startMaster();
+		poolManager = fixture.poolManager;
+	}
+
+	@After
+	public void tearDown() {
+		fixture.shutdown();
+	}
+
+	@Test
+	public void testBurstsAreAnsweredOncePerAgent() throws Exception {
+		StubOdinAgent a1 = fixture.addAgent("172.17.2.161", "pool-1");
+		StubOdinAgent a2 = fixture.addAgent("172.17.2.162", "pool-2");
+		poolManager.addNetworkForPool("pool-1", "odin-1");
+		poolManager.addNetworkForPool("pool-2", "odin-2");
+
+		// A client scanning every channel
+		for (int i = 0; i < 11; i++) {
+			odinMaster.receiveProbe(a1.getIpAddress(), CLIENT, "");
+			odinMaster.receiveProbe(a2.getIpAddress(), CLIENT, "");
+		}
+
+		assertEquals(1, a1.getProbeResponses());
+		assertEquals(1, a2.getProbeResponses());
+		assertEquals(2L, odinMaster.getProbeResponseStats().get("sent"));
+		assertEquals(20L, odinMaster.getProbeResponseStats().get("suppressed"));
+
+		// Other clients are answered as usual
+		odinMaster.receiveProbe(a1.getIpAddress(), MACAddress.valueOf("00:00:00:00:00:02"), "");
+		assertEquals(2, a1.getProbeResponses());
+
+		// A new network is offered straight away
+		assertTrue(odinMaster.addNetwork("pool-1", "odin-3"));
+		odinMaster.receiveProbe(a1.getIpAddress(), CLIENT, "");
+		assertEquals(3, a1.getProbeResponses());
+		assertTrue(a1.getLastProbeResponseSsids().contains("odin-3"));
+		assertFalse(a1.getLastProbeResponseSsids().contains("odin-2"));
+	}
+
+	@Test
+	public void testWindowExpires() throws Exception {
+		OdinTimeoutWheel wheel = new OdinTimeoutWheel(10, TimeUnit.MILLISECONDS, 64);
+		ProbeResponseCoalescer coalescer = new ProbeResponseCoalescer(wheel, 50);
+		InetAddress agentAddr = InetAddress.getByName("172.17.2.161");
+
+		try {
+			assertTrue(coalescer.shouldSend(agentAddr, CLIENT, 0));
+			assertFalse(coalescer.shouldSend(agentAddr, CLIENT, 0));
+
+			Thread.sleep(200);
+			assertEquals(0, coalescer.getStats().get("tracked"));
+			assertTrue(coalescer.shouldSend(agentAddr, CLIENT, 0));
+
+			// Disabled
+			coalescer.setWindow(0);
+			assertTrue(coalescer.shouldSend(agentAddr, CLIENT, 0));
+			assertEquals(3, coalescer.getSentCount());
+			assertEquals(1, coalescer.getSuppressedCount());
+		} finally {
+			wheel.stop();
+		}
+	}
+
+	@Test
+	public void testSsidSetIsCachedUntilPoolsChange() throws Exception {
+		InetAddress agentAddr = InetAddress.getByName("172.17.2.161");
+		poolManager.addPoolForAgent(agentAddr, "pool-1");
+		poolManager.addNetworkForPool("pool-1", "odin-1");
+
+		assertSame(poolManager.getSsidSetForAgent(agentAddr), poolManager.getSsidSetForAgent(agentAddr));
+
+		Set<String> before = poolManager.getSsidSetForAgent(agentAddr);
+		poolManager.addPoolForAgent(agentAddr, "pool-2");
+		poolManager.addNetworkForPool("pool-2", "odin-2");
+
+		Set<String> after = poolManager.getSsidSetForAgent(agentAddr);
+		assertNotSame(before, after);
+		assertEquals(2, after.size());
+
+		assertTrue(poolManager.removeNetworkFromPool("pool-1", "odin-1"));
+		assertEquals(1, poolManager.getSsidSetForAgent(agentAddr).size());
+	}
+}
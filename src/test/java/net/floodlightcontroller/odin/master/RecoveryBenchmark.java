@@ -0,0 +1,121 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Time for a restarted master to rebuild 50k clients, spread over
+ * 100 agents, from its journal:
+ *
+ *   journal:  replaying every change made since the last snapshot
+ *   snapshot: reading the snapshot taken when the journal was opened
+ *   restore:  opening the journal and rebuilding the client, pool
+ *             and agent managers from it
+ *
+ * Without a journal, the master reads each agent's LVAP table as
+ * the agent registers, one blocking round trip per agent.
+ */
+public class RecoveryBenchmark {
+	private static final int CLIENTS = 50000;
+	private static final int AGENTS = 100;
+	private static final String POOL = "pool-1";
+	private static final int CAPACITY = 64 * 1024 * 1024;
+
+	private File dir;
+	private final List<OdinJournal> journals = new ArrayList<OdinJournal>();
+	private final InetAddress[] agentAddrs = new InetAddress[AGENTS];
+
+	@Before
+	public void setup() throws Exception {
+		dir = OdinJournalTest.createTempDir();
+
+		for (int i = 0; i < AGENTS; i++) {
+			agentAddrs[i] = InetAddress.getByName("172.17." + (3 + i / 250) + "." + (1 + i % 250));
+		}
+	}
+
+	@After
+	public void tearDown() {
+		for (OdinJournal journal: journals) {
+			journal.close();
+		}
+
+		OdinJournalTest.deleteDir(dir);
+	}
+
+	private OdinJournal open() throws Exception {
+		OdinJournal journal = OdinJournal.open(dir, CAPACITY);
+		journals.add(journal);
+		return journal;
+	}
+
+	@Test
+	public void testRecoveryTime() throws Exception {
+		OdinJournal journal = open();
+		List<String> ssids = new ArrayList<String>();
+		ssids.add("odin");
+		InetAddress ip = InetAddress.getByName("0.0.0.0");
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < CLIENTS; i++) {
+			MACAddress mac = MACAddress.valueOf(0x001122000000L + i);
+			journal.clientAdded(new OdinClient(mac, ip, new Lvap(MACAddress.valueOf(0x001bb3000000L + i), ssids)));
+			journal.clientPoolChanged(mac, POOL);
+			journal.clientAgentChanged(mac, agentAddrs[i % AGENTS]);
+			journal.clientIpChanged(mac, InetAddress.getByAddress(new byte[] {10, 0, (byte) (i >> 8), (byte) i}));
+		}
+
+		long append = (System.nanoTime() - start) / (CLIENTS * 4);
+		int journalSize = journal.getJournalSize();
+
+		// Crash: nothing but the mapped journal is left
+		start = System.nanoTime();
+		OdinJournal.State state = open().getState();
+		long fromJournal = (System.nanoTime() - start) / 1000000;
+		assertEquals(CLIENTS, state.clients.size());
+
+		start = System.nanoTime();
+		state = open().getState();
+		long fromSnapshot = (System.nanoTime() - start) / 1000000;
+		assertEquals(CLIENTS, state.clients.size());
+
+		// Rebuild the managers, as a restarted master does
+		ClientManager clientManager = new ClientManager();
+		PoolManager poolManager = new PoolManager();
+		AgentManager agentManager = new AgentManager(clientManager, poolManager);
+		OdinMaster odinMaster = new OdinMaster(agentManager, clientManager, new LvapManager(), poolManager);
+
+		for (InetAddress addr: agentAddrs) {
+			poolManager.addPoolForAgent(addr, POOL);
+		}
+
+		start = System.nanoTime();
+		odinMaster.recoverFromJournal(open());
+		long restore = (System.nanoTime() - start) / 1000000;
+		odinMaster.shutdown();
+
+		assertEquals(CLIENTS, clientManager.getClients().size());
+		assertEquals(CLIENTS, poolManager.getClientsFromPool(POOL).size());
+
+		OdinClient oc = clientManager.getClient(MACAddress.valueOf(0x001122000000L + 257));
+		assertEquals(InetAddress.getByName("10.0.1.1"), oc.getIpAddress());
+
+		System.out.println("append(ns/record)  journal(ms)  snapshot(ms)  restore(ms)  journal(KB)");
+		System.out.println(String.format("%17d %12d %13d %12d %12d", append, fromJournal, fromSnapshot, restore, journalSize / 1024));
+
+		// Loose bound, the point is milliseconds rather than a round trip per agent
+		assertTrue(restore < 10000);
+	}
+}
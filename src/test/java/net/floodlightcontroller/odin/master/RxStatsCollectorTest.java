@@ -0,0 +1,146 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the rxstats cache is shared between readers and
+ * bounded by the staleness they ask for, and the parsing of
+ * rxstats replies into numeric fields.
+ */
+public class RxStatsCollectorTest {
+	private static final MACAddress STA = MACAddress.valueOf("00:11:22:33:44:55");
+
+	private OdinTestFixture fixture;
+	private AgentManager agentManager;
+	private RxStatsCollector collector;
+
+	private static Map<MACAddress, RxStatsSnapshot.Station> stats(int signal) {
+		Map<MACAddress, RxStatsSnapshot.Station> map = new HashMap<MACAddress, RxStatsSnapshot.Station>();
+		map.put(STA, new RxStatsSnapshot.Station(54, signal, -95, signal, 1.5));
+		return map;
+	}
+
+	@Before
+	public void setup() throws Exception {
+		fixture = new OdinTestFixture();
+		agentManager = fixture.agentManager;
+		collector = new RxStatsCollector(agentManager);
+	}
+
+	@After
+	public void tearDown() {
+		fixture.shutdown();
+	}
+
+	@Test
+	public void testReadsAreBoundedByStaleness() throws Exception {
+		StubOdinAgent agent = fixture.addAgent("172.17.2.161");
+		agent.setStationStats(stats(180));
+
+		// Nothing cached yet
+		RxStatsSnapshot first = collector.getRxStats(agent.getIpAddress(), 60000);
+		assertEquals(1, agent.getRxStatsReads());
+		assertEquals(180, first.getStation(STA).getSignal());
+
+		// Cached stats are shared while fresh enough
+		agent.setStationStats(stats(150));
+		assertSame(first, collector.getRxStats(agent.getIpAddress(), 60000));
+		assertSame(first, collector.getRxStats(agent.getIpAddress(), 60000));
+		assertEquals(1, agent.getRxStatsReads());
+
+		Thread.sleep(20);
+		RxStatsSnapshot second = collector.getRxStats(agent.getIpAddress(), 10);
+		assertEquals(2, agent.getRxStatsReads());
+		assertEquals(150, second.getStation(STA).getSignal());
+
+		// Forced refresh ignores the cache
+		collector.refresh(agent.getIpAddress());
+		assertEquals(3, agent.getRxStatsReads());
+
+		assertNull(collector.getRxStats(InetAddress.getByName("172.17.2.200"), 60000));
+	}
+
+	@Test
+	public void testPollingRoundReadsEveryAgent() throws Exception {
+		StubOdinAgent a1 = fixture.addAgent("172.17.2.161");
+		StubOdinAgent a2 = fixture.addAgent("172.17.2.162");
+		a2.setStationStats(stats(170));
+
+		collector.run();
+		assertEquals(1, a1.getRxStatsReads());
+		assertEquals(1, a2.getRxStatsReads());
+
+		// Readers are served from the round's snapshots
+		assertEquals(170, collector.getRxStats(a2.getIpAddress(), 60000).getStation(STA).getSignal());
+		assertTrue(collector.getRxStats(a1.getIpAddress(), 60000).getStations().isEmpty());
+		assertEquals(1, a2.getRxStatsReads());
+
+		agentManager.removeAgent(a1.getIpAddress());
+		collector.run();
+		assertEquals(1, a1.getRxStatsReads());
+		assertEquals(2, a2.getRxStatsReads());
+	}
+
+	/**
+	 * Stats read by the collector feed the hearing graph
+	 */
+	@Test
+	public void testStatsFeedHearingGraph() throws Exception {
+		ClientManager clientManager = new ClientManager();
+		clientManager.addClient(STA, InetAddress.getByName("172.17.2.51"), null);
+		OdinTimeoutWheel wheel = new OdinTimeoutWheel();
+		HearingGraph graph = new HearingGraph(clientManager, wheel);
+		collector = new RxStatsCollector(agentManager, graph);
+
+		try {
+			StubOdinAgent agent = fixture.addAgent("172.17.2.161");
+			agent.setStationStats(stats(180));
+			collector.run();
+
+			List<HearingLink> best = graph.getBestAgents(STA, 1);
+			assertEquals(1, best.size());
+			assertEquals(agent.getIpAddress(), best.get(0).getAgentAddress());
+			assertEquals(180.0, best.get(0).getSignal(), 0.001);
+		} finally {
+			wheel.stop();
+		}
+	}
+
+	@Test
+	public void testParser() throws Exception {
+		String reply = "00:11:22:33:44:55 rate:54 signal:180 noise:-95 avg_signal:175 last_received:12.250000\n"
+				+ "00:11:22:33:44:56 signal:170 rate:11 avg_signal:168 noise:-92 last_received:3.5\n"
+				+ "00:11:22:33:44:57 rate:54 signal:abc noise:-95 avg_signal:175 last_received:1.0\n"
+				+ "00:11:22:33:44:58 rate:54 signal:180\n";
+		byte[] data = ("junk" + reply).getBytes("US-ASCII");
+
+		Map<MACAddress, RxStatsSnapshot.Station> stations = new RxStatsSnapshotParser().parse(data, 4, data.length - 4);
+		assertEquals(2, stations.size());
+
+		RxStatsSnapshot.Station s = stations.get(STA);
+		assertEquals(54, s.getRate());
+		assertEquals(180, s.getSignal());
+		assertEquals(-95, s.getNoise());
+		assertEquals(175, s.getAvgSignal());
+		assertEquals(12.25, s.getLastReceived(), 1e-9);
+
+		s = stations.get(MACAddress.valueOf("00:11:22:33:44:56"));
+		assertEquals(11, s.getRate());
+		assertEquals(-92, s.getNoise());
+		assertEquals(3.5, s.getLastReceived(), 1e-9);
+	}
+}
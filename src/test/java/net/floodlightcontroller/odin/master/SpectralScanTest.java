@@ -0,0 +1,187 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for spectral scan ingestion and its windowed aggregates.
+ */
+public class SpectralScanTest {
+	private SpectralScanManager manager;
+	private StubOdinAgent agent;
+
+	@Before
+	public void setup() throws Exception {
+		manager = new SpectralScanManager();
+		manager.setCapacity(8);
+		manager.setBusyThreshold(-85);
+		agent = new StubOdinAgent();
+		agent.init(InetAddress.getByName("127.0.0.1"));
+	}
+
+	/**
+	 * A frame: noise floor and bin powers, in dB above it
+	 */
+	private static void putFrame (ByteBuffer buf, int frequency, int noise, int... bins) {
+		buf.putShort((short) frequency);
+		buf.put((byte) noise);
+		buf.put((byte) bins.length);
+
+		for (int bin: bins) {
+			buf.put((byte) bin);
+		}
+	}
+
+	private static ByteBuffer datagram (int count) {
+		ByteBuffer buf = ByteBuffer.allocate(1024);
+		buf.put((byte) SpectralScanServer.MAGIC);
+		buf.put((byte) SpectralScanServer.VERSION);
+		buf.put((byte) count);
+		return buf;
+	}
+
+	/**
+	 * Aggregates are per channel, over the window, and only
+	 * cover the frames the ring still holds, but for the oldest
+	 * one, which the writer may be overwriting
+	 */
+	@Test
+	public void testRingAggregates() {
+		SpectralScanRing ring = new SpectralScanRing(8);
+
+		// Old frames, soon overwritten
+		for (int i = 0; i < 4; i++) {
+			ring.add(100, 2437, -20, 4, 4);
+		}
+
+		ring.add(200, 2412, -60, 2, 4);
+		ring.add(200, 2412, -90, 0, 4);
+		ring.add(300, 2462, -70, 1, 4);
+
+		for (int i = 0; i < 5; i++) {
+			ring.add(300, 2412, -80, 1, 4);
+		}
+
+		assertEquals(12, ring.getFrameCount());
+
+		List<ChannelOccupancy> all = ring.summarize(0);
+		assertEquals(2, all.size());
+
+		ChannelOccupancy ch1 = all.get(0);
+		assertEquals(2412, ch1.getFrequency());
+		assertEquals(6, ch1.getFrames());
+		assertEquals(5.0 / 24, ch1.getOccupancy(), 0.0001);
+		assertEquals(5.0 / 6, ch1.getDutyCycle(), 0.0001);
+		assertEquals(-80, ch1.getPeakPower());
+		assertEquals(-490.0 / 6, ch1.getAveragePower(), 0.0001);
+
+		ChannelOccupancy ch11 = all.get(1);
+		assertEquals(2462, ch11.getFrequency());
+		assertEquals(1.0, ch11.getDutyCycle(), 0.0001);
+
+		// Only the newest frames
+		List<ChannelOccupancy> recent = ring.summarize(300);
+		assertEquals(2, recent.size());
+		assertEquals(5, recent.get(0).getFrames());
+		assertEquals(-80, recent.get(0).getPeakPower());
+	}
+
+	/**
+	 * Frames are decoded into the ring of the agent that sent
+	 * them, but only while it is scanning
+	 */
+	@Test
+	public void testIngest() throws Exception {
+		SpectralScanServer server = new SpectralScanServer(manager, 0);
+		long now = System.currentTimeMillis();
+
+		ByteBuffer buf = datagram(2);
+		putFrame(buf, 2412, -95, 0, 5, 12, 30);
+		putFrame(buf, 5180, -95, 0, 0);
+		buf.flip();
+
+		// Not scanning, and nowhere to stream to yet
+		assertEquals(0, server.ingest(agent.getIpAddress(), buf.duplicate(), now));
+		assertFalse(manager.start(agent, 100));
+
+		manager.setPort(2820);
+		assertTrue(manager.start(agent, 100));
+		assertEquals(100, agent.getSpectralScanPeriod());
+
+		assertEquals(2, server.ingest(agent.getIpAddress(), buf.duplicate(), now));
+
+		List<ChannelOccupancy> occupancy = manager.getOccupancy(agent.getIpAddress(), 60000);
+		assertEquals(2, occupancy.size());
+		assertEquals(2412, occupancy.get(0).getFrequency());
+		assertEquals(0.5, occupancy.get(0).getOccupancy(), 0.0001);
+		assertEquals(1.0, occupancy.get(0).getDutyCycle(), 0.0001);
+		assertEquals(-65, occupancy.get(0).getPeakPower());
+		assertEquals(5180, occupancy.get(1).getFrequency());
+		assertEquals(0.0, occupancy.get(1).getDutyCycle(), 0.0001);
+
+		// Truncated frame
+		ByteBuffer bad = datagram(2);
+		putFrame(bad, 2412, -95, 40);
+		bad.put((byte) 0x09);
+		bad.flip();
+		assertEquals(1, server.ingest(agent.getIpAddress(), bad, now));
+
+		assertEquals(1L, server.getStats().get("notScanning"));
+		assertEquals(1L, server.getStats().get("parseErrors"));
+		assertEquals(3L, server.getStats().get("frames"));
+
+		assertTrue(manager.stop(agent.getIpAddress()));
+		assertFalse(manager.stop(agent.getIpAddress()));
+		assertEquals(0, agent.getSpectralScanPeriod());
+		assertNull(manager.getOccupancy(agent.getIpAddress(), 60000));
+	}
+
+	@Test
+	public void testDatagramsReachRing() throws Exception {
+		DatagramSocket probe = new DatagramSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+
+		manager.setPort(port);
+		manager.start(agent, 100);
+
+		SpectralScanServer server = new SpectralScanServer(manager, port);
+		Thread t = new Thread(server);
+		t.setDaemon(true);
+		t.start();
+
+		ByteBuffer buf = datagram(1);
+		putFrame(buf, 2437, -95, 20);
+		byte[] b = new byte[buf.position()];
+		buf.flip();
+		buf.get(b);
+
+		DatagramSocket sender = new DatagramSocket();
+		SpectralScanRing ring = manager.getRing(agent.getIpAddress());
+
+		try {
+			// The server may not have bound yet, so keep sending until a frame arrived
+			for (int attempt = 0; attempt < 50 && ring.getFrameCount() == 0; attempt++) {
+				sender.send(new DatagramPacket(b, b.length, agent.getIpAddress(), port));
+				Thread.sleep(100);
+			}
+
+			assertTrue(ring.getFrameCount() > 0);
+			assertEquals(2437, manager.getOccupancy(agent.getIpAddress(), 60000).get(0).getFrequency());
+		} finally {
+			sender.close();
+			server.shutdown();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.odin.master.OdinEventSubscription.Relation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that subscription lists are scoped to pools, and that
+ * agents are only sent a list when theirs has changed.
+ */
+public class SubscriptionRegistryTest {
+	private static final NotificationCallback NOOP = new NotificationCallback() {
+		@Override
+		public void exec(OdinEventSubscription oes, NotificationCallbackContext cntx) {
+		}
+	};
+
+	private OdinTestFixture fixture;
+	private PoolManager poolManager;
+	private AgentManager agentManager;
+	private SubscriptionRegistry registry;
+
+	private StubOdinAgent a1;
+	private StubOdinAgent a2;
+	private StubOdinAgent b1;
+
+	private static OdinEventSubscription subscription(String client, double value) {
+		OdinEventSubscription oes = new OdinEventSubscription();
+		oes.setSubscription(client, "signal", Relation.GREATER_THAN, value);
+		return oes;
+	}
+
+	@Before
+	public void setup() throws Exception {
+		fixture = new OdinTestFixture();
+		poolManager = fixture.poolManager;
+		agentManager = fixture.agentManager;
+		registry = new SubscriptionRegistry(poolManager, agentManager);
+
+		a1 = fixture.addAgent("172.17.2.161", "pool-a");
+		a2 = fixture.addAgent("172.17.2.162", "pool-a");
+		b1 = fixture.addAgent("172.17.2.163", "pool-b");
+	}
+
+	@After
+	public void tearDown() {
+		fixture.shutdown();
+	}
+
+	@Test
+	public void testListsAreScopedToPools() throws Exception {
+		long id1 = registry.register("pool-a", subscription("*", 180), NOOP);
+
+		assertEquals("1 1 00:00:00:00:00:00 signal 1 180.0 ", a1.getSubscriptionList());
+		assertEquals(a1.getSubscriptionList(), a2.getSubscriptionList());
+		assertNull(b1.getSubscriptionList());
+
+		// Global subscriptions go to everyone
+		long id2 = registry.register(PoolManager.GLOBAL_POOL, subscription("00:00:00:00:00:03", 150), NOOP);
+		assertEquals("2 1 00:00:00:00:00:00 signal 1 180.0 2 00:00:00:00:00:03 signal 1 150.0 ", a1.getSubscriptionList());
+		assertEquals("1 2 00:00:00:00:00:03 signal 1 150.0 ", b1.getSubscriptionList());
+
+		assertTrue(registry.get(id1).cb == NOOP);
+		assertEquals("pool-a", registry.get(id1).pool);
+		assertEquals(PoolManager.GLOBAL_POOL, registry.get(id2).pool);
+	}
+
+	@Test
+	public void testOnlyChangedAgentsAreUpdated() throws Exception {
+		registry.register("pool-a", subscription("*", 180), NOOP);
+		assertEquals(1, a1.getSubscriptionUpdates());
+		assertEquals(1, a2.getSubscriptionUpdates());
+		assertEquals(0, b1.getSubscriptionUpdates());
+
+		long id = registry.register("pool-b", subscription("*", 100), NOOP);
+		assertEquals(1, a1.getSubscriptionUpdates());
+		assertEquals(1, b1.getSubscriptionUpdates());
+
+		// Applications can't remove other pools' subscriptions
+		assertFalse(registry.unregister("pool-a", id));
+		assertEquals(1, b1.getSubscriptionUpdates());
+
+		assertTrue(registry.unregister("pool-b", id));
+		assertEquals(2, b1.getSubscriptionUpdates());
+		assertEquals("0 ", b1.getSubscriptionList());
+		assertEquals(1, a1.getSubscriptionUpdates());
+		assertNull(registry.get(id));
+
+		// A reconnecting agent is always sent its list
+		registry.pushToAgent(a1);
+		assertEquals(2, a1.getSubscriptionUpdates());
+	}
+
+	/**
+	 * With a fan-out, the list pushed to a reconnecting agent waits
+	 * its turn behind what is already queued for the agent
+	 */
+	@Test
+	public void testPushToAgentIsQueuedBehindFanOut() throws Exception {
+		AgentFanOut fanOut = new AgentFanOut(1);
+		registry.setFanOut(fanOut);
+
+		// Hold up the agent's queue
+		final CountDownLatch release = new CountDownLatch(1);
+		Map<IOdinAgent, List<Object>> work = new HashMap<IOdinAgent, List<Object>>();
+		work.put(a1, Collections.singletonList(new Object()));
+		FanOutReport blocker = fanOut.submit("block", work, new AgentFanOut.AgentOperation<Object>() {
+			@Override
+			public OdinAgentFuture<Void> apply(IOdinAgent agent, Object item) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				return OdinAgentFuture.completed(null);
+			}
+		});
+
+		registry.register("pool-a", subscription("*", 180), NOOP);
+		registry.pushToAgent(a1);
+		assertEquals(0, a1.getSubscriptionUpdates());
+
+		release.countDown();
+		assertTrue(blocker.future().await(2, TimeUnit.SECONDS));
+
+		long deadline = System.currentTimeMillis() + 2000;
+
+		while (a1.getSubscriptionUpdates() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+
+		assertEquals(2, a1.getSubscriptionUpdates());
+		assertEquals(registry.getSubscriptionList(a1.getIpAddress()), a1.getSubscriptionList());
+	}
+}
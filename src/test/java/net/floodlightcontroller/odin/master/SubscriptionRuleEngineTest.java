@@ -0,0 +1,178 @@
+package net.floodlightcontroller.odin.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.odin.master.OdinEventSubscription.Relation;
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that subscriptions evaluated by the master are turned into
+ * sample subscriptions for the agents, and that samples match the
+ * rules they should.
+ */
+public class SubscriptionRuleEngineTest {
+	private static final NotificationCallback NOOP = new NotificationCallback() {
+		@Override
+		public void exec(OdinEventSubscription oes, NotificationCallbackContext cntx) {
+		}
+	};
+
+	private static final MACAddress CLIENT = MACAddress.valueOf("00:00:00:00:00:01");
+	private static final MACAddress OTHER_CLIENT = MACAddress.valueOf("00:00:00:00:00:02");
+
+	private OdinTestFixture fixture;
+	private PoolManager poolManager;
+	private AgentManager agentManager;
+	private SubscriptionRegistry registry;
+
+	private StubOdinAgent a1;
+	private StubOdinAgent b1;
+
+	private static OdinEventSubscription subscription(String client, String statistic, Relation rel, double value) {
+		OdinEventSubscription oes = new OdinEventSubscription();
+		oes.setSubscription(client, statistic, rel, value);
+		return oes;
+	}
+
+	/**
+	 * Ids of the subscriptions a sample published for 'id' matches
+	 */
+	private List<Long> match(long id, MACAddress client, StubOdinAgent agent, long value) {
+		List<SubscriptionRegistry.Subscription> matched = new ArrayList<SubscriptionRegistry.Subscription>();
+		registry.match(id, client, agent.getIpAddress(), value, matched);
+
+		List<Long> ids = new ArrayList<Long>();
+
+		for (SubscriptionRegistry.Subscription sub: matched) {
+			ids.add(sub.id);
+		}
+
+		return ids;
+	}
+
+	/**
+	 * Id of the n-th subscription in an agent's list
+	 */
+	private static long listedId(StubOdinAgent agent, int n) {
+		return Long.parseLong(agent.getSubscriptionList().split(" ")[1 + 5 * n]);
+	}
+
+	@Before
+	public void setup() throws Exception {
+		fixture = new OdinTestFixture();
+		poolManager = fixture.poolManager;
+		agentManager = fixture.agentManager;
+		registry = new SubscriptionRegistry(poolManager, agentManager);
+
+		a1 = fixture.addAgent("172.17.2.161", "pool-a");
+		b1 = fixture.addAgent("172.17.2.163", "pool-b");
+	}
+
+	@After
+	public void tearDown() {
+		fixture.shutdown();
+	}
+
+	@Test
+	public void testMasterEvaluationSendsSampleSubscriptions() throws Exception {
+		long plain = registry.register("pool-a", subscription("*", "signal", Relation.GREATER_THAN, 180), NOOP);
+		assertEquals("1 " + plain + " 00:00:00:00:00:00 signal 1 180.0 ", a1.getSubscriptionList());
+
+		registry.setMasterEvaluation(true);
+		registry.register("pool-a", subscription(CLIENT.toString(), "signal", Relation.LESSER_THAN, 150), NOOP);
+		registry.register("pool-a", subscription(CLIENT.toString(), "rate", Relation.EQUALS, 54), NOOP);
+
+		// One sample subscription per statistic, and the wild-card
+		// client covers the specific one
+		String list = a1.getSubscriptionList();
+		long rateSample = listedId(a1, 0);
+		long signalSample = listedId(a1, 1);
+		assertEquals("2 " + rateSample + " 00:00:00:00:00:01 rate 1 " + (-Double.MAX_VALUE) + " "
+				+ signalSample + " 00:00:00:00:00:00 signal 1 " + (-Double.MAX_VALUE) + " ", list);
+		assertNull(registry.get(signalSample));
+
+		// Samples match the rules they satisfy
+		assertEquals(1, match(signalSample, CLIENT, a1, 200).size());
+		assertEquals(plain, (long) match(signalSample, CLIENT, a1, 200).get(0));
+		assertEquals(0, match(signalSample, CLIENT, a1, 160).size());
+		assertEquals(1, match(signalSample, CLIENT, a1, 100).size());
+		assertEquals(0, match(signalSample, OTHER_CLIENT, a1, 100).size());
+		assertEquals(1, match(rateSample, CLIENT, a1, 54).size());
+		assertEquals(0, match(rateSample, CLIENT, a1, 48).size());
+
+		// Agents of other pools never match
+		assertEquals(0, match(signalSample, CLIENT, b1, 200).size());
+
+		// Back to evaluation by the agents
+		registry.setMasterEvaluation(false);
+		assertEquals(plain, listedId(a1, 0));
+		assertEquals(0, match(signalSample, CLIENT, a1, 200).size());
+		assertEquals(1, match(plain, CLIENT, a1, 200).size());
+	}
+
+	@Test
+	public void testHysteresis() throws Exception {
+		OdinEventSubscription oes = subscription("*", "signal", Relation.LESSER_THAN, 150);
+		oes.setHysteresis(10);
+		registry.register("pool-a", oes, NOOP);
+
+		// Only the master can evaluate it, even in agent mode
+		long sample = listedId(a1, 0);
+		assertNull(registry.get(sample));
+
+		assertEquals(1, match(sample, CLIENT, a1, 140).size());
+
+		// Latched, until the signal is back past 160
+		assertEquals(0, match(sample, CLIENT, a1, 130).size());
+		assertEquals(0, match(sample, CLIENT, a1, 155).size());
+		assertEquals(0, match(sample, CLIENT, a1, 140).size());
+
+		// Each client is latched on its own
+		assertEquals(1, match(sample, OTHER_CLIENT, a1, 140).size());
+
+		assertEquals(0, match(sample, CLIENT, a1, 165).size());
+		assertEquals(1, match(sample, CLIENT, a1, 140).size());
+
+		// A removed client starts afresh
+		registry.removeClient(CLIENT);
+		assertEquals(1, match(sample, CLIENT, a1, 140).size());
+	}
+
+	@Test
+	public void testCompoundConditions() throws Exception {
+		OdinEventSubscription oes = subscription("*", "signal", Relation.LESSER_THAN, 150);
+		oes.addCondition("rate", Relation.LESSER_THAN, 12);
+		oes.addCondition("signal", Relation.GREATER_THAN, 100);
+		registry.register(PoolManager.GLOBAL_POOL, oes, NOOP);
+
+		long rateSample = listedId(a1, 0);
+		long signalSample = listedId(a1, 1);
+
+		// Nothing is known of the rate yet
+		assertEquals(0, match(signalSample, CLIENT, a1, 120).size());
+
+		assertEquals(1, match(rateSample, CLIENT, a1, 6).size());
+
+		// Both conditions on the signal must hold, and the
+		// rule matches once even though both are satisfied
+		assertEquals(1, match(signalSample, CLIENT, a1, 120).size());
+		assertEquals(0, match(signalSample, CLIENT, a1, 90).size());
+		assertEquals(0, match(rateSample, CLIENT, a1, 6).size());
+
+		// Samples of different agents aren't combined
+		assertEquals(0, match(signalSample, CLIENT, b1, 120).size());
+
+		assertEquals(0, match(rateSample, CLIENT, a1, 24).size());
+		assertEquals(0, match(signalSample, CLIENT, a1, 120).size());
+	}
+}